@@ -56,6 +56,8 @@ public class AWTAreaROI extends AreaROI implements TranslatableROI, Serializable
 	// By caching the bounds this can be speeded up
 	transient ClosedShapeStatistics stats = null;
 	
+	private transient boolean preparedPolygonChecked = false;
+	
 	public AWTAreaROI(Shape shape) {
 		this(shape, -1, 0, 0);
 	}
@@ -157,8 +159,55 @@ public class AWTAreaROI extends AreaROI implements TranslatableROI, Serializable
 
 	@Override
 	public boolean contains(double x, double y) {
+		// Use prepared geometry for complex areas, since contains is often called repeatedly (e.g. when resolving the hierarchy)
+		PreparedPolygon prepared = getPreparedPolygon();
+		if (prepared != null)
+			return prepared.contains(x, y);
 		return shape.contains(x, y);
 	}
+	
+	/**
+	 * Get prepared geometry for faster containment tests.
+	 * <p>
+	 * This is only available if the area has enough vertices to make it worthwhile, and if the shape 
+	 * contains only closed, straight-line segments using the non-zero winding rule - since otherwise 
+	 * the vertices would not give the same result as the shape itself.
+	 */
+	@Override
+	PreparedPolygon getPreparedPolygon() {
+		if (preparedPolygon == null && !preparedPolygonChecked) {
+			if (nVertices() >= PreparedPolygon.MIN_VERTICES && isClosedPolygon(shape))
+				preparedPolygon = new PreparedPolygon(vertices);
+			preparedPolygonChecked = true;
+		}
+		return preparedPolygon;
+	}
+	
+	private static boolean isClosedPolygon(final Path2D path) {
+		if (path.getWindingRule() != PathIterator.WIND_NON_ZERO)
+			return false;
+		PathIterator iter = path.getPathIterator(null);
+		double[] seg = new double[6];
+		boolean closed = true;
+		while (!iter.isDone()) {
+			switch(iter.currentSegment(seg)) {
+			case PathIterator.SEG_MOVETO:
+				if (!closed)
+					return false;
+				closed = false;
+				break;
+			case PathIterator.SEG_LINETO:
+				break;
+			case PathIterator.SEG_CLOSE:
+				closed = true;
+				break;
+			default:
+				return false;
+			};
+			iter.next();
+		}
+		return closed;
+	}
 
 	@Override
 	public ROI duplicate() {
@@ -23,6 +23,7 @@
 
 package qupath.lib.algorithms;
 
+import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.text.NumberFormat;
@@ -45,14 +46,17 @@ import qupath.lib.analysis.features.HaralickFeatureComputer;
 import qupath.lib.analysis.features.HaralickFeatures;
 import qupath.lib.analysis.stats.RunningStatistics;
 import qupath.lib.analysis.stats.StatisticsHelper;
+import qupath.lib.color.ColorDeconvolutionHelper;
 import qupath.lib.color.ColorDeconvolutionStains;
 import qupath.lib.color.ColorTransformer;
 import qupath.lib.color.ColorTransformer.ColorTransformMethod;
+import qupath.lib.common.ColorTools;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.geom.ImmutableDimension;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.stores.ImageRegionStore;
+import qupath.lib.images.stores.TransformedPixelCache;
 import qupath.lib.images.stores.TileListener;
 import qupath.lib.images.tools.BufferedImageTools;
 import qupath.lib.measurements.MeasurementList;
@@ -240,6 +244,66 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 			}
 		}
 		
+		/**
+		 * Get the (zero-based) channel index for the raster, or -1 if this transform is not a simple channel.
+		 * 
+		 * @return
+		 */
+		int getChannel() {
+			switch (this) {
+			case CHANNEL_1:
+				return 0;
+			case CHANNEL_2:
+				return 1;
+			case CHANNEL_3:
+				return 2;
+			case CHANNEL_4:
+				return 3;
+			case CHANNEL_5:
+				return 4;
+			case CHANNEL_6:
+				return 5;
+			case CHANNEL_7:
+				return 6;
+			case CHANNEL_8:
+				return 7;
+			default:
+				return -1;
+			}
+		}
+		
+		/**
+		 * Get the corresponding method to transform RGB pixels, or null if this transform does not apply to RGB images.
+		 * 
+		 * @return
+		 */
+		ColorTransformMethod getColorTransformMethod() {
+			switch (this) {
+			case BRIGHTNESS:
+				return ColorTransformMethod.Brightness;
+			case HUE:
+				return ColorTransformMethod.Hue;
+			case OD:
+				return ColorTransformMethod.Optical_density_sum;
+			case RED:
+				return ColorTransformMethod.Red;
+			case GREEN:
+				return ColorTransformMethod.Green;
+			case BLUE:
+				return ColorTransformMethod.Blue;
+			case SATURATION:
+				return ColorTransformMethod.Saturation;
+			case STAIN_1:
+				return ColorTransformMethod.Stain_1;
+			case STAIN_2:
+				return ColorTransformMethod.Stain_2;
+			case STAIN_3:
+				return ColorTransformMethod.Stain_3;
+			default:
+				return null;
+			}
+		}
+		
 		public float[] getTransformedPixels(final BufferedImage img, int[] buf, final ColorDeconvolutionStains stains, float[] pixels) {
 			if (pixels == null)
 				pixels = new float[img.getWidth() * img.getHeight()];
@@ -470,9 +534,16 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 		if (roi == null)
 			return false;
 		
+		// Determine the requested transforms up front, so that they can all be computed in a single pass over each tile
+		List<FeatureColorTransform> transforms = new ArrayList<>();
+		for (FeatureColorTransform transform : FeatureColorTransform.values()) {
+			if (Boolean.TRUE.equals(params.getBooleanParameterValue(transform.getKey())))
+				transforms.add(transform);
+		}
+		
 		// Create a map - this is useful for occasions when tiling is needed
 		Map<FeatureColorTransform, List<FeatureComputer>> map = new LinkedHashMap<>();
-		for (FeatureColorTransform transform : FeatureColorTransform.values()) {
+		for (FeatureColorTransform transform : transforms) {
 			List<FeatureComputer> list = new ArrayList<>();
 			map.put(transform, list);
 			for (FeatureComputerBuilder builder : builders) {
@@ -489,6 +560,9 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 		if (rois.size() > 1)
 			logger.info("Splitting {} into {} tiles for intensity measurements", roi, rois.size());
 		
+		PixelBuffers buffers = PixelBuffers.getInstance();
+		// Use a shared cache, if one is open, to avoid rereading & retransforming regions used by other plugins
+		TransformedPixelCache cache = TransformedPixelCache.getCache(server);
 		for (ROI pathROI : rois) {
 			
 			if (Thread.currentThread().isInterrupted()) {
@@ -518,9 +592,9 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 	//		System.out.println(bounds);
 	//		System.out.println("Size: " + size);
 	
-			BufferedImage img = null;
+			BufferedImage img = cache == null ? null : cache.getImage(region);
 			// Try to read the image using the ImageRegionServer... if this doesn't work out, fall back to using the default (slower) method
-			if (regionStore != null) {
+			if (img == null && regionStore != null) {
 				try {
 					img = regionStore.getImage(server, region);
 				} catch (Exception e) {
@@ -538,54 +612,31 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 				logger.error("Could not read image - unable to compute intensity features for {}", pathObject);
 				return false;
 			}
+			if (cache != null)
+				cache.putImage(region, img);
 	
-			// Create mask ROI if necessary
+			// Create a mask if necessary, once for all transforms
+			int w = img.getWidth();
+	 		int h = img.getHeight();
 			byte[] maskBytes = null;
 			if (regionType == RegionType.ROI) {
-				BufferedImage imgMask = BufferedImageTools.createROIMask(img.getWidth(), img.getHeight(), pathROI, region);
+				BufferedImage imgMask = BufferedImageTools.createROIMask(w, h, pathROI, region);
 				maskBytes = ((DataBufferByte)imgMask.getRaster().getDataBuffer()).getData();
+			} else if (regionType == RegionType.CIRCLE) {
+				maskBytes = buffers.getMask(w, h);
 			}
 			
-			
-			boolean isRGB = server.isRGB();
-			int w = img.getWidth();
-	 		int h = img.getHeight();
-			int[] rgbBuffer = isRGB ? img.getRGB(0, 0, w, h, null, 0, w) : null;
-			float[] pixels = null;
-			for (FeatureColorTransform transform : FeatureColorTransform.values()) {
-				// Check if the color transform is requested
-				if (Boolean.TRUE.equals(params.getBooleanParameterValue(transform.getKey()))) {
-					
-					// Transform the pixels
-					pixels = transform.getTransformedPixels(img, rgbBuffer, stains, pixels);
-					
-					// Create the simple image
-					FloatArraySimpleImage pixelImage = new FloatArraySimpleImage(pixels, w, h);
-					
-					// Apply any arbitrary mask
-					if (maskBytes != null) {
-						for (int i = 0; i < pixels.length; i++) {
-							if (maskBytes[i] == (byte)0)
-								pixelImage.setValue(i % w, i / w, Float.NaN);
-						}
-					} else if (regionType == RegionType.CIRCLE) {
-						// Apply circular tile mask
-						double cx = (w-1) / 2;
-						double cy = (h-1) / 2;
-						double radius = Math.max(w, h) * .5;
-						double distThreshold = radius * radius;
-						for (int y = 0; y < h; y++) {
-							for (int x = 0; x < w; x++) {
-								if ((cx - x)*(cx - x) + (cy - y)*(cy - y) > distThreshold)
-									pixelImage.setValue(x, y, Float.NaN);
-							}			
-						}
-					}
-					
-					// Do the computations
-					for (FeatureComputer computer : map.get(transform)) {
-						computer.updateFeatures(pixelImage, transform, params);
-					}
+			// Transform the pixels for all transforms in one pass & do the computations
+			int[] rgbBuffer = null;
+			if (server.isRGB())
+				rgbBuffer = cache == null ? img.getRGB(0, 0, w, h, buffers.getRGB(w * h), 0, w) : cache.getRGB(region, img);
+			float[][] pixels = buffers.getPixels(transforms.size(), w * h);
+			getTransformedPixels(img, rgbBuffer, stains, transforms, maskBytes, pixels, cache, region);
+			for (int t = 0; t < transforms.size(); t++) {
+				FeatureColorTransform transform = transforms.get(t);
+				FloatArraySimpleImage pixelImage = new FloatArraySimpleImage(pixels[t], w, h);
+				for (FeatureComputer computer : map.get(transform)) {
+					computer.updateFeatures(pixelImage, transform, params);
 				}
 			}
 		}
@@ -608,6 +659,215 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 	}
 	
 	
+	/**
+	 * Compute all the requested color transforms for an image in a single pass.
+	 * <p>
+	 * For RGB images this avoids repeatedly unpacking each pixel (and, for the HSB transforms, repeatedly 
+	 * converting the color space), while for all images pixels outside the mask are set to NaN as they are written.
+	 * 
+	 * @param img the image
+	 * @param rgb packed RGB values for the image, or null if it is not RGB
+	 * @param stains stains used for color deconvolution & optical densities
+	 * @param transforms requested transforms
+	 * @param mask optional mask, where zero values indicate pixels to exclude
+	 * @param pixels output arrays, one for each transform
+	 */
+	static void getTransformedPixels(final BufferedImage img, final int[] rgb, final ColorDeconvolutionStains stains, final List<FeatureColorTransform> transforms, final byte[] mask, final float[][] pixels) {
+		getTransformedPixels(img, rgb, stains, transforms, mask, pixels, null, null);
+	}
+	
+	/**
+	 * Compute all the requested color transforms for an image, using a shared cache for RGB transforms if available.
+	 * 
+	 * @see #getTransformedPixels(BufferedImage, int[], ColorDeconvolutionStains, List, byte[], float[][])
+	 */
+	static void getTransformedPixels(final BufferedImage img, final int[] rgb, final ColorDeconvolutionStains stains, final List<FeatureColorTransform> transforms, final byte[] mask, final float[][] pixels, final TransformedPixelCache cache, final RegionRequest region) {
+		int w = img.getWidth();
+		int h = img.getHeight();
+		int n = w * h;
+		int nTransforms = transforms.size();
+		
+		// Handle non-RGB transforms first, since these just need the raster values
+		boolean requiresRGB = false;
+		boolean requiresHSB = false;
+		for (int t = 0; t < nTransforms; t++) {
+			FeatureColorTransform transform = transforms.get(t);
+			int channel = transform.getChannel();
+			if (channel >= 0) {
+				img.getRaster().getSamples(0, 0, w, h, channel, pixels[t]);
+				if (mask != null) {
+					for (int i = 0; i < n; i++) {
+						if (mask[i] == (byte)0)
+							pixels[t][i] = Float.NaN;
+					}
+				}
+			} else {
+				requiresRGB = true;
+				requiresHSB = requiresHSB || transform == FeatureColorTransform.HUE || 
+						transform == FeatureColorTransform.SATURATION || transform == FeatureColorTransform.BRIGHTNESS;
+			}
+		}
+		if (!requiresRGB || rgb == null)
+			return;
+		
+		// If we have a cache, the transformed pixels may be available already (or useful later)
+		if (cache != null) {
+			for (int t = 0; t < nTransforms; t++) {
+				ColorTransformMethod method = transforms.get(t).getColorTransformMethod();
+				if (method == null)
+					continue;
+				float[] cached = cache.getTransformedPixels(region, method, stains, rgb);
+				for (int i = 0; i < n; i++)
+					pixels[t][i] = mask == null || mask[i] != (byte)0 ? cached[i] : Float.NaN;
+			}
+			return;
+		}
+		
+		// Create lookup tables & deconvolution matrix once only
+		double[] odRed = null, odGreen = null, odBlue = null, odDefault = null;
+		double[][] inverse = null;
+		if (stains != null) {
+			odRed = ColorDeconvolutionHelper.makeODLUT(stains.getMaxRed(), 256);
+			odGreen = ColorDeconvolutionHelper.makeODLUT(stains.getMaxGreen(), 256);
+			odBlue = ColorDeconvolutionHelper.makeODLUT(stains.getMaxBlue(), 256);
+			inverse = stains.getMatrixInverse();
+		} else
+			odDefault = ColorDeconvolutionHelper.makeODLUT(255.0, 256);
+		
+		FeatureColorTransform[] transformArray = transforms.toArray(new FeatureColorTransform[nTransforms]);
+		float[] hsb = new float[3];
+		for (int i = 0; i < n; i++) {
+			boolean include = mask == null || mask[i] != (byte)0;
+			int val = rgb[i];
+			if (include && requiresHSB)
+				Color.RGBtoHSB(ColorTools.red(val), ColorTools.green(val), ColorTools.blue(val), hsb);
+			for (int t = 0; t < nTransforms; t++) {
+				float v;
+				switch (transformArray[t]) {
+				case RED:
+					v = ColorTools.red(val);
+					break;
+				case GREEN:
+					v = ColorTools.green(val);
+					break;
+				case BLUE:
+					v = ColorTools.blue(val);
+					break;
+				case HUE:
+					v = hsb[0];
+					break;
+				case SATURATION:
+					v = hsb[1];
+					break;
+				case BRIGHTNESS:
+					v = hsb[2];
+					break;
+				case OD:
+					v = odDefault == null ? ColorTransformer.opticalDensitySum(val, odRed, odGreen, odBlue) : ColorTransformer.opticalDensitySum(val, odDefault);
+					break;
+				case STAIN_1:
+					v = ColorTransformer.deconvolve(val, inverse, odRed, odGreen, odBlue, 1);
+					break;
+				case STAIN_2:
+					v = ColorTransformer.deconvolve(val, inverse, odRed, odGreen, odBlue, 2);
+					break;
+				case STAIN_3:
+					v = ColorTransformer.deconvolve(val, inverse, odRed, odGreen, odBlue, 3);
+					break;
+				default:
+					// Channels have already been handled
+					continue;
+				}
+				pixels[t][i] = include ? v : Float.NaN;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Per-thread buffers that can be reused when measuring many regions of the same size, 
+	 * as is usually the case when using square or circular tiles.
+	 * <p>
+	 * Buffers are only retained for small regions, to avoid holding on to large arrays after measuring large ROIs.
+	 */
+	static class PixelBuffers {
+		
+		private final static int MAX_POOLED_PIXELS = 512 * 512;
+		
+		private final static ThreadLocal<PixelBuffers> localBuffers = ThreadLocal.withInitial(() -> new PixelBuffers());
+		
+		private float[][] pixels = new float[0][];
+		private int[] rgb;
+		private byte[] mask;
+		private int maskWidth, maskHeight;
+		
+		static PixelBuffers getInstance() {
+			return localBuffers.get();
+		}
+		
+		/**
+		 * Get arrays to store the transformed pixels for the specified number of transforms.
+		 * 
+		 * @param nTransforms
+		 * @param n number of pixels
+		 * @return
+		 */
+		float[][] getPixels(final int nTransforms, final int n) {
+			if (n > MAX_POOLED_PIXELS) {
+				float[][] temp = new float[nTransforms][];
+				for (int t = 0; t < nTransforms; t++)
+					temp[t] = new float[n];
+				return temp;
+			}
+			if (pixels.length < nTransforms)
+				pixels = Arrays.copyOf(pixels, nTransforms);
+			for (int t = 0; t < nTransforms; t++) {
+				if (pixels[t] == null || pixels[t].length != n)
+					pixels[t] = new float[n];
+			}
+			return pixels;
+		}
+		
+		int[] getRGB(final int n) {
+			if (n > MAX_POOLED_PIXELS)
+				return null;
+			if (rgb == null || rgb.length != n)
+				rgb = new int[n];
+			return rgb;
+		}
+		
+		/**
+		 * Get a circular mask for a tile, which is only recomputed if the tile size changes.
+		 * 
+		 * @param w
+		 * @param h
+		 * @return
+		 */
+		byte[] getMask(final int w, final int h) {
+			if (mask != null && maskWidth == w && maskHeight == h)
+				return mask;
+			byte[] circle = new byte[w * h];
+			double cx = (w-1) / 2;
+			double cy = (h-1) / 2;
+			double radius = Math.max(w, h) * .5;
+			double distThreshold = radius * radius;
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					if ((cx - x)*(cx - x) + (cy - y)*(cy - y) <= distThreshold)
+						circle[y * w + x] = (byte)1;
+				}			
+			}
+			if (w * h <= MAX_POOLED_PIXELS) {
+				mask = circle;
+				maskWidth = w;
+				maskHeight = h;
+			}
+			return circle;
+		}
+		
+	}
+	
+	
 	public ParameterList getDefaultParameterList(final ImageData<BufferedImage> imageData) {
 		
 		if (!parametersInitialized) {
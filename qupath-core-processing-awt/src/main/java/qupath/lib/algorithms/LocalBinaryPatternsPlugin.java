@@ -41,6 +41,7 @@ import qupath.lib.geom.ImmutableDimension;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.stores.ImageRegionStore;
+import qupath.lib.images.stores.TransformedPixelCache;
 import qupath.lib.images.stores.TileListener;
 import qupath.lib.measurements.MeasurementList;
 import qupath.lib.objects.PathDetectionObject;
@@ -240,9 +241,11 @@ public class LocalBinaryPatternsPlugin extends AbstractInteractivePlugin<Buffere
 //		System.out.println(bounds);
 //		System.out.println("Size: " + size);
 
-		BufferedImage img = null;
+		// Use a shared cache, if one is open, to avoid rereading & retransforming regions used by other plugins
+		TransformedPixelCache cache = TransformedPixelCache.getCache(server);
+		BufferedImage img = cache == null ? null : cache.getImage(region);
 		// Try to read the image using the ImageRegionServer... if this doesn't work out, fall back to using the default (slower) method
-		if (regionStore != null) {
+		if (img == null && regionStore != null) {
 			try {
 				img = regionStore.getImage(server, region);
 			} catch (Exception e) {
@@ -255,13 +258,15 @@ public class LocalBinaryPatternsPlugin extends AbstractInteractivePlugin<Buffere
 		if (img == null) {
 			img = server.readBufferedImage(region);
 		}
+		if (cache != null)
+			cache.putImage(region, img);
 
 //		System.out.println("Image size: " + img.getWidth() + " x " + img.getHeight() + " pixels");
 
 		// Get a buffer containing the image pixels
 		int w = img.getWidth();
 		int h = img.getHeight();
-		int[] buf = img.getRGB(0, 0, w, h, null, 0, w);
+		int[] buf = cache == null ? img.getRGB(0, 0, w, h, null, 0, w) : cache.getRGB(region, img);
 
 		// Create a color transformer to get the images we need
 		float[] pixels = new float[buf.length];
@@ -272,27 +277,27 @@ public class LocalBinaryPatternsPlugin extends AbstractInteractivePlugin<Buffere
 		String postfix = " (" + getDiameterString(server, params) + ")";
 
 		if (stainsName.equals("H-DAB")) {
-			processTransformedImage(pxImg, buf, pixels, measurementList, "Hematoxylin"+postfix, ColorTransformer.ColorTransformMethod.Hematoxylin_H_DAB, stains, includeStats, doCircular);
-			processTransformedImage(pxImg, buf, pixels, measurementList, "DAB"+postfix, ColorTransformer.ColorTransformMethod.DAB_H_DAB, stains, includeStats, doCircular);
+			processTransformedImage(pxImg, buf, cache, region, pixels, measurementList, "Hematoxylin"+postfix, ColorTransformer.ColorTransformMethod.Hematoxylin_H_DAB, stains, includeStats, doCircular);
+			processTransformedImage(pxImg, buf, cache, region, pixels, measurementList, "DAB"+postfix, ColorTransformer.ColorTransformMethod.DAB_H_DAB, stains, includeStats, doCircular);
 		}
 		else if (stainsName.equals("H&E")) {
-			processTransformedImage(pxImg, buf, pixels, measurementList, "Hematoxylin"+postfix, ColorTransformer.ColorTransformMethod.Hematoxylin_H_E, stains, includeStats, doCircular);
-			processTransformedImage(pxImg, buf, pixels, measurementList, "Eosin"+postfix, ColorTransformer.ColorTransformMethod.Eosin_H_E, stains, includeStats, doCircular);
+			processTransformedImage(pxImg, buf, cache, region, pixels, measurementList, "Hematoxylin"+postfix, ColorTransformer.ColorTransformMethod.Hematoxylin_H_E, stains, includeStats, doCircular);
+			processTransformedImage(pxImg, buf, cache, region, pixels, measurementList, "Eosin"+postfix, ColorTransformer.ColorTransformMethod.Eosin_H_E, stains, includeStats, doCircular);
 		} else if (stainsName.equals("H-DAB (8-bit)")) {
-			processTransformedImage(pxImg, buf, pixels, measurementList, "Hematoxylin 8-bit"+postfix, ColorTransformer.ColorTransformMethod.Hematoxylin_H_DAB_8_bit, stains, includeStats, doCircular);
-			processTransformedImage(pxImg, buf, pixels, measurementList, "DAB 8-bit"+postfix, ColorTransformer.ColorTransformMethod.DAB_H_DAB_8_bit, stains, includeStats, doCircular);
+			processTransformedImage(pxImg, buf, cache, region, pixels, measurementList, "Hematoxylin 8-bit"+postfix, ColorTransformer.ColorTransformMethod.Hematoxylin_H_DAB_8_bit, stains, includeStats, doCircular);
+			processTransformedImage(pxImg, buf, cache, region, pixels, measurementList, "DAB 8-bit"+postfix, ColorTransformer.ColorTransformMethod.DAB_H_DAB_8_bit, stains, includeStats, doCircular);
 		}
 		else if (stainsName.equals("H&E (8-bit)")) {
-			processTransformedImage(pxImg, buf, pixels, measurementList, "Hematoxylin 8-bit"+postfix, ColorTransformer.ColorTransformMethod.Hematoxylin_H_E_8_bit, stains, includeStats, doCircular);
-			processTransformedImage(pxImg, buf, pixels, measurementList, "Eosin 8-bit"+postfix, ColorTransformer.ColorTransformMethod.Eosin_H_E_8_bit, stains, includeStats, doCircular);
+			processTransformedImage(pxImg, buf, cache, region, pixels, measurementList, "Hematoxylin 8-bit"+postfix, ColorTransformer.ColorTransformMethod.Hematoxylin_H_E_8_bit, stains, includeStats, doCircular);
+			processTransformedImage(pxImg, buf, cache, region, pixels, measurementList, "Eosin 8-bit"+postfix, ColorTransformer.ColorTransformMethod.Eosin_H_E_8_bit, stains, includeStats, doCircular);
 		} else if (stainsName.equals("Optical density")) {
-			processTransformedImage(pxImg, buf, pixels, measurementList, "OD sum"+postfix, ColorTransformer.ColorTransformMethod.Optical_density_sum, stains, includeStats, doCircular);
+			processTransformedImage(pxImg, buf, cache, region, pixels, measurementList, "OD sum"+postfix, ColorTransformer.ColorTransformMethod.Optical_density_sum, stains, includeStats, doCircular);
 		} else if (stainsName.equals("RGB")) {
-			processTransformedImage(pxImg, buf, pixels, measurementList, "Red"+postfix, ColorTransformer.ColorTransformMethod.Red, stains, includeStats, doCircular);
-			processTransformedImage(pxImg, buf, pixels, measurementList, "Green"+postfix, ColorTransformer.ColorTransformMethod.Green, stains, includeStats, doCircular);
-			processTransformedImage(pxImg, buf, pixels, measurementList, "Blue"+postfix, ColorTransformer.ColorTransformMethod.Blue, stains, includeStats, doCircular);
+			processTransformedImage(pxImg, buf, cache, region, pixels, measurementList, "Red"+postfix, ColorTransformer.ColorTransformMethod.Red, stains, includeStats, doCircular);
+			processTransformedImage(pxImg, buf, cache, region, pixels, measurementList, "Green"+postfix, ColorTransformer.ColorTransformMethod.Green, stains, includeStats, doCircular);
+			processTransformedImage(pxImg, buf, cache, region, pixels, measurementList, "Blue"+postfix, ColorTransformer.ColorTransformMethod.Blue, stains, includeStats, doCircular);
 		} else if (stainsName.equals("Grayscale")) {
-			processTransformedImage(pxImg, buf, pixels, measurementList, "Grayscale"+postfix, ColorTransformer.ColorTransformMethod.RGB_mean, stains, includeStats, doCircular);
+			processTransformedImage(pxImg, buf, cache, region, pixels, measurementList, "Grayscale"+postfix, ColorTransformer.ColorTransformMethod.RGB_mean, stains, includeStats, doCircular);
 		}
 		measurementList.closeList();
 		
@@ -301,8 +306,8 @@ public class LocalBinaryPatternsPlugin extends AbstractInteractivePlugin<Buffere
 	}
 	
 	
-	static void processTransformedImage(SimpleModifiableImage pxImg, int[] buf, float[] pixels, MeasurementList measurementList, String name, ColorTransformer.ColorTransformMethod method, ColorDeconvolutionStains stains, boolean includeStats, boolean doCircular) {
-		ColorTransformer.getTransformedPixels(buf, method, pixels, stains);
+	static void processTransformedImage(SimpleModifiableImage pxImg, int[] buf, TransformedPixelCache cache, RegionRequest region, float[] pixels, MeasurementList measurementList, String name, ColorTransformer.ColorTransformMethod method, ColorDeconvolutionStains stains, boolean includeStats, boolean doCircular) {
+		TransformedPixelCache.getTransformedPixels(cache, region, buf, method, stains, pixels);
 		
 		if (doCircular) {
 			double w = pxImg.getWidth();
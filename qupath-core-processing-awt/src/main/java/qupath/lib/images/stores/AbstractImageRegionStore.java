@@ -24,6 +24,7 @@
 package qupath.lib.images.stores;
 
 import java.awt.Shape;
+import java.awt.geom.Path2D;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -36,20 +37,18 @@ import java.util.Map.Entry;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import qupath.lib.awt.common.AwtTools;
-import qupath.lib.common.SimpleThreadFactory;
 import qupath.lib.images.servers.GeneratingImageServer;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.stores.RegionCache;
 import qupath.lib.images.stores.SizeEstimator;
 import qupath.lib.images.stores.TileListener;
+import qupath.lib.images.stores.TileScheduler.Priority;
 import qupath.lib.images.stores.TileWorker;
 import qupath.lib.regions.RegionRequest;
 
@@ -67,6 +66,9 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	
 	static final int DEFAULT_THUMBNAIL_WIDTH = 1000;
 	
+	// Maximum proportion of the tile cache that may be filled by a single prefetch request
+	static final double MAX_PREFETCH_CACHE_FRACTION = 0.1;
+	
 	static Logger logger = LoggerFactory.getLogger(AbstractImageRegionStore.class);
 		
 	// Collection of SwingWorkers used to request image tiles
@@ -91,11 +93,9 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	
 	private TileRequestManager manager = new TileRequestManager(10);
 	
-	// Create two threadpools: a larger one for images that need to be fetched (e.g. from disk, cloud storage), and a smaller one
-	// for painting image tiles... the reason being that the high latency of distantly-stored images otherwise risks lowering
-	// repainting performance
-	private ExecutorService pool = Executors.newFixedThreadPool(Math.max(8, Math.min(Runtime.getRuntime().availableProcessors() * 4, 32)), new SimpleThreadFactory("region-store-", false));
-	private ExecutorService poolLocal = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new SimpleThreadFactory("region-store-local-", false));
+	// Schedule tile requests according to priority, using a larger threadpool for images that need to be fetched
+	// (e.g. from disk, cloud storage) and a smaller one for generated images
+	private TileScheduler scheduler = new TileScheduler(Math.max(8, Math.min(Runtime.getRuntime().availableProcessors() * 4, 32)), Runtime.getRuntime().availableProcessors());
 	
 	
 
@@ -159,6 +159,9 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 
 	/**
 	 * Register a request so that the tile request queue will be populated, including potentially for nearby tiles (i.e. preemptively).
+	 * <p>
+	 * Any speculative requests that are still queued, but no longer overlap with a registered region, will be cancelled.
+	 * 
 	 * @param tileListener
 	 * @param server
 	 * @param clipShape
@@ -175,6 +178,39 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	}
 	
 	
+	/**
+	 * Request tiles that are expected to be needed soon, e.g. because a viewer is moving towards them.
+	 * <p>
+	 * Tiles are requested with prefetch priority, in the order given, and replace any previous prefetch request 
+	 * made by the same listener for the same server.
+	 * To avoid evicting tiles that are currently visible, the number of tiles is limited so that they 
+	 * occupy only a small fraction of the cache.
+	 * 
+	 * @param tileListener the listener making the request (used to identify the request, so that it may be replaced later)
+	 * @param server
+	 * @param requests tile requests, in order of importance
+	 * @return the number of tiles that were requested, after discarding those that were already cached or pending
+	 */
+	public int prefetchTiles(final TileListener<T> tileListener, final ImageServer<T> server, final List<RegionRequest> requests) {
+		long budgetBytes = (long)(cache.getMaxMemoryBytes() * MAX_PREFETCH_CACHE_FRACTION);
+		long bytesPerPixel = Math.max(4, server.nChannels() * (long)Math.max(server.getBitsPerPixel(), 8) / 8);
+		List<RegionRequest> toRequest = new ArrayList<>();
+		long bytes = 0;
+		for (RegionRequest request : requests) {
+			if (cache.containsKey(request) || waitingMap.containsKey(request) || toRequest.contains(request))
+				continue;
+			double downsample = request.getDownsample();
+			bytes += (long)(request.getWidth() / downsample) * (long)(request.getHeight() / downsample) * bytesPerPixel;
+			if (bytes > budgetBytes)
+				break;
+			toRequest.add(request);
+		}
+		if (!toRequest.isEmpty())
+			manager.registerPrefetchRequest(tileListener, server, toRequest);
+		return toRequest.size();
+	}
+	
+	
 	/* (non-Javadoc)
 	 * @see qupath.lib.images.stores.ImageRegionStore#addTileListener(qupath.lib.images.stores.TileListener)
 	 */
@@ -189,6 +225,15 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 		return cache;
 	}
 	
+	/**
+	 * Get the scheduler used for tile requests, e.g. to query queue depths and throughput.
+	 * 
+	 * @return
+	 */
+	public TileScheduler getTileScheduler() {
+		return scheduler;
+	}
+	
 	
 	/* (non-Javadoc)
 	 * @see qupath.lib.images.stores.ImageRegionStore#removeTileListener(qupath.lib.images.stores.TileListener)
@@ -223,7 +268,13 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	protected void workerComplete(final TileWorker<T> worker) {
 		workers.remove(worker);
 		manager.taskCompleted(worker);
-   		if (worker.isCancelled() || !stopWaiting(worker.getRequest())) {
+		// If a worker was cancelled, make sure it is no longer considered to be pending
+		// (but don't remove any newer worker for the same request)
+		if (worker.isCancelled()) {
+			waitingMap.remove(worker.getRequest(), worker);
+			return;
+		}
+   		if (!stopWaiting(worker.getRequest())) {
    			return;
    		}
 		try {
@@ -252,7 +303,7 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 		// Only need to use server path & region as the hash key, because we are relying on the tile size never changing...
 		// so different requests should never end up wanting the same region
 		// If this gives trouble, the downsample could be added
-		Object result = requestImageTile(server, request, cache, false);
+		Object result = requestImageTile(server, request, cache, false, Priority.VISIBLE);
 		if (!(result == null || result instanceof TileWorker<?>)) {
 			@SuppressWarnings("unchecked")
 			T img = (T)result;
@@ -279,11 +330,33 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	 * 	- a T for the tile
 	 * 	- the TileWorker<T> object currently charged with fetching the tile
 	 * 	- null, if this is the value stored in the TiledImageCache (i.e. the tile has previously been fetched, and there is no image corresponding to the request)
+	 * <p>
+	 * Requests made using this method are given visible priority.
+	 * 
 	 * @param server
 	 * @param request
 	 * @return
 	 */
-	protected synchronized Object requestImageTile(final ImageServer<T> server, final RegionRequest request, final RegionCache<T> cache, final boolean ensureTileReturned) {
+	protected Object requestImageTile(final ImageServer<T> server, final RegionRequest request, final RegionCache<T> cache, final boolean ensureTileReturned) {
+		return requestImageTile(server, request, cache, ensureTileReturned, Priority.VISIBLE);
+	}
+	
+	/**
+	 * Request an image tile with a specified priority.
+	 * <p>
+	 * If ensureTileReturned is false, the request is considered speculative - and may be cancelled if the region is 
+	 * no longer visible before the tile has been read.
+	 * 
+	 * @param server
+	 * @param request
+	 * @param cache
+	 * @param ensureTileReturned
+	 * @param priority
+	 * @return
+	 * 
+	 * @see #requestImageTile(ImageServer, RegionRequest, RegionCache, boolean)
+	 */
+	protected synchronized Object requestImageTile(final ImageServer<T> server, final RegionRequest request, final RegionCache<T> cache, final boolean ensureTileReturned, final Priority priority) {
 		T img = cache.get(request);
 		if (img != null)
 			return img;
@@ -299,24 +372,21 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 		}
 		// Start a worker & add to the list
 		TileWorker<T> worker = null;
-		worker = (TileWorker<T>)waitingMap.get(request); // TODO: Consider if this is a bad idea...
-		if (worker == null) {
+		worker = waitingMap.get(request); // TODO: Consider if this is a bad idea...
+		if (worker == null || worker.isCancelled()) {
 			worker = createTileWorker(server, request, cache, ensureTileReturned);
 			workers.add(worker);
-			if (server instanceof GeneratingImageServer) {
-				if (poolLocal.isShutdown())
-					return null;
-				poolLocal.execute(worker);
-			}
-			else {
-				if (pool.isShutdown())
-					return null;
-				pool.execute(worker);
+			// Put the worker in the map before scheduling, so it is already there if it is cancelled
+			waitingMap.put(request, worker);
+			if (!scheduler.execute(worker, priority, server instanceof GeneratingImageServer, !ensureTileReturned)) {
+				waitingMap.remove(request, worker);
+				workers.remove(worker);
+				return null;
 			}
 //			worker.execute();
 //				System.out.println("Event dispatch putting: " + SwingUtilities.isEventDispatchThread());
-			waitingMap.put(request, worker);
-		}
+		} else
+			scheduler.updatePriority(worker, priority, !ensureTileReturned);
 //		workersToWait.add(worker);
 		return worker;
 	}
@@ -328,6 +398,20 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	protected TileWorker<T> createTileWorker(final ImageServer<T> server, final RegionRequest request, final RegionCache<T> cache, final boolean ensureTileReturned) {
 		return new DefaultTileWorker(server, request, cache, ensureTileReturned);
 	}
+	
+	/**
+	 * Read a tile that was not found in the cache.
+	 * <p>
+	 * The default implementation simply requests the tile from the server, but subclasses may override this 
+	 * (e.g. to check a secondary cache first).
+	 * 
+	 * @param server
+	 * @param request
+	 * @return
+	 */
+	protected T readTile(final ImageServer<T> server, final RegionRequest request) {
+		return server.readBufferedImage(request);
+	}
 
 	
 	
@@ -338,7 +422,7 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 	@SuppressWarnings("unchecked")
 	public T getThumbnail(ImageServer<T> server, int zPosition, int tPosition, boolean addToCache) {
 		RegionRequest request = getThumbnailRequest(server, zPosition, tPosition);
-		Object result = requestImageTile(server, request, thumbnailCache, true);
+		Object result = requestImageTile(server, request, thumbnailCache, true, Priority.VISIBLE);
 		if (!(result instanceof TileWorker<?>))
 			return (T)result;
 		
@@ -379,6 +463,8 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 			waitingMap.clear();
 			workers.clear();
 		}
+		logger.debug("Clearing tile cache - {}", cache);
+		logger.debug("Tile scheduler - {}", scheduler);
 		if (clearThumbnails)
 			thumbnailCache.clear();
 		cache.clear();
@@ -441,8 +527,9 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 		// Try to cancel all workers
 		for (TileWorker<T> worker : new ArrayList<>(workers))
 			worker.cancel(true);
-		pool.shutdownNow();
-		poolLocal.shutdownNow();
+		scheduler.shutdownNow();
+		logger.info("Closing image region store - {}", cache);
+		logger.info("Tile scheduler - {}", scheduler);
 		cache.clear();
 	}
 	
@@ -468,11 +555,12 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 		
 		public synchronized void registerRequest(final TileListener<T> tileListener, final ImageServer<T> server, final Shape clipShape, final double downsampleFactor, final int zPosition, final int tPosition) {
 			
-			// Check if the listener has already put in a request - if so, check if it is the same & discard it if not
+			// Check if the listener has already put in a request for the server - if so, check if it is the same & discard it if not
+			// (Different servers are checked separately, since the same listener may well be painting an image and its overlay)
 			Iterator<TileRequestCollection<T>> iter = list.iterator();
 			while (iter.hasNext()) {
 				TileRequestCollection<T> temp = iter.next();
-				if (temp.tileListener == tileListener) {
+				if (!temp.isPrefetch && temp.tileListener == tileListener && temp.server.getPath().equals(server.getPath())) {
 					if (temp.clipShape.equals(clipShape) && temp.zPosition == zPosition && temp.tPosition == tPosition)
 						return;
 					iter.remove();
@@ -489,10 +577,54 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 			list.add(requestCollection);
 //			list.sort(comparator);
 			Collections.sort(list, comparator);
+			
+			// Cancel any queued requests that are no longer relevant, because the visible region has changed
+			int nCancelled = scheduler.cancelQueued(request -> isStale(request));
+			if (nCancelled > 0)
+				logger.trace("Cancelled {} stale tile requests", nCancelled);
+			
 			assignTasks();
 			
 		}
 		
+		public synchronized void registerPrefetchRequest(final TileListener<T> tileListener, final ImageServer<T> server, final List<RegionRequest> requests) {
+			Iterator<TileRequestCollection<T>> iter = list.iterator();
+			while (iter.hasNext()) {
+				TileRequestCollection<T> temp = iter.next();
+				if (temp.isPrefetch && temp.tileListener == tileListener && temp.server.getPath().equals(server.getPath())) {
+					iter.remove();
+					break;
+				}
+			}
+			list.add(new TileRequestCollection<>(tileListener, server, requests));
+			Collections.sort(list, comparator);
+			
+			int nCancelled = scheduler.cancelQueued(request -> isStale(request));
+			if (nCancelled > 0)
+				logger.trace("Cancelled {} stale tile requests", nCancelled);
+			
+			assignTasks();
+		}
+		
+		/**
+		 * Check if a (speculative) request no longer overlaps with any region that has been registered for its server.
+		 * Requests for servers without any registered region are never considered stale.
+		 * 
+		 * @param request
+		 * @return
+		 */
+		synchronized boolean isStale(final RegionRequest request) {
+			boolean serverFound = false;
+			for (TileRequestCollection<T> temp : list) {
+				if (!temp.server.getPath().equals(request.getPath()))
+					continue;
+				if (temp.clipShape.intersects(request.getX(), request.getY(), request.getWidth(), request.getHeight()))
+					return false;
+				serverFound = true;
+			}
+			return serverFound;
+		}
+		
 		public synchronized void deregisterRequest(final TileListener<T> tileListener) {
 			Iterator<TileRequestCollection<T>> iter = list.iterator();
 			while (iter.hasNext()) {
@@ -525,12 +657,9 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 				
 				TileWorker<T> worker = createTileWorker(temp.server, request, cache, false);
 				waitingMap.put(request, worker);
-				if (temp.server instanceof GeneratingImageServer) {
-					if (!poolLocal.isShutdown())
-						poolLocal.execute(worker);
-				} else {
-					if (!pool.isShutdown())
-						pool.execute(worker);
+				if (!scheduler.execute(worker, Priority.PREFETCH, temp.server instanceof GeneratingImageServer, true)) {
+					waitingMap.remove(request, worker);
+					break;
 				}
 //				worker.execute();
 				requestedWorkers.add(worker);
@@ -569,6 +698,7 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 		private double downsampleFactor;
 		private int zPosition;
 		private int tPosition;
+		private boolean isPrefetch = false;
 				
 		
 		TileRequestCollection(final TileListener<T> tileListener, final ImageServer<T> server, final Shape clipShape, final double downsampleFactor, final int zPosition, final int tPosition, final int maxZSeparation) {
@@ -584,6 +714,32 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 			updateRequests();
 		}
 		
+		/**
+		 * Create a collection for an explicit list of tiles, which will be requested in order.
+		 * 
+		 * @param tileListener
+		 * @param server
+		 * @param requests
+		 */
+		TileRequestCollection(final TileListener<T> tileListener, final ImageServer<T> server, final List<RegionRequest> requests) {
+			timestamp = System.currentTimeMillis();
+			this.tileListener = tileListener;
+			this.server = server;
+			this.isPrefetch = true;
+			// Store the requests in reverse order, since they are removed from the end
+			Path2D path = new Path2D.Double();
+			for (int i = requests.size()-1; i >= 0; i--) {
+				RegionRequest request = requests.get(i);
+				tileRequests.add(request);
+				path.append(AwtTools.getBounds(request), false);
+			}
+			this.clipShape = path;
+			RegionRequest first = requests.get(0);
+			this.downsampleFactor = first.getDownsample();
+			this.zPosition = first.getZ();
+			this.tPosition = first.getT();
+		}
+		
 		void updateRequests() {
 			if (zSeparation == 0)
 				updateRequestsForZ(zPosition, downsampleFactor, false);
@@ -680,12 +836,12 @@ public abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T>
 			    		return imgTile;
 			    	// TODO: Investigate the (current) purpose of ensureTileReturned... doesn't seem to do anything here
 			    	if (ensureTileReturned)
-			    		return server.readBufferedImage(request);	
+			    		return readTile(server, request);	
 			    	// Check if we still need the tile... if not, and we go searching, there can be a backlog
 			    	// making any requests slower to fulfill
 			    	// (Also, grab a snapshot of the listener list to avoid concurrent modifications)
 //			    	long t1 = System.currentTimeMillis();
-			    	T img = server.readBufferedImage(request);
+			    	T img = readTile(server, request);
 //			    	long t2 = System.currentTimeMillis();
 //			    	System.out.println("Tile request time: " + (t2 - t1));
 			    	return img;
@@ -0,0 +1,619 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.images.stores;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Persistent, disk-based cache for image tiles, intended to sit below the in-memory {@link RegionCache}.
+ * <p>
+ * This is useful for servers that are slow to decode tiles, or that read from remote storage,
+ * since revisiting an image (even in a later session) can then read tiles from a local disk instead.
+ * <p>
+ * Tiles are compressed (losslessly, as PNG) and appended to a single pack file, with a separate index
+ * written when the cache is flushed or closed.  Completed segments of the pack file are memory-mapped for reading.
+ * Entries are only used if the image file has the same size and modification time as when the tile was stored.
+ * <p>
+ * When the pack file exceeds its maximum size, it is compacted to retain only the most recently-used tiles.
+ */
+public class DiskTileCache {
+
+	private final static Logger logger = LoggerFactory.getLogger(DiskTileCache.class);
+
+	private static final int INDEX_VERSION = 1;
+	private static final String INDEX_NAME = "tiles.index";
+
+	// Size of memory-mapped segments; entries are never split across segments
+	private static final long SEGMENT_SIZE = 64L * 1024L * 1024L;
+
+	// Proportion of the maximum size retained after compaction
+	private static final double COMPACT_PROPORTION = 0.75;
+
+	// Write the index after this many new tiles have been added
+	private static final int INDEX_WRITE_INTERVAL = 500;
+
+	private final File directory;
+	private final long maxSizeBytes;
+
+	private final Map<RegionRequest, PackEntry> index = new ConcurrentHashMap<>();
+	private final Map<String, ServerInfo> servers = new ConcurrentHashMap<>();
+	// Servers that have been checked against the file system during this session
+	private final Map<String, Boolean> validatedServers = new ConcurrentHashMap<>();
+
+	private File packFile;
+	private int packGeneration = 0;
+	private FileChannel channel;
+	private long packLength = 0;
+	private List<MappedByteBuffer> segments = new ArrayList<>();
+	private int nUnsavedEntries = 0;
+
+	private final AtomicLong accessCounter = new AtomicLong();
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+
+	private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+	private final Lock r = rwl.readLock();
+	private final Lock w = rwl.writeLock();
+
+
+	/**
+	 * Create a disk cache within the specified directory, which will be created if necessary.
+	 * Any tiles stored in the directory previously will be reused, if they are still valid.
+	 *
+	 * @param directory
+	 * @param maxSizeBytes
+	 * @throws IOException
+	 */
+	public DiskTileCache(final File directory, final long maxSizeBytes) throws IOException {
+		this.directory = directory;
+		this.maxSizeBytes = maxSizeBytes;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create tile cache directory " + directory);
+		try {
+			readIndex();
+		} catch (IOException e) {
+			logger.warn("Unable to read tile cache index - cache will be reset ({})", e.getLocalizedMessage());
+			index.clear();
+			servers.clear();
+			packGeneration++;
+		}
+		openPack();
+		// Remove any pack files left from earlier generations (e.g. if QuPath exited during compaction)
+		File[] files = directory.listFiles((dir, name) -> name.startsWith("tiles-") && name.endsWith(".pack"));
+		if (files != null) {
+			for (File file : files) {
+				if (!file.equals(packFile) && !file.delete())
+					logger.debug("Unable to delete {}", file);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns true if tiles from the specified server can be cached.
+	 * This requires that the server reads from a local (or mounted) file, since the file size and
+	 * modification time are used to check the cache is still valid.
+	 *
+	 * @param server
+	 * @return
+	 */
+	public boolean supportsServer(final ImageServer<?> server) {
+		return new File(server.getPath()).isFile();
+	}
+
+
+	/**
+	 * Get a cached tile, or null if no tile is available.
+	 *
+	 * @param server
+	 * @param request
+	 * @return
+	 */
+	public BufferedImage get(final ImageServer<?> server, final RegionRequest request) {
+		if (!validateServer(server)) {
+			missCount.increment();
+			return null;
+		}
+		byte[] bytes = null;
+		r.lock();
+		try {
+			PackEntry entry = index.get(request);
+			if (entry != null) {
+				bytes = readBytes(entry);
+				entry.lastAccess = accessCounter.incrementAndGet();
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to read tile from disk cache: {}", e.getLocalizedMessage());
+		} finally {
+			r.unlock();
+		}
+		if (bytes == null) {
+			missCount.increment();
+			return null;
+		}
+		try {
+			BufferedImage img = decode(bytes);
+			if (img != null) {
+				hitCount.increment();
+				return img;
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to decode tile from disk cache: {}", e.getLocalizedMessage());
+		}
+		missCount.increment();
+		return null;
+	}
+
+
+	/**
+	 * Add a tile to the cache.  Tiles with unsupported image types are ignored.
+	 *
+	 * @param server
+	 * @param request
+	 * @param img
+	 */
+	public void put(final ImageServer<?> server, final RegionRequest request, final BufferedImage img) {
+		if (img == null || !isSupportedType(img) || !validateServer(server) || index.containsKey(request))
+			return;
+		byte[] bytes;
+		try {
+			bytes = encode(img);
+		} catch (IOException e) {
+			logger.warn("Unable to encode tile for disk cache: {}", e.getLocalizedMessage());
+			return;
+		}
+		if (bytes.length > SEGMENT_SIZE)
+			return;
+		w.lock();
+		try {
+			if (index.containsKey(request))
+				return;
+			// Avoid splitting entries across segments, so that they can always be read from a single mapped buffer
+			long offset = packLength;
+			if (offset / SEGMENT_SIZE != (offset + bytes.length - 1) / SEGMENT_SIZE)
+				offset = (offset / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+			channel.write(ByteBuffer.wrap(bytes), offset);
+			packLength = offset + bytes.length;
+			PackEntry entry = new PackEntry(offset, bytes.length);
+			entry.lastAccess = accessCounter.incrementAndGet();
+			index.put(request, entry);
+			nUnsavedEntries++;
+			if (packLength > maxSizeBytes)
+				compact();
+			else if (nUnsavedEntries >= INDEX_WRITE_INTERVAL)
+				writeIndex();
+		} catch (IOException e) {
+			logger.warn("Unable to write tile to disk cache: {}", e.getLocalizedMessage());
+		} finally {
+			w.unlock();
+		}
+	}
+
+
+	/**
+	 * Write the index to disk, so that cached tiles can be used in a later session.
+	 */
+	public void flush() {
+		w.lock();
+		try {
+			writeIndex();
+		} catch (IOException e) {
+			logger.warn("Unable to write tile cache index: {}", e.getLocalizedMessage());
+		} finally {
+			w.unlock();
+		}
+	}
+
+
+	/**
+	 * Flush the index & close the pack file.  The cache should not be used afterwards.
+	 */
+	public void close() {
+		w.lock();
+		try {
+			writeIndex();
+			logger.info("Closing disk tile cache - {}", this);
+			channel.close();
+			segments.clear();
+		} catch (IOException e) {
+			logger.warn("Unable to close tile cache: {}", e.getLocalizedMessage());
+		} finally {
+			w.unlock();
+		}
+	}
+
+
+	/**
+	 * Get the number of requests for which a tile was returned from the cache.
+	 * @return
+	 */
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	/**
+	 * Get the number of requests for which no tile was available in the cache.
+	 * @return
+	 */
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	/**
+	 * Get the number of tiles currently in the cache.
+	 * @return
+	 */
+	public int getTileCount() {
+		return index.size();
+	}
+
+	/**
+	 * Get the current size of the pack file, in bytes.
+	 * @return
+	 */
+	public long getSizeBytes() {
+		r.lock();
+		try {
+			return packLength;
+		} finally {
+			r.unlock();
+		}
+	}
+
+
+	@Override
+	public String toString() {
+		long hits = getHitCount();
+		long misses = getMissCount();
+		double hitRate = hits + misses == 0 ? Double.NaN : (double)hits / (hits + misses);
+		return String.format("Disk cache: %d tiles, %.1f/%.1f MB, hits=%d, misses=%d (hit rate %.3f)",
+				getTileCount(), getSizeBytes() / (1024.0 * 1024.0), maxSizeBytes / (1024.0 * 1024.0), hits, misses, hitRate);
+	}
+
+
+	/**
+	 * Check whether cached tiles for a server are still valid, discarding them if the file has changed.
+	 * This is only checked once per server per session.
+	 *
+	 * @param server
+	 * @return true if tiles can be cached for this server
+	 */
+	private boolean validateServer(final ImageServer<?> server) {
+		String path = server.getPath();
+		Boolean valid = validatedServers.get(path);
+		if (valid != null)
+			return valid;
+		File file = new File(path);
+		if (!file.isFile()) {
+			validatedServers.put(path, Boolean.FALSE);
+			return false;
+		}
+		ServerInfo current = new ServerInfo(file.length(), file.lastModified());
+		w.lock();
+		try {
+			ServerInfo previous = servers.put(path, current);
+			if (previous != null && !previous.equals(current)) {
+				logger.info("Image file changed - discarding cached tiles for {}", path);
+				index.keySet().removeIf(r -> path.equals(r.getPath()));
+			}
+			validatedServers.put(path, Boolean.TRUE);
+		} finally {
+			w.unlock();
+		}
+		return true;
+	}
+
+
+	private byte[] readBytes(final PackEntry entry) throws IOException {
+		byte[] bytes = new byte[entry.length];
+		int segmentIndex = (int)(entry.offset / SEGMENT_SIZE);
+		MappedByteBuffer segment = getSegment(segmentIndex);
+		if (segment != null) {
+			ByteBuffer buffer = segment.duplicate();
+			buffer.position((int)(entry.offset - segmentIndex * SEGMENT_SIZE));
+			buffer.get(bytes);
+		} else {
+			// The current segment is still being written, so read it directly
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			long position = entry.offset;
+			while (buffer.hasRemaining()) {
+				int n = channel.read(buffer, position);
+				if (n < 0)
+					throw new IOException("Unexpected end of tile cache");
+				position += n;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Get a mapped buffer for a complete segment, or null if the segment is not yet complete.
+	 */
+	private MappedByteBuffer getSegment(final int segmentIndex) throws IOException {
+		if ((segmentIndex + 1) * SEGMENT_SIZE > packLength)
+			return null;
+		synchronized (segments) {
+			while (segments.size() <= segmentIndex)
+				segments.add(null);
+			MappedByteBuffer segment = segments.get(segmentIndex);
+			if (segment == null) {
+				segment = channel.map(MapMode.READ_ONLY, segmentIndex * SEGMENT_SIZE, SEGMENT_SIZE);
+				segments.set(segmentIndex, segment);
+			}
+			return segment;
+		}
+	}
+
+
+	/**
+	 * Rewrite the pack file, retaining only the most recently-used tiles.
+	 * This should only be called while holding the write lock.
+	 */
+	private void compact() throws IOException {
+		List<Map.Entry<RegionRequest, PackEntry>> entries = new ArrayList<>(index.entrySet());
+		entries.sort((e1, e2) -> -Long.compare(e1.getValue().lastAccess, e2.getValue().lastAccess));
+
+		FileChannel channelOld = channel;
+		File packFileOld = packFile;
+		long packLengthOld = packLength;
+		List<MappedByteBuffer> segmentsOld = segments;
+
+		packGeneration++;
+		createPackChannel();
+		channel.truncate(0);
+
+		long maxRetained = (long)(maxSizeBytes * COMPACT_PROPORTION);
+		Map<RegionRequest, PackEntry> retained = new HashMap<>();
+		long offset = 0;
+		for (Map.Entry<RegionRequest, PackEntry> mapEntry : entries) {
+			PackEntry entry = mapEntry.getValue();
+			if (offset + entry.length > maxRetained)
+				break;
+			if (offset / SEGMENT_SIZE != (offset + entry.length - 1) / SEGMENT_SIZE)
+				offset = (offset / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+			ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+			channelOld.read(buffer, entry.offset);
+			buffer.flip();
+			channel.write(buffer, offset);
+			PackEntry entryNew = new PackEntry(offset, entry.length);
+			entryNew.lastAccess = entry.lastAccess;
+			retained.put(mapEntry.getKey(), entryNew);
+			offset += entry.length;
+		}
+		packLength = offset;
+		index.clear();
+		index.putAll(retained);
+
+		segmentsOld.clear();
+		channelOld.close();
+		writeIndex();
+		if (!packFileOld.delete())
+			packFileOld.deleteOnExit();
+		logger.debug("Disk tile cache compacted from {} to {} bytes ({} tiles)", packLengthOld, packLength, index.size());
+	}
+
+
+	private void createPackChannel() throws IOException {
+		packFile = new File(directory, "tiles-" + packGeneration + ".pack");
+		channel = FileChannel.open(packFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segments = new ArrayList<>();
+	}
+
+	private void openPack() throws IOException {
+		createPackChannel();
+		// If the index doesn't match the pack file, start again
+		long maxOffset = 0;
+		for (PackEntry entry : index.values())
+			maxOffset = Math.max(maxOffset, entry.offset + entry.length);
+		if (maxOffset > channel.size()) {
+			logger.warn("Tile cache index does not match pack file - cache will be reset");
+			index.clear();
+			maxOffset = 0;
+		}
+		packLength = maxOffset;
+		channel.truncate(packLength);
+	}
+
+
+	private void readIndex() throws IOException {
+		File fileIndex = new File(directory, INDEX_NAME);
+		if (!fileIndex.isFile())
+			return;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileIndex)))) {
+			int version = in.readInt();
+			if (version != INDEX_VERSION)
+				throw new IOException("Unsupported tile cache index version " + version);
+			packGeneration = in.readInt();
+			int nServers = in.readInt();
+			for (int i = 0; i < nServers; i++) {
+				String path = in.readUTF();
+				servers.put(path, new ServerInfo(in.readLong(), in.readLong()));
+			}
+			int nEntries = in.readInt();
+			for (int i = 0; i < nEntries; i++) {
+				RegionRequest request = RegionRequest.createInstance(in.readUTF(), in.readDouble(),
+						in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+				PackEntry entry = new PackEntry(in.readLong(), in.readInt());
+				entry.lastAccess = in.readLong();
+				index.put(request, entry);
+				accessCounter.set(Math.max(accessCounter.get(), entry.lastAccess));
+			}
+		}
+	}
+
+
+	private void writeIndex() throws IOException {
+		File fileIndex = new File(directory, INDEX_NAME);
+		File fileTemp = new File(directory, INDEX_NAME + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileTemp)))) {
+			out.writeInt(INDEX_VERSION);
+			out.writeInt(packGeneration);
+			out.writeInt(servers.size());
+			for (Map.Entry<String, ServerInfo> entry : servers.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue().fileLength);
+				out.writeLong(entry.getValue().lastModified);
+			}
+			out.writeInt(index.size());
+			for (Map.Entry<RegionRequest, PackEntry> mapEntry : index.entrySet()) {
+				RegionRequest request = mapEntry.getKey();
+				PackEntry entry = mapEntry.getValue();
+				out.writeUTF(request.getPath());
+				out.writeDouble(request.getDownsample());
+				out.writeInt(request.getX());
+				out.writeInt(request.getY());
+				out.writeInt(request.getWidth());
+				out.writeInt(request.getHeight());
+				out.writeInt(request.getZ());
+				out.writeInt(request.getT());
+				out.writeLong(entry.offset);
+				out.writeInt(entry.length);
+				out.writeLong(entry.lastAccess);
+			}
+		}
+		channel.force(false);
+		if (fileIndex.exists() && !fileIndex.delete())
+			throw new IOException("Unable to replace tile cache index " + fileIndex);
+		if (!fileTemp.renameTo(fileIndex))
+			throw new IOException("Unable to write tile cache index " + fileIndex);
+		nUnsavedEntries = 0;
+	}
+
+
+	private static boolean isSupportedType(final BufferedImage img) {
+		switch (img.getType()) {
+		case BufferedImage.TYPE_INT_RGB:
+		case BufferedImage.TYPE_INT_ARGB:
+		case BufferedImage.TYPE_INT_ARGB_PRE:
+		case BufferedImage.TYPE_INT_BGR:
+		case BufferedImage.TYPE_3BYTE_BGR:
+		case BufferedImage.TYPE_4BYTE_ABGR:
+		case BufferedImage.TYPE_BYTE_GRAY:
+		case BufferedImage.TYPE_USHORT_GRAY:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Encode an image, prefixed by its type so that this can be restored when decoding.
+	 */
+	private static byte[] encode(final BufferedImage img) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(img.getWidth() * img.getHeight());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(img.getType());
+		if (!ImageIO.write(img, "png", out))
+			throw new IOException("No PNG writer available");
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static BufferedImage decode(final byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		int type = in.readInt();
+		BufferedImage img = ImageIO.read(in);
+		if (img == null || img.getType() == type)
+			return img;
+		BufferedImage img2 = new BufferedImage(img.getWidth(), img.getHeight(), type);
+		Graphics2D g2d = img2.createGraphics();
+		g2d.drawImage(img, 0, 0, null);
+		g2d.dispose();
+		return img2;
+	}
+
+
+	private static class PackEntry {
+
+		private final long offset;
+		private final int length;
+		private volatile long lastAccess;
+
+		PackEntry(final long offset, final int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+
+	}
+
+
+	private static class ServerInfo {
+
+		private final long fileLength;
+		private final long lastModified;
+
+		ServerInfo(final long fileLength, final long lastModified) {
+			this.fileLength = fileLength;
+			this.lastModified = lastModified;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(fileLength) * 31 + Long.hashCode(lastModified);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ServerInfo))
+				return false;
+			ServerInfo other = (ServerInfo)obj;
+			return fileLength == other.fileLength && lastModified == other.lastModified;
+		}
+
+	}
+
+}
@@ -0,0 +1,357 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.images.stores;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import qupath.lib.common.SimpleThreadFactory;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Scheduler for TileWorkers, which ensures that tiles with a higher priority are read first.
+ * <p>
+ * Two thread pools are used: a larger one for images that need to be fetched (e.g. from disk, cloud storage),
+ * and a smaller one for generated images (e.g. overlays)... the reason being that the high latency of distantly-stored
+ * images otherwise risks lowering repainting performance.
+ * <p>
+ * Requests that are only speculative (i.e. nobody is waiting for the result) can be cancelled while they are still queued,
+ * so that workers are not tied up with tiles that have scrolled out of view.
+ */
+public class TileScheduler {
+
+	/**
+	 * Priority classes for tile requests, in descending order of importance.
+	 */
+	public static enum Priority {
+		/**
+		 * Tiles required to paint the visible region of a viewer.
+		 */
+		VISIBLE,
+		/**
+		 * Tiles that are expected to be needed soon, e.g. neighbouring z-slices or resolutions.
+		 */
+		PREFETCH,
+		/**
+		 * Tiles requested for analysis.
+		 */
+		BACKGROUND
+	}
+
+	private static final int THROUGHPUT_WINDOW_SECONDS = 10;
+
+	private final AtomicLong counter = new AtomicLong();
+
+	private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
+	private final PriorityBlockingQueue<Runnable> queueLocal = new PriorityBlockingQueue<>();
+	private final ThreadPoolExecutor pool;
+	private final ThreadPoolExecutor poolLocal;
+
+	// Tiles that have been submitted, but not yet completed
+	private final Map<TileWorker<?>, ScheduledTile> scheduled = new ConcurrentHashMap<>();
+
+	private final LongAdder[] submittedCounts = createCounters();
+	private final LongAdder[] completedCounts = createCounters();
+	private final LongAdder[] waitNanos = createCounters();
+	private final LongAdder cancelledCount = new LongAdder();
+
+	private final long[] throughputSeconds = new long[THROUGHPUT_WINDOW_SECONDS];
+	private final long[] throughputCounts = new long[THROUGHPUT_WINDOW_SECONDS];
+
+
+	TileScheduler(final int nThreads, final int nThreadsLocal) {
+		pool = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS, queue, new SimpleThreadFactory("region-store-", false));
+		poolLocal = new ThreadPoolExecutor(nThreadsLocal, nThreadsLocal, 0L, TimeUnit.MILLISECONDS, queueLocal, new SimpleThreadFactory("region-store-local-", false));
+	}
+
+	private static LongAdder[] createCounters() {
+		LongAdder[] counters = new LongAdder[Priority.values().length];
+		for (int i = 0; i < counters.length; i++)
+			counters[i] = new LongAdder();
+		return counters;
+	}
+
+
+	/**
+	 * Submit a worker for execution.
+	 *
+	 * @param worker the worker to run
+	 * @param priority the priority of the request
+	 * @param local true if the worker should be run using the pool for generated images
+	 * @param cancellable true if the request is speculative, and may be cancelled if it is no longer needed
+	 * @return true if the worker was submitted, false if the scheduler has been shut down
+	 */
+	boolean execute(final TileWorker<?> worker, final Priority priority, final boolean local, final boolean cancellable) {
+		ThreadPoolExecutor executor = local ? poolLocal : pool;
+		if (executor.isShutdown())
+			return false;
+		ScheduledTile tile = new ScheduledTile(worker, priority, local, cancellable);
+		scheduled.put(worker, tile);
+		submittedCounts[priority.ordinal()].increment();
+		executor.execute(tile);
+		return true;
+	}
+
+
+	/**
+	 * Update the priority of a worker that has previously been submitted.
+	 * <p>
+	 * The priority can only be raised, never lowered; likewise, a request can be made non-cancellable but not the reverse.
+	 *
+	 * @param worker
+	 * @param priority
+	 * @param cancellable
+	 */
+	void updatePriority(final TileWorker<?> worker, final Priority priority, final boolean cancellable) {
+		ScheduledTile tile = scheduled.get(worker);
+		if (tile == null)
+			return;
+		synchronized (tile) {
+			if (!cancellable)
+				tile.cancellable = false;
+			if (priority.compareTo(tile.priority) >= 0)
+				return;
+			// Need to remove & reinsert the tile, since the queue ordering depends upon the priority
+			PriorityBlockingQueue<Runnable> q = tile.local ? queueLocal : queue;
+			if (q.remove(tile)) {
+				tile.priority = priority;
+				q.add(tile);
+			}
+		}
+	}
+
+
+	/**
+	 * Cancel all speculative requests that have not yet started, and for which the region request matches a specified predicate.
+	 *
+	 * @param predicate
+	 * @return the number of requests that were cancelled
+	 */
+	int cancelQueued(final Predicate<RegionRequest> predicate) {
+		List<ScheduledTile> toCancel = new ArrayList<>();
+		for (ScheduledTile tile : scheduled.values()) {
+			synchronized (tile) {
+				if (!tile.cancellable || tile.priority == Priority.BACKGROUND || !predicate.test(tile.worker.getRequest()))
+					continue;
+				PriorityBlockingQueue<Runnable> q = tile.local ? queueLocal : queue;
+				if (q.remove(tile))
+					toCancel.add(tile);
+			}
+		}
+		// Cancel outside the synchronized block, since this will trigger the 'done' method of the worker
+		for (ScheduledTile tile : toCancel) {
+			scheduled.remove(tile.worker);
+			tile.worker.cancel(false);
+			cancelledCount.increment();
+		}
+		return toCancel.size();
+	}
+
+
+	boolean isShutdown() {
+		return pool.isShutdown();
+	}
+
+	void shutdownNow() {
+		List<Runnable> remaining = new ArrayList<>(pool.shutdownNow());
+		remaining.addAll(poolLocal.shutdownNow());
+		for (Runnable r : remaining)
+			((ScheduledTile)r).worker.cancel(true);
+		scheduled.clear();
+	}
+
+
+	private void recordCompleted(final ScheduledTile tile) {
+		completedCounts[tile.priority.ordinal()].increment();
+		long second = System.currentTimeMillis() / 1000L;
+		int ind = (int)(second % THROUGHPUT_WINDOW_SECONDS);
+		synchronized (throughputCounts) {
+			if (throughputSeconds[ind] != second) {
+				throughputSeconds[ind] = second;
+				throughputCounts[ind] = 0;
+			}
+			throughputCounts[ind]++;
+		}
+	}
+
+
+	/**
+	 * Get the number of requests with the specified priority that are currently waiting to be started.
+	 *
+	 * @param priority
+	 * @return
+	 */
+	public int getQueueDepth(final Priority priority) {
+		int n = 0;
+		for (ScheduledTile tile : scheduled.values()) {
+			if (tile.priority == priority && !tile.started)
+				n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Get the total number of requests currently waiting to be started.
+	 *
+	 * @return
+	 */
+	public int getQueueDepth() {
+		return queue.size() + queueLocal.size();
+	}
+
+	/**
+	 * Get the number of tiles currently being read.
+	 *
+	 * @return
+	 */
+	public int getActiveCount() {
+		return pool.getActiveCount() + poolLocal.getActiveCount();
+	}
+
+	/**
+	 * Get the total number of requests with the specified priority that have been submitted.
+	 *
+	 * @param priority
+	 * @return
+	 */
+	public long getSubmittedCount(final Priority priority) {
+		return submittedCounts[priority.ordinal()].sum();
+	}
+
+	/**
+	 * Get the total number of requests with the specified priority that have been completed.
+	 *
+	 * @param priority
+	 * @return
+	 */
+	public long getCompletedCount(final Priority priority) {
+		return completedCounts[priority.ordinal()].sum();
+	}
+
+	/**
+	 * Get the number of speculative requests that were cancelled before they started, because they were no longer needed.
+	 *
+	 * @return
+	 */
+	public long getCancelledCount() {
+		return cancelledCount.sum();
+	}
+
+	/**
+	 * Get the mean time (in milliseconds) that completed requests with the specified priority spent queued before they started.
+	 *
+	 * @param priority
+	 * @return
+	 */
+	public double getMeanWaitMillis(final Priority priority) {
+		long n = getCompletedCount(priority);
+		if (n == 0)
+			return 0;
+		return waitNanos[priority.ordinal()].sum() / 1e6 / n;
+	}
+
+	/**
+	 * Get the number of tiles completed per second, averaged over the last few seconds.
+	 *
+	 * @return
+	 */
+	public double getThroughput() {
+		long second = System.currentTimeMillis() / 1000L;
+		long n = 0;
+		synchronized (throughputCounts) {
+			for (int i = 0; i < THROUGHPUT_WINDOW_SECONDS; i++) {
+				if (second - throughputSeconds[i] < THROUGHPUT_WINDOW_SECONDS)
+					n += throughputCounts[i];
+			}
+		}
+		return (double)n / THROUGHPUT_WINDOW_SECONDS;
+	}
+
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("TileScheduler[");
+		for (Priority priority : Priority.values()) {
+			sb.append(priority).append(": ")
+				.append("queued=").append(getQueueDepth(priority))
+				.append(", completed=").append(getCompletedCount(priority))
+				.append(String.format(", wait=%.1f ms; ", getMeanWaitMillis(priority)));
+		}
+		sb.append("cancelled=").append(getCancelledCount());
+		sb.append(String.format(", throughput=%.1f tiles/s]", getThroughput()));
+		return sb.toString();
+	}
+
+
+
+	class ScheduledTile implements Runnable, Comparable<ScheduledTile> {
+
+		private final TileWorker<?> worker;
+		private final long sequence = counter.incrementAndGet();
+		private final long timestamp = System.nanoTime();
+		private final boolean local;
+
+		private volatile Priority priority;
+		private volatile boolean cancellable;
+		private volatile boolean started = false;
+
+		ScheduledTile(final TileWorker<?> worker, final Priority priority, final boolean local, final boolean cancellable) {
+			this.worker = worker;
+			this.priority = priority;
+			this.local = local;
+			this.cancellable = cancellable;
+		}
+
+		@Override
+		public void run() {
+			started = true;
+			waitNanos[priority.ordinal()].add(System.nanoTime() - timestamp);
+			try {
+				if (!worker.isDone())
+					worker.run();
+			} finally {
+				scheduled.remove(worker);
+				recordCompleted(this);
+			}
+		}
+
+		@Override
+		public int compareTo(ScheduledTile tile) {
+			int cmp = priority.compareTo(tile.priority);
+			if (cmp != 0)
+				return cmp;
+			return Long.compare(sequence, tile.sequence);
+		}
+
+	}
+
+}
@@ -0,0 +1,321 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.images.stores;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.color.ColorTransformer;
+import qupath.lib.color.ColorTransformer.ColorTransformMethod;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Cache for decoded regions and their color-transformed pixels, which can be shared by several feature 
+ * plugins run one after the other on the same image.
+ * <p>
+ * Without this, each plugin reads every region again and repeats the same color deconvolution; with it, 
+ * this is done once per region and transform.  The cache is scoped: it is only used between calls to 
+ * {@link #open(ImageServer)} and {@link #close()}, after which all pixels are released, e.g.
+ * <pre>
+ * try (TransformedPixelCache cache = TransformedPixelCache.open(server)) {
+ *     runPlugin('qupath.lib.algorithms.IntensityFeaturesPlugin', ...);
+ *     runPlugin('qupath.lib.algorithms.HaralickFeaturesPlugin', ...);
+ * }
+ * </pre>
+ * Within QuPath, a cache is opened automatically for each script and for each plugin run interactively.
+ * <p>
+ * Arrays returned by the cache are shared, and must not be modified.
+ */
+public class TransformedPixelCache implements AutoCloseable {
+	
+	private final static Logger logger = LoggerFactory.getLogger(TransformedPixelCache.class);
+	
+	private final static Map<String, TransformedPixelCache> activeCaches = new LinkedHashMap<>();
+	
+	private final static BufferedImageSizeEstimator sizeEstimator = new BufferedImageSizeEstimator();
+	
+	private final String serverPath;
+	private final long maxBytes;
+	private volatile int openCount = 0;
+	
+	private long currentBytes = 0;
+	private long hits = 0, misses = 0;
+	private final Map<Key, Object> map = new LinkedHashMap<>(256, 0.75f, true);
+	
+	private TransformedPixelCache(final String serverPath, final long maxBytes) {
+		this.serverPath = serverPath;
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Open a cache for the specified server, which will be used by supporting plugins until it is closed.
+	 * <p>
+	 * If a cache is already open for the server, it is returned instead - and will only be released 
+	 * once it has been closed as many times as it has been opened.
+	 * 
+	 * @param server
+	 * @return
+	 */
+	public static TransformedPixelCache open(final ImageServer<?> server) {
+		return open(server, Runtime.getRuntime().maxMemory() / 8);
+	}
+	
+	/**
+	 * Open a cache for the specified server, with a maximum size in bytes.
+	 * 
+	 * @param server
+	 * @param maxBytes
+	 * @return
+	 * 
+	 * @see #open(ImageServer)
+	 */
+	public static TransformedPixelCache open(final ImageServer<?> server, final long maxBytes) {
+		synchronized (activeCaches) {
+			TransformedPixelCache cache = activeCaches.get(server.getPath());
+			if (cache == null) {
+				cache = new TransformedPixelCache(server.getPath(), maxBytes);
+				activeCaches.put(server.getPath(), cache);
+			}
+			cache.openCount++;
+			return cache;
+		}
+	}
+	
+	/**
+	 * Get the open cache for a server, if there is one.
+	 * 
+	 * @param server
+	 * @return the cache, or <code>null</code> if no cache is open
+	 */
+	public static TransformedPixelCache getCache(final ImageServer<?> server) {
+		if (server == null)
+			return null;
+		synchronized (activeCaches) {
+			if (activeCaches.isEmpty())
+				return null;
+			return activeCaches.get(server.getPath());
+		}
+	}
+	
+	/**
+	 * Release this cache; once it has been closed as many times as it was opened, all pixels are removed.
+	 */
+	@Override
+	public void close() {
+		synchronized (activeCaches) {
+			if (openCount == 0)
+				return;
+			openCount--;
+			if (openCount > 0)
+				return;
+			activeCaches.remove(serverPath);
+		}
+		synchronized (map) {
+			logger.debug("Closing pixel cache for {} ({} hits, {} misses)", serverPath, hits, misses);
+			map.clear();
+			currentBytes = 0;
+		}
+	}
+	
+	
+	/**
+	 * Get a cached image for a region.
+	 * 
+	 * @param request
+	 * @return the image, or <code>null</code> if it is not in the cache
+	 */
+	public BufferedImage getImage(final RegionRequest request) {
+		return (BufferedImage)get(new Key(request, null, null));
+	}
+	
+	/**
+	 * Store an image for a region.
+	 * 
+	 * @param request
+	 * @param img
+	 */
+	public void putImage(final RegionRequest request, final BufferedImage img) {
+		if (img != null)
+			put(new Key(request, null, null), img, sizeEstimator.getApproxImageSize(img));
+	}
+	
+	/**
+	 * Get packed RGB values for a region, extracting these from the image only if necessary.
+	 * 
+	 * @param request
+	 * @param img the image corresponding to the request
+	 * @return
+	 */
+	public int[] getRGB(final RegionRequest request, final BufferedImage img) {
+		Key key = new Key(request, KeyType.RGB, null);
+		int[] rgb = (int[])get(key);
+		if (rgb == null) {
+			int w = img.getWidth();
+			int h = img.getHeight();
+			rgb = img.getRGB(0, 0, w, h, null, 0, w);
+			put(key, rgb, rgb.length * 4L);
+		}
+		return rgb;
+	}
+	
+	/**
+	 * Get the transformed pixels for a region, computing these only if necessary.
+	 * 
+	 * @param request
+	 * @param method
+	 * @param stains
+	 * @param rgb packed RGB values for the region
+	 * @return the shared (unmodifiable) array of pixels
+	 */
+	public float[] getTransformedPixels(final RegionRequest request, final ColorTransformMethod method, final ColorDeconvolutionStains stains, final int[] rgb) {
+		Key key = new Key(request, method, stains);
+		float[] pixels = (float[])get(key);
+		if (pixels == null) {
+			pixels = ColorTransformer.getTransformedPixels(rgb, method, null, stains);
+			put(key, pixels, pixels.length * 4L);
+		}
+		return pixels;
+	}
+	
+	/**
+	 * Get transformed pixels for a region, using the cache if available.
+	 * 
+	 * @param cache the cache; may be <code>null</code>, in which case the pixels are always computed
+	 * @param request the region, used as a key in the cache
+	 * @param rgb packed RGB values for the region
+	 * @param method
+	 * @param stains
+	 * @param pixels array into which the pixels should be copied (or computed)
+	 * @return
+	 */
+	public static float[] getTransformedPixels(final TransformedPixelCache cache, final RegionRequest request, final int[] rgb, final ColorTransformMethod method, final ColorDeconvolutionStains stains, float[] pixels) {
+		if (cache == null)
+			return ColorTransformer.getTransformedPixels(rgb, method, pixels, stains);
+		float[] cached = cache.getTransformedPixels(request, method, stains, rgb);
+		if (pixels == null || pixels.length != cached.length)
+			pixels = new float[cached.length];
+		System.arraycopy(cached, 0, pixels, 0, cached.length);
+		return pixels;
+	}
+	
+	
+	private Object get(final Key key) {
+		synchronized (map) {
+			Object value = map.get(key);
+			if (value == null)
+				misses++;
+			else
+				hits++;
+			return value;
+		}
+	}
+	
+	private void put(final Key key, final Object value, final long bytes) {
+		if (bytes > maxBytes)
+			return;
+		synchronized (map) {
+			// Check whether the cache has been closed
+			if (openCount == 0)
+				return;
+			Object previous = map.put(key, value);
+			if (previous == null)
+				currentBytes += bytes;
+			Iterator<Map.Entry<Key, Object>> iter = map.entrySet().iterator();
+			while (currentBytes > maxBytes && iter.hasNext()) {
+				Map.Entry<Key, Object> entry = iter.next();
+				if (entry.getKey().equals(key))
+					continue;
+				currentBytes -= estimateSize(entry.getValue());
+				iter.remove();
+			}
+		}
+	}
+	
+	private static long estimateSize(final Object value) {
+		if (value instanceof float[])
+			return ((float[])value).length * 4L;
+		if (value instanceof int[])
+			return ((int[])value).length * 4L;
+		if (value instanceof BufferedImage)
+			return sizeEstimator.getApproxImageSize((BufferedImage)value);
+		return 0L;
+	}
+	
+	/**
+	 * Get the approximate number of bytes currently held in the cache.
+	 * 
+	 * @return
+	 */
+	public long getCurrentBytes() {
+		synchronized (map) {
+			return currentBytes;
+		}
+	}
+	
+	
+	private static enum KeyType {RGB}
+	
+	/**
+	 * Key combining a region with a transform (or other derived value).
+	 * Stains are compared by identity, since a new object is created whenever the stains are changed.
+	 */
+	private static class Key {
+		
+		private final RegionRequest request;
+		private final Object transform;
+		private final ColorDeconvolutionStains stains;
+		
+		Key(final RegionRequest request, final Object transform, final ColorDeconvolutionStains stains) {
+			this.request = request;
+			this.transform = transform;
+			this.stains = stains;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(request, transform, System.identityHashCode(stains));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			return stains == other.stains && Objects.equals(transform, other.transform) && request.equals(other.request);
+		}
+		
+	}
+
+}
@@ -25,6 +25,7 @@ package qupath.lib.plugins;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -32,6 +33,8 @@ import qupath.lib.geom.ImmutableDimension;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ServerTools;
 import qupath.lib.objects.PathObject;
+import qupath.lib.objects.helpers.PathObjectTools;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.roi.PathROIToolsAwt;
 import qupath.lib.roi.interfaces.ROI;
@@ -88,6 +91,30 @@ public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetecti
 	protected abstract int getTileOverlap(final ImageData<T> imageData, final ParameterList params);
 
 	
+	/**
+	 * Runs the plugin as usual, but with the hierarchy buffering the events fired from the calling thread throughout.
+	 * <p>
+	 * Since each tile would otherwise fire its own structural event, this means that listeners are notified 
+	 * of all the detections only once (rather than potentially thousands of times for a large image) whenever 
+	 * tasks are completed on the same thread, e.g. when running from a script.
+	 * Plugin runners that complete tasks on another thread (e.g. the GUI application thread) are expected 
+	 * to begin and end an update on that thread themselves.
+	 */
+	@Override
+	public boolean runPlugin(final PluginRunner<T> pluginRunner, final String arg) {
+		ImageData<T> imageData = pluginRunner.getImageData();
+		PathObjectHierarchy hierarchy = imageData == null ? null : imageData.getHierarchy();
+		if (hierarchy == null)
+			return super.runPlugin(pluginRunner, arg);
+		hierarchy.beginUpdate();
+		try {
+			return super.runPlugin(pluginRunner, arg);
+		} finally {
+			hierarchy.endUpdate();
+		}
+	}
+
+	
 	/**
 	 * Intercepts the 'standard' addRunnableTasks to (if necessary) insert ParallelTileObjects along the way,
 	 * thereby breaking an excessively-large parentObject into more manageable pieces.
@@ -115,15 +142,20 @@ public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetecti
 		ImmutableDimension sizePreferred = new ImmutableDimension(preferred, preferred);
 		ImmutableDimension sizeMax = new ImmutableDimension(max, max);
 		
+		List<PathObject> removed = PathObjectTools.getFlattenedObjectList(parentObject, null, false);
 		parentObject.clearPathObjects();
 		
 		// No tasks to complete
 		Collection<? extends ROI> pathROIs = PathROIToolsAwt.computeTiledROIs(imageData, parentObject, sizePreferred, sizeMax, false, getTileOverlap(imageData, params));
-		if (pathROIs.isEmpty())
+		PathObjectHierarchy hierarchy = imageData.getHierarchy();
+		if (pathROIs.isEmpty()) {
+			hierarchy.fireHierarchyChangedEvent(this, hierarchy.getRootObject(), Collections.emptyList(), removed);
 			return;
+		}
 		
 		// Exactly one task to complete
 		if (pathROIs.size() == 1 && pathROIs.iterator().next() == parentObject.getROI()) {
+			hierarchy.fireHierarchyChangedEvent(this, hierarchy.getRootObject(), Collections.emptyList(), removed);
 			tasks.add(DetectionPluginTools.createRunnableTask(createDetector(imageData, params), getParameterList(imageData), imageData, parentObject));
 			return;
 		}
@@ -140,7 +172,7 @@ public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetecti
 			tileList.add(tile);
 			tasks.add(DetectionPluginTools.createRunnableTask(createDetector(imageData, params), params, imageData, tile));
 		}
-		imageData.getHierarchy().fireHierarchyChangedEvent(this);
+		hierarchy.fireHierarchyChangedEvent(this, hierarchy.getRootObject(), tileList, removed);
 	}
 	
 	
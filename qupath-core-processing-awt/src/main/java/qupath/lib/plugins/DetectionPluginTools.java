@@ -28,10 +28,12 @@ import java.awt.Shape;
 import java.awt.geom.Area;
 import java.awt.geom.Path2D;
 import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -42,6 +44,8 @@ import qupath.lib.awt.common.AwtTools;
 import qupath.lib.images.ImageData;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathROIObject;
+import qupath.lib.objects.helpers.PathObjectTools;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.regions.ImageRegion;
 import qupath.lib.roi.AWTAreaROI;
@@ -140,8 +144,11 @@ public class DetectionPluginTools {
 
 		@Override
 		public void taskComplete() {
+			// Record what changes, so that the hierarchy can be updated incrementally
+			List<PathObject> removed = new ArrayList<>();
 			if (parentObject.getROI() == pathROI) {
 				if (!Thread.currentThread().isInterrupted()) {
+					PathObjectTools.getFlattenedObjectList(parentObject, removed, false);
 					parentObject.clearPathObjects();
 					tryToSetObjectLock(parentObject, false); // Try to unlock the parent
 				}
@@ -231,6 +238,7 @@ public class DetectionPluginTools {
 								if (intersectionArea < pathAreaOld.getArea() * threshold)
 									continue;
 								parentObject.removePathObject(entryOld.getValue());
+								removed.add(entryOld.getValue());
 								iterMap.remove();
 								//									System.out.println("Removing from old");
 							}
@@ -259,7 +267,9 @@ public class DetectionPluginTools {
 
 			// TODO: Note that this can block for an annoying amount of time due to hierarchy lock & repaints etc.
 			//				if (!(parentObject instanceof ParallelTileObject))
-			imageData.getHierarchy().fireHierarchyChangedEvent(parentObject);
+			List<PathObject> added = pathObjectsDetected == null ? Collections.emptyList() : new ArrayList<>(pathObjectsDetected);
+			PathObjectHierarchy hierarchy = imageData.getHierarchy();
+			hierarchy.fireHierarchyChangedEvent(parentObject, hierarchy.getRootObject(), added, removed);
 
 			//			}
 
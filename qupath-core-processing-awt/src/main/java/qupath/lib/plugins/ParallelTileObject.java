@@ -26,6 +26,7 @@ package qupath.lib.plugins;
 import java.awt.geom.Area;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -247,7 +248,10 @@ public class ParallelTileObject extends PathTileObject implements TemporaryObjec
 	boolean checkAllTestsComplete() {
 		if (map.isEmpty() && getParent() != null) {
 			if (countdown == null) {
-				hierarchy.removeObject(this, true);
+				// Children are only cached once they are no longer inside a temporary object, so report them as added
+				List<PathObject> children = new ArrayList<>(getChildObjects());
+				if (hierarchy.removeObject(this, true, false))
+					hierarchy.fireHierarchyChangedEvent(this, hierarchy.getRootObject(), children, Collections.singletonList(this));
 			} else if (countdown.decrementAndGet() == 0) {
 				PathObject parent = getParent();
 				List<PathObject> parallelObjects = new ArrayList<>();
@@ -257,13 +261,16 @@ public class ParallelTileObject extends PathTileObject implements TemporaryObjec
 					}
 				}
 				parent.removePathObjects(parallelObjects);
-				for (PathObject temp : parallelObjects)
+				List<PathObject> children = new ArrayList<>();
+				for (PathObject temp : parallelObjects) {
+					children.addAll(temp.getChildObjects());
 					parent.addPathObjects(temp.getChildObjects());
+				}
 
 				if (parent.hasChildren() && parent instanceof PathROIObject)
 					((PathROIObject)parent).setLocked(true);
 
-				hierarchy.fireHierarchyChangedEvent(parent);
+				hierarchy.fireHierarchyChangedEvent(parent, hierarchy.getRootObject(), children, parallelObjects);
 			}
 			return true;
 			//				getParent().removePathObject(this);
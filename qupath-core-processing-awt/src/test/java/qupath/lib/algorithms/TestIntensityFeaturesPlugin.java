@@ -0,0 +1,72 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.algorithms;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import qupath.lib.algorithms.IntensityFeaturesPlugin.FeatureColorTransform;
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.color.ColorDeconvolutionStains.DEFAULT_CD_STAINS;
+
+public class TestIntensityFeaturesPlugin {
+
+	@Test
+	public void test_fusedTransformsMatchIndividual() {
+		int w = 40, h = 30;
+		Random random = new Random(100L);
+		BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++)
+				img.setRGB(x, y, random.nextInt() & 0xFFFFFF);
+		}
+		int[] rgb = img.getRGB(0, 0, w, h, null, 0, w);
+		ColorDeconvolutionStains stains = ColorDeconvolutionStains.makeDefaultColorDeconvolutionStains(DEFAULT_CD_STAINS.H_DAB);
+		
+		List<FeatureColorTransform> transforms = new ArrayList<>();
+		for (FeatureColorTransform transform : FeatureColorTransform.values()) {
+			if (transform.getChannel() < 0)
+				transforms.add(transform);
+		}
+		byte[] mask = IntensityFeaturesPlugin.PixelBuffers.getInstance().getMask(w, h);
+		float[][] pixels = new float[transforms.size()][w * h];
+		IntensityFeaturesPlugin.getTransformedPixels(img, rgb, stains, transforms, mask, pixels);
+		
+		for (int t = 0; t < transforms.size(); t++) {
+			float[] expected = transforms.get(t).getTransformedPixels(img, rgb, stains, null);
+			for (int i = 0; i < expected.length; i++) {
+				float value = mask[i] == 0 ? Float.NaN : expected[i];
+				assertEquals(transforms.get(t).toString(), value, pixels[t][i], 0f);
+			}
+		}
+	}
+
+}
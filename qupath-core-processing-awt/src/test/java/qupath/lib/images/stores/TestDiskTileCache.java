@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.images.stores;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+public class TestDiskTileCache {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static BufferedImage createImage(long seed) {
+		Random random = new Random(seed);
+		BufferedImage img = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				img.setRGB(x, y, random.nextInt() & 0xFFFFFF);
+		}
+		return img;
+	}
+
+	private static void assertImagesEqual(BufferedImage expected, BufferedImage actual) {
+		assertNotNull(actual);
+		assertEquals(expected.getType(), actual.getType());
+		for (int y = 0; y < expected.getHeight(); y++) {
+			for (int x = 0; x < expected.getWidth(); x++)
+				assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+		}
+	}
+
+	@Test
+	public void test_persistence() throws Exception {
+		File dir = folder.newFolder("qupath-tile-cache");
+		File fileImage = new File(dir, "image.tif");
+		try (FileOutputStream out = new FileOutputStream(fileImage)) {
+			out.write(new byte[100]);
+		}
+		ImageServer<BufferedImage> server = new ImageIoImageServer(fileImage.getAbsolutePath(), "image", createImage(0));
+		File dirCache = new File(dir, "cache");
+
+		DiskTileCache cache = new DiskTileCache(dirCache, 1024L * 1024L * 1024L);
+		for (int i = 0; i < 20; i++)
+			cache.put(server, RegionRequest.createInstance(server.getPath(), 1, i * 64, 0, 64, 64), createImage(i));
+		assertEquals(20, cache.getTileCount());
+		assertImagesEqual(createImage(3), cache.get(server, RegionRequest.createInstance(server.getPath(), 1, 3 * 64, 0, 64, 64)));
+		assertNull(cache.get(server, RegionRequest.createInstance(server.getPath(), 2, 0, 0, 64, 64)));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		cache.close();
+
+		// Tiles should be available after reopening
+		cache = new DiskTileCache(dirCache, 1024L * 1024L * 1024L);
+		assertEquals(20, cache.getTileCount());
+		assertImagesEqual(createImage(5), cache.get(server, RegionRequest.createInstance(server.getPath(), 1, 5 * 64, 0, 64, 64)));
+		cache.close();
+
+		// If the image file changes, then cached tiles should be discarded
+		try (FileOutputStream out = new FileOutputStream(fileImage)) {
+			out.write(new byte[200]);
+		}
+		cache = new DiskTileCache(dirCache, 1024L * 1024L * 1024L);
+		assertNull(cache.get(server, RegionRequest.createInstance(server.getPath(), 1, 5 * 64, 0, 64, 64)));
+		assertEquals(0, cache.getTileCount());
+		cache.close();
+	}
+
+	@Test
+	public void test_sizeLimit() throws Exception {
+		File dir = folder.newFolder("qupath-tile-cache");
+		File fileImage = new File(dir, "image.tif");
+		try (FileOutputStream out = new FileOutputStream(fileImage)) {
+			out.write(new byte[100]);
+		}
+		ImageServer<BufferedImage> server = new ImageIoImageServer(fileImage.getAbsolutePath(), "image", createImage(0));
+		long maxSize = 200 * 1024;
+		DiskTileCache cache = new DiskTileCache(new File(dir, "cache"), maxSize);
+		for (int i = 0; i < 50; i++) {
+			cache.put(server, RegionRequest.createInstance(server.getPath(), 1, i * 64, 0, 64, 64), createImage(i));
+			assertTrue(cache.getSizeBytes() <= maxSize);
+		}
+		assertTrue(cache.getTileCount() < 50);
+		// The most recent tile should be retained
+		assertImagesEqual(createImage(49), cache.get(server, RegionRequest.createInstance(server.getPath(), 1, 49 * 64, 0, 64, 64)));
+		cache.close();
+	}
+
+}
@@ -0,0 +1,109 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.images.stores;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+import qupath.lib.images.stores.TileScheduler.Priority;
+import qupath.lib.regions.RegionRequest;
+
+public class TestTileScheduler {
+	
+	static class SimpleTileWorker extends FutureTask<Integer> implements TileWorker<Integer> {
+		
+		private RegionRequest request;
+		
+		SimpleTileWorker(final RegionRequest request, final Runnable runnable) {
+			super(runnable, request.getX());
+			this.request = request;
+		}
+
+		@Override
+		public RegionRequest getRequest() {
+			return request;
+		}
+
+		@Override
+		public RegionCache<Integer> getRequestedCache() {
+			return null;
+		}
+		
+	}
+
+	@Test
+	public void test_priorities() throws Exception {
+		TileScheduler scheduler = new TileScheduler(1, 1);
+		
+		// Block the only thread, so that requests are queued
+		CountDownLatch latch = new CountDownLatch(1);
+		SimpleTileWorker blocker = new SimpleTileWorker(RegionRequest.createInstance("image", 1, -1, 0, 1, 1), () -> {
+			try {
+				latch.await();
+			} catch (InterruptedException e) {}
+		});
+		scheduler.execute(blocker, Priority.VISIBLE, false, false);
+		
+		List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+		List<SimpleTileWorker> workers = new ArrayList<>();
+		Priority[] priorities = {Priority.BACKGROUND, Priority.PREFETCH, Priority.VISIBLE, Priority.PREFETCH, Priority.VISIBLE};
+		for (int i = 0; i < priorities.length; i++) {
+			final int ind = i;
+			SimpleTileWorker worker = new SimpleTileWorker(RegionRequest.createInstance("image", 1, i, 0, 1, 1), () -> order.add(ind));
+			workers.add(worker);
+			scheduler.execute(worker, priorities[i], false, true);
+		}
+		assertEquals(2, scheduler.getQueueDepth(Priority.PREFETCH));
+		
+		// Raise the priority of a request
+		scheduler.updatePriority(workers.get(3), Priority.VISIBLE, true);
+		// Cancel a stale request
+		assertEquals(1, scheduler.cancelQueued(r -> r.getX() == 1));
+		// Background requests should never be cancelled
+		assertEquals(0, scheduler.cancelQueued(r -> r.getX() == 0));
+		assertEquals(1, scheduler.getCancelledCount());
+		assertTrue(workers.get(1).isCancelled());
+
+		latch.countDown();
+		for (SimpleTileWorker worker : workers) {
+			if (!worker.isCancelled())
+				worker.get();
+		}
+		scheduler.shutdownNow();
+		
+		assertEquals(Integer.valueOf(2), order.get(0));
+		assertEquals(Integer.valueOf(3), order.get(1));
+		assertEquals(Integer.valueOf(4), order.get(2));
+		assertEquals(Integer.valueOf(0), order.get(3));
+		assertEquals(4, order.size());
+	}
+
+}
@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.images.stores;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.Test;
+
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.color.ColorDeconvolutionStains.DEFAULT_CD_STAINS;
+import qupath.lib.color.ColorTransformer;
+import qupath.lib.color.ColorTransformer.ColorTransformMethod;
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+public class TestTransformedPixelCache {
+	
+	private static BufferedImage createImage(long seed) {
+		Random random = new Random(seed);
+		BufferedImage img = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				img.setRGB(x, y, random.nextInt() & 0xFFFFFF);
+		}
+		return img;
+	}
+
+	@Test
+	public void test_scopeAndReuse() {
+		BufferedImage img = createImage(1);
+		ImageServer<BufferedImage> server = new ImageIoImageServer("/path/to/image.tif", "image", img);
+		ColorDeconvolutionStains stains = ColorDeconvolutionStains.makeDefaultColorDeconvolutionStains(DEFAULT_CD_STAINS.H_DAB);
+		RegionRequest request = RegionRequest.createInstance(server.getPath(), 1, 0, 0, 32, 32);
+		
+		assertNull(TransformedPixelCache.getCache(server));
+		TransformedPixelCache cache = TransformedPixelCache.open(server);
+		try {
+			// Opening again should give the same cache, which remains open until both are closed
+			TransformedPixelCache.open(server).close();
+			assertSame(cache, TransformedPixelCache.getCache(server));
+			
+			assertNull(cache.getImage(request));
+			cache.putImage(request, img);
+			assertSame(img, cache.getImage(request));
+			
+			int[] rgb = cache.getRGB(request, img);
+			assertSame(rgb, cache.getRGB(request, img));
+			
+			float[] pixels = cache.getTransformedPixels(request, ColorTransformMethod.Stain_2, stains, rgb);
+			assertSame(pixels, cache.getTransformedPixels(request, ColorTransformMethod.Stain_2, stains, rgb));
+			assertArrayEquals(ColorTransformer.getTransformedPixels(rgb, ColorTransformMethod.Stain_2, null, stains), pixels, 0f);
+			
+			// Copies should be made for callers that need to modify pixels
+			float[] copy = TransformedPixelCache.getTransformedPixels(cache, request, rgb, ColorTransformMethod.Stain_2, stains, null);
+			assertNotSame(pixels, copy);
+			assertArrayEquals(pixels, copy, 0f);
+			
+			// Different stains should give a different entry
+			ColorDeconvolutionStains stains2 = ColorDeconvolutionStains.makeDefaultColorDeconvolutionStains(DEFAULT_CD_STAINS.H_E);
+			assertNotSame(pixels, cache.getTransformedPixels(request, ColorTransformMethod.Stain_2, stains2, rgb));
+		} finally {
+			cache.close();
+		}
+		assertNull(TransformedPixelCache.getCache(server));
+		assertEquals(0, cache.getCurrentBytes());
+	}
+	
+	@Test
+	public void test_bounded() {
+		BufferedImage img = createImage(2);
+		ImageServer<BufferedImage> server = new ImageIoImageServer("/path/to/image2.tif", "image", img);
+		long maxBytes = 32 * 32 * 4 * 3;
+		try (TransformedPixelCache cache = TransformedPixelCache.open(server, maxBytes)) {
+			RegionRequest request = RegionRequest.createInstance(server.getPath(), 1, 0, 0, 32, 32);
+			int[] rgb = cache.getRGB(request, img);
+			for (ColorTransformMethod method : new ColorTransformMethod[] {ColorTransformMethod.Red, ColorTransformMethod.Green, ColorTransformMethod.Blue, ColorTransformMethod.Brightness})
+				cache.getTransformedPixels(request, method, null, rgb);
+			assertTrue(cache.getCurrentBytes() <= maxBytes);
+		}
+	}
+
+}
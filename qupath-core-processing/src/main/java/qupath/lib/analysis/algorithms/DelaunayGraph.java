@@ -0,0 +1,1021 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis.algorithms;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Graph containing the edges of the Delaunay triangulation of a set of 2D points.
+ * <p>
+ * Neighbors are stored in primitive arrays (in compressed sparse row format), with the neighbors of each vertex sorted 
+ * in ascending order, so that large graphs (e.g. for millions of cells) can be represented efficiently.
+ * <p>
+ * Large point sets are split into tiles, which are triangulated in parallel.  Each tile is triangulated along with a margin 
+ * of surrounding points, and the result is only accepted whenever the circumcircles of all the triangles touching the tile's 
+ * own points are known to be empty (for triangles on the convex hull, the region beyond the hull edge must be empty instead).  
+ * Otherwise, the margin is increased and the tile triangulated again.  This means that the edges that cross the seams between 
+ * tiles are the same as they would be for a single triangulation of all the points.
+ * <p>
+ * Points with identical coordinates are not triangulated separately; rather, duplicates are connected only to the first 
+ * point with the same coordinates.
+ */
+public class DelaunayGraph {
+	
+	final private static Logger logger = LoggerFactory.getLogger(DelaunayGraph.class);
+	
+	/**
+	 * Target number of points in each cell of the grid used to look up points.
+	 */
+	private static final int POINTS_PER_CELL = 4;
+	
+	/**
+	 * Width &amp; height of each tile, in grid cells (giving approximately 16384 points per tile).
+	 */
+	private static final int TILE_CELLS = 64;
+	
+	private final double[] x, y;
+	private final int[] offsets;
+	private final int[] neighbors;
+	
+	private DelaunayGraph(final double[] x, final double[] y, final int[] offsets, final int[] neighbors) {
+		this.x = x;
+		this.y = y;
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+	}
+	
+	/**
+	 * Compute the Delaunay graph for points with the specified coordinates.
+	 * 
+	 * @param x
+	 * @param y
+	 * @return
+	 * @throws IllegalArgumentException if the arrays differ in length, or contain non-finite values
+	 */
+	public static DelaunayGraph create(final double[] x, final double[] y) throws IllegalArgumentException {
+		return create(x, y, TILE_CELLS);
+	}
+	
+	/**
+	 * Compute the Delaunay graph, using tiles with the specified size (in grid cells).
+	 * A very large tile size means all points are triangulated together.
+	 */
+	static DelaunayGraph create(final double[] x, final double[] y, final int tileCells) throws IllegalArgumentException {
+		if (x.length != y.length)
+			throw new IllegalArgumentException("Number of x (" + x.length + ") and y (" + y.length + ") coordinates must be the same!");
+		for (int i = 0; i < x.length; i++) {
+			if (!Double.isFinite(x[i]) || !Double.isFinite(y[i]))
+				throw new IllegalArgumentException("Coordinates must be finite - found (" + x[i] + ", " + y[i] + ") for point " + i);
+		}
+		long startTime = System.currentTimeMillis();
+		double[] xCopy = x.clone();
+		double[] yCopy = y.clone();
+		long[] edges = new TiledTriangulator(xCopy, yCopy, tileCells).computeEdges();
+		DelaunayGraph graph = createFromEdges(xCopy, yCopy, edges);
+		logger.debug("Delaunay graph computed for {} points in {} ms", x.length, System.currentTimeMillis() - startTime);
+		return graph;
+	}
+	
+	/**
+	 * Create a graph from sorted, unique edges encoded as {@code ((long)v1 << 32) | v2}, with {@code v1 < v2}.
+	 */
+	private static DelaunayGraph createFromEdges(final double[] x, final double[] y, final long[] edges) {
+		int n = x.length;
+		int[] offsets = new int[n + 1];
+		for (long edge : edges) {
+			offsets[(int)(edge >>> 32) + 1]++;
+			offsets[(int)edge + 1]++;
+		}
+		for (int i = 0; i < n; i++)
+			offsets[i+1] += offsets[i];
+		// Because edges are sorted by their first & then their second vertex, each row is filled in ascending order
+		int[] position = Arrays.copyOf(offsets, n);
+		int[] neighbors = new int[offsets[n]];
+		for (long edge : edges) {
+			int v1 = (int)(edge >>> 32);
+			int v2 = (int)edge;
+			neighbors[position[v1]++] = v2;
+			neighbors[position[v2]++] = v1;
+		}
+		return new DelaunayGraph(x, y, offsets, neighbors);
+	}
+	
+	/**
+	 * Get the number of vertices (i.e. points) in the graph.
+	 * 
+	 * @return
+	 */
+	public int nVertices() {
+		return x.length;
+	}
+	
+	/**
+	 * Get the total number of (undirected) edges in the graph.
+	 * 
+	 * @return
+	 */
+	public int nEdges() {
+		return neighbors.length / 2;
+	}
+	
+	/**
+	 * Get the number of neighbors for the specified vertex.
+	 * 
+	 * @param vertex
+	 * @return
+	 */
+	public int nNeighbors(final int vertex) {
+		return offsets[vertex + 1] - offsets[vertex];
+	}
+	
+	/**
+	 * Get the neighbor of a vertex, where {@code 0 <= index < nNeighbors(vertex)}.
+	 * 
+	 * @param vertex
+	 * @param index
+	 * @return
+	 */
+	public int getNeighbor(final int vertex, final int index) {
+		if (index < 0 || index >= nNeighbors(vertex))
+			throw new IndexOutOfBoundsException("Neighbor index " + index + " out of range for vertex with " + nNeighbors(vertex) + " neighbors");
+		return neighbors[offsets[vertex] + index];
+	}
+	
+	/**
+	 * Get the neighbors of a vertex, in ascending order.
+	 * 
+	 * @param vertex
+	 * @return
+	 */
+	public int[] getNeighbors(final int vertex) {
+		return Arrays.copyOfRange(neighbors, offsets[vertex], offsets[vertex + 1]);
+	}
+	
+	/**
+	 * Check if two vertices are connected by an edge.
+	 * 
+	 * @param vertex1
+	 * @param vertex2
+	 * @return
+	 */
+	public boolean isConnected(final int vertex1, final int vertex2) {
+		return Arrays.binarySearch(neighbors, offsets[vertex1], offsets[vertex1 + 1], vertex2) >= 0;
+	}
+	
+	public double getX(final int vertex) {
+		return x[vertex];
+	}
+
+	public double getY(final int vertex) {
+		return y[vertex];
+	}
+	
+	/**
+	 * Test used to determine which edges should be retained by {@link DelaunayGraph#filterEdges(EdgeFilter)}.
+	 */
+	@FunctionalInterface
+	public static interface EdgeFilter {
+		
+		/**
+		 * Return true if the edge between two vertices should be kept.
+		 * This is called once for each edge, with {@code vertex1 < vertex2}.
+		 * 
+		 * @param vertex1
+		 * @param vertex2
+		 * @return
+		 */
+		public boolean accept(int vertex1, int vertex2);
+		
+	}
+	
+	/**
+	 * Create a new graph, containing the same vertices but only the edges accepted by a filter.
+	 * 
+	 * @param filter
+	 * @return
+	 */
+	public DelaunayGraph filterEdges(final EdgeFilter filter) {
+		int n = nVertices();
+		long[] edges = new long[nEdges()];
+		int count = 0;
+		for (int v = 0; v < n; v++) {
+			for (int k = offsets[v]; k < offsets[v+1]; k++) {
+				int w = neighbors[k];
+				if (v < w && filter.accept(v, w))
+					edges[count++] = ((long)v << 32) | w;
+			}
+		}
+		return createFromEdges(x, y, Arrays.copyOf(edges, count));
+	}
+	
+	/**
+	 * Get a label for each vertex, where vertices have the same label if (and only if) they are connected by a path in the graph.
+	 * <p>
+	 * Labels are numbered from 0 in the order that each connected component is first found when looping through the vertices.
+	 * 
+	 * @return
+	 */
+	public int[] getComponentLabels() {
+		int n = nVertices();
+		// Union-find, with path halving
+		int[] parents = new int[n];
+		for (int v = 0; v < n; v++)
+			parents[v] = v;
+		for (int v = 0; v < n; v++) {
+			for (int k = offsets[v]; k < offsets[v+1]; k++) {
+				int w = neighbors[k];
+				if (w <= v)
+					continue;
+				int r1 = findRoot(parents, v);
+				int r2 = findRoot(parents, w);
+				if (r1 < r2)
+					parents[r2] = r1;
+				else if (r2 < r1)
+					parents[r1] = r2;
+			}
+		}
+		int[] labels = new int[n];
+		int nLabels = 0;
+		for (int v = 0; v < n; v++) {
+			int root = findRoot(parents, v);
+			// Roots are always the lowest index in each component, so are labelled first
+			labels[v] = root == v ? nLabels++ : labels[root];
+		}
+		return labels;
+	}
+	
+	private static int findRoot(final int[] parents, int v) {
+		while (parents[v] != v) {
+			parents[v] = parents[parents[v]];
+			v = parents[v];
+		}
+		return v;
+	}
+	
+	
+	
+	/**
+	 * Helper class to compute the edges of a Delaunay triangulation, one tile at a time.
+	 */
+	private static class TiledTriangulator {
+		
+		// Coordinates of all points, including the frame (which is appended after the real points)
+		private final double[] x, y;
+		private final int nReal;
+		
+		private final double minX, minY, cellSize;
+		private final int nx, ny;
+		private final int tileCells;
+		// Unique points in each grid cell, stored contiguously
+		private final int[] cellStart;
+		private final int[] cellPoints;
+		// Cumulative counts of unique points down each column of the grid
+		private final int[] columnCounts;
+		// Edges linking duplicate points to the first point with the same coordinates
+		private final long[] duplicateEdges;
+		
+		private boolean wholeTriangulationUsed = false;
+		
+		TiledTriangulator(final double[] xReal, final double[] yReal, final int tileCells) {
+			this.tileCells = tileCells;
+			this.nReal = xReal.length;
+			int n = nReal;
+			double[] x = xReal;
+			double[] y = yReal;
+			
+			double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < n; i++) {
+				minX = Math.min(minX, x[i]);
+				minY = Math.min(minY, y[i]);
+				maxX = Math.max(maxX, x[i]);
+				maxY = Math.max(maxY, y[i]);
+			}
+			double width = n == 0 ? 0 : maxX - minX;
+			double height = n == 0 ? 0 : maxY - minY;
+			// Choose a cell size that gives the requested density, while ensuring that the number of cells 
+			// remains manageable (e.g. if all points are on a horizontal line)
+			double cellSize = Math.max(Math.sqrt(width * height * POINTS_PER_CELL / Math.max(n, 1)), Math.max(width, height) * POINTS_PER_CELL / Math.max(n, 1));
+			if (!(cellSize > 0))
+				cellSize = 1;
+			
+			// Surround the points with a frame of extra points, 2 cells outside the bounding box.
+			// This avoids long, thin triangles along the convex hull (which have huge circumcircles, 
+			// and would otherwise require very large margins for tiles along the boundary)
+			if (n > 0) {
+				double frameMinX = minX - 2 * cellSize;
+				double frameMinY = minY - 2 * cellSize;
+				double frameMaxX = maxX + 2 * cellSize;
+				double frameMaxY = maxY + 2 * cellSize;
+				int nFrameX = (int)Math.ceil((frameMaxX - frameMinX) / cellSize);
+				int nFrameY = (int)Math.ceil((frameMaxY - frameMinY) / cellSize);
+				double spacingX = (frameMaxX - frameMinX) / nFrameX;
+				double spacingY = (frameMaxY - frameMinY) / nFrameY;
+				x = Arrays.copyOf(xReal, n + 2 * (nFrameX + nFrameY));
+				y = Arrays.copyOf(yReal, x.length);
+				for (int k = 0; k < nFrameX; k++) {
+					x[n] = frameMinX + k * spacingX;
+					y[n++] = frameMinY;
+					x[n] = frameMaxX - k * spacingX;
+					y[n++] = frameMaxY;
+				}
+				for (int k = 0; k < nFrameY; k++) {
+					x[n] = frameMaxX;
+					y[n++] = frameMinY + k * spacingY;
+					x[n] = frameMinX;
+					y[n++] = frameMaxY - k * spacingY;
+				}
+				minX = frameMinX;
+				minY = frameMinY;
+				width = frameMaxX - frameMinX;
+				height = frameMaxY - frameMinY;
+			}
+			this.x = x;
+			this.y = y;
+			this.minX = n == 0 ? 0 : minX;
+			this.minY = n == 0 ? 0 : minY;
+			this.cellSize = cellSize;
+			this.nx = (int)(width / cellSize) + 1;
+			this.ny = (int)(height / cellSize) + 1;
+			
+			// Bucket all the points
+			int nCells = nx * ny;
+			int[] allStart = new int[nCells + 1];
+			int[] cells = new int[n];
+			for (int i = 0; i < n; i++) {
+				cells[i] = getCell(x[i], y[i]);
+				allStart[cells[i] + 1]++;
+			}
+			for (int c = 0; c < nCells; c++)
+				allStart[c+1] += allStart[c];
+			int[] position = Arrays.copyOf(allStart, nCells);
+			int[] allPoints = new int[n];
+			for (int i = 0; i < n; i++)
+				allPoints[position[cells[i]]++] = i;
+			
+			// Remove duplicates within each cell
+			cellStart = new int[nCells + 1];
+			int[] unique = new int[n];
+			int nUnique = 0;
+			long[] duplicates = new long[0];
+			int nDuplicates = 0;
+			double[] xAll = x, yAll = y;
+			Comparator<Integer> comparator = (i1, i2) -> {
+				int cmp = Double.compare(xAll[i1], xAll[i2]);
+				return cmp == 0 ? Double.compare(yAll[i1], yAll[i2]) : cmp;
+			};
+			for (int c = 0; c < nCells; c++) {
+				int start = allStart[c];
+				int end = allStart[c+1];
+				if (end - start > 1) {
+					Integer[] sorted = new Integer[end - start];
+					for (int k = start; k < end; k++)
+						sorted[k - start] = allPoints[k];
+					// Sort by coordinates, then by index - so that the first point is used as the representative
+					Arrays.sort(sorted, comparator.thenComparing(Comparator.naturalOrder()));
+					int previous = -1;
+					for (int i : sorted) {
+						if (previous >= 0 && x[previous] == x[i] && y[previous] == y[i]) {
+							if (nDuplicates == duplicates.length)
+								duplicates = Arrays.copyOf(duplicates, Math.max(16, nDuplicates * 2));
+							duplicates[nDuplicates++] = ((long)Math.min(previous, i) << 32) | Math.max(previous, i);
+							continue;
+						}
+						previous = i;
+						unique[nUnique++] = i;
+					}
+				} else if (end > start)
+					unique[nUnique++] = allPoints[start];
+				cellStart[c+1] = nUnique;
+			}
+			cellPoints = Arrays.copyOf(unique, nUnique);
+			duplicateEdges = Arrays.copyOf(duplicates, nDuplicates);
+			
+			columnCounts = new int[nx * (ny + 1)];
+			for (int cx = 0; cx < nx; cx++) {
+				for (int cy = 0; cy < ny; cy++) {
+					int c = cy * nx + cx;
+					columnCounts[cx * (ny + 1) + cy + 1] = columnCounts[cx * (ny + 1) + cy] + cellStart[c+1] - cellStart[c];
+				}
+			}
+		}
+		
+		private int getCellX(final double x) {
+			return (int)Math.max(0, Math.min(nx - 1, Math.floor((x - minX) / cellSize)));
+		}
+		
+		private int getCellY(final double y) {
+			return (int)Math.max(0, Math.min(ny - 1, Math.floor((y - minY) / cellSize)));
+		}
+		
+		private int getCell(final double x, final double y) {
+			int cx = Math.min(nx - 1, (int)((x - minX) / cellSize));
+			int cy = Math.min(ny - 1, (int)((y - minY) / cellSize));
+			return cy * nx + cx;
+		}
+		
+		/**
+		 * Compute all the edges of the triangulation, encoded as {@code ((long)v1 << 32) | v2} with {@code v1 < v2}, 
+		 * sorted &amp; without duplicates.
+		 */
+		long[] computeEdges() {
+			int ntx = (int)(((long)nx + tileCells - 1) / tileCells);
+			int nty = (int)(((long)ny + tileCells - 1) / tileCells);
+			int nTiles = ntx * nty;
+			long[][] tileEdges = new long[nTiles + 1][];
+			IntStream tiles = IntStream.range(0, nTiles);
+			if (nTiles > 1)
+				tiles = tiles.parallel();
+			tiles.forEach(t -> {
+				int tx = t % ntx;
+				int ty = t / ntx;
+				tileEdges[t] = computeTileEdges(tx * tileCells, ty * tileCells, 
+						(int)Math.min(nx, (tx + 1L) * tileCells) - 1, (int)Math.min(ny, (ty + 1L) * tileCells) - 1);
+			});
+			tileEdges[nTiles] = duplicateEdges;
+			
+			// Merge edges from all tiles, removing those found twice (i.e. crossing seams)
+			int count = 0;
+			for (long[] edges : tileEdges)
+				count += edges.length;
+			long[] edges = new long[count];
+			count = 0;
+			for (long[] temp : tileEdges) {
+				System.arraycopy(temp, 0, edges, count, temp.length);
+				count += temp.length;
+			}
+			return sortUnique(edges);
+		}
+		
+		/**
+		 * Compute the edges for all the points within a rectangle of cells (inclusive).
+		 */
+		private long[] computeTileEdges(final int cx1, final int cy1, final int cx2, final int cy2) {
+			if (!hasPoints(cx1, cy1, cx2, cy2))
+				return new long[0];
+			int margin = 2;
+			int rx1 = Math.max(0, cx1 - margin);
+			int ry1 = Math.max(0, cy1 - margin);
+			int rx2 = Math.min(nx - 1, cx2 + margin);
+			int ry2 = Math.min(ny - 1, cy2 + margin);
+			int[] required = new int[4];
+			while (true) {
+				// If we need most of the points, use a triangulation shared across tiles
+				if ((rx2 - rx1 + 1.0) * (ry2 - ry1 + 1.0) >= nx * (double)ny / 2)
+					return getWholeTriangulationEdges();
+				LocalTriangulation triangulation = new LocalTriangulation(this, rx1, ry1, rx2, ry2);
+				boolean[] own = triangulation.getOwnPoints(this, cx1, cy1, cx2, cy2);
+				if (triangulation.isComplete(this, own, required))
+					return triangulation.getEdges(this, own);
+				// Double the margin - but only in the directions where more cells are required (if known).
+				// Circumcircles of incorrect triangles can be much larger than necessary, so shouldn't be used directly.
+				margin *= 2;
+				boolean known = required[0] < rx1 || required[1] < ry1 || required[2] > rx2 || required[3] > ry2;
+				int x1 = Math.max(0, cx1 - margin);
+				int y1 = Math.max(0, cy1 - margin);
+				int x2 = Math.min(nx - 1, cx2 + margin);
+				int y2 = Math.min(ny - 1, cy2 + margin);
+				if (known) {
+					x1 = Math.max(x1, Math.min(rx1, required[0] - 1));
+					y1 = Math.max(y1, Math.min(ry1, required[1] - 1));
+					x2 = Math.min(x2, Math.max(rx2, required[2] + 1));
+					y2 = Math.min(y2, Math.max(ry2, required[3] + 1));
+				}
+				rx1 = x1;
+				ry1 = y1;
+				rx2 = x2;
+				ry2 = y2;
+			}
+		}
+		
+		/**
+		 * Get the edges from triangulating all the points together.
+		 * Since these include the edges for every tile, they are only returned on the first call (and subsequent calls return an empty array).
+		 */
+		private synchronized long[] getWholeTriangulationEdges() {
+			if (wholeTriangulationUsed)
+				return new long[0];
+			wholeTriangulationUsed = true;
+			logger.debug("Computing triangulation for all {} unique points", cellPoints.length);
+			LocalTriangulation triangulation = new LocalTriangulation(this, 0, 0, nx - 1, ny - 1);
+			boolean[] own = new boolean[triangulation.nPoints];
+			Arrays.fill(own, true);
+			return triangulation.getEdges(this, own);
+		}
+		
+		private boolean hasPoints(final int cx1, final int cy1, final int cx2, final int cy2) {
+			for (int cx = cx1; cx <= cx2; cx++) {
+				if (columnCounts[cx * (ny + 1) + cy2 + 1] > columnCounts[cx * (ny + 1) + cy1])
+					return true;
+			}
+			return false;
+		}
+		
+		/**
+		 * Check if any point outside a rectangle of cells lies strictly inside a circle.
+		 */
+		private boolean hasPointInCircle(final double xc, final double yc, final double r2, final int rx1, final int ry1, final int rx2, final int ry2) {
+			double r = Math.sqrt(r2);
+			int cx1 = Math.max(0, (int)Math.floor((xc - r - minX) / cellSize));
+			int cy1 = Math.max(0, (int)Math.floor((yc - r - minY) / cellSize));
+			int cx2 = (int)Math.min(nx - 1, Math.floor((xc + r - minX) / cellSize));
+			int cy2 = (int)Math.min(ny - 1, Math.floor((yc + r - minY) / cellSize));
+			double threshold = r2 * (1 - 1e-10);
+			for (int cy = cy1; cy <= cy2; cy++) {
+				for (int cx = cx1; cx <= cx2; cx++) {
+					if (cx >= rx1 && cx <= rx2 && cy >= ry1 && cy <= ry2)
+						continue;
+					int c = cy * nx + cx;
+					for (int k = cellStart[c]; k < cellStart[c+1]; k++) {
+						int i = cellPoints[k];
+						double dx = x[i] - xc;
+						double dy = y[i] - yc;
+						if (dx*dx + dy*dy < threshold)
+							return true;
+					}
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * Check if any point outside a rectangle of cells lies strictly to the left of the line from a to b.
+		 */
+		private boolean hasPointLeftOfLine(final int a, final int b, final int rx1, final int ry1, final int rx2, final int ry2) {
+			double ax = x[a], ay = y[a];
+			double dx = x[b] - ax, dy = y[b] - ay;
+			double length = Math.sqrt(dx*dx + dy*dy);
+			double tolerance = length * cellSize * 1e-9;
+			for (int cx = 0; cx < nx; cx++) {
+				double x1 = minX + cx * cellSize;
+				double x2 = x1 + cellSize;
+				// Find the rows that are entirely inside (left of the line), and those that intersect the line
+				int fullStart, fullEnd, partialStart, partialEnd;
+				if (dx == 0) {
+					boolean inside = dy > 0 ? x2 < ax : x1 > ax;
+					boolean partial = x1 <= ax && x2 >= ax;
+					fullStart = inside ? 0 : ny;
+					fullEnd = inside ? ny : ny;
+					partialStart = partial ? 0 : ny;
+					partialEnd = partial ? ny : ny;
+				} else {
+					double y1 = ay + dy * (x1 - ax) / dx;
+					double y2 = ay + dy * (x2 - ax) / dx;
+					int rowLow = clamp((int)Math.floor((Math.min(y1, y2) - minY) / cellSize), 0, ny);
+					int rowHigh = clamp((int)Math.floor((Math.max(y1, y2) - minY) / cellSize) + 1, 0, ny);
+					partialStart = rowLow;
+					partialEnd = rowHigh;
+					if (dx > 0) {
+						// Left means above the line
+						fullStart = rowHigh;
+						fullEnd = ny;
+					} else {
+						fullStart = 0;
+						fullEnd = rowLow;
+					}
+				}
+				boolean columnInRegion = cx >= rx1 && cx <= rx2;
+				if (countPoints(cx, fullStart, fullEnd, columnInRegion ? ry1 : ny, columnInRegion ? ry2 + 1 : ny) > 0)
+					return true;
+				for (int cy = partialStart; cy < partialEnd; cy++) {
+					if (columnInRegion && cy >= ry1 && cy <= ry2)
+						continue;
+					int c = cy * nx + cx;
+					for (int k = cellStart[c]; k < cellStart[c+1]; k++) {
+						int i = cellPoints[k];
+						if (dx * (y[i] - ay) - dy * (x[i] - ax) > tolerance)
+							return true;
+					}
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * Count the points in rows [start, end) of a column, excluding rows [excludeStart, excludeEnd).
+		 */
+		private int countPoints(final int cx, final int start, final int end, final int excludeStart, final int excludeEnd) {
+			int offset = cx * (ny + 1);
+			int count = 0;
+			if (start < end)
+				count += columnCounts[offset + end] - columnCounts[offset + start];
+			int overlapStart = Math.max(start, excludeStart);
+			int overlapEnd = Math.min(end, excludeEnd);
+			if (overlapStart < overlapEnd)
+				count -= columnCounts[offset + overlapEnd] - columnCounts[offset + overlapStart];
+			return count;
+		}
+		
+		private static int clamp(final int value, final int min, final int max) {
+			return value < min ? min : (value > max ? max : value);
+		}
+		
+	}
+	
+	
+	/**
+	 * Sort an array of edges &amp; remove duplicates.
+	 */
+	private static long[] sortUnique(final long[] edges) {
+		if (edges.length > 100_000)
+			Arrays.parallelSort(edges);
+		else
+			Arrays.sort(edges);
+		int count = 0;
+		for (int i = 0; i < edges.length; i++) {
+			if (i == 0 || edges[i] != edges[i-1])
+				edges[count++] = edges[i];
+		}
+		return Arrays.copyOf(edges, count);
+	}
+	
+	
+	/**
+	 * Bowyer-Watson triangulation of the unique points within a rectangle of grid cells.
+	 * <p>
+	 * Points are inserted in Z-order of their cells, so that each point can be located by walking from the previous triangle.
+	 * Three additional vertices are added far outside the bounds to form an enclosing triangle.
+	 */
+	private static class LocalTriangulation {
+		
+		private final int rx1, ry1, rx2, ry2;
+		private final int nPoints;
+		// Global index of each point
+		private final int[] ids;
+		// Coordinates relative to the center of the region, including the 3 outer vertices at the end
+		private final double[] px, py;
+		
+		// Vertices (counter-clockwise) & neighbors for each triangle, where the neighbor i is opposite vertex i
+		private int[] vertices = new int[0];
+		private int[] triangleNeighbors = new int[0];
+		private int nTriangles = 0;
+		private int[] freeTriangles = new int[16];
+		private int nFree = 0;
+		
+		private int[] stamps = new int[0];
+		private int stamp = 0;
+		
+		LocalTriangulation(final TiledTriangulator triangulator, final int rx1, final int ry1, final int rx2, final int ry2) {
+			this.rx1 = rx1;
+			this.ry1 = ry1;
+			this.rx2 = rx2;
+			this.ry2 = ry2;
+			int nx = triangulator.nx;
+			
+			// Order cells along a Z-order curve
+			int w = rx2 - rx1 + 1;
+			int h = ry2 - ry1 + 1;
+			long[] cellOrder = new long[w * h];
+			int n = 0;
+			for (int cy = ry1; cy <= ry2; cy++) {
+				for (int cx = rx1; cx <= rx2; cx++) {
+					int c = cy * nx + cx;
+					cellOrder[(cy - ry1) * w + (cx - rx1)] = (interleave(cx - rx1, cy - ry1) << 32) | c;
+					n += triangulator.cellStart[c+1] - triangulator.cellStart[c];
+				}
+			}
+			Arrays.sort(cellOrder);
+			nPoints = n;
+			ids = new int[n];
+			int k = 0;
+			for (long key : cellOrder) {
+				int c = (int)key;
+				for (int j = triangulator.cellStart[c]; j < triangulator.cellStart[c+1]; j++)
+					ids[k++] = triangulator.cellPoints[j];
+			}
+			
+			// Use coordinates relative to the center, to reduce rounding errors
+			double x0 = triangulator.minX + (rx1 + rx2 + 1) * triangulator.cellSize / 2;
+			double y0 = triangulator.minY + (ry1 + ry2 + 1) * triangulator.cellSize / 2;
+			px = new double[n + 3];
+			py = new double[n + 3];
+			for (int i = 0; i < n; i++) {
+				px[i] = triangulator.x[ids[i]] - x0;
+				py[i] = triangulator.y[ids[i]] - y0;
+			}
+			double d = Math.max(w, h) * triangulator.cellSize * 1e4;
+			px[n] = -d;
+			py[n] = -d;
+			px[n+1] = d;
+			py[n+1] = -d;
+			px[n+2] = 0;
+			py[n+2] = d;
+			
+			ensureCapacity(2 * n + 8);
+			int first = addTriangle(n, n+1, n+2);
+			triangleNeighbors[3*first] = -1;
+			triangleNeighbors[3*first+1] = -1;
+			triangleNeighbors[3*first+2] = -1;
+			
+			int[] boundary = new int[64];
+			int[] cavity = new int[64];
+			int[] stack = new int[64];
+			int[] byStart = new int[n + 3];
+			int[] byEnd = new int[n + 3];
+			int last = first;
+			for (int i = 0; i < n; i++) {
+				int t = locate(i, last);
+				if (t < 0) {
+					logger.warn("Unable to insert point into Delaunay triangulation: ({}, {})", triangulator.x[ids[i]], triangulator.y[ids[i]]);
+					continue;
+				}
+				// Find the triangles whose circumcircles contain the point
+				stamp++;
+				int nCavity = 0, nStack = 0;
+				setStamp(t);
+				stack[nStack++] = t;
+				while (nStack > 0) {
+					int c = stack[--nStack];
+					if (nCavity == cavity.length)
+						cavity = Arrays.copyOf(cavity, nCavity * 2);
+					cavity[nCavity++] = c;
+					for (int e = 0; e < 3; e++) {
+						int nb = triangleNeighbors[3*c + e];
+						if (nb >= 0 && stamps[nb] != stamp && inCircle(nb, i)) {
+							setStamp(nb);
+							if (nStack == stack.length)
+								stack = Arrays.copyOf(stack, nStack * 2);
+							stack[nStack++] = nb;
+						}
+					}
+				}
+				// Find the boundary of the cavity, storing edge start, end, outer neighbor & the neighbor's edge index
+				int nBoundary = 0;
+				for (int j = 0; j < nCavity; j++) {
+					int c = cavity[j];
+					for (int e = 0; e < 3; e++) {
+						int nb = triangleNeighbors[3*c + e];
+						if (nb >= 0 && stamps[nb] == stamp)
+							continue;
+						if (nBoundary * 4 + 4 > boundary.length)
+							boundary = Arrays.copyOf(boundary, boundary.length * 2);
+						boundary[nBoundary*4] = vertices[3*c + (e + 1) % 3];
+						boundary[nBoundary*4 + 1] = vertices[3*c + (e + 2) % 3];
+						boundary[nBoundary*4 + 2] = nb;
+						boundary[nBoundary*4 + 3] = nb < 0 ? -1 : neighborIndex(nb, c);
+						nBoundary++;
+					}
+				}
+				for (int j = 0; j < nCavity; j++)
+					removeTriangle(cavity[j]);
+				// Fill the cavity with new triangles connecting the boundary to the point
+				for (int j = 0; j < nBoundary; j++) {
+					int a = boundary[j*4];
+					int b = boundary[j*4 + 1];
+					int nb = boundary[j*4 + 2];
+					int tNew = addTriangle(a, b, i);
+					triangleNeighbors[3*tNew + 2] = nb;
+					if (nb >= 0)
+						triangleNeighbors[3*nb + boundary[j*4 + 3]] = tNew;
+					byStart[a] = tNew;
+					byEnd[b] = tNew;
+					last = tNew;
+				}
+				for (int j = 0; j < nBoundary; j++) {
+					int a = boundary[j*4];
+					int b = boundary[j*4 + 1];
+					int tNew = byStart[a];
+					triangleNeighbors[3*tNew] = byStart[b];
+					triangleNeighbors[3*tNew + 1] = byEnd[a];
+				}
+			}
+		}
+		
+		private static long interleave(final int x, final int y) {
+			long key = 0;
+			for (int b = 0; b < 16; b++) {
+				key |= (long)((x >> b) & 1) << (2 * b);
+				key |= (long)((y >> b) & 1) << (2 * b + 1);
+			}
+			return key;
+		}
+		
+		private void ensureCapacity(final int n) {
+			if (vertices.length >= n * 3)
+				return;
+			int capacity = Math.max(n, nTriangles * 2);
+			vertices = Arrays.copyOf(vertices, capacity * 3);
+			triangleNeighbors = Arrays.copyOf(triangleNeighbors, capacity * 3);
+			stamps = Arrays.copyOf(stamps, capacity);
+		}
+		
+		private int addTriangle(final int a, final int b, final int c) {
+			int t;
+			if (nFree > 0)
+				t = freeTriangles[--nFree];
+			else {
+				ensureCapacity(nTriangles + 1);
+				t = nTriangles++;
+			}
+			vertices[3*t] = a;
+			vertices[3*t + 1] = b;
+			vertices[3*t + 2] = c;
+			stamps[t] = 0;
+			return t;
+		}
+		
+		private void removeTriangle(final int t) {
+			vertices[3*t] = -1;
+			if (nFree == freeTriangles.length)
+				freeTriangles = Arrays.copyOf(freeTriangles, nFree * 2);
+			freeTriangles[nFree++] = t;
+		}
+		
+		private boolean isAlive(final int t) {
+			return vertices[3*t] >= 0;
+		}
+		
+		private void setStamp(final int t) {
+			stamps[t] = stamp;
+		}
+		
+		private int neighborIndex(final int t, final int neighbor) {
+			for (int e = 0; e < 3; e++) {
+				if (triangleNeighbors[3*t + e] == neighbor)
+					return e;
+			}
+			throw new IllegalStateException("Triangles are not neighbors!");
+		}
+		
+		private double orient(final int a, final int b, final int p) {
+			return (px[b] - px[a]) * (py[p] - py[a]) - (py[b] - py[a]) * (px[p] - px[a]);
+		}
+		
+		/**
+		 * Find the triangle containing a point, by walking from a starting triangle.
+		 */
+		private int locate(final int p, int t) {
+			int maxSteps = nTriangles + 10;
+			int offset = 0;
+			for (int step = 0; step < maxSteps; step++) {
+				boolean moved = false;
+				for (int k = 0; k < 3; k++) {
+					int e = (k + offset) % 3;
+					int a = vertices[3*t + (e + 1) % 3];
+					int b = vertices[3*t + (e + 2) % 3];
+					if (orient(a, b, p) < 0) {
+						int next = triangleNeighbors[3*t + e];
+						if (next < 0)
+							break;
+						t = next;
+						moved = true;
+						break;
+					}
+				}
+				if (!moved)
+					return t;
+				offset++;
+			}
+			// Walking failed (probably due to rounding errors) - so check all the triangles
+			for (t = 0; t < nTriangles; t++) {
+				if (isAlive(t) && orient(vertices[3*t], vertices[3*t+1], p) >= 0 &&
+						orient(vertices[3*t+1], vertices[3*t+2], p) >= 0 &&
+						orient(vertices[3*t+2], vertices[3*t], p) >= 0)
+					return t;
+			}
+			return -1;
+		}
+		
+		/**
+		 * Test if a point is strictly inside the circumcircle of a triangle.
+		 */
+		private boolean inCircle(final int t, final int p) {
+			int a = vertices[3*t], b = vertices[3*t+1], c = vertices[3*t+2];
+			double adx = px[a] - px[p], ady = py[a] - py[p];
+			double bdx = px[b] - px[p], bdy = py[b] - py[p];
+			double cdx = px[c] - px[p], cdy = py[c] - py[p];
+			double det = (adx*adx + ady*ady) * (bdx*cdy - cdx*bdy) +
+					(bdx*bdx + bdy*bdy) * (cdx*ady - adx*cdy) +
+					(cdx*cdx + cdy*cdy) * (adx*bdy - bdx*ady);
+			return det > 0;
+		}
+		
+		/**
+		 * Flag the points that are within a rectangle of cells.
+		 */
+		boolean[] getOwnPoints(final TiledTriangulator triangulator, final int cx1, final int cy1, final int cx2, final int cy2) {
+			boolean[] own = new boolean[nPoints];
+			for (int v = 0; v < nPoints; v++) {
+				int i = ids[v];
+				int c = triangulator.getCell(triangulator.x[i], triangulator.y[i]);
+				int cx = c % triangulator.nx;
+				int cy = c / triangulator.nx;
+				own[v] = i < triangulator.nReal && cx >= cx1 && cx <= cx2 && cy >= cy1 && cy <= cy2;
+			}
+			return own;
+		}
+		
+		private static boolean isOwn(final boolean[] own, final int v) {
+			return v < own.length && own[v];
+		}
+		
+		/**
+		 * Check if all the triangles that touch the specified points are the same as they would be 
+		 * if all the points were triangulated together.
+		 * <p>
+		 * If not, the required array is updated to give the range of cells containing points that may be needed 
+		 * (as x1, y1, x2, y2).  If this is the same as the current region, it can't be determined which cells are needed.
+		 */
+		boolean isComplete(final TiledTriangulator triangulator, final boolean[] own, final int[] required) {
+			double[] x = triangulator.x;
+			double[] y = triangulator.y;
+			required[0] = rx1;
+			required[1] = ry1;
+			required[2] = rx2;
+			required[3] = ry2;
+			boolean complete = true;
+			for (int t = 0; t < nTriangles; t++) {
+				if (!isAlive(t))
+					continue;
+				int a = vertices[3*t], b = vertices[3*t+1], c = vertices[3*t+2];
+				if (!isOwn(own, a) && !isOwn(own, b) && !isOwn(own, c))
+					continue;
+				int nOuter = (a >= nPoints ? 1 : 0) + (b >= nPoints ? 1 : 0) + (c >= nPoints ? 1 : 0);
+				if (nOuter == 0) {
+					// Compute the circumcircle, using global coordinates
+					double ax = x[ids[a]], ay = y[ids[a]];
+					double bx = x[ids[b]] - ax, by = y[ids[b]] - ay;
+					double cx = x[ids[c]] - ax, cy = y[ids[c]] - ay;
+					double d = 2 * (bx * cy - by * cx);
+					double b2 = bx*bx + by*by;
+					double c2 = cx*cx + cy*cy;
+					double ux = (cy * b2 - by * c2) / d;
+					double uy = (bx * c2 - cx * b2) / d;
+					if (!Double.isFinite(ux) || !Double.isFinite(uy))
+						return false;
+					double r = Math.sqrt(ux*ux + uy*uy);
+					if (triangulator.hasPointInCircle(ax + ux, ay + uy, r*r, rx1, ry1, rx2, ry2)) {
+						complete = false;
+						required[0] = Math.min(required[0], triangulator.getCellX(ax + ux - r));
+						required[1] = Math.min(required[1], triangulator.getCellY(ay + uy - r));
+						required[2] = Math.max(required[2], triangulator.getCellX(ax + ux + r));
+						required[3] = Math.max(required[3], triangulator.getCellY(ay + uy + r));
+					}
+				} else if (nOuter == 1) {
+					// For an edge on the convex hull, check there is nothing on the other side
+					int e = a >= nPoints ? 0 : (b >= nPoints ? 1 : 2);
+					int v1 = vertices[3*t + (e + 1) % 3];
+					int v2 = vertices[3*t + (e + 2) % 3];
+					if (triangulator.hasPointLeftOfLine(ids[v1], ids[v2], rx1, ry1, rx2, ry2))
+						complete = false;
+				}
+			}
+			return complete;
+		}
+		
+		/**
+		 * Get the edges that touch the specified points.
+		 */
+		long[] getEdges(final TiledTriangulator triangulator, final boolean[] own) {
+			long[] edges = new long[64];
+			int count = 0;
+			for (int t = 0; t < nTriangles; t++) {
+				if (!isAlive(t))
+					continue;
+				for (int e = 0; e < 3; e++) {
+					int v1 = vertices[3*t + e];
+					int v2 = vertices[3*t + (e + 1) % 3];
+					if (v1 >= nPoints || v2 >= nPoints || !(own[v1] || own[v2]))
+						continue;
+					int i1 = ids[v1];
+					int i2 = ids[v2];
+					if (i1 >= triangulator.nReal || i2 >= triangulator.nReal)
+						continue;
+					if (count == edges.length)
+						edges = Arrays.copyOf(edges, count * 2);
+					edges[count++] = ((long)Math.min(i1, i2) << 32) | Math.max(i1, i2);
+				}
+			}
+			return sortUnique(Arrays.copyOf(edges, count));
+		}
+		
+	}
+
+}
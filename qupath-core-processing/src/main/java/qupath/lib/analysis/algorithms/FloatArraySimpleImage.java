@@ -47,6 +47,15 @@ public class FloatArraySimpleImage implements SimpleModifiableImage {
 		this.height = height;
 	}
 	
+	/**
+	 * Get the array containing the pixel values, without copying.
+	 * 
+	 * @return
+	 */
+	float[] getArray() {
+		return data;
+	}
+	
 	@Override
 	public float getValue(int x, int y) {
 		return data[y * width + x];
@@ -0,0 +1,628 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.analysis.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * Filters for single-channel float images, for use with {@link SimpleImage} and {@link FloatArraySimpleImage}.
+ * <p>
+ * The filters are intended for preprocessing steps that are applied to every tile during detection, 
+ * and so are designed to scale well with increasing filter sizes:
+ * <ul>
+ * 	<li>Gaussian filtering uses a recursive approximation (after Young, van Vliet &amp; Verbeek), 
+ * 		so that the cost per pixel is independent of sigma.</li>
+ * 	<li>Minimum and maximum filters use the van Herk/Gil-Werman algorithm to compute 
+ * 		each line of a circular neighborhood in constant time.</li>
+ * 	<li>Median filtering tracks the ranks of the pixels within a sliding neighborhood, 
+ * 		so that moving the neighborhood by one pixel requires an update for only the pixels at its edges.</li>
+ * </ul>
+ * Circular neighborhoods are defined in the same way as ImageJ's RankFilters, and pixels outside 
+ * the image are given the value of the nearest edge pixel, so that the minimum, maximum and 
+ * median filters give identical results to ImageJ.
+ * <p>
+ * Pixels with NaN values are ignored by the minimum, maximum and median filters.
+ */
+public class SimpleImageFilters {
+	
+	private SimpleImageFilters() {}
+	
+	
+	/**
+	 * Apply a Gaussian filter to an image, in-place.
+	 * 
+	 * @param img
+	 * @param sigma Gaussian sigma value, in pixels
+	 */
+	public static void gaussianBlur(final SimpleModifiableImage img, final double sigma) {
+		float[] pixels = getPixels(img);
+		gaussianBlur(pixels, img.getWidth(), img.getHeight(), sigma);
+		setPixels(img, pixels);
+	}
+
+	/**
+	 * Apply a minimum filter with a circular neighborhood to an image, in-place.
+	 * 
+	 * @param img
+	 * @param radius filter radius, in pixels
+	 */
+	public static void minimum(final SimpleModifiableImage img, final double radius) {
+		float[] pixels = getPixels(img);
+		minimum(pixels, img.getWidth(), img.getHeight(), radius);
+		setPixels(img, pixels);
+	}
+
+	/**
+	 * Apply a maximum filter with a circular neighborhood to an image, in-place.
+	 * 
+	 * @param img
+	 * @param radius filter radius, in pixels
+	 */
+	public static void maximum(final SimpleModifiableImage img, final double radius) {
+		float[] pixels = getPixels(img);
+		maximum(pixels, img.getWidth(), img.getHeight(), radius);
+		setPixels(img, pixels);
+	}
+
+	/**
+	 * Apply a median filter with a circular neighborhood to an image, in-place.
+	 * 
+	 * @param img
+	 * @param radius filter radius, in pixels
+	 */
+	public static void median(final SimpleModifiableImage img, final double radius) {
+		float[] pixels = getPixels(img);
+		median(pixels, img.getWidth(), img.getHeight(), radius);
+		setPixels(img, pixels);
+	}
+	
+	
+	/**
+	 * Apply a Gaussian filter to an image stored as a float array, in-place.
+	 * <p>
+	 * For sigma &lt; 0.5 the recursive approximation is inaccurate, and a (small) sampled Gaussian kernel is used instead.
+	 * 
+	 * @param pixels
+	 * @param width
+	 * @param height
+	 * @param sigma Gaussian sigma value, in pixels
+	 */
+	public static void gaussianBlur(final float[] pixels, final int width, final int height, final double sigma) {
+		if (!(sigma > 0))
+			return;
+		if (sigma < 0.5) {
+			convolveSeparable(pixels, width, height, makeGaussianKernel(sigma));
+			return;
+		}
+		RecursiveGaussian gaussian = new RecursiveGaussian(sigma);
+		int pad = gaussian.getPadding();
+		double[] buffer = new double[Math.max(width, height) + pad * 2];
+		// Filter rows
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			for (int x = 0; x < width; x++)
+				buffer[x + pad] = pixels[offset + x];
+			gaussian.filter(buffer, width, pad);
+			for (int x = 0; x < width; x++)
+				pixels[offset + x] = (float)buffer[x + pad];
+		}
+		// Filter columns
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++)
+				buffer[y + pad] = pixels[y * width + x];
+			gaussian.filter(buffer, height, pad);
+			for (int y = 0; y < height; y++)
+				pixels[y * width + x] = (float)buffer[y + pad];
+		}
+	}
+	
+	/**
+	 * Apply a minimum filter with a circular neighborhood to an image stored as a float array, in-place.
+	 * 
+	 * @param pixels
+	 * @param width
+	 * @param height
+	 * @param radius filter radius, in pixels
+	 */
+	public static void minimum(final float[] pixels, final int width, final int height, final double radius) {
+		int[] lineRadii = makeLineRadii(radius);
+		int kRadius = lineRadii.length / 2;
+		float[] output = new float[pixels.length];
+		Arrays.fill(output, Float.POSITIVE_INFINITY);
+		float[] rowMinima = new float[pixels.length];
+		float[] g = new float[width + 2 * lineRadii[kRadius]];
+		float[] h = new float[g.length];
+		
+		// Circular neighborhoods are made from horizontal lines that are symmetric about the central row - 
+		// so compute the minimum along each distinct line length once, and combine for rows above & below
+		for (int dy = 0; dy <= kRadius; dy++) {
+			int k = lineRadii[kRadius + dy];
+			if (dy == 0 || k != lineRadii[kRadius + dy - 1]) {
+				for (int y = 0; y < height; y++)
+					lineMinimum(pixels, y * width, width, k, rowMinima, g, h);
+			}
+			for (int y = 0; y < height; y++) {
+				int offsetAbove = Math.max(y - dy, 0) * width;
+				int offsetBelow = Math.min(y + dy, height - 1) * width;
+				int offset = y * width;
+				for (int x = 0; x < width; x++) {
+					float val = output[offset + x];
+					float v1 = rowMinima[offsetAbove + x];
+					float v2 = rowMinima[offsetBelow + x];
+					if (v1 < val)
+						val = v1;
+					if (v2 < val)
+						val = v2;
+					output[offset + x] = val;
+				}
+			}
+		}
+		System.arraycopy(output, 0, pixels, 0, pixels.length);
+	}
+	
+	/**
+	 * Apply a maximum filter with a circular neighborhood to an image stored as a float array, in-place.
+	 * 
+	 * @param pixels
+	 * @param width
+	 * @param height
+	 * @param radius filter radius, in pixels
+	 */
+	public static void maximum(final float[] pixels, final int width, final int height, final double radius) {
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = -pixels[i];
+		minimum(pixels, width, height, radius);
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = -pixels[i];
+	}
+	
+	/**
+	 * Apply a median filter with a circular neighborhood to an image stored as a float array, in-place.
+	 * <p>
+	 * Where the neighborhood contains an even number of (non-NaN) pixels, the higher of the two central values is used.
+	 * 
+	 * @param pixels
+	 * @param width
+	 * @param height
+	 * @param radius filter radius, in pixels
+	 */
+	public static void median(final float[] pixels, final int width, final int height, final double radius) {
+		int[] lineRadii = makeLineRadii(radius);
+		int kRadius = lineRadii.length / 2;
+		
+		// Process the image in tiles, replacing pixel values by their ranks within each (padded) tile 
+		// so that exact medians can be found using a set of ranks that is small enough to remain in cache
+		int tileSize = Math.max(64, kRadius * 2);
+		int tileWidth = Math.min(tileSize, width);
+		int tileHeight = Math.min(tileSize, height);
+		int paddedWidth = tileWidth + kRadius * 2;
+		int nPadded = paddedWidth * (tileHeight + kRadius * 2);
+		long[] sorted = new long[nPadded];
+		int[] ranks = new int[nPadded];
+		float[] values = new float[nPadded];
+		float[] output = new float[pixels.length];
+		RankSet rankSet = new RankSet(nPadded);
+		
+		for (int y0 = 0; y0 < height; y0 += tileHeight) {
+			int h = Math.min(tileHeight, height - y0);
+			for (int x0 = 0; x0 < width; x0 += tileWidth) {
+				int w = Math.min(tileWidth, width - x0);
+				// Rank the pixels within the padded tile, setting NaNs to -1
+				int pw = w + kRadius * 2;
+				int ph = h + kRadius * 2;
+				int nValid = 0;
+				for (int yy = 0; yy < ph; yy++) {
+					int offset = clip(y0 + yy - kRadius, height) * width;
+					for (int xx = 0; xx < pw; xx++) {
+						int ind = yy * pw + xx;
+						float val = pixels[offset + clip(x0 + xx - kRadius, width)];
+						ranks[ind] = -1;
+						if (Float.isNaN(val))
+							continue;
+						int bits = Float.floatToIntBits(val);
+						if (bits < 0)
+							bits ^= 0x7fffffff;
+						sorted[nValid++] = ((long)bits << 32) | ind;
+					}
+				}
+				Arrays.sort(sorted, 0, nValid);
+				for (int r = 0; r < nValid; r++) {
+					int ind = (int)sorted[r];
+					ranks[ind] = r;
+					values[r] = Float.intBitsToFloat(toFloatBits((int)(sorted[r] >> 32)));
+				}
+				
+				// Apply the filter using a sliding set of ranks
+				for (int y = 0; y < h; y++) {
+					// Initialize the set for the first pixel in the row
+					for (int dy = -kRadius; dy <= kRadius; dy++) {
+						int offset = (y + kRadius + dy) * pw + kRadius;
+						int k = lineRadii[kRadius + dy];
+						for (int dx = -k; dx <= k; dx++)
+							rankSet.add(ranks[offset + dx]);
+					}
+					int outputOffset = (y0 + y) * width + x0;
+					for (int x = 0; x < w; x++) {
+						int r = rankSet.median();
+						output[outputOffset + x] = r < 0 ? Float.NaN : values[r];
+						// Slide the neighborhood along by one pixel, unless we've reached the end
+						boolean lastPixel = x == w - 1;
+						for (int dy = -kRadius; dy <= kRadius; dy++) {
+							int offset = (y + kRadius + dy) * pw + kRadius + x;
+							int k = lineRadii[kRadius + dy];
+							if (lastPixel) {
+								for (int dx = -k; dx <= k; dx++)
+									rankSet.remove(ranks[offset + dx]);
+							} else {
+								rankSet.remove(ranks[offset - k]);
+								rankSet.add(ranks[offset + k + 1]);
+							}
+						}
+					}
+				}
+			}
+		}
+		System.arraycopy(output, 0, pixels, 0, pixels.length);
+	}
+	
+	private static int toFloatBits(final int sortableBits) {
+		return sortableBits < 0 ? sortableBits ^ 0x7fffffff : sortableBits;
+	}
+	
+	
+	/**
+	 * Get the half-widths of each horizontal line within a circular neighborhood, from top to bottom.
+	 * This matches the definition of ImageJ's RankFilters.
+	 * 
+	 * @param radius
+	 * @return
+	 */
+	static int[] makeLineRadii(double radius) {
+		if (radius >= 1.5 && radius < 1.75)
+			radius = 1.75;
+		else if (radius >= 2.5 && radius < 2.85)
+			radius = 2.85;
+		int r2 = (int)(radius*radius) + 1;
+		int kRadius = (int)(Math.sqrt(r2 + 1e-10));
+		int[] lineRadii = new int[2*kRadius + 1];
+		for (int dy = 0; dy <= kRadius; dy++) {
+			int k = (int)(Math.sqrt(r2 - dy*dy + 1e-10));
+			lineRadii[kRadius - dy] = k;
+			lineRadii[kRadius + dy] = k;
+		}
+		return lineRadii;
+	}
+	
+	/**
+	 * Compute the minimum within a window of width 2*k+1 centered on each pixel of a row, using the van Herk/Gil-Werman algorithm.
+	 * NaNs are ignored.
+	 */
+	private static void lineMinimum(final float[] pixels, final int offset, final int width, final int k, final float[] output, final float[] g, final float[] h) {
+		int p = 2*k + 1;
+		int n = width + 2*k;
+		// Forward (prefix) minima within blocks of length p
+		for (int i = 0; i < n; i++) {
+			float val = pixels[offset + clip(i - k, width)];
+			if (Float.isNaN(val))
+				val = Float.POSITIVE_INFINITY;
+			if (i % p != 0 && g[i-1] < val)
+				val = g[i-1];
+			g[i] = val;
+		}
+		// Backward (suffix) minima within blocks of length p
+		for (int i = n-1; i >= 0; i--) {
+			float val = pixels[offset + clip(i - k, width)];
+			if (Float.isNaN(val))
+				val = Float.POSITIVE_INFINITY;
+			if (i % p != p-1 && i < n-1 && h[i+1] < val)
+				val = h[i+1];
+			h[i] = val;
+		}
+		// Any window of length p spans at most two blocks
+		for (int x = 0; x < width; x++) {
+			float v1 = h[x];
+			float v2 = g[x + 2*k];
+			output[offset + x] = v1 < v2 ? v1 : v2;
+		}
+	}
+	
+	private static int clip(final int i, final int n) {
+		return i < 0 ? 0 : (i >= n ? n - 1 : i);
+	}
+	
+	private static float[] getPixels(final SimpleImage img) {
+		if (img instanceof FloatArraySimpleImage)
+			return ((FloatArraySimpleImage)img).getArray();
+		int width = img.getWidth();
+		int height = img.getHeight();
+		float[] pixels = new float[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				pixels[y * width + x] = img.getValue(x, y);
+		}
+		return pixels;
+	}
+	
+	private static void setPixels(final SimpleModifiableImage img, final float[] pixels) {
+		if (img instanceof FloatArraySimpleImage && ((FloatArraySimpleImage)img).getArray() == pixels)
+			return;
+		int width = img.getWidth();
+		int height = img.getHeight();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				img.setValue(x, y, pixels[y * width + x]);
+		}
+	}
+	
+	private static double[] makeGaussianKernel(final double sigma) {
+		int kRadius = Math.max(1, (int)Math.ceil(sigma * 4));
+		double[] kernel = new double[kRadius * 2 + 1];
+		double sum = 0;
+		for (int i = -kRadius; i <= kRadius; i++) {
+			double val = Math.exp(-(i*i)/(2*sigma*sigma));
+			kernel[i + kRadius] = val;
+			sum += val;
+		}
+		for (int i = 0; i < kernel.length; i++)
+			kernel[i] /= sum;
+		return kernel;
+	}
+	
+	private static void convolveSeparable(final float[] pixels, final int width, final int height, final double[] kernel) {
+		int kRadius = kernel.length / 2;
+		double[] buffer = new double[Math.max(width, height)];
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			for (int x = 0; x < width; x++) {
+				double sum = 0;
+				for (int i = -kRadius; i <= kRadius; i++)
+					sum += kernel[i + kRadius] * pixels[offset + clip(x + i, width)];
+				buffer[x] = sum;
+			}
+			for (int x = 0; x < width; x++)
+				pixels[offset + x] = (float)buffer[x];
+		}
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				double sum = 0;
+				for (int i = -kRadius; i <= kRadius; i++)
+					sum += kernel[i + kRadius] * pixels[clip(y + i, height) * width + x];
+				buffer[y] = sum;
+			}
+			for (int y = 0; y < height; y++)
+				pixels[y * width + x] = (float)buffer[y];
+		}
+	}
+	
+	
+	/**
+	 * Third-order recursive approximation of a Gaussian filter, applied forwards and backwards.
+	 * <p>
+	 * The poles are found by scaling the optimized poles for sigma = 2 to give the requested variance, 
+	 * as described in van Vliet, L.J., Young, I.T. &amp; Verbeek, P.W. (1998). 
+	 * Recursive Gaussian derivative filters. Proc. 14th International Conference on Pattern Recognition, 509-514.
+	 * This is more accurate than the original formulation in Young, I.T. &amp; van Vliet, L.J. (1995), 
+	 * Recursive implementation of the Gaussian filter. Signal Processing, 44(2), 139-151.
+	 */
+	static class RecursiveGaussian {
+		
+		// Poles optimized for sigma = 2 (one complex conjugate pair, and one real pole)
+		private static final double POLE_RE = 1.41650, POLE_IM = 1.00829, POLE_REAL = 1.86543;
+		
+		private final double a1, a2, a3, b0;
+		private final int padding;
+		
+		RecursiveGaussian(final double sigma) {
+			// Find the scale factor for the poles that gives the required variance
+			double sigma2 = sigma * sigma;
+			double q = sigma / 2.0;
+			for (int i = 0; i < 50; i++) {
+				double v = variance(q);
+				double dq = q * 1e-6;
+				double derivative = (variance(q + dq) - v) / dq;
+				double qNew = q - (v - sigma2) / derivative;
+				if (!(qNew > 0))
+					qNew = q / 2;
+				if (Math.abs(qNew - q) < 1e-12 * q) {
+					q = qNew;
+					break;
+				}
+				q = qNew;
+			}
+			// Compute the reciprocals of the scaled poles
+			double mag = Math.pow(Math.hypot(POLE_RE, POLE_IM), -1.0/q);
+			double arg = -Math.atan2(POLE_IM, POLE_RE) / q;
+			double re = mag * Math.cos(arg);
+			double r3 = Math.pow(POLE_REAL, -1.0/q);
+			// Expand (1 - r z^-1)(1 - conj(r) z^-1)(1 - r3 z^-1)
+			double c1 = -2 * re;
+			double c2 = mag * mag;
+			a1 = c1 - r3;
+			a2 = c2 - c1 * r3;
+			a3 = -c2 * r3;
+			b0 = 1 + a1 + a2 + a3;
+			// Extend lines by replicating edge values, for long enough that the filter response will 
+			// have decayed before reaching the original data
+			double decay = Math.max(mag, r3);
+			padding = (int)Math.min(Math.ceil(Math.log(1e-7) / Math.log(decay)), Math.ceil(sigma * 10)) + 3;
+		}
+		
+		private static double variance(final double q) {
+			// Sum of 2 d/(d-1)^2 over all poles d, after scaling the poles by the power 1/q
+			double mag = Math.pow(Math.hypot(POLE_RE, POLE_IM), 1.0/q);
+			double arg = Math.atan2(POLE_IM, POLE_RE) / q;
+			double re = mag * Math.cos(arg);
+			double im = mag * Math.sin(arg);
+			// d / (d-1)^2 for the complex pole (the conjugate contributes the same real part)
+			double dr = re - 1;
+			double sqRe = dr * dr - im * im;
+			double sqIm = 2 * dr * im;
+			double denom = sqRe * sqRe + sqIm * sqIm;
+			double complexTerm = (re * sqRe + im * sqIm) / denom;
+			double d3 = Math.pow(POLE_REAL, 1.0/q);
+			double realTerm = d3 / ((d3 - 1) * (d3 - 1));
+			return 2 * (2 * complexTerm + realTerm);
+		}
+		
+		int getPadding() {
+			return padding;
+		}
+		
+		/**
+		 * Filter a line of n values, stored in buffer starting at index pad.
+		 * The buffer must have a length of at least n + 2 * pad.
+		 */
+		void filter(final double[] buffer, final int n, final int pad) {
+			int end = n + pad * 2;
+			double first = buffer[pad];
+			double last = buffer[pad + n - 1];
+			for (int i = 0; i < pad; i++) {
+				buffer[i] = first;
+				buffer[pad + n + i] = last;
+			}
+			// Causal pass, initialized for a constant signal
+			double w1 = first, w2 = first, w3 = first;
+			for (int i = 0; i < end; i++) {
+				double w = b0 * buffer[i] - a1 * w1 - a2 * w2 - a3 * w3;
+				buffer[i] = w;
+				w3 = w2;
+				w2 = w1;
+				w1 = w;
+			}
+			// Anti-causal pass
+			double y1 = buffer[end-1], y2 = y1, y3 = y1;
+			for (int i = end-1; i >= 0; i--) {
+				double y = b0 * buffer[i] - a1 * y1 - a2 * y2 - a3 * y3;
+				buffer[i] = y;
+				y3 = y2;
+				y2 = y1;
+				y1 = y;
+			}
+		}
+		
+	}
+	
+	
+	/**
+	 * Set of unique ranks, which can track its median as ranks are added and removed.
+	 * <p>
+	 * Ranks are stored as bits, with a second level of bits to indicate which words are non-empty, 
+	 * so that finding the next or previous rank in the set requires only a few operations.
+	 * Since each addition or removal can shift the median by at most one position, 
+	 * the cost of updating the median is proportional to the number of changes.
+	 */
+	static class RankSet {
+		
+		private final long[] words;
+		private final long[] summary;
+		
+		private int n = 0;
+		// Current median candidate, and the number of ranks in the set that are lower
+		private int m = 0;
+		private int below = 0;
+		
+		RankSet(final int nRanks) {
+			words = new long[(nRanks + 63) / 64 + 1];
+			summary = new long[(words.length + 63) / 64];
+		}
+		
+		void add(final int rank) {
+			if (rank < 0)
+				return;
+			int w = rank >> 6;
+			words[w] |= 1L << rank;
+			summary[w >> 6] |= 1L << w;
+			n++;
+			if (rank < m)
+				below++;
+		}
+
+		void remove(final int rank) {
+			if (rank < 0)
+				return;
+			int w = rank >> 6;
+			words[w] &= ~(1L << rank);
+			if (words[w] == 0L)
+				summary[w >> 6] &= ~(1L << w);
+			n--;
+			if (rank < m)
+				below--;
+		}
+		
+		/**
+		 * Get the median rank, or -1 if the set is empty.
+		 */
+		int median() {
+			if (n == 0)
+				return -1;
+			int target = n / 2;
+			while (below > target) {
+				m = previousRank(m - 1);
+				below--;
+			}
+			if ((words[m >> 6] & (1L << m)) == 0L)
+				m = nextRank(m);
+			while (below < target) {
+				below++;
+				m = nextRank(m + 1);
+			}
+			return m;
+		}
+		
+		/**
+		 * Get the lowest rank &gt;= i in the set (assumed to exist).
+		 */
+		private int nextRank(final int i) {
+			int w = i >> 6;
+			long word = words[w] & (-1L << i);
+			if (word != 0L)
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			w++;
+			int s = w >> 6;
+			long bits = summary[s] & (-1L << w);
+			while (bits == 0L)
+				bits = summary[++s];
+			w = (s << 6) + Long.numberOfTrailingZeros(bits);
+			return (w << 6) + Long.numberOfTrailingZeros(words[w]);
+		}
+
+		/**
+		 * Get the highest rank &lt;= i in the set (assumed to exist).
+		 */
+		private int previousRank(final int i) {
+			int w = i >> 6;
+			long word = words[w] & (-1L >>> (63 - (i & 63)));
+			if (word != 0L)
+				return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+			w--;
+			int s = w >> 6;
+			long bits = summary[s] & (-1L >>> (63 - (w & 63)));
+			while (bits == 0L)
+				bits = summary[--s];
+			w = (s << 6) + 63 - Long.numberOfLeadingZeros(bits);
+			return (w << 6) + 63 - Long.numberOfLeadingZeros(words[w]);
+		}
+		
+	}
+}
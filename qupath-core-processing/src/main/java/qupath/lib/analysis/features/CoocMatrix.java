@@ -23,6 +23,8 @@
 
 package qupath.lib.analysis.features;
 
+import java.util.Arrays;
+
 /**
  * Data structure for containing co-occurrence matrix for Haralick texture features.
  * 
@@ -31,10 +33,27 @@ package qupath.lib.analysis.features;
  */
 public class CoocMatrix {
 	
+	/**
+	 * Number of bins above which counts are stored sparsely.
+	 * Matrices for high bin counts are usually very sparse (especially for small regions), 
+	 * so this saves allocating & scanning n*n entries.
+	 */
+	static final int SPARSE_THRESHOLD = 64;
+	
 	private int[] mat;
 	private int n;
 	private int sum = 0;
 	private double logSum = 0;
+	
+	// Open addressing hash table used instead of mat for sparse matrices (keys are row*n+col+1, 0 means empty)
+	private int[] keys;
+	private int[] counts;
+	private int nEntries = 0;
+	
+	// Non-zero entries, determined when the matrix is finalized
+	private int[] nzRows, nzCols, nzCounts;
+	private boolean finalized = false;
+	
 	// Compute all the logs we need in one go
 	// TODO: Preallocate this!
 	private static double[] logTable;
@@ -48,8 +67,16 @@ public class CoocMatrix {
 	}
 	
 	public CoocMatrix(int n) {
+		this(n, n > SPARSE_THRESHOLD);
+	}
+	
+	CoocMatrix(int n, boolean sparse) {
 		this.n = n;
-		this.mat = new int[n * n];
+		if (sparse) {
+			keys = new int[64];
+			counts = new int[64];
+		} else
+			this.mat = new int[n * n];
 	}
 	
 	public int getN() {
@@ -62,8 +89,64 @@ public class CoocMatrix {
 	}
 	
 	public void addToEntry(int row, int col) {
-		mat[row * n + col] += 1;
+		if (mat != null)
+			mat[row * n + col] += 1;
+		else
+			addSparse(row * n + col + 1);
 		sum++;
+		finalized = false;
+	}
+	
+	private void addSparse(final int key) {
+		int mask = keys.length - 1;
+		int ind = (key * 0x9E3779B9) >>> 7 & mask;
+		while (true) {
+			int k = keys[ind];
+			if (k == key) {
+				counts[ind]++;
+				return;
+			}
+			if (k == 0) {
+				keys[ind] = key;
+				counts[ind] = 1;
+				nEntries++;
+				if (nEntries * 2 > keys.length)
+					rehash();
+				return;
+			}
+			ind = (ind + 1) & mask;
+		}
+	}
+	
+	private int getSparse(final int key) {
+		int mask = keys.length - 1;
+		int ind = (key * 0x9E3779B9) >>> 7 & mask;
+		while (true) {
+			int k = keys[ind];
+			if (k == key)
+				return counts[ind];
+			if (k == 0)
+				return 0;
+			ind = (ind + 1) & mask;
+		}
+	}
+	
+	private void rehash() {
+		int[] oldKeys = keys;
+		int[] oldCounts = counts;
+		keys = new int[oldKeys.length * 2];
+		counts = new int[oldKeys.length * 2];
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			int key = oldKeys[i];
+			if (key == 0)
+				continue;
+			int ind = (key * 0x9E3779B9) >>> 7 & mask;
+			while (keys[ind] != 0)
+				ind = (ind + 1) & mask;
+			keys[ind] = key;
+			counts[ind] = oldCounts[i];
+		}
 	}
 	
 	/**
@@ -71,16 +154,78 @@ public class CoocMatrix {
 	 */
 	public void finalizeMatrix() {
 		logSum = Math.log(sum);
-//J		int max = 0;
-//J		for (int v : mat)
-//J			if (v > max)
-//J				max = v; //J this is not really leading anywhere!
-//		System.out.println("Logs with max " + max);
-//		logTable = new double[max+1];
-//		logTable[0] = Math.log(0.000001);
-//		for (int i = 1; i < logTable.length; i++) {
-//			logTable[i] = Math.log(i);
-//		}
+		if (finalized)
+			return;
+		// Store the non-zero entries (in row-major order), so that features need not scan the full matrix
+		int nnz = 0;
+		if (mat != null) {
+			for (int v : mat) {
+				if (v != 0)
+					nnz++;
+			}
+		} else
+			nnz = nEntries;
+		nzRows = new int[nnz];
+		nzCols = new int[nnz];
+		nzCounts = new int[nnz];
+		int ind = 0;
+		if (mat != null) {
+			for (int i = 0; i < mat.length; i++) {
+				if (mat[i] != 0) {
+					nzRows[ind] = i / n;
+					nzCols[ind] = i % n;
+					nzCounts[ind] = mat[i];
+					ind++;
+				}
+			}
+		} else {
+			int[] sortedKeys = new int[nnz];
+			for (int key : keys) {
+				if (key != 0)
+					sortedKeys[ind++] = key;
+			}
+			Arrays.sort(sortedKeys);
+			for (int i = 0; i < nnz; i++) {
+				int key = sortedKeys[i];
+				nzRows[i] = (key - 1) / n;
+				nzCols[i] = (key - 1) % n;
+				nzCounts[i] = getSparse(key);
+			}
+		}
+		finalized = true;
+	}
+	
+	/**
+	 * Number of non-zero entries, available after calling {@link #finalizeMatrix()}.
+	 */
+	int nNonZero() {
+		return nzCounts.length;
+	}
+	
+	int getNonZeroRow(int ind) {
+		return nzRows[ind];
+	}
+	
+	int getNonZeroCol(int ind) {
+		return nzCols[ind];
+	}
+	
+	int getNonZeroCount(int ind) {
+		return nzCounts[ind];
+	}
+	
+	int getSum() {
+		return sum;
+	}
+	
+	/**
+	 * Return log of a raw count, normalized by the sum (i.e. the log of the probability).
+	 */
+	double getLogForCount(int count) {
+		if (count < logTable.length)
+			return logTable[count] - logSum;
+		else
+			return Math.log(count) - logSum;
 	}
 
 	/**
@@ -91,11 +236,13 @@ public class CoocMatrix {
 	 * @return
 	 */
 	public double get(int row, int col) {
-		return (double)mat[row * n + col] / sum;
+		return (double)getRawCounts(row, col) / sum;
 	}
 	
 	public int getRawCounts(int row, int col) {
-		return mat[row * n + col];
+		if (mat != null)
+			return mat[row * n + col];
+		return getSparse(row * n + col + 1);
 	}
 
 	/**
@@ -106,11 +253,7 @@ public class CoocMatrix {
 	 * @return
 	 */
 	public double getLog(int row, int col) {
-		int ind = mat[row * n + col];
-		if (ind < logTable.length)
-			return logTable[ind] - logSum;
-		else
-			return Math.log(ind) - logSum;
+		return getLogForCount(getRawCounts(row, col));
 	}
 
 	public double getMean() {
@@ -64,6 +64,24 @@ public class CoocurranceMatrices {
 			mat135.addToEntrySymmetric(i, j);
 	}
 	
+	/**
+	 * Get the matrix for a specified direction, using the same angles as the put methods (0, 45, 90 or 135).
+	 */
+	CoocMatrix getMatrix(final int angle) {
+		switch (angle) {
+		case 0:
+			return mat0;
+		case 45:
+			return mat45;
+		case 90:
+			return mat90;
+		case 135:
+			return mat135;
+		default:
+			throw new IllegalArgumentException("Unsupported angle " + angle);
+		}
+	}
+	
 	public void computeFeatures() {
 		features = new HaralickFeatures[4];
 		features[0] = new HaralickFeatures(mat0);
@@ -86,6 +86,39 @@ public class HaralickFeatureComputer {
 		// Create matrices if necessary
 		if (matrices == null)
 			matrices = new CoocurranceMatrices(nBins);
+		updateCooccurrenceMatrices(new CoocurranceMatrices[]{matrices}, ip, bpMask, xx, yy, ww, hh, nBins, minValue, maxValue, new int[]{d});
+		return matrices;
+	}
+	
+	/**
+	 * Update cooccurrence matrices for several distances at once.
+	 * <p>
+	 * This is more efficient than updating each separately, because the image is only quantized once - 
+	 * and all directions and distances are then accumulated in a single pass.
+	 * 
+	 * @param matrices array of matrices, one per distance; any null entries will be created
+	 * @param ip
+	 * @param bpMask
+	 * @param xx
+	 * @param yy
+	 * @param ww
+	 * @param hh
+	 * @param nBins
+	 * @param minValue
+	 * @param maxValue
+	 * @param distances
+	 * @return the matrices, with the same length as distances
+	 */
+	public static CoocurranceMatrices[] updateCooccurrenceMatrices(CoocurranceMatrices[] matrices, final SimpleImage ip, final SimpleImage bpMask, final int xx, final int yy, final int ww, final int hh, final int nBins, double minValue, double maxValue, final int[] distances) {
+		int nDistances = distances.length;
+		if (matrices == null)
+			matrices = new CoocurranceMatrices[nDistances];
+		int dMax = 0;
+		for (int k = 0; k < nDistances; k++) {
+			if (matrices[k] == null)
+				matrices[k] = new CoocurranceMatrices(nBins);
+			dMax = Math.max(dMax, distances[k]);
+		}
 		
 		// Dimensions
 		int width = ip.getWidth();
@@ -93,38 +126,88 @@ public class HaralickFeatureComputer {
 		
 		double binDepth = (maxValue - minValue) / nBins;
 		
-		// Loop through pixels
+		// Quantize once, including any neighbors outside the bounding box - 
+		// with -1 used to indicate pixels that should be skipped (NaN or outside the mask)
+		int x0 = Math.max(0, xx - dMax);
+		int x1 = Math.min(width, xx + ww + dMax);
+		int y0 = Math.max(0, yy);
+		int y1 = Math.min(height, yy + hh + dMax);
+		int qw = x1 - x0;
+		if (qw <= 0 || y1 <= y0)
+			return matrices;
+		short[] bins = new short[qw * (y1 - y0)];
 		boolean noMask = bpMask == null;
+		for (int y = y0; y < y1; y++) {
+			int ind = (y - y0) * qw;
+			for (int x = x0; x < x1; x++) {
+				if (!noMask && bpMask.getValue(x, y) == 0)
+					bins[ind++] = -1;
+				else
+					bins[ind++] = (short)getBinValue(ip, x, y, minValue, binDepth, nBins);
+			}
+		}
+		
+		// Loop through pixels
 		for (int y = yy; y < yy + hh; y++) {
+			int row = (y - y0) * qw - x0;
 			for (int x = xx; x < xx + ww; x++) {
-				if (!noMask && bpMask.getValue(x, y) == 0)
-					continue;
 				// Extract binned pixel value
-				int binValue = getBinValue(ip, x, y, minValue, binDepth, nBins);
+				int binValue = bins[row + x];
 				if (binValue < 0) 
 					continue;
-				// Test neighbors
-				if (x < width-d && (noMask || bpMask.getValue(x+d, y) != 0))
-					matrices.put0(binValue, getBinValue(ip, x+d, y, minValue, binDepth, nBins));
-
-				if (y < height-d && (noMask || bpMask.getValue(x, y+d) != 0))
-					matrices.put90(binValue, getBinValue(ip, x, y+d, minValue, binDepth, nBins));
-
-				// Note (Pete): The angles here may differ from the original paper
-				// Switching the order may help, but note that put45 and put135 are also called in another method (below)
-				// so this change has been reverted for consistency... we may want to consider modifying this (or just renaming the methods) at some point
-				// Here, it is assumed that the zero angle is -> (horizontal, left to right), and rotations are clockwise
-				if (x < width-d && y < height-d && (noMask || bpMask.getValue(x+d, y+d) != 0))
-					matrices.put45(binValue, getBinValue(ip, x+d, y+d, minValue, binDepth, nBins)); //J check with Haralick paper
-
-				if (x >= d && y < height-d && (noMask || bpMask.getValue(x-d, y+d) != 0))
-					matrices.put135(binValue, getBinValue(ip, x-d, y+d, minValue, binDepth, nBins)); 
+				for (int k = 0; k < nDistances; k++) {
+					int d = distances[k];
+					CoocurranceMatrices mat = matrices[k];
+					// Test neighbors
+					if (x < width-d)
+						mat.put0(binValue, bins[row + x + d]);
+	
+					if (y < height-d)
+						mat.put90(binValue, bins[row + qw*d + x]);
+	
+					// Note (Pete): The angles here may differ from the original paper
+					// Switching the order may help, but note that put45 and put135 are also called in another method (below)
+					// so this change has been reverted for consistency... we may want to consider modifying this (or just renaming the methods) at some point
+					// Here, it is assumed that the zero angle is -> (horizontal, left to right), and rotations are clockwise
+					if (x < width-d && y < height-d)
+						mat.put45(binValue, bins[row + qw*d + x + d]); //J check with Haralick paper
+	
+					if (x >= d && y < height-d)
+						mat.put135(binValue, bins[row + qw*d + x - d]);
+				}
 			}			
 		}
 		return matrices;
 	}
 	
 	
+	/**
+	 * Compute Haralick features for several distances at once.
+	 * 
+	 * @param ip
+	 * @param bpMask
+	 * @param nBins
+	 * @param minValue
+	 * @param maxValue
+	 * @param distances
+	 * @return a list of features, in the same order as the distances
+	 * 
+	 * @see #updateCooccurrenceMatrices(CoocurranceMatrices[], SimpleImage, SimpleImage, int, int, int, int, int, double, double, int[])
+	 */
+	public static List<HaralickFeatures> measureHaralick(final SimpleImage ip, final SimpleImage bpMask, final int nBins, double minValue, double maxValue, final int[] distances) {
+		if (Double.isNaN(minValue) || Double.isNaN(maxValue)) {
+			RunningStatistics stats = getStatistics(ip);
+			minValue = stats.getMin();
+			maxValue = stats.getMax();
+		}
+		CoocurranceMatrices[] matrices = updateCooccurrenceMatrices(null, ip, bpMask, 0, 0, ip.getWidth(), ip.getHeight(), nBins, minValue, maxValue, distances);
+		List<HaralickFeatures> features = new ArrayList<>(matrices.length);
+		for (CoocurranceMatrices mat : matrices)
+			features.add(mat.getMeanFeatures());
+		return features;
+	}
+	
+	
 	
 	
 	
@@ -171,6 +254,13 @@ public class HaralickFeatureComputer {
 		int width = ip.getWidth();
 		int height = ip.getHeight();
 		
+		// Quantize once (with -1 indicating NaN)
+		short[] bins = new short[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				bins[y * width + x] = (short)getBinValue(ip, x, y, minValue, binDepth, nBins);
+		}
+		
 		// Loop through pixels
 		float lastLabel = Float.NEGATIVE_INFINITY;
 		CoocurranceMatrices lastMatrix = null;
@@ -181,7 +271,8 @@ public class HaralickFeatureComputer {
 				if (label <= 0 || label > nLabels)
 					continue;
 				// Extract binned pixel value
-				int binValue = getBinValue(ip, x, y, minValue, binDepth, nBins);
+				int ind = y * width + x;
+				int binValue = bins[ind];
 				// Get the matrix, if needed
 				if (lastLabel != label) {
 					lastMatrix = matricies.get((int)label - 1);
@@ -189,16 +280,16 @@ public class HaralickFeatureComputer {
 				}
 				// Test neighbors
 				if (x < width-d && label == ipLabels.getValue(x+d, y))
-					lastMatrix.put0(binValue, getBinValue(ip, x+d, y, minValue, binDepth, nBins));
+					lastMatrix.put0(binValue, bins[ind + d]);
 				
 				if (y < height-d && label == ipLabels.getValue(x, y+d))
-					lastMatrix.put90(binValue, getBinValue(ip, x, y+d, minValue, binDepth, nBins));
+					lastMatrix.put90(binValue, bins[ind + width*d]);
 				
 				if (x < width-d && y < height-d && label == ipLabels.getValue(x+d, y+d))
-					lastMatrix.put45(binValue, getBinValue(ip, x+d, y+d, minValue, binDepth, nBins));
+					lastMatrix.put45(binValue, bins[ind + width*d + d]);
 				
 				if (x >= d && y < height-d && label == ipLabels.getValue(x-d, y+d))
-					lastMatrix.put135(binValue, getBinValue(ip, x-d, y+d, minValue, binDepth, nBins));
+					lastMatrix.put135(binValue, bins[ind + width*d - d]);
 			}			
 		}
 		
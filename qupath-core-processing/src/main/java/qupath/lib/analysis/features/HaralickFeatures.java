@@ -23,6 +23,8 @@
 
 package qupath.lib.analysis.features;
 
+import java.util.Arrays;
+
 import qupath.lib.analysis.stats.RunningStatistics;
 
 /**
@@ -92,6 +94,27 @@ public class HaralickFeatures {
 		matrix.finalizeMatrix();
 		int n = matrix.getN();
 		
+		// Without any entries, all probabilities are undefined
+		if (matrix.getSum() == 0) {
+			Arrays.fill(f, Double.NaN);
+			return;
+		}
+		
+		// Only non-zero entries contribute to most sums, so extract these once & reuse them
+		int nnz = matrix.nNonZero();
+		double sum = matrix.getSum();
+		int[] rows = new int[nnz];
+		int[] cols = new int[nnz];
+		double[] vals = new double[nnz];
+		double[] logVals = new double[nnz];
+		for (int k = 0; k < nnz; k++) {
+			rows[k] = matrix.getNonZeroRow(k);
+			cols[k] = matrix.getNonZeroCol(k);
+			int count = matrix.getNonZeroCount(k);
+			vals[k] = count / sum;
+			logVals[k] = matrix.getLogForCount(count) / LOG2;
+		}
+		
 		// Normalize to sum while computing required vectors
 		px = new double[n];
 		py = new double[n];
@@ -99,28 +122,28 @@ public class HaralickFeatures {
 		px_y = new double[n];
 		double mx = 0; 
 		double my = 0;  
-		for (int i = 0; i < n; i++) {
-			for (int j = 0; j < n; j++) {
-				double val = matrix.get(i, j);
-				px[i] += val;
-				py[j] += val;
-				px_and_y[i + j] += val;
-				px_y[Math.abs(i - j)] += val;
-				
-				mx += (i + 1) * val; 
-				my += (j + 1) * val;
-			}
+		for (int k = 0; k < nnz; k++) {
+			int i = rows[k];
+			int j = cols[k];
+			double val = vals[k];
+			px[i] += val;
+			py[j] += val;
+			px_and_y[i + j] += val;
+			px_y[Math.abs(i - j)] += val;
+			
+			mx += (i + 1) * val; 
+			my += (j + 1) * val;
 		}
 		
 		// Standard deviations for marginal-probability matrices
 		double sx = 0;
 		double sy = 0;
-		for (int i = 1; i <= n; i++) {
-			for (int j = 1; j <= n; j++) {
-				double val = matrix.get(i-1, j-1);
-				sx += (i - mx) * (i - mx) * val;
-				sy += (j - my) * (j - my) * val;
-			}
+		for (int k = 0; k < nnz; k++) {
+			int i = rows[k] + 1;
+			int j = cols[k] + 1;
+			double val = vals[k];
+			sx += (i - mx) * (i - mx) * val;
+			sy += (j - my) * (j - my) * val;
 		}
 		sx = Math.sqrt(sx);
 		sy = Math.sqrt(sy);
@@ -137,27 +160,21 @@ public class HaralickFeatures {
 		double f9 = 0;
 				
 		double Hxy1 = 0; // Hxy1 & Hxy2 for (more) entropies
-		double Hxy2 = 0;
-		for (int i = 1; i <= n; i++) {
-			for (int j = 1; j <= n; j++) {
-				double val = matrix.get(i-1, j-1);
-				double logVal = matrix.getLog(i-1, j-1) / LOG2;
-				f1 += val * val;
-				
-				f3 += i*j * val;
-				
-				f5 += val / (1 + (i - j)*(i - j));
-				
-				f9 -= val * logVal;
-				
-				double temp = px[i-1] * py[j-1];
-				if (temp != 0) {
-					double logTemp = Math.log(temp) / LOG2;
-					Hxy1 -= val * logTemp;
-					Hxy2 -= temp * logTemp;
-				}
-				
-			}
+		for (int k = 0; k < nnz; k++) {
+			int i = rows[k] + 1;
+			int j = cols[k] + 1;
+			double val = vals[k];
+			f1 += val * val;
+			
+			f3 += i*j * val;
+			
+			f5 += val / (1 + (i - j)*(i - j));
+			
+			f9 -= val * logVals[k];
+			
+			// Product of marginals must be non-zero if val is non-zero
+			double temp = px[i-1] * py[j-1];
+			Hxy1 -= val * Math.log(temp) / LOG2;
 		}
 		double Hxy = f9;
 		f3 -= mx*my;
@@ -211,14 +228,20 @@ public class HaralickFeatures {
 
 		double Hx = 0; // Hx & Hy for entropies
 		double Hy = 0;
+		double sumX = 0;
+		double sumY = 0;
 		for (int i = 0; i < n; i++) {
 			double val = px[i];
+			sumX += val;
 			if (val != 0)
 				Hx -= val * Math.log(val)/LOG2;
 			val = py[i];
+			sumY += val;
 			if (val != 0)
 				Hy -= val * Math.log(val)/LOG2;
 		}
+		// Hxy2 = -sum(px[i]*py[j]*log(px[i]*py[j])), which separates into terms involving only the marginal entropies
+		double Hxy2 = Hx * sumY + Hy * sumX;
 //		IJ.log(String.format("%.3f, %.3f, %.3f, %.3f, %.3f, ", Hx, Hy, Hxy, Hxy1, Hxy2));
 		// Information measures of correlation
 		double f12 = (Hxy - Hxy1) / Math.max(Hx, Hy);
@@ -0,0 +1,495 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectCodec;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Helper class to write and read the objects of a hierarchy as independently-encoded chunks, 
+ * so that encoding and decoding can make use of all available processors.
+ * <p>
+ * Objects with few descendants are stored inside a chunk along with all their descendants.
+ * Objects with many descendants (including the root object) are instead stored in a 'skeleton', 
+ * and their children are grouped spatially into chunks - so that each chunk covers a reasonably compact region.
+ * The original order of all child objects is preserved.
+ * <p>
+ * Detections (along with their descendants) are never placed in the same chunk as other objects.
+ * This means that chunks containing only detections can be skipped when reading, and loaded later on demand 
+ * using the bounding box stored in the chunk header.
+ */
+class ChunkedHierarchyIO {
+	
+	final private static Logger logger = LoggerFactory.getLogger(ChunkedHierarchyIO.class);
+	
+	/**
+	 * Preferred maximum number of objects within a single chunk.
+	 */
+	static int CHUNK_OBJECTS = 10000;
+	
+	/**
+	 * Number of chunks to encode or decode at a time, per processor.
+	 * This limits the memory required, since all the chunks in a batch are held in memory simultaneously.
+	 */
+	static final int CHUNKS_PER_THREAD = 4;
+	
+	private ChunkedHierarchyIO() {}
+	
+	
+	/**
+	 * Write a root object, and all its descendants.
+	 * 
+	 * @param out
+	 * @param rootObject
+	 * @param compress
+	 * @throws IOException
+	 */
+	static void writeObjects(final DataOutputStream out, final PathObject rootObject, final boolean compress) throws IOException {
+		long startTime = System.currentTimeMillis();
+		
+		Partition partition = new Partition();
+		partition.addSkeletonObject(rootObject, -1, 0);
+		
+		// Write the skeleton, along with the information needed to restore the structure
+		int nSkeleton = partition.skeleton.size();
+		out.writeInt(nSkeleton);
+		out.write(PathObjectCodec.encodeChunk(partition.skeleton, false, compress));
+		for (int[] info : partition.skeletonInfo) {
+			for (int v : info)
+				out.writeInt(v);
+		}
+		
+		// Encode the chunks in parallel, in batches
+		List<Chunk> chunks = partition.chunks;
+		out.writeInt(chunks.size());
+		int batchSize = Runtime.getRuntime().availableProcessors() * CHUNKS_PER_THREAD;
+		for (int i = 0; i < chunks.size(); i += batchSize) {
+			List<Chunk> batch = chunks.subList(i, Math.min(chunks.size(), i + batchSize));
+			List<byte[]> encoded;
+			try {
+				encoded = batch.parallelStream().map(c -> {
+					try {
+						return PathObjectCodec.encodeChunk(c.pathObjects, compress);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}).collect(Collectors.toList());
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			for (int k = 0; k < batch.size(); k++) {
+				batch.get(k).writeHeader(out);
+				out.write(encoded.get(k));
+			}
+		}
+		
+		long endTime = System.currentTimeMillis();
+		logger.debug("Encoded {} chunk(s) in {} ms", chunks.size(), endTime - startTime);
+	}
+	
+	
+	/**
+	 * Read a root object, and all its descendants.
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static PathObject readObjects(final DataInputStream in) throws IOException {
+		return readObjects(in, null, null);
+	}
+	
+	/**
+	 * Read a root object, and either all its descendants or only those that can't be loaded on demand.
+	 * <p>
+	 * If a loader is provided, chunks containing only detections are passed to the loader rather than decoded.
+	 * In this case, the child lists of the objects are incomplete - and so indices into the child list of the root object 
+	 * may need to be updated.
+	 * 
+	 * @param in
+	 * @param loader optional loader to which chunks that can be loaded on demand should be passed; if null, all objects are read
+	 * @param rootIndices optional indices into the child list of the root object, updated in-place if a loader is used (-1 if the child was deferred)
+	 * @return
+	 * @throws IOException
+	 */
+	static PathObject readObjects(final DataInputStream in, final LazyObjectLoader loader, final int[] rootIndices) throws IOException {
+		long startTime = System.currentTimeMillis();
+		
+		int nSkeleton = in.readInt();
+		List<PathObject> skeleton = PathObjectCodec.readChunk(in);
+		if (skeleton.size() != nSkeleton || nSkeleton == 0)
+			throw new IOException("Expected " + nSkeleton + " skeleton object(s), but found " + skeleton.size());
+		PathObject[][] children = new PathObject[nSkeleton][];
+		for (int i = 0; i < nSkeleton; i++) {
+			int parent = in.readInt();
+			int position = in.readInt();
+			int nChildren = in.readInt();
+			children[i] = new PathObject[nChildren];
+			if (parent >= 0)
+				setChild(children, parent, position, skeleton.get(i));
+		}
+		
+		// Read chunks sequentially, but decode in parallel, in batches
+		int nChunks = in.readInt();
+		int batchSize = Runtime.getRuntime().availableProcessors() * CHUNKS_PER_THREAD;
+		boolean[][] deferred = new boolean[nSkeleton][];
+		int nDeferred = 0;
+		List<Chunk> batch = new ArrayList<>();
+		List<byte[]> bytes = new ArrayList<>();
+		int i = 0;
+		while (i < nChunks) {
+			batch.clear();
+			bytes.clear();
+			while (i < nChunks && batch.size() < batchSize) {
+				Chunk chunk = Chunk.readHeader(in);
+				i++;
+				if (loader != null && chunk.deferrable) {
+					if (chunk.anchor < 0 || chunk.anchor >= nSkeleton)
+						throw new IOException("Invalid parent " + chunk.anchor + " for chunk");
+					loader.deferChunk(in, skeleton.get(chunk.anchor), chunk.positions.length, chunk.minX, chunk.minY, chunk.maxX, chunk.maxY, chunk.z, chunk.t);
+					if (deferred[chunk.anchor] == null)
+						deferred[chunk.anchor] = new boolean[children[chunk.anchor].length];
+					for (int position : chunk.positions) {
+						if (position < 0 || position >= deferred[chunk.anchor].length)
+							throw new IOException("Invalid child position " + position + " for object " + chunk.anchor);
+						deferred[chunk.anchor][position] = true;
+					}
+					nDeferred++;
+					continue;
+				}
+				batch.add(chunk);
+				bytes.add(PathObjectCodec.readChunkBytes(in));
+			}
+			List<List<PathObject>> decoded;
+			try {
+				decoded = bytes.parallelStream().map(b -> {
+					try {
+						return PathObjectCodec.decodeChunk(b);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}).collect(Collectors.toList());
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			for (int k = 0; k < batch.size(); k++) {
+				Chunk chunk = batch.get(k);
+				List<PathObject> pathObjects = decoded.get(k);
+				if (pathObjects.size() != chunk.positions.length)
+					throw new IOException("Expected " + chunk.positions.length + " object(s) in chunk, but found " + pathObjects.size());
+				for (int j = 0; j < chunk.positions.length; j++)
+					setChild(children, chunk.anchor, chunk.positions[j], pathObjects.get(j));
+			}
+		}
+		
+		// Update the root indices to skip any deferred children
+		if (rootIndices != null && deferred[0] != null) {
+			int[] shifted = new int[deferred[0].length];
+			int count = 0;
+			for (int k = 0; k < shifted.length; k++)
+				shifted[k] = deferred[0][k] ? -1 : count++;
+			for (int k = 0; k < rootIndices.length; k++) {
+				if (rootIndices[k] >= 0 && rootIndices[k] < shifted.length)
+					rootIndices[k] = shifted[rootIndices[k]];
+			}
+		}
+		
+		// Assemble the hierarchy
+		for (int k = 0; k < nSkeleton; k++) {
+			if (children[k].length == 0)
+				continue;
+			List<PathObject> list = new ArrayList<>(children[k].length);
+			for (int j = 0; j < children[k].length; j++) {
+				if (children[k][j] != null)
+					list.add(children[k][j]);
+				else if (deferred[k] == null || !deferred[k][j])
+					throw new IOException("Object hierarchy is incomplete - child objects are missing");
+			}
+			PathObjectCodec.appendDecodedChildren(skeleton.get(k), list);
+		}
+		
+		long endTime = System.currentTimeMillis();
+		logger.debug("Decoded {} chunk(s) in {} ms ({} deferred)", nChunks - nDeferred, endTime - startTime, nDeferred);
+		return skeleton.get(0);
+	}
+	
+	
+	private static void setChild(final PathObject[][] children, final int parent, final int position, final PathObject child) throws IOException {
+		if (parent < 0 || parent >= children.length || position < 0 || position >= children[parent].length)
+			throw new IOException("Invalid child position " + position + " for object " + parent);
+		children[parent][position] = child;
+	}
+	
+	
+	/**
+	 * Count the objects within a subtree, stopping early if the count exceeds a specified limit.
+	 */
+	private static int countObjects(final PathObject pathObject, final int limit) {
+		int n = 1;
+		if (pathObject.hasChildren()) {
+			for (PathObject child : pathObject.getChildObjects()) {
+				n += countObjects(child, limit - n);
+				if (n > limit)
+					break;
+			}
+		}
+		return n;
+	}
+	
+	
+	/**
+	 * Check if an object and all its descendants are detections.
+	 */
+	private static boolean containsOnlyDetections(final PathObject pathObject) {
+		if (!pathObject.isDetection())
+			return false;
+		if (pathObject.hasChildren()) {
+			for (PathObject child : pathObject.getChildObjects()) {
+				if (!containsOnlyDetections(child))
+					return false;
+			}
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Split the objects in a hierarchy into a skeleton &amp; chunks.
+	 */
+	private static class Partition {
+		
+		private List<PathObject> skeleton = new ArrayList<>();
+		private List<int[]> skeletonInfo = new ArrayList<>();
+		private List<Chunk> chunks = new ArrayList<>();
+		
+		private void addSkeletonObject(final PathObject pathObject, final int parent, final int position) {
+			int anchor = skeleton.size();
+			List<PathObject> children = new ArrayList<>(pathObject.getChildObjects());
+			skeleton.add(pathObject);
+			skeletonInfo.add(new int[]{parent, position, children.size()});
+			
+			// Objects with many descendants are added to the skeleton; the rest are grouped into chunks
+			// Detections are kept separate, so that they can be loaded on demand
+			int[] positions = new int[children.size()];
+			int[] sizes = new int[children.size()];
+			int[] positionsDeferrable = new int[children.size()];
+			int[] sizesDeferrable = new int[children.size()];
+			int n = 0, nDeferrable = 0;
+			for (int i = 0; i < children.size(); i++) {
+				PathObject child = children.get(i);
+				int size = countObjects(child, CHUNK_OBJECTS);
+				if (size > CHUNK_OBJECTS && PathObjectCodec.encodesChildrenSeparately(child))
+					addSkeletonObject(child, anchor, i);
+				else if (containsOnlyDetections(child)) {
+					positionsDeferrable[nDeferrable] = i;
+					sizesDeferrable[nDeferrable] = size;
+					nDeferrable++;
+				} else {
+					positions[n] = i;
+					sizes[n] = size;
+					n++;
+				}
+			}
+			addChunks(anchor, children, Arrays.copyOf(positions, n), Arrays.copyOf(sizes, n), false);
+			addChunks(anchor, children, Arrays.copyOf(positionsDeferrable, nDeferrable), Arrays.copyOf(sizesDeferrable, nDeferrable), true);
+		}
+		
+		/**
+		 * Group children into chunks by dividing the region they occupy into a grid, 
+		 * where each grid cell is expected to contain about one chunk's worth of objects.
+		 */
+		private void addChunks(final int anchor, final List<PathObject> children, final int[] positions, final int[] sizes, final boolean deferrable) {
+			int n = positions.length;
+			if (n == 0)
+				return;
+			long total = 0;
+			for (int size : sizes)
+				total += size;
+			int side = (int)Math.ceil(Math.sqrt(Math.ceil((double)total / CHUNK_OBJECTS)));
+			
+			// Determine the extent of the object centroids, and the distinct image planes
+			double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+			Map<Long, Integer> planes = new HashMap<>();
+			for (int i = 0; i < n; i++) {
+				ROI roi = children.get(positions[i]).getROI();
+				if (roi == null)
+					continue;
+				minX = Math.min(minX, roi.getCentroidX());
+				minY = Math.min(minY, roi.getCentroidY());
+				maxX = Math.max(maxX, roi.getCentroidX());
+				maxY = Math.max(maxY, roi.getCentroidY());
+				planes.putIfAbsent(getPlaneKey(roi), planes.size());
+			}
+			double cellWidth = Math.max((maxX - minX) / side, 1e-6);
+			double cellHeight = Math.max((maxY - minY) / side, 1e-6);
+			
+			// Sort by grid cell, and then by position within the child list
+			long[] keys = new long[n];
+			for (int i = 0; i < n; i++) {
+				ROI roi = children.get(positions[i]).getROI();
+				long cell = 0;
+				if (roi != null) {
+					int col = Math.min(side - 1, (int)((roi.getCentroidX() - minX) / cellWidth));
+					int row = Math.min(side - 1, (int)((roi.getCentroidY() - minY) / cellHeight));
+					cell = 1 + ((long)planes.get(getPlaneKey(roi)) * side + row) * side + col;
+				}
+				keys[i] = (cell << 32) | i;
+			}
+			Arrays.sort(keys);
+			
+			// Create the chunks, starting a new chunk for each grid cell (or if the current chunk is full)
+			List<Integer> current = new ArrayList<>();
+			int currentSize = 0;
+			long currentCell = -1;
+			for (long key : keys) {
+				int i = (int)(key & 0xFFFFFFFFL);
+				long cell = key >>> 32;
+				if (!current.isEmpty() && (cell != currentCell || currentSize + sizes[i] > CHUNK_OBJECTS)) {
+					chunks.add(new Chunk(anchor, children, current, deferrable));
+					current.clear();
+					currentSize = 0;
+				}
+				current.add(positions[i]);
+				currentSize += sizes[i];
+				currentCell = cell;
+			}
+			if (!current.isEmpty())
+				chunks.add(new Chunk(anchor, children, current, deferrable));
+		}
+		
+		private static long getPlaneKey(final ROI roi) {
+			return ((long)roi.getT() << 32) | (roi.getZ() & 0xFFFFFFFFL);
+		}
+		
+	}
+	
+	
+	/**
+	 * A group of sibling objects that are encoded together.
+	 * <p>
+	 * The header stores the skeleton index of their parent, their positions within the parent's child list, 
+	 * the bounding box of their ROIs and whether they may be loaded on demand.
+	 */
+	private static class Chunk {
+		
+		private final int anchor;
+		private final int[] positions;
+		private final List<PathObject> pathObjects;
+		private boolean deferrable;
+		
+		private double minX = Double.NaN, minY = Double.NaN, maxX = Double.NaN, maxY = Double.NaN;
+		private int z = -1, t = -1;
+		
+		private Chunk(final int anchor, final int[] positions) {
+			this.anchor = anchor;
+			this.positions = positions;
+			this.pathObjects = null;
+		}
+		
+		Chunk(final int anchor, final List<PathObject> children, final List<Integer> positions, final boolean deferrable) {
+			this.anchor = anchor;
+			this.deferrable = deferrable;
+			this.positions = new int[positions.size()];
+			this.pathObjects = new ArrayList<>(positions.size());
+			boolean firstROI = true;
+			for (int i = 0; i < positions.size(); i++) {
+				int position = positions.get(i);
+				PathObject pathObject = children.get(position);
+				this.positions[i] = position;
+				this.pathObjects.add(pathObject);
+				ROI roi = pathObject.getROI();
+				if (roi == null)
+					continue;
+				if (firstROI) {
+					minX = roi.getBoundsX();
+					minY = roi.getBoundsY();
+					maxX = minX + roi.getBoundsWidth();
+					maxY = minY + roi.getBoundsHeight();
+					z = roi.getZ();
+					t = roi.getT();
+					firstROI = false;
+				} else {
+					minX = Math.min(minX, roi.getBoundsX());
+					minY = Math.min(minY, roi.getBoundsY());
+					maxX = Math.max(maxX, roi.getBoundsX() + roi.getBoundsWidth());
+					maxY = Math.max(maxY, roi.getBoundsY() + roi.getBoundsHeight());
+					// Use -1 to indicate that objects are on different planes
+					if (z != roi.getZ())
+						z = -1;
+					if (t != roi.getT())
+						t = -1;
+				}
+			}
+		}
+		
+		void writeHeader(final DataOutputStream out) throws IOException {
+			out.writeInt(anchor);
+			out.writeInt(positions.length);
+			for (int position : positions)
+				out.writeInt(position);
+			out.writeDouble(minX);
+			out.writeDouble(minY);
+			out.writeDouble(maxX);
+			out.writeDouble(maxY);
+			out.writeInt(z);
+			out.writeInt(t);
+			out.writeBoolean(deferrable);
+		}
+		
+		static Chunk readHeader(final DataInputStream in) throws IOException {
+			int anchor = in.readInt();
+			int[] positions = new int[in.readInt()];
+			for (int i = 0; i < positions.length; i++)
+				positions[i] = in.readInt();
+			Chunk chunk = new Chunk(anchor, positions);
+			chunk.minX = in.readDouble();
+			chunk.minY = in.readDouble();
+			chunk.maxX = in.readDouble();
+			chunk.maxY = in.readDouble();
+			chunk.z = in.readInt();
+			chunk.t = in.readInt();
+			chunk.deferrable = in.readBoolean();
+			return chunk;
+		}
+		
+	}
+
+}
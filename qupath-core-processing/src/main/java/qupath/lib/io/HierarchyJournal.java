@@ -0,0 +1,663 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.SimpleThreadFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectCodec;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.PathObjectLoader;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+
+/**
+ * Append-only journal recording changes to an object hierarchy since its data file was last written.
+ * <p>
+ * The journal is stored in a sidecar file alongside the data file (see {@link #getJournalFile(File)}).
+ * It listens for hierarchy events, and each call to {@link #flush()} appends a single record describing everything that 
+ * has changed since the previous flush - so that saving costs time in proportion to the changes, rather than to the size of the hierarchy.
+ * Periodically (or whenever a change affects the entire hierarchy) the journal is compacted by rewriting the data file, 
+ * after which the journal starts again.
+ * <p>
+ * Records contain snapshots of the parts of the hierarchy that changed:
+ * <ul>
+ * <li>whenever objects are added or removed, the complete list of descendants of the (deepest) object whose child list changed</li>
+ * <li>whenever objects are changed in other ways (e.g. reclassified, new measurements), the properties of the objects themselves</li>
+ * </ul>
+ * Objects are located by their positions within the child lists of their ancestors.
+ * Each record is protected by a checksum; when a data file is read by {@link PathIO}, all complete records are replayed 
+ * so that changes can be recovered after a crash.  An incomplete final record (e.g. because writing was interrupted) is ignored.
+ * <p>
+ * The journal only covers the object hierarchy; other properties of the ImageData are only stored when the data file is written.
+ */
+public class HierarchyJournal implements PathObjectHierarchyListener, Closeable {
+	
+	final private static Logger logger = LoggerFactory.getLogger(HierarchyJournal.class);
+	
+	// 'Magic number' used to identify journal files ("QPJL")
+	private static final int JOURNAL_MAGIC = 0x51504A4C;
+	private static final int JOURNAL_VERSION = 1;
+	private static final int HEADER_LENGTH = 4 + 4 + 8 + 8;
+	
+	private static final byte ENTRY_CHILDREN = 1;
+	private static final byte ENTRY_PROPERTIES = 2;
+	
+	/**
+	 * The journal is compacted once it is larger than this proportion of the data file (and at least COMPACT_MIN_BYTES).
+	 */
+	private static final double COMPACT_RATIO = 0.5;
+	private static final long COMPACT_MIN_BYTES = 16L * 1024L * 1024L;
+	
+	private final File dataFile;
+	private final File journalFile;
+	private final ImageData<?> imageData;
+	private final PathObjectHierarchy hierarchy;
+	
+	// Length & modification time of the data file to which the journal applies
+	private long dataFileLength;
+	private long dataFileLastModified;
+	private long journalLength;
+	
+	// Changes since the last flush - guarded by pendingLock, which is only ever acquired after the hierarchy lock
+	private final Object pendingLock = new Object();
+	private Set<PathObject> dirtyParents = new HashSet<>();
+	private Set<PathObject> changedObjects = new HashSet<>();
+	
+	private ScheduledExecutorService autosave;
+	private boolean closed = false;
+	
+	
+	HierarchyJournal(final File dataFile, final ImageData<?> imageData) {
+		this.dataFile = dataFile;
+		this.journalFile = getJournalFile(dataFile);
+		this.imageData = imageData;
+		this.hierarchy = imageData.getHierarchy();
+	}
+	
+	
+	/**
+	 * Get the journal file used for a specified data file.
+	 * 
+	 * @param dataFile
+	 * @return
+	 */
+	public static File getJournalFile(final File dataFile) {
+		return new File(dataFile.getAbsolutePath() + ".journal");
+	}
+	
+	/**
+	 * Check whether a data file has a journal containing changes that haven't yet been written to the data file itself.
+	 * 
+	 * @param dataFile
+	 * @return
+	 */
+	public static boolean hasJournal(final File dataFile) {
+		File journalFile = getJournalFile(dataFile);
+		if (!journalFile.isFile() || journalFile.length() <= HEADER_LENGTH)
+			return false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+			return readHeader(in, dataFile);
+		} catch (IOException e) {
+			logger.warn("Unable to read journal header from {}", journalFile);
+			return false;
+		}
+	}
+	
+	/**
+	 * Start recording changes to the hierarchy of an ImageData in a journal for the specified data file.
+	 * <p>
+	 * If the ImageData has changed since it was read from (or last written to) the data file, it is written first - 
+	 * since journal records only describe changes relative to the data file.
+	 * The data file is always written in the binary format, regardless of {@link PathIO#getUseBinaryFormat()}.
+	 * All objects are loaded into the hierarchy, since the journal relies upon the positions of objects within their parent's child list.
+	 * 
+	 * @param dataFile the data file
+	 * @param imageData the image data, which should already correspond to the contents of the data file
+	 * @return
+	 * @throws IOException if the data file or journal could not be written
+	 */
+	public static HierarchyJournal open(final File dataFile, final ImageData<?> imageData) throws IOException {
+		HierarchyJournal journal = new HierarchyJournal(dataFile, imageData);
+		journal.hierarchy.ensureObjectsLoaded();
+		// Start listening before writing, so that no changes can be missed
+		journal.hierarchy.addPathObjectListener(journal);
+		try {
+			boolean upToDate = !imageData.isChanged() && 
+					dataFile.getAbsolutePath().equals(imageData.getLastSavedPath()) &&
+					PathIO.isBinaryFile(dataFile);
+			if (upToDate)
+				journal.reset();
+			else
+				journal.compact();
+		} catch (IOException e) {
+			journal.hierarchy.removePathObjectListener(journal);
+			throw e;
+		}
+		return journal;
+	}
+	
+	
+	/**
+	 * Flush all pending changes to the journal at a fixed interval.
+	 * 
+	 * @param interval
+	 * @param unit
+	 */
+	public synchronized void startAutosave(final long interval, final TimeUnit unit) {
+		stopAutosave();
+		autosave = Executors.newSingleThreadScheduledExecutor(new SimpleThreadFactory("hierarchy-journal-", true));
+		autosave.scheduleWithFixedDelay(() -> {
+			try {
+				flush();
+			} catch (Exception e) {
+				logger.error("Unable to write changes to " + journalFile, e);
+			}
+		}, interval, interval, unit);
+	}
+	
+	/**
+	 * Stop any autosaving previously started with {@link #startAutosave(long, TimeUnit)}.
+	 */
+	public synchronized void stopAutosave() {
+		if (autosave != null) {
+			autosave.shutdown();
+			autosave = null;
+		}
+	}
+	
+	
+	/**
+	 * Get the current length of the journal file, in bytes.
+	 * 
+	 * @return
+	 */
+	public synchronized long getJournalLength() {
+		return journalLength;
+	}
+	
+	
+	/**
+	 * Append a record containing all changes since the last flush to the journal.
+	 * <p>
+	 * If the changes affect the entire hierarchy, or the journal has become too large, the journal is compacted instead.
+	 * 
+	 * @return true if anything was written, false if there were no changes to record
+	 * @throws IOException
+	 */
+	public synchronized boolean flush() throws IOException {
+		if (closed)
+			return false;
+		
+		// If the data file has been written elsewhere (e.g. the user saved), start again relative to the new file
+		if (dataFile.length() != dataFileLength || dataFile.lastModified() != dataFileLastModified)
+			reset();
+		
+		// Take a consistent snapshot of the structure while preventing any other modifications, 
+		// but only encode the objects after releasing the lock - so that readers (e.g. painting) aren't blocked for long
+		Snapshot snapshot = new Snapshot();
+		hierarchy.batch(snapshot);
+		if (snapshot.requiresCompaction) {
+			compact();
+			return true;
+		}
+		if (snapshot.entries.isEmpty())
+			return false;
+		
+		try {
+			appendRecord(snapshot.encode());
+		} catch (IOException e) {
+			snapshot.restorePending();
+			throw e;
+		}
+		if (journalLength > Math.max(COMPACT_MIN_BYTES, dataFileLength * COMPACT_RATIO))
+			compact();
+		return true;
+	}
+	
+	
+	/**
+	 * Write the complete ImageData to the data file, and start a new (empty) journal.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void compact() throws IOException {
+		long startTime = System.currentTimeMillis();
+		// Journal records can only be replayed against the binary format
+		if (!PathIO.writeImageData(dataFile, imageData, true))
+			throw new IOException("Unable to write image data to " + dataFile);
+		reset();
+		long endTime = System.currentTimeMillis();
+		logger.debug("Journal compacted into {} in {} ms", dataFile, endTime - startTime);
+	}
+	
+	
+	/**
+	 * Flush any pending changes, and stop recording changes.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		stopAutosave();
+		try {
+			flush();
+		} finally {
+			hierarchy.removePathObjectListener(this);
+			closed = true;
+		}
+	}
+	
+	
+	/**
+	 * Stop recording changes, and delete the journal without writing any pending changes.
+	 * <p>
+	 * This should be called if changes since the data file was last written are intentionally being discarded, 
+	 * since otherwise they would be recovered when the data file is next read.
+	 */
+	public synchronized void discard() {
+		if (!closed) {
+			stopAutosave();
+			hierarchy.removePathObjectListener(this);
+			closed = true;
+		}
+		if (journalFile.exists() && !journalFile.delete())
+			logger.warn("Unable to delete {}", journalFile);
+	}
+	
+	/**
+	 * Get the data file to which the journal applies.
+	 * 
+	 * @return
+	 */
+	public File getDataFile() {
+		return dataFile;
+	}
+	
+	/**
+	 * Get the ImageData whose changes are recorded.
+	 * 
+	 * @return
+	 */
+	public ImageData<?> getImageData() {
+		return imageData;
+	}
+	
+	
+	@Override
+	public void hierarchyChanged(final PathObjectHierarchyEvent event) {
+		// Objects loaded on demand don't need to be recorded
+		if (event.getSource() instanceof PathObjectLoader)
+			return;
+		synchronized (pendingLock) {
+			if (event.isStructureChangeEvent()) {
+				if (event.hasStructureDelta()) {
+					for (PathObject pathObject : event.getAddedObjects()) {
+						if (pathObject.getParent() != null)
+							dirtyParents.add(pathObject.getParent());
+					}
+					if (!event.getRemovedObjects().isEmpty())
+						dirtyParents.add(event.getStructureChangeBase());
+				} else if (event.getStructureChangeBase() != null) {
+					// Without a delta, the base object itself may also have changed (e.g. its ROI has been edited)
+					dirtyParents.add(event.getStructureChangeBase());
+					changedObjects.add(event.getStructureChangeBase());
+				} else
+					dirtyParents.add(hierarchy.getRootObject());
+			} else if (!event.isChanging())
+				changedObjects.addAll(event.getChangedObjects());
+		}
+	}
+	
+	
+	/**
+	 * Start a new journal, which applies to the current contents of the data file.
+	 */
+	private void reset() throws IOException {
+		dataFileLength = dataFile.length();
+		dataFileLastModified = dataFile.lastModified();
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+		buffer.putInt(JOURNAL_MAGIC);
+		buffer.putInt(JOURNAL_VERSION);
+		buffer.putLong(dataFileLength);
+		buffer.putLong(dataFileLastModified);
+		try (FileOutputStream out = new FileOutputStream(journalFile, false)) {
+			out.write(buffer.array());
+			out.getChannel().force(false);
+		}
+		journalLength = HEADER_LENGTH;
+	}
+	
+	
+	private void appendRecord(final byte[] record) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		ByteBuffer buffer = ByteBuffer.allocate(8 + record.length);
+		buffer.putInt(record.length);
+		buffer.putInt((int)crc.getValue());
+		buffer.put(record);
+		try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+			out.write(buffer.array());
+			out.getChannel().force(false);
+		}
+		journalLength += buffer.capacity();
+	}
+	
+	
+	private static boolean readHeader(final DataInputStream in, final File dataFile) throws IOException {
+		if (in.readInt() != JOURNAL_MAGIC)
+			return false;
+		if (in.readInt() > JOURNAL_VERSION)
+			return false;
+		long length = in.readLong();
+		long lastModified = in.readLong();
+		// The journal is stale if the data file has been written since
+		return length == dataFile.length() && lastModified == dataFile.lastModified();
+	}
+	
+	
+	/**
+	 * Apply all complete records from the journal of a data file to the objects read from the data file.
+	 * 
+	 * @param dataFile
+	 * @param rootObject the root object read from the data file
+	 * @return the number of records applied
+	 */
+	static int replay(final File dataFile, final PathObject rootObject) {
+		File journalFile = getJournalFile(dataFile);
+		int nRecords = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+			if (!readHeader(in, dataFile))
+				return 0;
+			long remaining = journalFile.length() - HEADER_LENGTH;
+			while (remaining >= 8) {
+				int length = in.readInt();
+				int checksum = in.readInt();
+				remaining -= 8;
+				if (length < 0 || length > remaining)
+					break;
+				byte[] record = new byte[length];
+				in.readFully(record);
+				remaining -= length;
+				CRC32 crc = new CRC32();
+				crc.update(record);
+				if ((int)crc.getValue() != checksum)
+					break;
+				applyRecord(record, rootObject);
+				nRecords++;
+			}
+			if (remaining > 0)
+				logger.warn("Incomplete record at the end of {} will be ignored", journalFile);
+		} catch (EOFException e) {
+			logger.warn("Incomplete record at the end of {} will be ignored", journalFile);
+		} catch (IOException e) {
+			logger.error("Unable to recover changes from " + journalFile + " after " + nRecords + " record(s)", e);
+		}
+		if (nRecords > 0)
+			logger.info("Recovered {} set(s) of changes from {}", nRecords, journalFile);
+		return nRecords;
+	}
+	
+	
+	private static void applyRecord(final byte[] record, final PathObject rootObject) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		int nEntries = in.readInt();
+		for (int i = 0; i < nEntries; i++) {
+			byte type = in.readByte();
+			PathObject parent = readLocator(in, rootObject);
+			if (type == ENTRY_CHILDREN) {
+				List<PathObject> children = PathObjectCodec.readChunk(in);
+				parent.clearPathObjects();
+				PathObjectCodec.appendDecodedChildren(parent, children);
+			} else if (type == ENTRY_PROPERTIES) {
+				int[] indices = new int[in.readInt()];
+				for (int k = 0; k < indices.length; k++)
+					indices[k] = in.readInt();
+				List<PathObject> decoded = PathObjectCodec.readChunk(in);
+				if (decoded.size() != indices.length)
+					throw new IOException("Expected " + indices.length + " object(s) in journal entry, but found " + decoded.size());
+				List<PathObject> children = getChildList(parent);
+				for (int k = 0; k < indices.length; k++) {
+					if (indices[k] < 0 || indices[k] >= children.size())
+						throw new IOException("Journal does not match the data file - object " + indices[k] + " not found");
+					PathObjectCodec.applyDecodedProperties(children.get(indices[k]), decoded.get(k));
+				}
+			} else
+				throw new IOException("Unknown journal entry type " + type);
+		}
+	}
+	
+	
+	private static PathObject readLocator(final DataInputStream in, final PathObject rootObject) throws IOException {
+		int depth = in.readInt();
+		PathObject pathObject = rootObject;
+		for (int i = 0; i < depth; i++) {
+			int ind = in.readInt();
+			if (ind < 0 || ind >= pathObject.nChildObjects())
+				throw new IOException("Journal does not match the data file - object " + ind + " not found");
+			pathObject = getChildList(pathObject).get(ind);
+		}
+		return pathObject;
+	}
+	
+	
+	/**
+	 * Get the children of an object as a list, to support access by index.
+	 */
+	private static List<PathObject> getChildList(final PathObject pathObject) {
+		Collection<PathObject> children = pathObject.getChildObjects();
+		if (children instanceof List)
+			return (List<PathObject>)children;
+		return new ArrayList<>(children);
+	}
+	
+	
+	/**
+	 * A single entry within a journal record.
+	 */
+	private static class RecordEntry {
+		
+		private final byte type;
+		private final int[] locator;
+		private final int[] positions;
+		private final PathObjectCodec.FlattenedObjects objects;
+		
+		RecordEntry(final byte type, final int[] locator, final int[] positions, final PathObjectCodec.FlattenedObjects objects) {
+			this.type = type;
+			this.locator = locator;
+			this.positions = positions;
+			this.objects = objects;
+		}
+		
+	}
+	
+	
+	/**
+	 * Captures the pending changes while the hierarchy is locked, so that they can be encoded afterwards.
+	 */
+	private class Snapshot implements Runnable {
+		
+		private Set<PathObject> dirty;
+		private Set<PathObject> changed;
+		private boolean requiresCompaction = false;
+		private List<RecordEntry> entries = new ArrayList<>();
+		
+		// Cache of the positions of objects within their parents' child lists
+		private Map<PathObject, Map<PathObject, Integer>> positions = new HashMap<>();
+		
+		@Override
+		public void run() {
+			synchronized (pendingLock) {
+				dirty = dirtyParents;
+				changed = changedObjects;
+				dirtyParents = new HashSet<>();
+				changedObjects = new HashSet<>();
+			}
+			if (dirty.isEmpty() && changed.isEmpty())
+				return;
+			
+			// If the child list of the root has changed, we may as well rewrite everything
+			PathObject rootObject = hierarchy.getRootObject();
+			if (dirty.contains(rootObject)) {
+				requiresCompaction = true;
+				return;
+			}
+			
+			// Snapshot only the highest objects whose child lists have changed, since these include all their descendants
+			for (PathObject pathObject : dirty) {
+				if (isInHierarchy(pathObject) && !hasDirtyAncestor(pathObject))
+					entries.add(new RecordEntry(ENTRY_CHILDREN, getLocator(pathObject), null,
+							PathObjectCodec.flattenObjects(pathObject.getChildObjects(), true)));
+			}
+			
+			// Group other changed objects by parent, unless they are already included in a snapshot
+			Map<PathObject, List<PathObject>> changedByParent = new LinkedHashMap<>();
+			for (PathObject pathObject : changed) {
+				if (pathObject.isRootObject() || !isInHierarchy(pathObject) || hasDirtyAncestor(pathObject))
+					continue;
+				changedByParent.computeIfAbsent(pathObject.getParent(), p -> new ArrayList<>()).add(pathObject);
+			}
+			for (Entry<PathObject, List<PathObject>> entry : changedByParent.entrySet()) {
+				List<PathObject> list = entry.getValue();
+				int[] inds = new int[list.size()];
+				for (int i = 0; i < inds.length; i++)
+					inds[i] = getPosition(list.get(i));
+				entries.add(new RecordEntry(ENTRY_PROPERTIES, getLocator(entry.getKey()), inds,
+						PathObjectCodec.flattenObjects(list, false)));
+			}
+		}
+		
+		/**
+		 * Encode the captured changes as a single record; this doesn't require the hierarchy lock.
+		 */
+		byte[] encode() throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(entries.size());
+			for (RecordEntry entry : entries) {
+				out.writeByte(entry.type);
+				out.writeInt(entry.locator.length);
+				for (int ind : entry.locator)
+					out.writeInt(ind);
+				if (entry.positions != null) {
+					out.writeInt(entry.positions.length);
+					for (int ind : entry.positions)
+						out.writeInt(ind);
+				}
+				out.write(PathObjectCodec.encodeChunk(entry.objects, true));
+			}
+			out.flush();
+			return bytes.toByteArray();
+		}
+		
+		/**
+		 * Return the changes to the pending list, if they couldn't be written.
+		 */
+		void restorePending() {
+			synchronized (pendingLock) {
+				if (dirty != null)
+					dirtyParents.addAll(dirty);
+				if (changed != null)
+					changedObjects.addAll(changed);
+			}
+		}
+		
+		private boolean isInHierarchy(PathObject pathObject) {
+			while (pathObject.getParent() != null)
+				pathObject = pathObject.getParent();
+			return pathObject == hierarchy.getRootObject();
+		}
+		
+		private boolean hasDirtyAncestor(PathObject pathObject) {
+			PathObject parent = pathObject.getParent();
+			while (parent != null) {
+				if (dirty.contains(parent))
+					return true;
+				parent = parent.getParent();
+			}
+			return false;
+		}
+		
+		private int getPosition(final PathObject pathObject) {
+			PathObject parent = pathObject.getParent();
+			Map<PathObject, Integer> map = positions.get(parent);
+			if (map == null) {
+				map = new IdentityHashMap<>();
+				for (PathObject child : parent.getChildObjects())
+					map.put(child, map.size());
+				positions.put(parent, map);
+			}
+			return map.get(pathObject);
+		}
+		
+		/**
+		 * Get the positions of an object and its ancestors within their parents' child lists, starting from the root.
+		 */
+		private int[] getLocator(final PathObject pathObject) {
+			List<Integer> path = new ArrayList<>();
+			PathObject current = pathObject;
+			while (current.getParent() != null) {
+				path.add(getPosition(current));
+				current = current.getParent();
+			}
+			int[] locator = new int[path.size()];
+			for (int i = 0; i < locator.length; i++)
+				locator[i] = path.get(path.size() - 1 - i);
+			return locator;
+		}
+		
+	}
+
+}
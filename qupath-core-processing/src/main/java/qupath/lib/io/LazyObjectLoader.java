@@ -0,0 +1,520 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.io;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectCodec;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.PathObjectLoader;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent.HierarchyEventType;
+import qupath.lib.regions.ImageRegion;
+
+/**
+ * Loader that reads chunks of detections from a binary data file whenever they are requested for a region.
+ * <p>
+ * The chunk headers within the file (written by {@link ChunkedHierarchyIO}) include the bounding box of the objects, 
+ * and so serve as a spatial index: only the offsets and bounds of the chunks are retained when the file is opened.
+ * <p>
+ * Loaded chunks are tracked in order of use.  If too many objects are loaded (or memory is running low), 
+ * the least recently used chunks are removed from the hierarchy again - provided that none of their objects 
+ * have been changed, moved or selected since they were loaded.
+ * Chunks are restored to their original parent objects, so objects that haven't been loaded yet aren't affected by 
+ * other changes to the hierarchy (e.g. adding a new annotation).
+ * <p>
+ * All remaining objects must be loaded before the data file is overwritten.
+ */
+class LazyObjectLoader implements PathObjectLoader {
+	
+	final private static Logger logger = LoggerFactory.getLogger(LazyObjectLoader.class);
+	
+	/**
+	 * Rough estimate of the memory required for each object, used to determine how many objects may be loaded at once.
+	 */
+	private static final long BYTES_PER_OBJECT = 2048;
+	
+	/**
+	 * Proportion of the maximum memory in use above which objects will be unloaded, regardless of how many have been loaded.
+	 */
+	private static final double MEMORY_THRESHOLD = 0.8;
+	
+	private static enum State {PENDING, LOADED, DISCARDED}
+	
+	private final File file;
+	private final long fileLength;
+	private final long fileLastModified;
+	private CountingInputStream counter;
+	
+	private final List<DeferredChunk> chunks = new ArrayList<>();
+	// Top-level objects of loaded chunks, used to identify which chunk a changed object belongs to
+	private final Map<PathObject, DeferredChunk> chunkRoots = new ConcurrentHashMap<>();
+	
+	private long maxLoadedObjects = Math.max(ChunkedHierarchyIO.CHUNK_OBJECTS * 4L, Runtime.getRuntime().maxMemory() / 4 / BYTES_PER_OBJECT);
+	private long nLoaded = 0;
+	private long accessCount = 0;
+	private volatile int nPending = 0;
+	
+	
+	LazyObjectLoader(final File file) {
+		this.file = file;
+		this.fileLength = file.length();
+		this.fileLastModified = file.lastModified();
+	}
+	
+	/**
+	 * Wrap the stream used to read the data file, so that the position of each chunk can be determined.
+	 * This must be the stream from which {@link #deferChunk(DataInputStream, PathObject, int, double, double, double, double, int, int)} 
+	 * reads (without any further buffering).
+	 * 
+	 * @param stream a stream starting at the beginning of the file
+	 * @return
+	 */
+	InputStream trackPosition(final InputStream stream) {
+		counter = new CountingInputStream(stream);
+		return counter;
+	}
+	
+	/**
+	 * Set the maximum number of objects that should be loaded at any time.  More objects may be loaded if they 
+	 * are all required by a single request, or if the objects can't be unloaded because they have changed.
+	 * 
+	 * @param maxLoadedObjects
+	 */
+	synchronized void setMaxLoadedObjects(final long maxLoadedObjects) {
+		this.maxLoadedObjects = maxLoadedObjects;
+	}
+	
+	/**
+	 * Get the number of objects currently loaded by this loader (excluding descendants).
+	 * 
+	 * @return
+	 */
+	synchronized long getLoadedObjectCount() {
+		return nLoaded;
+	}
+	
+	/**
+	 * Skip over the next chunk in an input stream, recording its location so that it can be read later.
+	 * 
+	 * @param in the stream, positioned at the start of the chunk (after its header)
+	 * @param parent the object to which the chunk's objects should be added
+	 * @param nObjects the number of top-level objects within the chunk
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param z the z-slice for all objects within the chunk, or -1 if the objects are on different planes
+	 * @param t the time point for all objects within the chunk, or -1 if the objects are on different planes
+	 * @throws IOException
+	 */
+	synchronized void deferChunk(final DataInputStream in, final PathObject parent, final int nObjects, final double minX, final double minY, final double maxX, final double maxY, final int z, final int t) throws IOException {
+		if (counter == null)
+			throw new IllegalStateException("The position within the file is not being tracked");
+		long offset = counter.getPosition();
+		PathObjectCodec.skipChunk(in);
+		chunks.add(new DeferredChunk(parent, offset, nObjects, minX, minY, maxX, maxY, z, t));
+		nPending++;
+	}
+	
+	/**
+	 * Get the total number of chunks that may be loaded on demand.
+	 * 
+	 * @return
+	 */
+	synchronized int nChunks() {
+		return chunks.size();
+	}
+	
+	
+	@Override
+	public boolean hasPendingObjects() {
+		return nPending > 0;
+	}
+	
+	
+	@Override
+	public void loadObjects(final PathObjectHierarchy hierarchy, final Class<? extends PathObject> cls, final ImageRegion region) {
+		// Only detections (and their descendants) are loaded on demand
+		if (cls != null && !cls.isAssignableFrom(PathDetectionObject.class) && !PathDetectionObject.class.isAssignableFrom(cls))
+			return;
+		
+		synchronized (this) {
+			List<DeferredChunk> required = new ArrayList<>();
+			List<DeferredChunk> toLoad = new ArrayList<>();
+			for (DeferredChunk chunk : chunks) {
+				if (chunk.state == State.DISCARDED || (region != null && !chunk.overlaps(region)))
+					continue;
+				chunk.lastAccess = ++accessCount;
+				required.add(chunk);
+				if (chunk.state == State.PENDING)
+					toLoad.add(chunk);
+			}
+			if (!toLoad.isEmpty()) {
+				if (fileLength != file.length() || fileLastModified != file.lastModified()) {
+					logger.error("{} has changed since it was opened - {} object(s) could not be loaded", file, countPendingObjects());
+					discardPending();
+					return;
+				}
+				long startTime = System.currentTimeMillis();
+				try {
+					readChunks(hierarchy, toLoad);
+				} catch (IOException e) {
+					logger.error("Unable to load objects from " + file + " - " + countPendingObjects() + " object(s) will be missing", e);
+					discardPending();
+					return;
+				}
+				long endTime = System.currentTimeMillis();
+				logger.debug("Loaded {} chunk(s) in {} ms ({} objects now loaded)", toLoad.size(), endTime - startTime, nLoaded);
+			}
+			// Only unload objects for region requests, since otherwise all the objects are needed simultaneously
+			if (region != null)
+				unloadObjects(hierarchy, new HashSet<>(required));
+		}
+	}
+	
+	
+	private void readChunks(final PathObjectHierarchy hierarchy, final List<DeferredChunk> toLoad) throws IOException {
+		int batchSize = Runtime.getRuntime().availableProcessors() * ChunkedHierarchyIO.CHUNKS_PER_THREAD;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			for (int i = 0; i < toLoad.size(); i += batchSize) {
+				List<DeferredChunk> batch = toLoad.subList(i, Math.min(toLoad.size(), i + batchSize));
+				List<byte[]> bytes = new ArrayList<>();
+				for (DeferredChunk chunk : batch) {
+					raf.seek(chunk.offset);
+					bytes.add(PathObjectCodec.readChunkBytes(raf));
+				}
+				List<List<PathObject>> decoded;
+				try {
+					decoded = bytes.parallelStream().map(b -> {
+						try {
+							return PathObjectCodec.decodeChunk(b);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}).collect(Collectors.toList());
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+				
+				// Add objects with the same parent together, since the child list may be sorted each time
+				Map<PathObject, List<DeferredChunk>> byParent = new LinkedHashMap<>();
+				for (int k = 0; k < batch.size(); k++) {
+					DeferredChunk chunk = batch.get(k);
+					chunk.pathObjects = decoded.get(k);
+					if (chunk.pathObjects.size() != chunk.nObjects)
+						throw new IOException("Expected " + chunk.nObjects + " object(s) in chunk, but found " + chunk.pathObjects.size());
+					byParent.computeIfAbsent(chunk.parent, p -> new ArrayList<>()).add(chunk);
+				}
+				for (Entry<PathObject, List<DeferredChunk>> entry : byParent.entrySet()) {
+					List<PathObject> pathObjects = new ArrayList<>();
+					for (DeferredChunk chunk : entry.getValue()) {
+						pathObjects.addAll(chunk.pathObjects);
+						// Register the objects before they are added, so that any changes can be attributed to the chunk
+						for (PathObject pathObject : chunk.pathObjects)
+							chunkRoots.put(pathObject, chunk);
+					}
+					boolean added = hierarchy.addLoadedObjects(this, entry.getKey(), pathObjects);
+					for (DeferredChunk chunk : entry.getValue()) {
+						nPending--;
+						if (added) {
+							chunk.state = State.LOADED;
+							nLoaded += chunk.nObjects;
+						} else {
+							// The parent is no longer in the hierarchy, so the objects aren't needed
+							chunk.state = State.DISCARDED;
+							unregister(chunk);
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Remove the least recently used chunks from the hierarchy, if too many objects are loaded.
+	 * 
+	 * @param hierarchy
+	 * @param required chunks needed for the current request, which should not be removed
+	 */
+	private void unloadObjects(final PathObjectHierarchy hierarchy, final Set<DeferredChunk> required) {
+		long target = maxLoadedObjects;
+		if (isMemoryLow())
+			target = Math.min(target, nLoaded / 2);
+		if (nLoaded <= target)
+			return;
+		
+		// Selected objects shouldn't disappear from the hierarchy
+		Set<DeferredChunk> selected = new HashSet<>();
+		for (PathObject pathObject : hierarchy.getSelectionModel().getSelectedObjects()) {
+			DeferredChunk chunk = findChunk(pathObject);
+			if (chunk != null)
+				selected.add(chunk);
+		}
+		
+		List<DeferredChunk> candidates = new ArrayList<>();
+		for (DeferredChunk chunk : chunks) {
+			if (chunk.state == State.LOADED && !chunk.pinned && !required.contains(chunk) && !selected.contains(chunk))
+				candidates.add(chunk);
+		}
+		candidates.sort(Comparator.comparingLong(c -> c.lastAccess));
+		int nUnloaded = 0;
+		for (DeferredChunk chunk : candidates) {
+			if (nLoaded <= target)
+				break;
+			if (hierarchy.removeLoadedObjects(this, chunk.parent, chunk.pathObjects)) {
+				unregister(chunk);
+				chunk.pathObjects = null;
+				chunk.state = State.PENDING;
+				nLoaded -= chunk.nObjects;
+				nPending++;
+				nUnloaded++;
+			} else {
+				// Objects have been moved, so can't be unloaded safely
+				chunk.pinned = true;
+			}
+		}
+		if (nUnloaded > 0)
+			logger.debug("Unloaded {} chunk(s) ({} objects still loaded)", nUnloaded, nLoaded);
+	}
+	
+	
+	private static boolean isMemoryLow() {
+		Runtime rt = Runtime.getRuntime();
+		long used = rt.totalMemory() - rt.freeMemory();
+		return used > rt.maxMemory() * MEMORY_THRESHOLD;
+	}
+	
+	
+	private void unregister(final DeferredChunk chunk) {
+		if (chunk.pathObjects == null)
+			return;
+		for (PathObject pathObject : chunk.pathObjects)
+			chunkRoots.remove(pathObject);
+	}
+	
+	
+	private long countPendingObjects() {
+		long n = 0;
+		for (DeferredChunk chunk : chunks) {
+			if (chunk.state == State.PENDING)
+				n += chunk.nObjects;
+		}
+		return n;
+	}
+	
+	
+	private void discardPending() {
+		for (DeferredChunk chunk : chunks) {
+			if (chunk.state == State.PENDING) {
+				chunk.state = State.DISCARDED;
+				unregister(chunk);
+			} else
+				chunk.pinned = true;
+		}
+		nPending = 0;
+	}
+	
+	
+	/**
+	 * Find the loaded chunk containing an object, or null if the object doesn't belong to a loaded chunk.
+	 */
+	private DeferredChunk findChunk(PathObject pathObject) {
+		while (pathObject != null) {
+			DeferredChunk chunk = chunkRoots.get(pathObject);
+			if (chunk != null)
+				return chunk;
+			pathObject = pathObject.getParent();
+		}
+		return null;
+	}
+	
+	
+	private void pinAll() {
+		for (DeferredChunk chunk : chunkRoots.values())
+			chunk.pinned = true;
+	}
+	
+	
+	private void pinChunks(final Collection<PathObject> pathObjects) {
+		for (PathObject pathObject : pathObjects) {
+			DeferredChunk chunk = findChunk(pathObject);
+			if (chunk != null)
+				chunk.pinned = true;
+		}
+	}
+	
+	
+	/**
+	 * Pin any loaded chunks affected by a change, so that they aren't unloaded (and the change lost).
+	 * <p>
+	 * This is called while the hierarchy holds its lock, and so avoids synchronizing on the loader.
+	 */
+	@Override
+	public void hierarchyChanged(final PathObjectHierarchyEvent event) {
+		if (event.getSource() == this || chunkRoots.isEmpty())
+			return;
+		
+		if (!event.isStructureChangeEvent()) {
+			pinChunks(event.getChangedObjects());
+			return;
+		}
+		if (event.getEventType() == HierarchyEventType.ADDED) {
+			pinChunks(event.getChangedObjects());
+			return;
+		}
+		if (event.getEventType() == HierarchyEventType.REMOVED) {
+			// Removed objects have been detached, but the previous parent is known
+			pinChunks(event.getChangedObjects());
+			pinChunks(Collections.singleton(event.getStructureChangeBase()));
+			return;
+		}
+		if (!event.hasStructureDelta()) {
+			pinAll();
+			return;
+		}
+		pinChunks(event.getAddedObjects());
+		for (PathObject pathObject : event.getRemovedObjects()) {
+			// Detections removed from within a chunk can't be traced back to the chunk once they have been detached
+			if (findChunk(pathObject) == null && pathObject.isDetection()) {
+				pinAll();
+				return;
+			}
+		}
+		pinChunks(event.getRemovedObjects());
+	}
+	
+	
+	/**
+	 * A chunk of objects that may be loaded on demand.
+	 */
+	private static class DeferredChunk {
+		
+		private final PathObject parent;
+		private final long offset;
+		private final int nObjects;
+		private final double minX, minY, maxX, maxY;
+		private final int z, t;
+		
+		private State state = State.PENDING;
+		private long lastAccess = 0;
+		private List<PathObject> pathObjects;
+		private volatile boolean pinned = false;
+		
+		DeferredChunk(final PathObject parent, final long offset, final int nObjects, final double minX, final double minY, final double maxX, final double maxY, final int z, final int t) {
+			this.parent = parent;
+			this.offset = offset;
+			this.nObjects = nObjects;
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+			this.z = z;
+			this.t = t;
+		}
+		
+		boolean overlaps(final ImageRegion region) {
+			if ((z >= 0 && z != region.getZ()) || (t >= 0 && t != region.getT()))
+				return false;
+			// Chunks without bounds contain objects without ROIs, which can't be excluded
+			if (Double.isNaN(minX))
+				return true;
+			return maxX >= region.getX() && minX <= region.getX() + region.getWidth() &&
+					maxY >= region.getY() && minY <= region.getY() + region.getHeight();
+		}
+		
+	}
+	
+	
+	/**
+	 * Input stream that keeps track of the number of bytes read.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		
+		private long position = 0;
+		
+		CountingInputStream(final InputStream in) {
+			super(in);
+		}
+		
+		long getPosition() {
+			return position;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				position++;
+			return b;
+		}
+		
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				position += n;
+			return n;
+		}
+		
+		@Override
+		public long skip(final long n) throws IOException {
+			long skipped = super.skip(n);
+			position += skipped;
+			return skipped;
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+		
+	}
+
+}
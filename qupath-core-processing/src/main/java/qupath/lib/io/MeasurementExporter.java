@@ -0,0 +1,588 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.io;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.SimpleThreadFactory;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Headless exporter for object measurements, which writes rows as it traverses the hierarchy 
+ * rather than first building a table in memory.
+ * <p>
+ * Objects are requested from the hierarchy (under its lock) once, and a single pass is then needed to determine 
+ * the column names; values are then written directly (for delimited text) or buffered for a single row group 
+ * of at most {@link #getRowGroupSize()} objects (for the binary format), so that no table of values is needed.
+ * <p>
+ * The binary format is columnar and self-describing, with all strings written as an int length 
+ * followed by that number of UTF-8 bytes:
+ * <ul>
+ * <li>int magic ({@link #BINARY_MAGIC}), int version, string image name</li>
+ * <li>int number of string columns, followed by their names</li>
+ * <li>int number of numeric columns, followed by their names</li>
+ * <li>a sequence of row groups, each an int row count followed by all values for each string column 
+ * and then each numeric column (double) in turn</li>
+ * <li>a final row count of 0</li>
+ * </ul>
+ */
+public class MeasurementExporter {
+	
+	private final static Logger logger = LoggerFactory.getLogger(MeasurementExporter.class);
+	
+	/**
+	 * Magic number at the start of binary measurement files.
+	 */
+	public final static int BINARY_MAGIC = 0x51504D54;
+	
+	final static int BINARY_VERSION = 1;
+	
+	/**
+	 * Supported export formats.
+	 */
+	public enum Format {
+		/**
+		 * Comma-separated values.
+		 */
+		CSV(",", ".csv"),
+		/**
+		 * Tab-separated values.
+		 */
+		TSV("\t", ".tsv"),
+		/**
+		 * Columnar binary format, written in row groups.
+		 */
+		BINARY(null, ".qpmeasurements");
+		
+		private final String delimiter;
+		private final String extension;
+		
+		Format(final String delimiter, final String extension) {
+			this.delimiter = delimiter;
+			this.extension = extension;
+		}
+		
+		/**
+		 * Get the default file extension for this format (including the dot).
+		 * 
+		 * @return
+		 */
+		public String getExtension() {
+			return extension;
+		}
+		
+	}
+	
+	private static final String[] STRING_COLUMNS = {"Image", "Name", "Class", "Parent", "ROI"};
+	
+	private Class<? extends PathObject> cls = PathDetectionObject.class;
+	private Format format = Format.CSV;
+	private int rowGroupSize = 10000;
+	private double pixelWidthMicrons = Double.NaN;
+	private double pixelHeightMicrons = Double.NaN;
+	
+	/**
+	 * Create an exporter for detection measurements, written as CSV.
+	 */
+	public MeasurementExporter() {}
+	
+	/**
+	 * Set the type of object to export; subclasses are also included.
+	 * 
+	 * @param cls
+	 * @return
+	 */
+	public MeasurementExporter setObjectType(final Class<? extends PathObject> cls) {
+		this.cls = cls == null ? PathObject.class : cls;
+		return this;
+	}
+	
+	/**
+	 * Get the type of object to export.
+	 * 
+	 * @return
+	 * @see #setObjectType(Class)
+	 */
+	public Class<? extends PathObject> getObjectType() {
+		return cls;
+	}
+	
+	/**
+	 * Set the format used to write measurements.
+	 * 
+	 * @param format
+	 * @return
+	 */
+	public MeasurementExporter setFormat(final Format format) {
+		this.format = format;
+		return this;
+	}
+	
+	/**
+	 * Get the format used to write measurements.
+	 * 
+	 * @return
+	 * @see #setFormat(Format)
+	 */
+	public Format getFormat() {
+		return format;
+	}
+	
+	/**
+	 * Set the maximum number of objects buffered before writing.
+	 * 
+	 * @param rowGroupSize
+	 * @return
+	 */
+	public MeasurementExporter setRowGroupSize(final int rowGroupSize) {
+		if (rowGroupSize <= 0)
+			throw new IllegalArgumentException("Row group size must be > 0");
+		this.rowGroupSize = rowGroupSize;
+		return this;
+	}
+	
+	/**
+	 * Get the maximum number of objects buffered before writing (binary format only).
+	 * 
+	 * @return
+	 * @see #setRowGroupSize(int)
+	 */
+	public int getRowGroupSize() {
+		return rowGroupSize;
+	}
+	
+	/**
+	 * Set the pixel size, used to calibrate centroid coordinates.
+	 * If either value is NaN, centroids are given in pixels.
+	 * 
+	 * @param pixelWidthMicrons
+	 * @param pixelHeightMicrons
+	 * @return
+	 */
+	public MeasurementExporter setPixelSizeMicrons(final double pixelWidthMicrons, final double pixelHeightMicrons) {
+		this.pixelWidthMicrons = pixelWidthMicrons;
+		this.pixelHeightMicrons = pixelHeightMicrons;
+		return this;
+	}
+	
+	private boolean hasPixelSizeMicrons() {
+		return !Double.isNaN(pixelWidthMicrons + pixelHeightMicrons);
+	}
+	
+	
+	/**
+	 * Get the names of all columns that would be exported for the specified hierarchy, 
+	 * i.e. the fixed string columns, centroids and then the union of all measurement names.
+	 * 
+	 * @param hierarchy
+	 * @return
+	 */
+	public List<String> getColumnNames(final PathObjectHierarchy hierarchy) {
+		List<String> names = new ArrayList<>();
+		Collections.addAll(names, STRING_COLUMNS);
+		names.addAll(getNumericColumnNames(getObjects(hierarchy)));
+		return names;
+	}
+	
+	private List<String> getNumericColumnNames(final List<PathObject> pathObjects) {
+		Set<String> names = new LinkedHashSet<>();
+		String units = hasPixelSizeMicrons() ? GeneralTools.micrometerSymbol() : "px";
+		names.add("Centroid X " + units);
+		names.add("Centroid Y " + units);
+		// Measurement lists generally share names within an image, so check cheaply for a repeat first
+		List<String> lastNames = null;
+		for (PathObject pathObject : pathObjects) {
+			MeasurementList list = pathObject.getMeasurementList();
+			if (list.isEmpty())
+				continue;
+			List<String> listNames = list.getMeasurementNames();
+			if (listNames == lastNames || listNames.equals(lastNames))
+				continue;
+			names.addAll(listNames);
+			lastNames = listNames;
+		}
+		return new ArrayList<>(names);
+	}
+	
+	
+	/**
+	 * Write measurements for all objects of the requested type within a hierarchy.
+	 * 
+	 * @param hierarchy
+	 * @param imageName name written into the 'Image' column
+	 * @param file
+	 * @return the number of objects written
+	 * @throws IOException
+	 */
+	public long exportMeasurements(final PathObjectHierarchy hierarchy, final String imageName, final File file) throws IOException {
+		try (OutputStream stream = new FileOutputStream(file)) {
+			return exportMeasurements(hierarchy, imageName, stream);
+		}
+	}
+	
+	/**
+	 * Write measurements for all objects of the requested type within a hierarchy.
+	 * <p>
+	 * The stream is flushed, but not closed.
+	 * 
+	 * @param hierarchy
+	 * @param imageName name written into the 'Image' column
+	 * @param stream
+	 * @return the number of objects written
+	 * @throws IOException
+	 */
+	public long exportMeasurements(final PathObjectHierarchy hierarchy, final String imageName, final OutputStream stream) throws IOException {
+		List<PathObject> pathObjects = getObjects(hierarchy);
+		List<String> numericNames = getNumericColumnNames(pathObjects);
+		long n;
+		if (format == Format.BINARY)
+			n = writeBinary(pathObjects, imageName, numericNames, stream);
+		else
+			n = writeDelimited(pathObjects, imageName, numericNames, stream);
+		logger.debug("{} objects written for {}", n, imageName);
+		return n;
+	}
+	
+	
+	/**
+	 * Export measurements for all images in a project that have a data file, writing one output file per image.
+	 * <p>
+	 * Images are processed in parallel, with each hierarchy read only when needed and released as soon as it has been written, 
+	 * so that at most <code>nThreads</code> hierarchies are in memory at any time.
+	 * 
+	 * @param project
+	 * @param dirOutput directory to contain the exported files, named according to the image names (with a suffix added if names are repeated)
+	 * @param nThreads number of images to process in parallel; if &lt;= 0, the number of available processors is used
+	 * @return a map of image entries to the files written
+	 * @throws IOException if any image could not be exported
+	 */
+	public <T> Map<ProjectImageEntry<T>, File> exportProject(final Project<T> project, final File dirOutput, final int nThreads) throws IOException {
+		return exportProject(project, entry -> getDefaultDataFile(project, entry), dirOutput, nThreads);
+	}
+	
+	/**
+	 * Export measurements for all images in a project, using a custom function to locate the data file for each entry.
+	 * 
+	 * @param project
+	 * @param dataFileFunction function returning the data file for an entry, or <code>null</code> if the entry should be skipped
+	 * @param dirOutput
+	 * @param nThreads
+	 * @return
+	 * @throws IOException
+	 * 
+	 * @see #exportProject(Project, File, int)
+	 */
+	public <T> Map<ProjectImageEntry<T>, File> exportProject(final Project<T> project, final Function<ProjectImageEntry<T>, File> dataFileFunction, final File dirOutput, final int nThreads) throws IOException {
+		if (!dirOutput.isDirectory() && !dirOutput.mkdirs())
+			throw new IOException("Unable to create output directory " + dirOutput);
+		
+		int n = nThreads <= 0 ? Runtime.getRuntime().availableProcessors() : nThreads;
+		ExecutorService pool = Executors.newFixedThreadPool(n, new SimpleThreadFactory("measurement-export-", true));
+		Map<ProjectImageEntry<T>, Future<File>> futures = new LinkedHashMap<>();
+		Set<String> outputNames = new HashSet<>();
+		try {
+			for (ProjectImageEntry<T> entry : project.getImageList()) {
+				File fileData = dataFileFunction.apply(entry);
+				if (fileData == null || !fileData.isFile()) {
+					logger.debug("No data file found for {}", entry.getImageName());
+					continue;
+				}
+				File fileOutput = new File(dirOutput, getUniqueName(entry.getImageName(), outputNames) + format.getExtension());
+				futures.put(entry, pool.submit(() -> {
+					PathObjectHierarchy hierarchy = PathIO.readHierarchy(fileData);
+					if (hierarchy == null)
+						throw new IOException("Unable to read hierarchy from " + fileData);
+					exportMeasurements(hierarchy, entry.getImageName(), fileOutput);
+					return fileOutput;
+				}));
+			}
+			Map<ProjectImageEntry<T>, File> results = new LinkedHashMap<>();
+			for (Map.Entry<ProjectImageEntry<T>, Future<File>> entry : futures.entrySet()) {
+				try {
+					results.put(entry.getKey(), entry.getValue().get());
+				} catch (ExecutionException e) {
+					throw new IOException("Unable to export measurements for " + entry.getKey().getImageName(), e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Measurement export interrupted", e);
+				}
+			}
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Get a name that hasn't been used already (ignoring case, since not all file systems are case-sensitive), 
+	 * adding a numeric suffix if necessary, and record it as used.
+	 */
+	private static String getUniqueName(final String name, final Set<String> usedNames) {
+		String uniqueName = name;
+		int count = 1;
+		while (!usedNames.add(uniqueName.toLowerCase())) {
+			count++;
+			uniqueName = name + " (" + count + ")";
+		}
+		return uniqueName;
+	}
+	
+	/**
+	 * Get the data file for a project entry, as stored by QuPath within the project's 'data' directory.
+	 * 
+	 * @param project
+	 * @param entry
+	 * @return the file, or <code>null</code> if the project has no base directory
+	 */
+	public static File getDefaultDataFile(final Project<?> project, final ProjectImageEntry<?> entry) {
+		File dirBase = project.getBaseDirectory();
+		if (dirBase == null)
+			return null;
+		return new File(new File(dirBase, "data"), entry.getImageName() + ".qpdata");
+	}
+	
+	
+	private long writeDelimited(final List<PathObject> pathObjects, final String imageName, final List<String> numericNames, final OutputStream stream) throws IOException {
+		String delim = format.delimiter;
+		Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16);
+		boolean first = true;
+		for (String name : STRING_COLUMNS) {
+			if (!first)
+				writer.write(delim);
+			writer.write(escape(name, delim));
+			first = false;
+		}
+		for (String name : numericNames) {
+			writer.write(delim);
+			writer.write(escape(name, delim));
+		}
+		writer.write(System.lineSeparator());
+		
+		String[] strings = new String[STRING_COLUMNS.length];
+		double[] values = new double[numericNames.size()];
+		ColumnIndex index = new ColumnIndex(numericNames);
+		long n = 0;
+		for (PathObject pathObject : pathObjects) {
+			getStrings(pathObject, imageName, strings);
+			getValues(pathObject, index, values);
+			for (int i = 0; i < strings.length; i++) {
+				if (i > 0)
+					writer.write(delim);
+				if (strings[i] != null)
+					writer.write(escape(strings[i], delim));
+			}
+			for (double v : values) {
+				writer.write(delim);
+				if (!Double.isNaN(v))
+					writer.write(Double.toString(v));
+			}
+			writer.write(System.lineSeparator());
+			n++;
+		}
+		writer.flush();
+		return n;
+	}
+	
+	private long writeBinary(final List<PathObject> pathObjects, final String imageName, final List<String> numericNames, final OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+		out.writeInt(BINARY_MAGIC);
+		out.writeInt(BINARY_VERSION);
+		writeString(out, imageName);
+		out.writeInt(STRING_COLUMNS.length);
+		for (String name : STRING_COLUMNS)
+			writeString(out, name);
+		out.writeInt(numericNames.size());
+		for (String name : numericNames)
+			writeString(out, name);
+		
+		int nNumeric = numericNames.size();
+		String[][] strings = new String[STRING_COLUMNS.length][rowGroupSize];
+		double[][] values = new double[nNumeric][rowGroupSize];
+		String[] rowStrings = new String[STRING_COLUMNS.length];
+		double[] rowValues = new double[nNumeric];
+		ColumnIndex index = new ColumnIndex(numericNames);
+		
+		long n = 0;
+		int row = 0;
+		for (PathObject pathObject : pathObjects) {
+			getStrings(pathObject, imageName, rowStrings);
+			getValues(pathObject, index, rowValues);
+			for (int c = 0; c < rowStrings.length; c++)
+				strings[c][row] = rowStrings[c];
+			for (int c = 0; c < nNumeric; c++)
+				values[c][row] = rowValues[c];
+			row++;
+			n++;
+			if (row == rowGroupSize) {
+				writeRowGroup(out, strings, values, row);
+				row = 0;
+			}
+		}
+		if (row > 0)
+			writeRowGroup(out, strings, values, row);
+		out.writeInt(0);
+		out.flush();
+		return n;
+	}
+	
+	private static void writeRowGroup(final DataOutputStream out, final String[][] strings, final double[][] values, final int nRows) throws IOException {
+		out.writeInt(nRows);
+		for (String[] column : strings) {
+			for (int i = 0; i < nRows; i++) {
+				writeString(out, column[i]);
+				column[i] = null;
+			}
+		}
+		for (double[] column : values) {
+			for (int i = 0; i < nRows; i++)
+				out.writeDouble(column[i]);
+		}
+	}
+	
+	
+	/**
+	 * Write a string as its length in bytes, followed by the UTF-8 bytes themselves.
+	 * Unlike {@link DataOutputStream#writeUTF(String)}, this isn't limited to strings of 64KB.
+	 * Null is written as an empty string.
+	 */
+	private static void writeString(final DataOutputStream out, final String value) throws IOException {
+		if (value == null || value.isEmpty()) {
+			out.writeInt(0);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	
+	private void getStrings(final PathObject pathObject, final String imageName, final String[] strings) {
+		strings[0] = imageName;
+		strings[1] = pathObject.getDisplayedName();
+		strings[2] = pathObject.getPathClass() == null ? null : pathObject.getPathClass().toString();
+		strings[3] = pathObject.getParent() == null ? null : pathObject.getParent().getDisplayedName();
+		strings[4] = pathObject.hasROI() ? pathObject.getROI().getROIType() : null;
+	}
+	
+	private void getValues(final PathObject pathObject, final ColumnIndex index, final double[] values) {
+		ROI roi = pathObject.getROI();
+		if (roi == null) {
+			values[0] = Double.NaN;
+			values[1] = Double.NaN;
+		} else if (hasPixelSizeMicrons()) {
+			values[0] = roi.getCentroidX() * pixelWidthMicrons;
+			values[1] = roi.getCentroidY() * pixelHeightMicrons;
+		} else {
+			values[0] = roi.getCentroidX();
+			values[1] = roi.getCentroidY();
+		}
+		for (int i = 2; i < values.length; i++)
+			values[i] = Double.NaN;
+		MeasurementList list = pathObject.getMeasurementList();
+		int[] columns = index.getColumns(list);
+		for (int i = 0; i < columns.length; i++) {
+			values[columns[i]] = list.getMeasurementValue(i);
+		}
+	}
+	
+	
+	/**
+	 * Map measurement list indices to output columns, caching the result for the last list of names seen 
+	 * (since these are commonly shared between objects).
+	 */
+	private static class ColumnIndex {
+		
+		private final Map<String, Integer> map = new LinkedHashMap<>();
+		private List<String> lastNames;
+		private int[] lastColumns;
+		
+		ColumnIndex(final List<String> numericNames) {
+			int i = 0;
+			for (String name : numericNames)
+				map.put(name, i++);
+		}
+		
+		int[] getColumns(final MeasurementList list) {
+			List<String> names = list.getMeasurementNames();
+			if (lastNames != null && (names == lastNames || names.equals(lastNames)))
+				return lastColumns;
+			int[] columns = new int[names.size()];
+			for (int i = 0; i < columns.length; i++)
+				columns[i] = map.get(names.get(i));
+			lastNames = names;
+			lastColumns = columns;
+			return columns;
+		}
+		
+	}
+	
+	
+	private static String escape(final String value, final String delimiter) {
+		if (value.contains(delimiter) || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0)
+			return "\"" + value.replace("\"", "\"\"") + "\"";
+		return value;
+	}
+	
+	
+	/**
+	 * Get all objects of the requested type, in depth-first order, while holding the hierarchy's lock.
+	 */
+	private List<PathObject> getObjects(final PathObjectHierarchy hierarchy) {
+		return hierarchy.getDescendantObjects(hierarchy.getRootObject(), null, cls);
+	}
+
+}
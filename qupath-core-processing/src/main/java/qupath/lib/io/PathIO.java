@@ -27,12 +27,16 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
@@ -46,12 +50,14 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Locale.Category;
 import java.util.Map.Entry;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.StreamSupport;
 
 import org.slf4j.Logger;
@@ -63,6 +69,7 @@ import qupath.lib.images.ImageData.ImageType;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerProvider;
 import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectCodec;
 import qupath.lib.objects.TMACoreObject;
 import qupath.lib.objects.hierarchy.DefaultTMAGrid;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
@@ -82,9 +89,66 @@ public class PathIO {
 	// Temporary flag to switch default file format used for serialization of ImageData objects
 	private static boolean USE_ZIPPED_SERIALIZATION = false;
 	
+	// Flag to write the compact binary format, rather than relying on Java serialization for the hierarchy
+	private static boolean USE_BINARY_SERIALIZATION = false;
+	
+	// 'Magic number' used to identify binary data files ("QPDT"), and the current binary version
+	private static final int BINARY_MAGIC = 0x51504454;
+	private static final int BINARY_VERSION = 1;
+	
+	// Minimum size of a binary data file for which detections are only loaded on demand (negative to always load everything)
+	private static long LAZY_LOADING_MIN_BYTES = 64L * 1024L * 1024L;
+	
 	private PathIO() {}
 	
 	
+	/**
+	 * Request that data files are written using QuPath's compact binary format, rather than Java serialization.
+	 * <p>
+	 * The binary format is much faster to read and write for large numbers of objects, and allows detections to be 
+	 * loaded on demand.  However, files written in this format cannot be read by older versions of QuPath.
+	 * Files in either format can always be read, regardless of this setting.
+	 * 
+	 * @param useBinary
+	 */
+	public static void setUseBinaryFormat(final boolean useBinary) {
+		USE_BINARY_SERIALIZATION = useBinary;
+	}
+	
+	/**
+	 * Query whether data files are written using QuPath's compact binary format.
+	 * 
+	 * @return
+	 * @see #setUseBinaryFormat(boolean)
+	 */
+	public static boolean getUseBinaryFormat() {
+		return USE_BINARY_SERIALIZATION;
+	}
+	
+	
+	/**
+	 * Set the minimum size of a data file for which detections should be loaded on demand, rather than when the file is opened.
+	 * <p>
+	 * When detections are loaded on demand, the data file is initially read without them.  They are then loaded 
+	 * whenever they are requested for a region (e.g. for display), and may be unloaded again later to save memory.
+	 * 
+	 * @param bytes the minimum file size, in bytes; if negative, all objects are loaded immediately
+	 */
+	public static void setLazyLoadingThreshold(final long bytes) {
+		LAZY_LOADING_MIN_BYTES = bytes;
+	}
+	
+	/**
+	 * Get the minimum size of a data file for which detections should be loaded on demand.
+	 * 
+	 * @return
+	 * @see #setLazyLoadingThreshold(long)
+	 */
+	public static long getLazyLoadingThreshold() {
+		return LAZY_LOADING_MIN_BYTES;
+	}
+	
+	
 	
 	/**
 	 * Read the server path from a serialized file, if present.  This is assumed to be the first line within the file.
@@ -93,6 +157,15 @@ public class PathIO {
 	 */
 	public static String readSerializedServerPath(final File file) {
 		String serverPath = null;
+		if (isBinaryFile(file)) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				readBinaryHeader(in);
+				return in.readUTF();
+			} catch (IOException e) {
+				logger.warn("Server path not stored within {}", file.getName());
+				return null;
+			}
+		}
 		try {
 			FileInputStream fileIn = null;
 			ObjectInputStream inStream = null;
@@ -297,9 +370,25 @@ public class PathIO {
 			return false;
 		
 		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-			int zipTest = in.readInt();
-			in.close();
-			return zipTest == 0x504b0304;
+			return in.readInt() == 0x504b0304;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	
+	/**
+	 * Test if a specified file uses QuPath's binary data format (rather than Java serialization for the entire file).
+	 * 
+	 * @param file
+	 * @return
+	 */
+	public static boolean isBinaryFile(final File file) {
+		if (!file.canRead() || file.length() < 8)
+			return false;
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			return in.readInt() == BINARY_MAGIC;
 		} catch (IOException e) {
 			return false;
 		}
@@ -330,6 +419,8 @@ public class PathIO {
 	 */
 	@SuppressWarnings("unchecked")
 	public static <T> ImageData<T> readImageData(final File file, ImageData<T> imageData, ImageServer<T> server, Class<T> cls) {
+		if (isBinaryFile(file))
+			return readImageDataBinary(file, imageData, server, cls);
 		if (!isZipFile(file))
 			return readImageDataSerialized(file, imageData, server, cls);
 		
@@ -473,7 +564,23 @@ public class PathIO {
 	 * @return
 	 */
 	public static boolean writeImageData(final File file, final ImageData<?> imageData) {
-		if (USE_ZIPPED_SERIALIZATION)
+		return writeImageData(file, imageData, USE_BINARY_SERIALIZATION);
+	}
+	
+	/**
+	 * Write (binary) file containing ImageData, optionally forcing the binary format to be used.
+	 * 
+	 * @param file
+	 * @param imageData
+	 * @param useBinary if true, write using the binary format regardless of {@link #getUseBinaryFormat()}
+	 * @return
+	 */
+	static boolean writeImageData(final File file, final ImageData<?> imageData, final boolean useBinary) {
+		// Any objects that haven't been loaded yet may need to be read from the file we're about to replace
+		imageData.getHierarchy().ensureObjectsLoaded();
+		if (useBinary)
+			return writeImageDataBinary(file, imageData);
+		else if (USE_ZIPPED_SERIALIZATION)
 			return writeImageDataZipped(file, imageData);
 		else
 			return writeImageDataSerialized(file, imageData);
@@ -513,8 +620,9 @@ public class PathIO {
 				e.printStackTrace();
 			}
 			
-			hierarchy.getTMAGrid().getTMACoreList().parallelStream().forEach(core -> {
-				int count = hierarchy.getTMAGrid().getTMACoreList().indexOf(core);
+			List<TMACoreObject> cores = hierarchy.getTMAGrid().getTMACoreList();
+			IntStream.range(0, cores.size()).parallel().forEach(count -> {
+				TMACoreObject core = cores.get(count);
 				Path corePath = fsZip.getPath("hierarchy", "core_" + count + ".qpobj");
 				try (ObjectOutputStream stream = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(corePath)))) {
 					stream.writeObject(core);
@@ -660,6 +768,265 @@ public class PathIO {
 	
 	
 	
+	/**
+	 * Write ImageData using the binary data format.
+	 * <p>
+	 * The file begins with a short header (magic number, version &amp; server path), followed by the image metadata
+	 * (using Java serialization, since this is small) and then the object hierarchy.  The hierarchy is split into chunks
+	 * that are encoded in parallel using a {@link PathObjectCodec}, to avoid the overhead of serializing each object individually.
+	 * 
+	 * @param file
+	 * @param imageData
+	 * @return
+	 */
+	private static boolean writeImageDataBinary(final File file, final ImageData<?> imageData) {
+		if (file == null)
+			return false;
+		File backup = null;
+		
+		try {
+			long startTime = System.currentTimeMillis();
+			
+			// Backup any existing file... just in case of disaster
+			if (file.exists()) {
+				File fileCopy = new File(file.toURI());
+				backup = new File(fileCopy.getAbsolutePath() + ".backup");
+				fileCopy.renameTo(backup);
+			}
+			
+			PathObjectHierarchy hierarchy = imageData.getHierarchy();
+			logger.info(String.format("Writing object hierarchy with %d object(s)...", hierarchy.nObjects()));
+			
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024*1024))) {
+				out.writeInt(BINARY_MAGIC);
+				out.writeInt(BINARY_VERSION);
+				out.writeUTF(imageData.getServerPath() == null ? "" : imageData.getServerPath());
+				
+				// Write the image metadata
+				byte[] metadata = serializeImageMetadata(imageData);
+				out.writeInt(metadata.length);
+				out.write(metadata);
+				
+				// Write the TMA grid as the indices of the cores within the child list of the root object
+				PathObject rootObject = hierarchy.getRootObject();
+				TMAGrid tmaGrid = hierarchy.getTMAGrid();
+				if (tmaGrid == null) {
+					out.writeInt(-1);
+				} else {
+					Map<PathObject, Integer> childIndices = new IdentityHashMap<>();
+					for (PathObject child : rootObject.getChildObjects())
+						childIndices.put(child, childIndices.size());
+					List<TMACoreObject> cores = tmaGrid.getTMACoreList();
+					out.writeInt(tmaGrid.getGridWidth());
+					out.writeInt(cores.size());
+					for (TMACoreObject core : cores) {
+						Integer ind = childIndices.get(core);
+						out.writeInt(ind == null ? -1 : ind);
+					}
+				}
+				
+				// Write the objects
+				ChunkedHierarchyIO.writeObjects(out, rootObject, true);
+			}
+			
+			// Remember the saved path
+			imageData.setLastSavedPath(file.getAbsolutePath(), true);
+			
+			// Delete the backup file
+			if (backup != null && !backup.equals(file))
+				backup.delete();
+			
+			long endTime = System.currentTimeMillis();
+			logger.info(String.format("Image data written to %s in %.2f seconds", file.getAbsolutePath(), (endTime - startTime)/1000.));
+		} catch (IOException e) {
+			logger.error("Error writing Image data to " + file.getAbsolutePath(), e);
+			return false;
+		}
+		return true;
+	}
+	
+	
+	private static byte[] serializeImageMetadata(final ImageData<?> imageData) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream outStream = new ObjectOutputStream(bytes)) {
+			outStream.writeObject(imageData.getImageType());
+			outStream.writeObject(imageData.getColorDeconvolutionStains());
+			outStream.writeObject(imageData.getHistoryWorkflow());
+			
+			// Write any remaining (serializable) properties
+			Map<String, Object> map = new HashMap<>();
+			for (Entry<String, Object> entry : imageData.getProperties().entrySet()) {
+				if (entry.getValue() instanceof Serializable)
+					map.put(entry.getKey(), entry.getValue());
+				else
+					logger.error("Property not serializable and will not be saved!  Key: " + entry.getKey() + ", Value: " + entry.getValue());
+			}
+			outStream.writeObject(map);
+			
+			// Write EOF marker
+			outStream.writeObject("EOF");
+		}
+		return bytes.toByteArray();
+	}
+	
+	
+	private static void readBinaryHeader(final DataInputStream in) throws IOException {
+		if (in.readInt() != BINARY_MAGIC)
+			throw new IOException("Not a QuPath binary data file");
+		int version = in.readInt();
+		if (version != BINARY_VERSION)
+			throw new IOException("Unsupported data file version " + version + " - a newer version of QuPath may be required");
+	}
+	
+	
+	/**
+	 * Read the hierarchy from a binary data file.
+	 * 
+	 * @param in
+	 * @param loader optional loader for detections that should be loaded on demand
+	 * @param journalDataFile optional data file whose journal should be replayed to recover unsaved changes
+	 * @return
+	 * @throws IOException
+	 */
+	private static PathObjectHierarchy readBinaryHierarchy(final DataInputStream in, final LazyObjectLoader loader, final File journalDataFile) throws IOException {
+		int gridWidth = in.readInt();
+		int[] coreIndices = null;
+		if (gridWidth >= 0) {
+			coreIndices = new int[in.readInt()];
+			for (int i = 0; i < coreIndices.length; i++)
+				coreIndices[i] = in.readInt();
+		}
+		
+		PathObject rootObject = ChunkedHierarchyIO.readObjects(in, loader, coreIndices);
+		if (!rootObject.isRootObject())
+			throw new IOException("Object hierarchy does not have a valid root object");
+		
+		// Recover any changes made since the file was written (this never affects the child list of the root object)
+		if (journalDataFile != null)
+			HierarchyJournal.replay(journalDataFile, rootObject);
+		
+		TMAGrid tmaGrid = null;
+		if (coreIndices != null) {
+			List<PathObject> children = new ArrayList<>(rootObject.getChildObjects());
+			List<TMACoreObject> cores = new ArrayList<>();
+			for (int ind : coreIndices) {
+				if (ind >= 0 && ind < children.size() && children.get(ind) instanceof TMACoreObject)
+					cores.add((TMACoreObject)children.get(ind));
+				else
+					logger.warn("Unable to find TMA core {} in object hierarchy", ind);
+			}
+			tmaGrid = new DefaultTMAGrid(cores, gridWidth);
+		}
+		
+		PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+		hierarchy.setHierarchy(rootObject, tmaGrid);
+		if (loader != null && loader.nChunks() > 0)
+			hierarchy.setObjectLoader(loader);
+		return hierarchy;
+	}
+	
+	
+	@SuppressWarnings("unchecked")
+	private static <T> ImageData<T> readImageDataBinary(final File file, ImageData<T> imageData, ImageServer<T> server, Class<T> cls) {
+		long startTime = System.currentTimeMillis();
+		logger.info("Reading data from {}...", file.getName());
+		
+		// For large files, defer reading detections until they are needed - unless there are changes to recover
+		boolean recover = HierarchyJournal.hasJournal(file);
+		LazyObjectLoader loader = null;
+		InputStream stream = null;
+		try {
+			stream = new BufferedInputStream(new FileInputStream(file), 1024*1024);
+			if (!recover && LAZY_LOADING_MIN_BYTES >= 0 && file.length() >= LAZY_LOADING_MIN_BYTES) {
+				loader = new LazyObjectLoader(file);
+				stream = loader.trackPosition(stream);
+			}
+		} catch (IOException e) {
+			logger.error("Unable to read image data from " + file, e);
+			return imageData;
+		}
+		
+		try (DataInputStream in = new DataInputStream(stream)) {
+			readBinaryHeader(in);
+			String serverPath = in.readUTF();
+			
+			ImageType imageType = null;
+			ColorDeconvolutionStains stains = null;
+			Workflow workflow = null;
+			Map<String, Object> propertyMap = null;
+			byte[] metadata = new byte[in.readInt()];
+			in.readFully(metadata);
+			try (ObjectInputStream inStream = new ObjectInputStream(new ByteArrayInputStream(metadata))) {
+				while (true) {
+					Object input = inStream.readObject();
+					if ("EOF".equals(input))
+						break;
+					if (input instanceof ImageType)
+						imageType = (ImageType)input;
+					else if (input instanceof ColorDeconvolutionStains)
+						stains = (ColorDeconvolutionStains)input;
+					else if (input instanceof Workflow)
+						workflow = (Workflow)input;
+					else if (input instanceof Map)
+						propertyMap = (Map<String, Object>)input;
+				}
+			} catch (ClassNotFoundException e) {
+				logger.error("Unable to find class", e);
+			}
+			
+			PathObjectHierarchy hierarchy = readBinaryHierarchy(in, loader, recover ? file : null);
+			boolean isLazy = hierarchy.getObjectLoader() != null;
+			
+			// Create an entirely new ImageData if necessary
+			if (imageData == null || !(imageData.getServer().equals(server) || imageData.getServerPath().equals(serverPath))) {
+				// Create a new server if we need to
+				if (server == null) {
+					try {
+						server = ImageServerProvider.buildServer(serverPath, cls);
+					} catch (Exception e) {
+						logger.error(e.getLocalizedMessage());
+					}
+					if (server == null)
+						logger.error("Warning: Unable to create server for path " + serverPath);
+				}
+				imageData = new ImageData<>(server, hierarchy, imageType);
+			} else {
+				if (imageType != null)
+					imageData.setImageType(imageType);
+				imageData.getHierarchy().setHierarchy(hierarchy);
+			}
+			// Set the other properties we have just read
+			if (workflow != null) {
+				imageData.getHistoryWorkflow().clear();
+				imageData.getHistoryWorkflow().addSteps(workflow.getSteps());
+			}
+			if (stains != null) {
+				imageData.setColorDeconvolutionStains(stains);
+			}
+			if (propertyMap != null) {
+				for (Entry<String, Object> entry : propertyMap.entrySet())
+					imageData.setProperty(entry.getKey(), entry.getValue());
+			}
+			
+			// Set the last saved path (actually the path from which this was opened)
+			imageData.setLastSavedPath(file.getAbsolutePath(), true);
+			// Recovered changes haven't been written to the data file yet
+			if (recover)
+				imageData.getHierarchy().fireHierarchyChangedEvent(imageData);
+			
+			long endTime = System.currentTimeMillis();
+			if (isLazy)
+				logger.info(String.format("Hierarchy read from %s in %.2f seconds (detections will be loaded on demand)", file.getAbsolutePath(), (endTime - startTime)/1000.));
+			else
+				logger.info(String.format("Hierarchy with %d object(s) read from %s in %.2f seconds", hierarchy.nObjects(), file.getAbsolutePath(), (endTime - startTime)/1000.));
+		} catch (IOException e) {
+			logger.error("Unable to read image data from " + file, e);
+		}
+		return imageData;
+	}
+	
+	
+	
 	/**
 	 * Read a PathObjectHierarchy from a saved data file (omitting all other contents).
 	 * 
@@ -670,6 +1037,19 @@ public class PathIO {
 		if (file == null)
 			return null;
 		
+		if (isBinaryFile(file)) {
+			logger.info("Reading hierarchy from {}...", file.getName());
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024*1024))) {
+				readBinaryHeader(in);
+				in.readUTF();
+				in.skipBytes(in.readInt());
+				return readBinaryHierarchy(in, null, HierarchyJournal.hasJournal(file) ? file : null);
+			} catch (IOException e) {
+				logger.error("Unable to read object hierarchy from " + file, e);
+				return null;
+			}
+		}
+		
 		Locale locale = Locale.getDefault(Category.FORMAT);
 		boolean localeChanged = false;
 		
@@ -23,19 +23,27 @@
 
 package qupath.lib.plugins;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import qupath.lib.common.SimpleThreadFactory;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.stores.ImageRegionStore;
@@ -47,7 +55,11 @@ import qupath.lib.objects.hierarchy.PathObjectHierarchy;
  * Abstract PluginRunner to help with the creation of plugin runners for specific circumstances,
  * e.g. running through a GUI, or from a command line only.
  * 
- * Note!  This makes use of a static threadpool, which will be reused by all inheriting classes.
+ * Note!  This makes use of a static (work-stealing) threadpool, which will be shared by all inheriting classes.
+ * The number of tasks each runner submits at any one time is limited by its parallelism, so that one large job 
+ * can't flood the pool - and so that several jobs can run alongside one another, e.g. when batch processing.
+ * <p>
+ * Statistics describing the tasks that have been run, including their latencies, are recorded for all runners.
  * 
  * @author Pete Bankhead
  *
@@ -60,10 +72,16 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 	private static int numThreadsRequested = Runtime.getRuntime().availableProcessors();
 	private static int counter = 0;
 
-	private static ExecutorService pool;
-	private ExecutorCompletionService<Runnable> service;
+	private static ForkJoinPool pool;
+	
+	private static LongAdder completedTaskCount = new LongAdder();
+	private static Map<String, LatencyHistogram> taskLatencies = new ConcurrentHashMap<>();
 
-	private Map<Future<Runnable>, Runnable> pendingTasks = new HashMap<>();
+	private int parallelism = -1;
+	
+	private BlockingQueue<TaskFuture> completedTasks;
+	private Iterator<Runnable> remainingTasks;
+	private Set<TaskFuture> pendingTasks = new HashSet<>();
 	
 	private ImageRegionStore<T> regionStore;
 	private boolean batchMode = false;
@@ -99,8 +117,11 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 			return;
 		numThreadsRequested = n;
 		// Need to shutdown the pool for this to take effect
-		if (pool != null)
+		// (any tasks already submitted will still be completed)
+		if (pool != null) {
 			pool.shutdown();
+			pool = null;
+		}
 	}
 	
 	/**
@@ -133,6 +154,108 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 		int max = Runtime.getRuntime().availableProcessors();
 		return numThreadsRequested <= 0 || numThreadsRequested > max ? max : numThreadsRequested;
 	}
+	
+	/**
+	 * Get the shared threadpool, creating it if necessary.
+	 * 
+	 * @return
+	 */
+	private synchronized static ForkJoinPool getPool() {
+		if (pool == null || pool.isShutdown()) {
+			int n = getNumThreads();
+			String prefix = "plugin-runner-" + (++counter) + "-";
+			// Ensure threads use the same context classloader as when the pool was created (e.g. to find extensions)
+			ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			pool = new ForkJoinPool(n, p -> {
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+				thread.setName(prefix + thread.getPoolIndex());
+				thread.setContextClassLoader(classLoader);
+				return thread;
+			}, null, true);
+			logger.debug("New threadpool created with {} threads", n);
+		}
+		return pool;
+	}
+	
+	/**
+	 * Set the maximum number of tasks this runner should run in parallel.
+	 * <p>
+	 * This is useful when running several jobs at the same time (e.g. for batch processing without a GUI), 
+	 * since it is applied per runner - whereas the threadpool is shared.
+	 * The value is limited by the size of the shared threadpool, so it can't be used to increase the number of 
+	 * threads beyond {@link #getNumThreads()}.
+	 * 
+	 * @param parallelism the maximum number of tasks, or <= 0 if this should be determined by the size of the threadpool
+	 */
+	public void setParallelism(final int parallelism) {
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * Get the maximum number of tasks this runner will run in parallel.
+	 * 
+	 * @return
+	 * 
+	 * @see #setParallelism(int)
+	 */
+	public int getParallelism() {
+		int n = getNumThreads();
+		return parallelism <= 0 ? n : Math.min(parallelism, n);
+	}
+	
+	/**
+	 * Get the approximate number of tasks currently being run by all plugin runners.
+	 * 
+	 * @return
+	 */
+	public static int getActiveTaskCount() {
+		ForkJoinPool p = pool;
+		return p == null ? 0 : p.getActiveThreadCount();
+	}
+	
+	/**
+	 * Get the approximate number of tasks that have been submitted by all plugin runners, but not yet started.
+	 * 
+	 * @return
+	 */
+	public static long getQueuedTaskCount() {
+		ForkJoinPool p = pool;
+		return p == null ? 0 : p.getQueuedSubmissionCount() + p.getQueuedTaskCount();
+	}
+	
+	/**
+	 * Get the total number of tasks that have been completed by all plugin runners.
+	 * 
+	 * @return
+	 */
+	public static long getCompletedTaskCount() {
+		return completedTaskCount.sum();
+	}
+	
+	/**
+	 * Get histograms of the time taken to run tasks, with keys given by the names of the task classes.
+	 * 
+	 * @return
+	 */
+	public static Map<String, LatencyHistogram> getTaskLatencies() {
+		return Collections.unmodifiableMap(new LinkedHashMap<>(taskLatencies));
+	}
+	
+	/**
+	 * Reset all task statistics.
+	 */
+	public static void resetTaskStatistics() {
+		completedTaskCount.reset();
+		taskLatencies.clear();
+	}
+	
+	private static void recordTaskCompleted(final Runnable task, final long nanos) {
+		completedTaskCount.increment();
+		String name = task.getClass().getSimpleName();
+		if (name.isEmpty())
+			name = task.getClass().getName();
+		taskLatencies.computeIfAbsent(name, n -> new LatencyHistogram()).record(nanos);
+	}
 
 	protected abstract SimpleProgressMonitor makeProgressMonitor();
 	
@@ -182,29 +305,68 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 		// Reset cancelled status
 		tasksCancelled = false;
 		
-		// Ensure we have a pool
-		if (pool == null || pool.isShutdown()) {
-			int n = getNumThreads();
-			pool = Executors.newFixedThreadPool(n, new SimpleThreadFactory("plugin-runner-"+(+counter)+"-", false));
-			logger.debug("New threadpool created with {} threads", n);
-			service = new ExecutorCompletionService<>(pool);
-		} else if (service == null)
-			service = new ExecutorCompletionService<>(pool);
-		
 		monitor = makeProgressMonitor();
 		monitor.startMonitoring(null, tasks.size(), true);
-		for (Runnable task : tasks) {
-			Future<Runnable> future = service.submit(task, task);
-			pendingTasks.put(future, task);
-		}
-		// TODO: See if this needs to be shutdown here, or there's a better way..?
-		// In any case, it was inhibiting application shutdown just letting it be...
-		pool.shutdown();
+		
+		// Only submit as many tasks as we want to run in parallel - more are submitted as these complete
+		completedTasks = new LinkedBlockingQueue<>();
+		remainingTasks = new ArrayList<>(tasks).iterator();
+		submitTasks();
 		if (!pendingTasks.isEmpty())
 			awaitCompletion();
 	}
 	
 	
+	/**
+	 * Submit tasks to the threadpool until the maximum number are pending, or there are no more tasks.
+	 */
+	private void submitTasks() {
+		int n = getParallelism();
+		while (remainingTasks != null && remainingTasks.hasNext() && pendingTasks.size() < n) {
+			TaskFuture future = new TaskFuture(remainingTasks.next(), completedTasks);
+			pendingTasks.add(future);
+			getPool().execute(future);
+		}
+	}
+	
+	
+	/**
+	 * Cancel all pending tasks, along with any that have not yet been submitted.
+	 */
+	private void cancelTasks() {
+		for (TaskFuture future : pendingTasks.toArray(new TaskFuture[0])) {
+			if (future.cancel(true)) {
+				pendingTasks.remove(future);
+				if (monitor != null)
+					monitor.updateProgress(1, "", null);
+			} else
+				logger.debug("Cancel returned false for {}", future);
+		}
+		int nRemaining = 0;
+		while (remainingTasks != null && remainingTasks.hasNext()) {
+			remainingTasks.next();
+			nRemaining++;
+		}
+		if (nRemaining > 0 && monitor != null)
+			monitor.updateProgress(nRemaining, "", null);
+	}
+	
+	
+	/**
+	 * Wait for the next task to complete, without starving the shared pool if called from one of its threads.
+	 * 
+	 * @return
+	 * @throws InterruptedException
+	 */
+	private TaskFuture takeCompleted() throws InterruptedException {
+		if (!ForkJoinTask.inForkJoinPool())
+			return completedTasks.take();
+		CompletionBlocker blocker = new CompletionBlocker(completedTasks);
+		ForkJoinPool.managedBlock(blocker);
+		return blocker.item;
+	}
+	
+	
 //	/* (non-Javadoc)
 //	 * @see qupath.lib.plugins.PluginRunner#isRunning()
 //	 */
@@ -222,20 +384,20 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 	protected void awaitCompletion() {
 		try {
 			while (!pendingTasks.isEmpty()) {
-				Future<Runnable> future = null;
+				TaskFuture future = null;
 				// Check if the monitor has been cancelled; if so, do any post processing if a task is available and otherwise cancel remaining ones
-				if (!tasksCancelled && monitor != null && monitor.cancelled() && (future = service.poll()) == null) {
+				if (!tasksCancelled && monitor != null && monitor.cancelled() && (future = completedTasks.poll()) == null) {
 					// Cancel all enqueued tasks
-					for (Future<?> entry : pendingTasks.keySet().toArray(new Future<?>[0])) {
-						if (entry.cancel(true)) {
-							pendingTasks.remove(entry);
-							monitor.updateProgress(1, "", null);
-						} else
-							logger.debug("Cancel returned false for {}", entry);
-					}
+					cancelTasks();
 					tasksCancelled = true;
 				}
-				future = future == null ? service.take() : future;
+				future = future == null ? takeCompleted() : future;
+				// Cancelled futures may have been removed already
+				if (!pendingTasks.remove(future))
+					continue;
+				// Keep the pool busy before post-processing, which might need to wait for another thread
+				if (!tasksCancelled)
+					submitTasks();
 //				logger.warn("Future: {}", future);
 				// If the task finished without being cancelled, run post-processing if required & update the progress monitor
 				if (!future.isCancelled()) {
@@ -248,12 +410,12 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 						updateMonitor(task);
 					}
 				}
-				pendingTasks.remove(future);
 			}
 			if (monitor != null)
 				monitor.pluginCompleted("Tasks completed!");
 		} catch (InterruptedException e) {
 			logger.error("Plugin interrupted: {}", e.getLocalizedMessage(), e);
+			cancelTasks();
 			monitor.pluginCompleted("Completed with error " + e.getLocalizedMessage());
 		} catch (ExecutionException e) {
 			logger.error("Error running plugin: {}", e.getLocalizedMessage(), e);
@@ -263,16 +425,16 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 //				logger.error("CAUSING Error running plugin: {}", e2.getLocalizedMessage(), e2);
 //			}
 //			e.printStackTrace();
-			if (pool != null)
-				pool.shutdownNow();
+			cancelTasks();
 			monitor.pluginCompleted("Completed with error " + e.getLocalizedMessage());
 		} catch (Exception e) {
 			logger.error("Error running plugin: {}", e.getLocalizedMessage(), e);
-			if (pool != null)
-				pool.shutdownNow();
+			cancelTasks();
 			monitor.pluginCompleted("Completed with error " + e.getLocalizedMessage());
 		} finally {
 			pendingTasks.clear();
+			remainingTasks = null;
+			logger.debug("Plugin tasks: active={}, queued={}, completed={}", getActiveTaskCount(), getQueuedTaskCount(), getCompletedTaskCount());
 		}
 	}
 
@@ -319,4 +481,163 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 	}
 	
 
+	
+	
+	/**
+	 * Future for a task, which records its latency & adds itself to a queue upon completion.
+	 */
+	static class TaskFuture extends FutureTask<Runnable> {
+		
+		private final Runnable task;
+		private final BlockingQueue<TaskFuture> completedQueue;
+		private long startTime = -1L;
+		
+		TaskFuture(final Runnable task, final BlockingQueue<TaskFuture> completedQueue) {
+			super(task, task);
+			this.task = task;
+			this.completedQueue = completedQueue;
+		}
+		
+		@Override
+		public void run() {
+			startTime = System.nanoTime();
+			super.run();
+		}
+		
+		@Override
+		protected void done() {
+			// Record the latency before anyone waiting for completion can be notified
+			if (!isCancelled() && startTime >= 0)
+				recordTaskCompleted(task, System.nanoTime() - startTime);
+			completedQueue.add(this);
+		}
+		
+	}
+	
+	
+	static class CompletionBlocker implements ForkJoinPool.ManagedBlocker {
+		
+		private final BlockingQueue<TaskFuture> queue;
+		private TaskFuture item;
+		
+		CompletionBlocker(final BlockingQueue<TaskFuture> queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public boolean block() throws InterruptedException {
+			if (item == null)
+				item = queue.take();
+			return true;
+		}
+
+		@Override
+		public boolean isReleasable() {
+			return item != null || (item = queue.poll()) != null;
+		}
+		
+	}
+	
+	
+	/**
+	 * Histogram of task latencies, using bins with exponentially-increasing widths.
+	 * <p>
+	 * Bin i contains latencies of less than 2^i milliseconds (and at least 2^(i-1) milliseconds, if i > 0), 
+	 * apart from the last bin which contains all longer latencies.
+	 */
+	public static class LatencyHistogram {
+		
+		static final int N_BINS = 24;
+		
+		private final LongAdder[] counts = new LongAdder[N_BINS];
+		private final LongAdder totalNanos = new LongAdder();
+		private volatile long maxNanos = 0;
+		
+		LatencyHistogram() {
+			for (int i = 0; i < N_BINS; i++)
+				counts[i] = new LongAdder();
+		}
+		
+		void record(final long nanos) {
+			long millis = nanos / 1000000L;
+			int bin = Math.min(N_BINS - 1, 64 - Long.numberOfLeadingZeros(millis));
+			counts[bin].increment();
+			totalNanos.add(nanos);
+			if (nanos > maxNanos) {
+				synchronized (this) {
+					maxNanos = Math.max(maxNanos, nanos);
+				}
+			}
+		}
+		
+		/**
+		 * Get the number of latencies recorded.
+		 * @return
+		 */
+		public long getCount() {
+			long n = 0;
+			for (LongAdder count : counts)
+				n += count.sum();
+			return n;
+		}
+		
+		/**
+		 * Get the counts for each bin.
+		 * @return
+		 */
+		public long[] getBinCounts() {
+			long[] result = new long[N_BINS];
+			for (int i = 0; i < N_BINS; i++)
+				result[i] = counts[i].sum();
+			return result;
+		}
+		
+		/**
+		 * Get the mean latency, in milliseconds.
+		 * @return
+		 */
+		public double getMeanMillis() {
+			long n = getCount();
+			return n == 0 ? Double.NaN : totalNanos.sum() / 1e6 / n;
+		}
+		
+		/**
+		 * Get the maximum latency, in milliseconds.
+		 * @return
+		 */
+		public double getMaxMillis() {
+			return maxNanos / 1e6;
+		}
+		
+		/**
+		 * Get an upper bound for the specified percentile of the latency, in milliseconds.
+		 * 
+		 * @param percentile value between 0 and 100
+		 * @return
+		 */
+		public double getPercentileMillis(final double percentile) {
+			long[] binCounts = getBinCounts();
+			long n = 0;
+			for (long c : binCounts)
+				n += c;
+			if (n == 0)
+				return Double.NaN;
+			long target = (long)Math.ceil(n * percentile / 100.0);
+			long cumulative = 0;
+			for (int i = 0; i < N_BINS - 1; i++) {
+				cumulative += binCounts[i];
+				if (cumulative >= target)
+					return Math.min(1L << i, getMaxMillis());
+			}
+			return getMaxMillis();
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("LatencyHistogram[n=%d, mean=%.1f ms, p50<=%.1f ms, p95<=%.1f ms, max=%.1f ms]",
+					getCount(), getMeanMillis(), getPercentileMillis(50), getPercentileMillis(95), getMaxMillis());
+		}
+		
+	}
+	
 }
\ No newline at end of file
@@ -53,6 +53,22 @@ public class CommandLinePluginRunner<T> extends AbstractPluginRunner<T> {
 		super(regionStore, batchMode);
 		this.imageData = imageData;
 	}
+	
+	/**
+	 * Create a runner that uses at most the specified number of threads, e.g. when several images are being 
+	 * processed in parallel without a GUI.
+	 * 
+	 * @param regionStore
+	 * @param imageData
+	 * @param batchMode
+	 * @param parallelism maximum number of tasks to run in parallel, or <= 0 to use all available threads
+	 * 
+	 * @see AbstractPluginRunner#setParallelism(int)
+	 */
+	public CommandLinePluginRunner(final ImageRegionStore<T> regionStore, final ImageData<T> imageData, boolean batchMode, final int parallelism) {
+		this(regionStore, imageData, batchMode);
+		setParallelism(parallelism);
+	}
 
 	@Override
 	public SimpleProgressMonitor makeProgressMonitor() {
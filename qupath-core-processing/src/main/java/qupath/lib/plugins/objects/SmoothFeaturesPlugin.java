@@ -24,11 +24,13 @@
 package qupath.lib.plugins.objects;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +39,7 @@ import qupath.lib.classifiers.PathClassificationLabellingHelper;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.measurements.ColumnarMeasurementTable;
 import qupath.lib.measurements.MeasurementList;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathDetectionObject;
@@ -72,6 +75,7 @@ public class SmoothFeaturesPlugin<T> extends AbstractInteractivePlugin<T> {
 				.addDoubleParameter("fwhmMicrons", "Radius (FWHM)", 25, GeneralTools.micrometerSymbol(), "Smoothing filter size - higher values indicate more smoothing")
 				.addDoubleParameter("fwhmPixels", "Radius (FWHM)", 100, "pixels", "Smoothing filter size - higher values indicate more smoothing")
 				.addBooleanParameter("smoothWithinClasses", "Smooth within classes", false, "Restrict smoothing to only be applied within objects with the same base classification")
+				.addBooleanParameter("approximate", "Use fast approximation", false, "Approximate smoothing using a binned grid - much faster for very large radii, but values differ slightly from the exact calculation")
 				.addBooleanParameter("useLegacyNames", "Use legacy feature names", false, "Use previous naming strategy for smoothed features - only retained here for backwards compatibility")
 				;
 	}
@@ -124,6 +128,7 @@ public class SmoothFeaturesPlugin<T> extends AbstractInteractivePlugin<T> {
 		final double fwhmPixels = fwhm;
 		final boolean withinClass = params.getBooleanParameterValue("smoothWithinClasses");
 		final boolean useLegacyNames = Boolean.TRUE.equals(params.getBooleanParameterValue("useLegacyNames"));
+		final boolean approximate = Boolean.TRUE.equals(params.getBooleanParameterValue("approximate"));
 		tasks.add(new Runnable() {
 
 			@Override
@@ -154,7 +159,7 @@ public class SmoothFeaturesPlugin<T> extends AbstractInteractivePlugin<T> {
 					}
 					
 					logger.debug(String.format("Smooth features: %s (FWHM: %.2f px)", parentObject.getDisplayedName(), fwhmPixels));
-					smoothMeasurements(pathObjects, measurements, fwhmPixels, fwhmString, withinClass, useLegacyNames);
+					smoothMeasurements(pathObjects, measurements, fwhmPixels, fwhmString, withinClass, useLegacyNames, approximate);
 					
 					
 //					// REMOVE - the purpose was to test a 'difference of Gaussians' type of thing
@@ -189,86 +194,85 @@ public class SmoothFeaturesPlugin<T> extends AbstractInteractivePlugin<T> {
 	 * nearby objects, weighted by centroid distance.
 	 * 
 	 * @param pathObjects
-	 * @param pathClasses
-	 * @param sigmaPixels
-	 * 
-//	 * @return A set containing names for all the measurements that were added
+	 * @param measurements
+	 * @param fwhmPixels
+	 * @param fwhmString
+	 * @param withinClass
+	 * @param useLegacyNames
 	 */
-//	public static Set<String> smoothMeasurements(List<PathObject> pathObjects, List<String> measurements, double fwhmPixels) {
 	public static void smoothMeasurements(List<PathObject> pathObjects, List<String> measurements, double fwhmPixels, String fwhmString, boolean withinClass, boolean useLegacyNames) {
+		smoothMeasurements(pathObjects, measurements, fwhmPixels, fwhmString, withinClass, useLegacyNames, false);
+	}
+	
+	/**
+	 * Using the centroids of the ROIs within PathObjects, 'smooth' measurements by summing up the corresponding measurements of
+	 * nearby objects, weighted by centroid distance.
+	 * <p>
+	 * Neighbors are found using a uniform grid, with cells at least as large as the maximum distance at which objects 
+	 * can influence one another, and objects are processed in parallel.
+	 * <p>
+	 * If {@code approximate} is true, measurements are instead binned into a grid with a spacing of half the Gaussian sigma, 
+	 * which is then filtered and interpolated at each centroid.  This gives similar (but not identical) results, and is 
+	 * much faster whenever each object has a very large number of neighbors (i.e. for very large radii).
+	 * 
+	 * @param pathObjects
+	 * @param measurements
+	 * @param fwhmPixels
+	 * @param fwhmString
+	 * @param withinClass
+	 * @param useLegacyNames
+	 * @param approximate
+	 */
+	public static void smoothMeasurements(List<PathObject> pathObjects, List<String> measurements, double fwhmPixels, String fwhmString, boolean withinClass, boolean useLegacyNames, boolean approximate) {
 		if (measurements.isEmpty() || pathObjects.size() <= 1)
-			return; //Collections.emptySet();
-		
-//		Set<String> measurementsAdded = new LinkedHashSet<>();
+			return;
 		
 		if (fwhmString == null)
 			fwhmString = String.format("%.2f px", fwhmPixels);
 
-		double fwhmPixels2 = fwhmPixels * fwhmPixels;
-		double sigmaPixels = fwhmPixels / Math.sqrt(8 * Math.log(2));
-		double sigma2 = 2 * sigmaPixels * sigmaPixels;
-		double maxDist = sigmaPixels * 3;
-		double maxDistSq = maxDist * maxDist; // Maximum separation
-
-		int nObjects = pathObjects.size();
-		//		int counter = 0;
-
-		// Sort by x-coordinate - this gives us a method of breaking early
-		Collections.sort(pathObjects, new Comparator<PathObject>() {
-			@Override
-			public int compare(PathObject o1, PathObject o2) {
-				double x1 = o1.getROI().getCentroidX();
-				double x2 = o2.getROI().getCentroidX();
-//				int value = Double.compare(x1, x2);
-//				if (value == 0) {
-//					System.out.println(x1 + " vs. " + x2);
-//					System.out.println(String.format("(%.2f, %.2f) vs (%.2f, %.2f)", o1.getROI().getCentroidX(), o1.getROI().getCentroidY(), o2.getROI().getCentroidX(), o2.getROI().getCentroidY()));				}
-				return Double.compare(x1, x2);
-//				if (x1 > x2)
-//					return 1;
-//				if (x2 < x1)
-//					return -1;
-//				System.out.println(x1 + " vs. " + x2);
-//				System.out.println(String.format("(%.2f, %.2f) vs (%.2f, %.2f)", o1.getROI().getCentroidX(), o1.getROI().getCentroidY(), o2.getROI().getCentroidX(), o2.getROI().getCentroidY()));
-//				return 0;
-//				return (int)Math.signum(o1.getROI().getCentroidX() - o2.getROI().getCentroidX());
-			}
-		});
-		
-		
-		// Create a LUT for distances - calculating exp every time is expensive
-		double[] distanceWeights = new double[(int)(maxDist + .5) + 1];
-		for (int i = 0; i < distanceWeights.length; i++) {
-			distanceWeights[i] = Math.exp(-(i * i)/sigma2);
-		}
+		long startTime = System.currentTimeMillis();
 		
-
-		System.currentTimeMillis();
+		int nObjects = pathObjects.size();
+		int nMeasurements = measurements.size();
 		
+		// Extract centroids, classes & measurements up front
 		float[] xCentroids = new float[nObjects];
 		float[] yCentroids = new float[nObjects];
-		PathClass[] pathClasses = new PathClass[nObjects];
-		int[] nearbyDetectionCounts = new int[nObjects];
-		float[][] measurementsWeighted = new float[nObjects][measurements.size()];
-		float[][] measurementDenominators = new float[nObjects][measurements.size()];
-		float[][] measurementValues = new float[nObjects][measurements.size()];
+		Map<PathClass, List<Integer>> classMap = new LinkedHashMap<>();
+		List<MeasurementList> measurementLists = new ArrayList<>(nObjects);
 		for (int i = 0; i < nObjects; i++) {
 			PathObject pathObject = pathObjects.get(i);
+			PathClass pathClass = null;
 			if (withinClass)
-				pathClasses[i] = pathObject.getPathClass() == null ? null : pathObject.getPathClass().getBaseClass();
+				pathClass = pathObject.getPathClass() == null ? null : pathObject.getPathClass().getBaseClass();
+			List<Integer> inds = classMap.get(pathClass);
+			if (inds == null) {
+				inds = new ArrayList<>();
+				classMap.put(pathClass, inds);
+			}
+			inds.add(i);
 			ROI roi = pathObject.getROI();
 			xCentroids[i] = (float)roi.getCentroidX();
 			yCentroids[i] = (float)roi.getCentroidY();
-			MeasurementList measurementList = pathObject.getMeasurementList();
-			int ind = 0;
-			for (String name : measurements) {
-				float value = (float)measurementList.getMeasurementValue(name);
-				
-				measurementValues[i][ind] = value;   // Used to cache values
-				measurementsWeighted[i][ind] = value; // Based on distances and measurements
-				measurementDenominators[i][ind] = 1; // Based on distances along
-				ind++;
-			}
+			measurementLists.add(pathObject.getMeasurementList());
+		}
+		// Values are stored per object, since all the measurements of each neighbor are needed together
+		float[] measurementValues = new float[nObjects * nMeasurements];
+		double[] column = null;
+		for (int k = 0; k < nMeasurements; k++) {
+			column = ColumnarMeasurementTable.getMeasurementValues(measurementLists, measurements.get(k), column);
+			for (int i = 0; i < nObjects; i++)
+				measurementValues[i * nMeasurements + k] = (float)column[i];
+		}
+		
+		// Smooth each class separately (or all objects together)
+		SmoothingResults results = new SmoothingResults(nObjects, nMeasurements);
+		for (List<Integer> inds : classMap.values()) {
+			int[] indices = new int[inds.size()];
+			for (int i = 0; i < indices.length; i++)
+				indices[i] = inds.get(i);
+			if (!approximate || !smoothApproximate(indices, xCentroids, yCentroids, measurementValues, nMeasurements, fwhmPixels, results))
+				smoothExact(indices, xCentroids, yCentroids, measurementValues, nMeasurements, fwhmPixels, results);
 		}
 
 		String prefix, postfix, denomName, countsName;
@@ -287,101 +291,375 @@ public class SmoothFeaturesPlugin<T> extends AbstractInteractivePlugin<T> {
 //			denomName = prefix + "Denominator (local density)";
 //			countsName = prefix + "Nearby detection counts";
 		}
+		String[] namesToAdd = new String[nMeasurements];
+		for (int k = 0; k < nMeasurements; k++)
+			namesToAdd[k] = prefix + measurements.get(k) + postfix;
 		
-		// Loop through objects, computing predominant class based on distance weighting
+		// Store the measurements
 		for (int i = 0; i < nObjects; i++) {
-			// Extract the current class index
 			PathObject pathObject = pathObjects.get(i);
-			PathClass pathClass = pathClasses[i];
-			MeasurementList measurementList = pathObject.getMeasurementList();
-			float[] mValues = measurementValues[i];
-			float[] mWeighted = measurementsWeighted[i];
-			float[] mDenominator = measurementDenominators[i];
-			
-			// Compute centroid distances
-			double xi = xCentroids[i];
-			double yi = yCentroids[i];
-			for (int j = i+1; j < nObjects; j++) {
-				
-				double xj = xCentroids[j];
-				double yj = yCentroids[j];
-				//				counter++;
-				// Break early if we are already too far away
-				if (Math.abs(xj - xi) > maxDist) {
-					break;
-				}
+			MeasurementList measurementList = measurementLists.get(i);
+			for (int k = 0; k < nMeasurements; k++)
+				measurementList.putMeasurement(namesToAdd[k], results.smoothed[i * nMeasurements + k]);
+			if (pathObject instanceof PathDetectionObject && denomName != null)
+				measurementList.putMeasurement(denomName, results.maxDenominators[i]);
+			if (pathObject instanceof PathDetectionObject && countsName != null)
+				measurementList.putMeasurement(countsName, results.nearbyDetectionCounts[i]);
+			measurementList.closeList();
+		}
+		
+		logger.debug("Smoothed {} measurements for {} objects in {} ms", nMeasurements, nObjects, System.currentTimeMillis() - startTime);
+	}
+	
+	
+	/**
+	 * Smoothed values, along with the maximum denominator &amp; number of nearby detections for each object.
+	 */
+	private static class SmoothingResults {
+		
+		private final float[] smoothed;
+		private final float[] maxDenominators;
+		private final int[] nearbyDetectionCounts;
+		
+		SmoothingResults(int nObjects, int nMeasurements) {
+			smoothed = new float[nObjects * nMeasurements];
+			maxDenominators = new float[nObjects];
+			nearbyDetectionCounts = new int[nObjects];
+		}
+		
+	}
+	
+	
+	private static double getSigma(double fwhmPixels) {
+		return fwhmPixels / Math.sqrt(8 * Math.log(2));
+	}
+	
+	
+	/**
+	 * Compute the weighted sums of measurements from all objects within 3 sigma.
+	 * <p>
+	 * Objects are bucketed into a grid, so that only the objects in the 3x3 neighborhood of each cell need to be checked.
+	 * Each object only writes its own results, so that cells can be processed in parallel.
+	 */
+	private static void smoothExact(int[] indices, float[] xCentroids, float[] yCentroids, float[] measurementValues, int nMeasurements, double fwhmPixels, SmoothingResults results) {
+		double fwhmPixels2 = fwhmPixels * fwhmPixels;
+		double sigmaPixels = getSigma(fwhmPixels);
+		double sigma2 = 2 * sigmaPixels * sigmaPixels;
+		double maxDist = sigmaPixels * 3;
+		double maxDistSq = maxDist * maxDist; // Maximum separation
 
-				double distSq = (xj - xi)*(xj - xi) + (yj - yi)*(yj - yi);
-//				// Check if we are close enough to have an influence
-				if (distSq > maxDistSq || Double.isNaN(distSq))
-					continue;
-				
-				// Check if the class is ok, if check needed
-				if (withinClass && pathClass != pathClasses[j])
-					continue;
-				
-				// Update the counts, if close enough
-				if (distSq < fwhmPixels2) {
-					nearbyDetectionCounts[i]++;
-					nearbyDetectionCounts[j]++;
+		// Create a LUT for distances - calculating exp every time is expensive
+		double[] distanceWeights = new double[(int)(maxDist + .5) + 1];
+		for (int i = 0; i < distanceWeights.length; i++) {
+			distanceWeights[i] = Math.exp(-(i * i)/sigma2);
+		}
+		
+		ObjectGrid grid = new ObjectGrid(indices, xCentroids, yCentroids, maxDist);
+		
+		// Objects without a valid centroid can't have any neighbors
+		for (int i : grid.invalid)
+			setResult(i, measurementValues, nMeasurements, null, null, 0, results);
+		
+		IntStream cells = IntStream.range(0, grid.nCells());
+		if (grid.nCells() > 1)
+			cells = cells.parallel();
+		cells.forEach(cell -> {
+			if (grid.cellStart[cell] == grid.cellStart[cell+1])
+				return;
+			double[] weighted = new double[nMeasurements];
+			double[] denominators = new double[nMeasurements];
+			int cx = cell % grid.nx;
+			int cy = cell / grid.nx;
+			for (int s = grid.cellStart[cell]; s < grid.cellStart[cell+1]; s++) {
+				int i = grid.sorted[s];
+				double xi = xCentroids[i];
+				double yi = yCentroids[i];
+				int offset = i * nMeasurements;
+				for (int k = 0; k < nMeasurements; k++) {
+					weighted[k] = measurementValues[offset + k];
+					denominators[k] = 1;
 				}
-
-				// Update the class weights for both objects currently being tested
-				// Compute weight based on centroid distances
-//				double weight = Math.exp(-distSq/sigma2);
-				double weight = distanceWeights[(int)(Math.sqrt(distSq) + .5)];// * pathObjects.get(j).getClassProbability();
-				float [] temp = measurementValues[j];
-				float [] tempWeighted = measurementsWeighted[j];
-				float [] tempDenominator = measurementDenominators[j];
-				for (int ind = 0; ind < measurements.size(); ind++) {
-					float tempVal = temp[ind];
-					if (Float.isNaN(tempVal))
-						continue;
-					mWeighted[ind] += tempVal * weight;
-					mDenominator[ind] += weight;
-					
-					float tempVal2 = mValues[ind];
-					if (Float.isNaN(tempVal2))
-						continue;
-					tempWeighted[ind] += tempVal2 * weight;
-					tempDenominator[ind] += weight;
+				int count = 0;
+				for (int y = Math.max(0, cy-1); y <= Math.min(grid.ny-1, cy+1); y++) {
+					for (int x = Math.max(0, cx-1); x <= Math.min(grid.nx-1, cx+1); x++) {
+						int neighborCell = y * grid.nx + x;
+						for (int t = grid.cellStart[neighborCell]; t < grid.cellStart[neighborCell+1]; t++) {
+							int j = grid.sorted[t];
+							if (j == i)
+								continue;
+							double dx = xCentroids[j] - xi;
+							double dy = yCentroids[j] - yi;
+							double distSq = dx*dx + dy*dy;
+							// Check if we are close enough to have an influence
+							if (distSq > maxDistSq)
+								continue;
+							if (distSq < fwhmPixels2)
+								count++;
+							double weight = distanceWeights[(int)(Math.sqrt(distSq) + .5)];
+							int offsetNeighbor = j * nMeasurements;
+							for (int k = 0; k < nMeasurements; k++) {
+								float val = measurementValues[offsetNeighbor + k];
+								if (Float.isNaN(val))
+									continue;
+								weighted[k] += val * weight;
+								denominators[k] += weight;
+							}
+						}
+					}
 				}
+				setResult(i, measurementValues, nMeasurements, weighted, denominators, count, results);
 			}
-			
-			// Store the measurements
-			int ind = 0;
+		});
+	}
+	
+	
+	/**
+	 * Approximate the weighted sums by binning measurements into a grid, applying a (separable) Gaussian filter, 
+	 * and interpolating the filtered values at each centroid.  Counts are approximated by filtering the number of 
+	 * objects per bin with a disk of radius FWHM.
+	 * 
+	 * @return false if the grid would be too large to be worthwhile, in which case nothing is computed
+	 */
+	private static boolean smoothApproximate(int[] indices, float[] xCentroids, float[] yCentroids, float[] measurementValues, int nMeasurements, double fwhmPixels, SmoothingResults results) {
+		double sigmaPixels = getSigma(fwhmPixels);
+		double spacing = sigmaPixels / 2;
+		ObjectGrid grid = new ObjectGrid(indices, xCentroids, yCentroids, spacing);
+		if (grid.spacing > spacing || grid.sorted.length == 0) {
+			logger.debug("Grid approximation not used - centroids are too sparse for FWHM {}", fwhmPixels);
+			return false;
+		}
+		int nx = grid.nx;
+		int ny = grid.ny;
+		
+		for (int i : grid.invalid)
+			setResult(i, measurementValues, nMeasurements, null, null, 0, results);
+		
+		// Gaussian kernel, in units of grid spacing - sigma is 2 bins, truncated at 3 sigma
+		double sigmaBins = sigmaPixels / spacing;
+		double[] kernel = new double[(int)Math.ceil(sigmaBins * 3) + 1];
+		for (int i = 0; i < kernel.length; i++)
+			kernel[i] = Math.exp(-(i * i) / (2 * sigmaBins * sigmaBins));
+		
+		// Interpolation coordinates for each centroid (bin centers are at integer positions)
+		int n = grid.sorted.length;
+		int[] binX = new int[n];
+		int[] binY = new int[n];
+		float[] fracX = new float[n];
+		float[] fracY = new float[n];
+		for (int s = 0; s < n; s++) {
+			int i = grid.sorted[s];
+			double x = (xCentroids[i] - grid.minX) / spacing - 0.5;
+			double y = (yCentroids[i] - grid.minY) / spacing - 0.5;
+			binX[s] = Math.max(0, Math.min(nx - 2, (int)Math.floor(x)));
+			binY[s] = Math.max(0, Math.min(ny - 2, (int)Math.floor(y)));
+			fracX[s] = (float)Math.max(0, Math.min(1, x - binX[s]));
+			fracY[s] = (float)Math.max(0, Math.min(1, y - binY[s]));
+		}
+		
+		// Nearby detection counts, using a disk filter
+		double[] counts = new double[grid.nCells()];
+		for (int cell = 0; cell < counts.length; cell++)
+			counts[cell] = grid.cellStart[cell+1] - grid.cellStart[cell];
+		int[] nearbyCounts = new int[n];
+		int r = (int)Math.ceil(fwhmPixels / spacing);
+		double r2 = (fwhmPixels / spacing) * (fwhmPixels / spacing);
+		for (int cell = 0; cell < counts.length; cell++) {
+			int start = grid.cellStart[cell];
+			int end = grid.cellStart[cell+1];
+			if (start == end)
+				continue;
+			int cx = cell % nx;
+			int cy = cell / nx;
+			double sum = 0;
+			for (int y = Math.max(0, cy - r); y <= Math.min(ny - 1, cy + r); y++) {
+				for (int x = Math.max(0, cx - r); x <= Math.min(nx - 1, cx + r); x++) {
+					if ((x - cx)*(x - cx) + (y - cy)*(y - cy) < r2)
+						sum += counts[y * nx + x];
+				}
+			}
+			for (int s = start; s < end; s++)
+				nearbyCounts[s] = (int)sum - 1;
+		}
+		
+		// Filter each measurement separately, to limit memory use
+		float[] smoothed = results.smoothed;
+		float[] denominators = new float[n * nMeasurements];
+		IntStream measurementStream = IntStream.range(0, nMeasurements);
+		if (nMeasurements > 1)
+			measurementStream = measurementStream.parallel();
+		measurementStream.forEach(k -> {
+			double[] sums = new double[nx * ny];
+			double[] weights = new double[nx * ny];
+			for (int s = 0; s < n; s++) {
+				int i = grid.sorted[s];
+				float val = measurementValues[i * nMeasurements + k];
+				if (Float.isNaN(val))
+					continue;
+				int cell = grid.getCell(xCentroids[i], yCentroids[i]);
+				sums[cell] += val;
+				weights[cell] += 1;
+			}
+			double[] temp = new double[Math.max(nx, ny)];
+			filterSeparable(sums, nx, ny, kernel, temp);
+			filterSeparable(weights, nx, ny, kernel, temp);
+			for (int s = 0; s < n; s++) {
+				int i = grid.sorted[s];
+				float val = measurementValues[i * nMeasurements + k];
+				double sum = interpolate(sums, nx, binX[s], binY[s], fracX[s], fracY[s]);
+				double weight = interpolate(weights, nx, binX[s], binY[s], fracX[s], fracY[s]);
+				// As for the exact calculation, the result is NaN if the object's own value is NaN
+				smoothed[i * nMeasurements + k] = Float.isNaN(val) ? Float.NaN : (float)(sum / weight);
+				denominators[s * nMeasurements + k] = (float)weight;
+			}
+		});
+		for (int s = 0; s < n; s++) {
+			int i = grid.sorted[s];
 			float maxDenominator = Float.NEGATIVE_INFINITY;
-			for (String name : measurements) {
-//				if (name.contains(" - Smoothed (FWHM ") || name.startsWith("Smoothed denominator (local density, ") || name.startsWith("Nearby detection counts"))
-//					continue;
-				float denominator = mDenominator[ind];
-				if (denominator > maxDenominator)
-					maxDenominator = denominator;
-				
-				String nameToAdd = prefix + name + postfix;
-				measurementList.putMeasurement(nameToAdd, mWeighted[ind] / denominator);
-				
-//				measurementsAdded.add(nameToAdd);
-//				measurementList.putMeasurement(name + " - weighted sum", mWeighted[ind]); // TODO: Support optionally providing weighted sums
-				
-//				measurementList.addMeasurement(name + " - smoothed", mWeighted[ind] / mDenominator[ind]);
-				ind++;
+			for (int k = 0; k < nMeasurements; k++)
+				maxDenominator = Math.max(maxDenominator, denominators[s * nMeasurements + k]);
+			results.maxDenominators[i] = maxDenominator;
+			results.nearbyDetectionCounts[i] = Math.max(0, nearbyCounts[s]);
+		}
+		return true;
+	}
+	
+	
+	private static void setResult(int i, float[] measurementValues, int nMeasurements, double[] weighted, double[] denominators, int count, SmoothingResults results) {
+		int offset = i * nMeasurements;
+		float maxDenominator = Float.NEGATIVE_INFINITY;
+		for (int k = 0; k < nMeasurements; k++) {
+			float denominator = denominators == null ? 1f : (float)denominators[k];
+			if (denominator > maxDenominator)
+				maxDenominator = denominator;
+			results.smoothed[offset + k] = weighted == null ? measurementValues[offset + k] : (float)(weighted[k] / denominators[k]);
+		}
+		results.maxDenominators[i] = maxDenominator;
+		results.nearbyDetectionCounts[i] = count;
+	}
+	
+	
+	private static double interpolate(double[] values, int nx, int x, int y, double fx, double fy) {
+		int ind = y * nx + x;
+		double v00 = values[ind];
+		double v10 = x + 1 < nx ? values[ind + 1] : v00;
+		double v01 = values.length > ind + nx ? values[ind + nx] : v00;
+		double v11 = x + 1 < nx && values.length > ind + nx + 1 ? values[ind + nx + 1] : v01;
+		return (v00 * (1 - fx) + v10 * fx) * (1 - fy) + (v01 * (1 - fx) + v11 * fx) * fy;
+	}
+	
+	
+	/**
+	 * Filter a 2D array in-place using a symmetric kernel (provided as the center value followed by one half).
+	 * Values outside the array are treated as zero.
+	 */
+	private static void filterSeparable(double[] values, int nx, int ny, double[] kernel, double[] temp) {
+		int r = kernel.length - 1;
+		for (int y = 0; y < ny; y++) {
+			int offset = y * nx;
+			for (int x = 0; x < nx; x++) {
+				double sum = values[offset + x] * kernel[0];
+				for (int d = 1; d <= r; d++) {
+					if (x - d >= 0)
+						sum += values[offset + x - d] * kernel[d];
+					if (x + d < nx)
+						sum += values[offset + x + d] * kernel[d];
+				}
+				temp[x] = sum;
 			}
-			if (pathObject instanceof PathDetectionObject && denomName != null) {
-				measurementList.putMeasurement(denomName, maxDenominator);
-//				measurementsAdded.add(denomName);
+			System.arraycopy(temp, 0, values, offset, nx);
+		}
+		for (int x = 0; x < nx; x++) {
+			for (int y = 0; y < ny; y++) {
+				double sum = values[y * nx + x] * kernel[0];
+				for (int d = 1; d <= r; d++) {
+					if (y - d >= 0)
+						sum += values[(y - d) * nx + x] * kernel[d];
+					if (y + d < ny)
+						sum += values[(y + d) * nx + x] * kernel[d];
+				}
+				temp[y] = sum;
 			}
-			if (pathObject instanceof PathDetectionObject && countsName != null) {
-				measurementList.putMeasurement(countsName, nearbyDetectionCounts[i]);
-//				measurementsAdded.add(countsName);
+			for (int y = 0; y < ny; y++)
+				values[y * nx + x] = temp[y];
+		}
+	}
+	
+	
+	/**
+	 * Simple uniform grid of object indices, with the indices for each cell stored contiguously.
+	 * <p>
+	 * The requested spacing is increased if necessary so that the number of cells isn't much larger than the number of objects.
+	 */
+	private static class ObjectGrid {
+		
+		private final double minX, minY, spacing;
+		private final int nx, ny;
+		private final int[] cellStart;
+		private final int[] sorted;
+		private final List<Integer> invalid = new ArrayList<>();
+		
+		ObjectGrid(int[] indices, float[] xCentroids, float[] yCentroids, double spacing) {
+			double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+			int nValid = 0;
+			for (int i : indices) {
+				float x = xCentroids[i];
+				float y = yCentroids[i];
+				if (!isValid(x, y)) {
+					invalid.add(i);
+					continue;
+				}
+				minX = Math.min(minX, x);
+				minY = Math.min(minY, y);
+				maxX = Math.max(maxX, x);
+				maxY = Math.max(maxY, y);
+				nValid++;
 			}
-			measurementList.closeList();
+			if (nValid == 0) {
+				minX = minY = maxX = maxY = 0;
+			}
+			double maxCells = Math.max(4.0 * nValid, 1024);
+			double minSpacing = Math.sqrt((maxX - minX + 1) * (maxY - minY + 1) / maxCells);
+			if (!(spacing >= minSpacing))
+				spacing = Math.max(minSpacing, 1);
+			this.minX = minX;
+			this.minY = minY;
+			this.spacing = spacing;
+			this.nx = (int)((maxX - minX) / spacing) + 1;
+			this.ny = (int)((maxY - minY) / spacing) + 1;
+			
+			// Bucket the valid indices by cell
+			cellStart = new int[nx * ny + 1];
+			for (int i : indices) {
+				if (isValid(xCentroids[i], yCentroids[i]))
+					cellStart[getCell(xCentroids[i], yCentroids[i]) + 1]++;
+			}
+			for (int c = 0; c < nx * ny; c++)
+				cellStart[c+1] += cellStart[c];
+			int[] position = Arrays.copyOf(cellStart, nx * ny);
+			sorted = new int[nValid];
+			for (int i : indices) {
+				if (isValid(xCentroids[i], yCentroids[i]))
+					sorted[position[getCell(xCentroids[i], yCentroids[i])]++] = i;
+			}
+		}
+		
+		private static boolean isValid(float x, float y) {
+			return !(Float.isNaN(x) || Float.isNaN(y) || Float.isInfinite(x) || Float.isInfinite(y));
 		}
 		
-		System.currentTimeMillis();
+		int nCells() {
+			return nx * ny;
+		}
+		
+		int getCell(double x, double y) {
+			int cx = Math.min(nx - 1, (int)((x - minX) / spacing));
+			int cy = Math.min(ny - 1, (int)((y - minY) / spacing));
+			return cy * nx + cx;
+		}
 		
-//		return measurementsAdded;
 	}
+	
 
 	@Override
 	public ParameterList getDefaultParameterList(final ImageData<T> imageData) {
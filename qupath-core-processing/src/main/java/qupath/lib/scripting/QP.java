@@ -236,11 +236,22 @@ public class QP {
 	}
 	
 	
+	/**
+	 * Add objects to the current hierarchy as a single batch, so that listeners are only notified once.
+	 * 
+	 * @param pathObjects
+	 */
 	public static void addObjects(Collection<PathObject> pathObjects) {
 		PathObjectHierarchy hierarchy = getCurrentHierarchy();
 		if (hierarchy == null)
 			return;
-		hierarchy.addPathObjects(pathObjects, true);
+		// Don't hold the lock throughout, since any objects not yet loaded may be needed to resolve parents
+		hierarchy.beginUpdate();
+		try {
+			hierarchy.addPathObjects(pathObjects, true);
+		} finally {
+			hierarchy.endUpdate();
+		}
 	}
 	
 	
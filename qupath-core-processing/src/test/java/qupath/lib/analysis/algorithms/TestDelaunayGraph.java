@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis.algorithms;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestDelaunayGraph {
+	
+	private static final int WHOLE = 1 << 20;
+	
+	private static double[][] createRandomPoints(int n, double size, long seed) {
+		Random random = new Random(seed);
+		double[][] xy = new double[2][n];
+		for (int i = 0; i < n; i++) {
+			xy[0][i] = random.nextDouble() * size;
+			xy[1][i] = random.nextDouble() * size * 0.5;
+		}
+		return xy;
+	}
+	
+	private static double[][] createClusteredPoints(int n, double size, long seed) {
+		Random random = new Random(seed);
+		double[][] xy = new double[2][n];
+		for (int i = 0; i < n; i++) {
+			// Clusters along a diagonal, with large empty gaps between them
+			int cluster = random.nextInt(5);
+			xy[0][i] = cluster * size / 5 + random.nextGaussian() * size / 50;
+			xy[1][i] = cluster * size / 5 + random.nextGaussian() * size / 50;
+		}
+		return xy;
+	}
+	
+	private static double[][] createGridPoints(int nx, int ny) {
+		double[][] xy = new double[2][nx * ny];
+		for (int i = 0; i < nx * ny; i++) {
+			xy[0][i] = (i % nx) * 10.0;
+			xy[1][i] = (i / nx) * 10.0;
+		}
+		return xy;
+	}
+	
+	private static void assertSameEdges(DelaunayGraph expected, DelaunayGraph graph) {
+		assertEquals(expected.nVertices(), graph.nVertices());
+		assertEquals(expected.nEdges(), graph.nEdges());
+		for (int v = 0; v < expected.nVertices(); v++)
+			assertArrayEquals(expected.getNeighbors(v), graph.getNeighbors(v));
+	}
+	
+	private static void checkTiles(double[][] xy) {
+		DelaunayGraph whole = DelaunayGraph.create(xy[0], xy[1], WHOLE);
+		assertSameEdges(whole, DelaunayGraph.create(xy[0], xy[1]));
+		assertSameEdges(whole, DelaunayGraph.create(xy[0], xy[1], 4));
+	}
+	
+	@Test
+	public void test_tiledMatchesWhole() {
+		checkTiles(createRandomPoints(5000, 1000, 1));
+		checkTiles(createClusteredPoints(5000, 1000, 2));
+		checkTiles(createGridPoints(60, 40));
+	}
+	
+	@Test
+	public void test_emptyCircumcircles() {
+		double[][] xy = createRandomPoints(500, 100, 3);
+		double[] x = xy[0];
+		double[] y = xy[1];
+		DelaunayGraph graph = DelaunayGraph.create(x, y, 2);
+		int nTriangles = 0;
+		for (int v = 0; v < graph.nVertices(); v++) {
+			for (int a : graph.getNeighbors(v)) {
+				for (int b : graph.getNeighbors(v)) {
+					// Skip 3-cycles that enclose other points, since these aren't triangles of the triangulation
+					if (a <= v || b <= a || !graph.isConnected(a, b) || containsPoint(x, y, v, a, b))
+						continue;
+					nTriangles++;
+					// Circumcircle, relative to v
+					double ax = x[a] - x[v], ay = y[a] - y[v];
+					double bx = x[b] - x[v], by = y[b] - y[v];
+					double d = 2 * (ax * by - ay * bx);
+					double cx = (by * (ax*ax + ay*ay) - ay * (bx*bx + by*by)) / d;
+					double cy = (ax * (bx*bx + by*by) - bx * (ax*ax + ay*ay)) / d;
+					double r2 = cx*cx + cy*cy;
+					for (int i = 0; i < x.length; i++) {
+						double dx = x[i] - x[v] - cx;
+						double dy = y[i] - y[v] - cy;
+						assertFalse(dx*dx + dy*dy < r2 * (1 - 1e-9));
+					}
+				}
+			}
+		}
+		assertTrue(nTriangles > x.length);
+		// Every point should have at least 2 neighbors
+		for (int v = 0; v < graph.nVertices(); v++)
+			assertTrue(graph.nNeighbors(v) >= 2);
+	}
+	
+	private static boolean containsPoint(double[] x, double[] y, int v1, int v2, int v3) {
+		for (int i = 0; i < x.length; i++) {
+			if (i == v1 || i == v2 || i == v3)
+				continue;
+			double c1 = cross(x, y, v1, v2, i);
+			double c2 = cross(x, y, v2, v3, i);
+			double c3 = cross(x, y, v3, v1, i);
+			if ((c1 > 0 && c2 > 0 && c3 > 0) || (c1 < 0 && c2 < 0 && c3 < 0))
+				return true;
+		}
+		return false;
+	}
+	
+	private static double cross(double[] x, double[] y, int v1, int v2, int v) {
+		return (x[v2] - x[v1]) * (y[v] - y[v1]) - (y[v2] - y[v1]) * (x[v] - x[v1]);
+	}
+	
+	@Test
+	public void test_duplicates() {
+		double[] x = {0, 10, 0, 10, 5, 5, 5};
+		double[] y = {0, 0, 10, 10, 5, 5, 5};
+		DelaunayGraph graph = DelaunayGraph.create(x, y);
+		assertEquals(7, graph.nVertices());
+		assertArrayEquals(new int[] {4}, graph.getNeighbors(5));
+		assertArrayEquals(new int[] {4}, graph.getNeighbors(6));
+		assertTrue(graph.isConnected(0, 4));
+		assertFalse(graph.isConnected(0, 5));
+		int[] labels = graph.getComponentLabels();
+		for (int label : labels)
+			assertEquals(0, label);
+	}
+	
+	@Test
+	public void test_filterAndComponents() {
+		double[][] xy = createClusteredPoints(2000, 1000, 4);
+		double[] x = xy[0];
+		double[] y = xy[1];
+		DelaunayGraph graph = DelaunayGraph.create(x, y);
+		assertEquals(1, countLabels(graph.getComponentLabels()));
+		
+		double maxDistance = 100;
+		DelaunayGraph filtered = graph.filterEdges((v1, v2) -> {
+			assertTrue(v1 < v2);
+			return Math.hypot(x[v1] - x[v2], y[v1] - y[v2]) < maxDistance;
+		});
+		assertEquals(graph.nVertices(), filtered.nVertices());
+		assertTrue(filtered.nEdges() < graph.nEdges());
+		for (int v = 0; v < filtered.nVertices(); v++) {
+			for (int w : filtered.getNeighbors(v)) {
+				assertTrue(graph.isConnected(v, w));
+				assertTrue(filtered.isConnected(w, v));
+				assertTrue(Math.hypot(x[v] - x[w], y[v] - y[w]) < maxDistance);
+			}
+		}
+		
+		// Connected vertices must share a label, and labels are numbered in order of first appearance
+		int[] labels = filtered.getComponentLabels();
+		int nLabels = countLabels(labels);
+		assertTrue(nLabels >= 5);
+		int maxLabel = -1;
+		for (int v = 0; v < labels.length; v++) {
+			assertTrue(labels[v] <= maxLabel + 1);
+			maxLabel = Math.max(maxLabel, labels[v]);
+			for (int w : filtered.getNeighbors(v))
+				assertEquals(labels[v], labels[w]);
+		}
+		
+		DelaunayGraph empty = graph.filterEdges((v1, v2) -> false);
+		assertEquals(0, empty.nEdges());
+		assertEquals(graph.nVertices(), countLabels(empty.getComponentLabels()));
+	}
+	
+	private static int countLabels(int[] labels) {
+		int max = -1;
+		for (int label : labels)
+			max = Math.max(max, label);
+		return max + 1;
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void test_nonFinite() {
+		DelaunayGraph.create(new double[] {0, 1, Double.NaN}, new double[] {0, 1, 2});
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void test_differentLengths() {
+		DelaunayGraph.create(new double[] {0, 1, 2}, new double[] {0, 1});
+	}
+
+}
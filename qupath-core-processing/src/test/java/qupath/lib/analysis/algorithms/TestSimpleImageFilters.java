@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.analysis.algorithms;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestSimpleImageFilters {
+	
+	private static final int MIN = 0, MAX = 1, MEDIAN = 2;
+	
+	private static float[] createRandomPixels(int width, int height, long seed) {
+		Random random = new Random(seed);
+		float[] pixels = new float[width * height];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = (float)(random.nextGaussian() * 30 + 100 + i % width);
+		return pixels;
+	}
+	
+	/**
+	 * Straightforward rank filter with the same circular kernel & edge handling, for comparison.
+	 */
+	private static float[] rankReference(float[] pixels, int width, int height, double radius, int type) {
+		int[] lineRadii = SimpleImageFilters.makeLineRadii(radius);
+		int kRadius = lineRadii.length / 2;
+		float[] output = new float[pixels.length];
+		float[] values = new float[pixels.length];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int n = 0;
+				for (int dy = -kRadius; dy <= kRadius; dy++) {
+					int yy = Math.min(Math.max(y + dy, 0), height - 1);
+					int k = lineRadii[kRadius + dy];
+					for (int dx = -k; dx <= k; dx++) {
+						int xx = Math.min(Math.max(x + dx, 0), width - 1);
+						values[n++] = pixels[yy * width + xx];
+					}
+				}
+				Arrays.sort(values, 0, n);
+				output[y * width + x] = type == MIN ? values[0] : type == MAX ? values[n - 1] : values[n / 2];
+			}
+		}
+		return output;
+	}
+	
+	@Test
+	public void test_rankFilters() {
+		int[][] sizes = {{37, 23}, {5, 41}, {70, 66}};
+		double[] radii = {0.5, 1, 1.5, 2, 2.5, 4, 7.5};
+		for (int[] size : sizes) {
+			int width = size[0];
+			int height = size[1];
+			float[] pixels = createRandomPixels(width, height, width * height);
+			for (double radius : radii) {
+				float[] minimum = pixels.clone();
+				SimpleImageFilters.minimum(minimum, width, height, radius);
+				assertArrayEquals(rankReference(pixels, width, height, radius, MIN), minimum, 0f);
+				
+				float[] maximum = pixels.clone();
+				SimpleImageFilters.maximum(maximum, width, height, radius);
+				assertArrayEquals(rankReference(pixels, width, height, radius, MAX), maximum, 0f);
+				
+				float[] median = pixels.clone();
+				SimpleImageFilters.median(median, width, height, radius);
+				assertArrayEquals(rankReference(pixels, width, height, radius, MEDIAN), median, 0f);
+			}
+		}
+	}
+	
+	@Test
+	public void test_gaussianBlur() {
+		int width = 241;
+		int height = 201;
+		for (double sigma : new double[] {0.3, 1, 2.5, 10}) {
+			// Constant images should be unchanged
+			float[] constant = new float[width * height];
+			Arrays.fill(constant, 5f);
+			SimpleImageFilters.gaussianBlur(constant, width, height, sigma);
+			for (float v : constant)
+				assertEquals(5f, v, 1e-3);
+			
+			// An impulse should be smoothed into an (approximately) normalized Gaussian
+			float[] impulse = new float[width * height];
+			int cx = width / 2;
+			int cy = height / 2;
+			impulse[cy * width + cx] = 1f;
+			SimpleImageFilters.gaussianBlur(impulse, width, height, sigma);
+			double sum = 0;
+			double variance = 0;
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					double v = impulse[y * width + x];
+					sum += v;
+					variance += v * (x - cx) * (x - cx);
+				}
+			}
+			assertEquals(1.0, sum, 1e-3);
+			if (sigma >= 1)
+				assertEquals(sigma * sigma, variance, sigma * sigma * 0.05);
+		}
+	}
+
+}
@@ -23,26 +23,119 @@
 
 package qupath.lib.analysis.features;
 
+import static org.junit.Assert.*;
+
 import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.Test;
 
-// TODO: Implement Haralick tests... this file is kept only to provide a starting point!
+import qupath.lib.analysis.algorithms.FloatArraySimpleImage;
+import qupath.lib.analysis.algorithms.SimpleImage;
+
 public class TestHaralick {
-//	private final int PIXELS_SHORT_DIM = 4;
-//	//private final double EPSILON = 1e-15;
+	private final int PIXELS_SHORT_DIM = 4;
+	private final double EPSILON = 1e-12;
+	
+	private static void assertMatrixEquals(int[][] expected, CoocMatrix matrix) {
+		for (int i = 0; i < expected.length; i++) {
+			for (int j = 0; j < expected.length; j++)
+				assertEquals(expected[i][j], matrix.getRawCounts(i, j));
+		}
+	}
+	
+	private static SimpleImage createRandomImage(int width, int height, long seed) {
+		Random random = new Random(seed);
+		float[] pixels = new float[width * height];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = (float)(random.nextGaussian() * 30 + 100 + i % width);
+		for (int i = 0; i < 20; i++)
+			pixels[random.nextInt(pixels.length)] = Float.NaN;
+		return new FloatArraySimpleImage(pixels, width, height);
+	}
+	
+	private static void assertFeaturesEqual(HaralickFeatures expected, HaralickFeatures actual, double eps) {
+		for (int i = 0; i < expected.nFeatures(); i++)
+			assertEquals(expected.getFeatureName(i), expected.getFeature(i), actual.getFeature(i), Math.abs(expected.getFeature(i)) * eps);
+	}
 	
 	@Test
 	public void test_values() {
-//		final int NUM_GRAY_VALUES = 4; 
-//		final int DISTANCE = 1;
-//
-//		float[] pixels_short = new float[] {0, 0, 1, 1, 0, 0, 1, 1, 0, 2, 2, 2, 2, 2, 3, 3}; // from Haralick's paper
-//		
-//		FloatArraySimpleImage img = new FloatArraySimpleImage(pixels_short, PIXELS_SHORT_DIM, PIXELS_SHORT_DIM);
-//		
-//		// Check values for 0, 45, 90 and 135 matrices as compared to Haralick's paper - this has to be done with a breakpoint
-//		HaralickFeatures hf = HaralickFeatureComputer.measureHaralick(img, null, NUM_GRAY_VALUES, 0, 3, DISTANCE);
+		final int NUM_GRAY_VALUES = 4; 
+		final int DISTANCE = 1;
+
+		float[] pixels_short = new float[] {0, 0, 1, 1, 0, 0, 1, 1, 0, 2, 2, 2, 2, 2, 3, 3}; // from Haralick's paper
+		
+		FloatArraySimpleImage img = new FloatArraySimpleImage(pixels_short, PIXELS_SHORT_DIM, PIXELS_SHORT_DIM);
+		
+		// Check values for 0, 45, 90 and 135 matrices as compared to Haralick's paper
+		// (note that the angles for the diagonals are switched, see HaralickFeatureComputer)
+		CoocurranceMatrices matrices = HaralickFeatureComputer.updateCooccurrenceMatrices(null, img, null, NUM_GRAY_VALUES, 0, 3, DISTANCE);
+		assertMatrixEquals(new int[][] {{4, 2, 1, 0}, {2, 4, 0, 0}, {1, 0, 6, 1}, {0, 0, 1, 2}}, matrices.getMatrix(0));
+		assertMatrixEquals(new int[][] {{6, 0, 2, 0}, {0, 4, 2, 0}, {2, 2, 2, 2}, {0, 0, 2, 0}}, matrices.getMatrix(90));
+		assertMatrixEquals(new int[][] {{2, 1, 3, 0}, {1, 2, 1, 0}, {3, 1, 0, 2}, {0, 0, 2, 0}}, matrices.getMatrix(45));
+		assertMatrixEquals(new int[][] {{4, 1, 0, 0}, {1, 2, 2, 0}, {0, 2, 4, 1}, {0, 0, 1, 0}}, matrices.getMatrix(135));
 		
+		// Angular second moment for the horizontal matrix, computed directly
+		HaralickFeatures hf = new HaralickFeatures(matrices.getMatrix(0));
+		double asm = 0;
+		for (int[] row : new int[][] {{4, 2, 1, 0}, {2, 4, 0, 0}, {1, 0, 6, 1}, {0, 0, 1, 2}}) {
+			for (int v : row)
+				asm += (v / 24.0) * (v / 24.0);
+		}
+		assertEquals(asm, hf.getFeature(0), EPSILON);
+	}
+	
+	@Test
+	public void test_sparseMatchesDense() {
+		SimpleImage img = createRandomImage(50, 40, 1L);
+		for (int nBins : new int[] {8, 256}) {
+			CoocurranceMatrices matrices = HaralickFeatureComputer.updateCooccurrenceMatrices(null, img, null, nBins, 50, 250, 1);
+			for (int angle : new int[] {0, 45, 90, 135}) {
+				CoocMatrix matrix = matrices.getMatrix(angle);
+				CoocMatrix dense = new CoocMatrix(nBins, false);
+				CoocMatrix sparse = new CoocMatrix(nBins, true);
+				for (int i = 0; i < nBins; i++) {
+					for (int j = 0; j < nBins; j++) {
+						for (int k = 0; k < matrix.getRawCounts(i, j); k++) {
+							dense.addToEntry(i, j);
+							sparse.addToEntry(i, j);
+						}
+					}
+				}
+				assertFeaturesEqual(new HaralickFeatures(dense), new HaralickFeatures(sparse), EPSILON);
+			}
+		}
+	}
+	
+	@Test
+	public void test_multipleDistances() {
+		SimpleImage img = createRandomImage(37, 29, 2L);
+		int[] distances = {1, 2, 5};
+		for (int nBins : new int[] {32, 256}) {
+			List<HaralickFeatures> features = HaralickFeatureComputer.measureHaralick(img, null, nBins, 50, 250, distances);
+			for (int k = 0; k < distances.length; k++)
+				assertFeaturesEqual(HaralickFeatureComputer.measureHaralick(img, null, nBins, 50, 250, distances[k]), features.get(k), EPSILON);
+		}
+	}
+	
+	@Test
+	public void test_maskMatchesNaN() {
+		int w = 30, h = 20;
+		SimpleImage img = createRandomImage(w, h, 3L);
+		float[] mask = new float[w * h];
+		float[] masked = new float[w * h];
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				boolean inside = (x - 15) * (x - 15) + (y - 10) * (y - 10) < 64;
+				mask[y * w + x] = inside ? 1 : 0;
+				masked[y * w + x] = inside ? img.getValue(x, y) : Float.NaN;
+			}
+		}
+		HaralickFeatures featuresMask = HaralickFeatureComputer.measureHaralick(img, new FloatArraySimpleImage(mask, w, h), 32, 50, 250, 1);
+		HaralickFeatures featuresNaN = HaralickFeatureComputer.measureHaralick(new FloatArraySimpleImage(masked, w, h), null, 32, 50, 250, 1);
+		assertFeaturesEqual(featuresNaN, featuresMask, 0);
 	}
 	
 	@Test
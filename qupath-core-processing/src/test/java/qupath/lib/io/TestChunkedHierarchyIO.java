@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathRootObject;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.roi.EllipseROI;
+import qupath.lib.roi.RectangleROI;
+
+public class TestChunkedHierarchyIO {
+	
+	private static PathObject createDetection(Random random, int z) {
+		double x = random.nextDouble() * 10000;
+		double y = random.nextDouble() * 10000;
+		MeasurementList list = MeasurementListFactory.createMeasurementList(2, MeasurementList.TYPE.FLOAT);
+		list.addMeasurement("x", x);
+		list.addMeasurement("y", y);
+		list.closeList();
+		if (random.nextBoolean())
+			return new PathDetectionObject(new RectangleROI(x, y, 5, 5, -1, z, 0), null, list);
+		return new PathCellObject(new EllipseROI(x, y, 5, 5, -1, z, 0), null, null, list);
+	}
+	
+	private static void assertStructureEqual(PathObject expected, PathObject actual) {
+		assertEquals(expected.getClass(), actual.getClass());
+		if (expected.getROI() != null) {
+			assertEquals(expected.getROI().getBoundsX(), actual.getROI().getBoundsX(), 0.0);
+			assertEquals(expected.getROI().getBoundsY(), actual.getROI().getBoundsY(), 0.0);
+			assertEquals(expected.getROI().getZ(), actual.getROI().getZ());
+		}
+		List<PathObject> children1 = new ArrayList<>(expected.getChildObjects());
+		List<PathObject> children2 = new ArrayList<>(actual.getChildObjects());
+		assertEquals(children1.size(), children2.size());
+		for (int i = 0; i < children1.size(); i++) {
+			assertSame(actual, children2.get(i).getParent());
+			assertStructureEqual(children1.get(i), children2.get(i));
+		}
+	}
+
+	@Test
+	public void test_roundTrip() throws Exception {
+		Random random = new Random(100);
+		PathRootObject root = new PathRootObject();
+		root.addPathObject(new TMACoreObject(500, 500, 100, false));
+		
+		// Annotation with many detections, so it needs to be split across chunks
+		PathAnnotationObject annotation = new PathAnnotationObject(new RectangleROI(0, 0, 10000, 10000));
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < 2000; i++)
+			detections.add(createDetection(random, i % 3));
+		annotation.addPathObjects(detections);
+		root.addPathObject(annotation);
+		
+		// Small annotation that should be stored whole
+		PathAnnotationObject annotationSmall = new PathAnnotationObject(new RectangleROI(0, 0, 100, 100));
+		annotationSmall.addPathObject(createDetection(random, 0));
+		root.addPathObject(annotationSmall);
+		
+		// Detections directly below the root
+		for (int i = 0; i < 1000; i++)
+			root.addPathObject(createDetection(random, 0));
+		
+		int chunkObjects = ChunkedHierarchyIO.CHUNK_OBJECTS;
+		try {
+			ChunkedHierarchyIO.CHUNK_OBJECTS = 50;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				ChunkedHierarchyIO.writeObjects(out, root, true);
+				out.writeInt(12345);
+			}
+			try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+				PathObject root2 = ChunkedHierarchyIO.readObjects(in);
+				assertEquals(12345, in.readInt());
+				assertTrue(root2.isRootObject());
+				assertStructureEqual(root, root2);
+			}
+		} finally {
+			ChunkedHierarchyIO.CHUNK_OBJECTS = chunkObjects;
+		}
+	}
+
+}
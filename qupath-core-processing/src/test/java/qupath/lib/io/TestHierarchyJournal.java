@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.roi.RectangleROI;
+
+public class TestHierarchyJournal {
+	
+	private static PathAnnotationObject createAnnotation(double x, int nDetections) {
+		PathAnnotationObject annotation = new PathAnnotationObject(new RectangleROI(x, 0, 1000, 1000));
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < nDetections; i++)
+			detections.add(new PathDetectionObject(new RectangleROI(x + (i % 10) * 100, (i / 10) * 100, 10, 10)));
+		annotation.addPathObjects(detections);
+		return annotation;
+	}
+	
+	private static PathObject getChild(PathObject parent, int ind) {
+		return new ArrayList<>(parent.getChildObjects()).get(ind);
+	}
+
+	@Test
+	public void test_recoverChanges() throws Exception {
+		File file = File.createTempFile("journal", ".qpdata");
+		File journalFile = HierarchyJournal.getJournalFile(file);
+		try {
+			PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+			hierarchy.addPathObject(createAnnotation(0, 100), false);
+			hierarchy.addPathObject(createAnnotation(2000, 10), false);
+			ImageData<Object> imageData = new ImageData<>(null, hierarchy, null);
+			assertTrue(PathIO.writeImageData(file, imageData));
+			
+			HierarchyJournal journal = HierarchyJournal.open(file, imageData);
+			assertFalse(HierarchyJournal.hasJournal(file));
+			long dataFileLength = file.length();
+			
+			// Remove some detections, reclassify others & add a measurement
+			PathObject annotation1 = getChild(hierarchy.getRootObject(), 0);
+			PathObject annotation2 = getChild(hierarchy.getRootObject(), 1);
+			List<PathObject> toRemove = new ArrayList<>(annotation1.getChildObjects()).subList(0, 10);
+			hierarchy.removeObjects(toRemove, false);
+			for (PathObject detection : annotation2.getChildObjects())
+				detection.setPathClass(PathClassFactory.getPathClass("Tumor"));
+			hierarchy.fireObjectClassificationsChangedEvent(this, new ArrayList<>(annotation2.getChildObjects()));
+			annotation2.getMeasurementList().putMeasurement("Something", 5.0);
+			hierarchy.fireObjectMeasurementsChangedEvent(this, Collections.singletonList(annotation2));
+			
+			// Flushing should only append to the journal
+			assertTrue(journal.flush());
+			assertFalse(journal.flush());
+			assertEquals(dataFileLength, file.length());
+			assertTrue(HierarchyJournal.hasJournal(file));
+			
+			// An incomplete record (e.g. after a crash) should be ignored
+			try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+				out.write(new byte[]{0, 0, 1, 0, 1, 2, 3});
+			}
+			
+			// Reading the data file should recover the changes
+			PathObjectHierarchy hierarchy2 = PathIO.readHierarchy(file);
+			PathObject annotation1b = getChild(hierarchy2.getRootObject(), 0);
+			PathObject annotation2b = getChild(hierarchy2.getRootObject(), 1);
+			assertEquals(90, annotation1b.nChildObjects());
+			assertEquals(10, annotation2b.nChildObjects());
+			for (PathObject detection : annotation2b.getChildObjects())
+				assertEquals(PathClassFactory.getPathClass("Tumor"), detection.getPathClass());
+			assertEquals(5.0, annotation2b.getMeasurementList().getMeasurementValue("Something"), 0.0);
+			assertEquals(hierarchy.nObjects(), hierarchy2.nObjects());
+			
+			// Changing the child list of the root object should result in the journal being compacted
+			hierarchy.addPathObject(createAnnotation(4000, 5), false);
+			assertTrue(journal.flush());
+			assertFalse(HierarchyJournal.hasJournal(file));
+			assertEquals(hierarchy.nObjects(), PathIO.readHierarchy(file).nObjects());
+			
+			journal.close();
+		} finally {
+			file.delete();
+			journalFile.delete();
+		}
+	}
+	
+	@Test
+	public void test_recoverStructureChangeBase() throws Exception {
+		File file = File.createTempFile("journal", ".qpdata");
+		File journalFile = HierarchyJournal.getJournalFile(file);
+		try {
+			PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+			hierarchy.addPathObject(createAnnotation(0, 100), false);
+			hierarchy.addPathObject(createAnnotation(2000, 10), false);
+			ImageData<Object> imageData = new ImageData<>(null, hierarchy, null);
+			assertTrue(PathIO.writeImageData(file, imageData));
+			HierarchyJournal journal = HierarchyJournal.open(file, imageData);
+			
+			// Edit the ROI of an annotation, signalling the change without a structure delta (as the drawing tools do)
+			PathAnnotationObject annotation2 = (PathAnnotationObject)getChild(hierarchy.getRootObject(), 1);
+			annotation2.setROI(new RectangleROI(2000, 0, 1500, 1500));
+			hierarchy.fireHierarchyChangedEvent(this, annotation2);
+			assertTrue(journal.flush());
+			assertTrue(HierarchyJournal.hasJournal(file));
+			
+			// Replaying the journal should recover the new ROI, as well as the children
+			PathObjectHierarchy hierarchy2 = PathIO.readHierarchy(file);
+			PathObject annotation2b = getChild(hierarchy2.getRootObject(), 1);
+			assertEquals(1500, annotation2b.getROI().getBoundsWidth(), 0.0);
+			assertEquals(1500, annotation2b.getROI().getBoundsHeight(), 0.0);
+			assertEquals(10, annotation2b.nChildObjects());
+			assertEquals(hierarchy.nObjects(), hierarchy2.nObjects());
+			
+			journal.close();
+		} finally {
+			file.delete();
+			journalFile.delete();
+		}
+	}
+
+}
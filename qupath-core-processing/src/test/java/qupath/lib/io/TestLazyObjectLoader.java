@@ -0,0 +1,225 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.io;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathRootObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.RectangleROI;
+import qupath.lib.scripting.QP;
+
+public class TestLazyObjectLoader {
+	
+	private static PathObject createRoot() {
+		Random random = new Random(200);
+		PathRootObject root = new PathRootObject();
+		PathAnnotationObject annotation = new PathAnnotationObject(new RectangleROI(0, 0, 5000, 5000));
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < 2000; i++)
+			detections.add(new PathDetectionObject(new RectangleROI(random.nextDouble() * 4990, random.nextDouble() * 4990, 10, 10)));
+		annotation.addPathObjects(detections);
+		root.addPathObject(annotation);
+		for (int i = 0; i < 500; i++)
+			root.addPathObject(new PathDetectionObject(new RectangleROI(5000 + random.nextDouble() * 4990, random.nextDouble() * 4990, 10, 10)));
+		return root;
+	}
+	
+	private static PathObjectHierarchy readLazily(File file, LazyObjectLoader loader) throws Exception {
+		try (DataInputStream in = new DataInputStream(loader.trackPosition(new BufferedInputStream(new FileInputStream(file))))) {
+			PathObject root = ChunkedHierarchyIO.readObjects(in, loader, null);
+			PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+			hierarchy.setHierarchy(root, null);
+			hierarchy.setObjectLoader(loader);
+			return hierarchy;
+		}
+	}
+
+	private static void writeChunked(File file, PathObject root) throws Exception {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			ChunkedHierarchyIO.writeObjects(out, root, true);
+		}
+	}
+
+	@Test
+	public void test_loadOnDemand() throws Exception {
+		int chunkObjects = ChunkedHierarchyIO.CHUNK_OBJECTS;
+		File file = File.createTempFile("lazy", ".qpdata");
+		try {
+			ChunkedHierarchyIO.CHUNK_OBJECTS = 50;
+			PathObject root = createRoot();
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+				ChunkedHierarchyIO.writeObjects(out, root, true);
+			}
+			PathObjectHierarchy hierarchyExpected = new PathObjectHierarchy();
+			hierarchyExpected.setHierarchy(root, null);
+			
+			LazyObjectLoader loader = new LazyObjectLoader(file);
+			PathObjectHierarchy hierarchy = readLazily(file, loader);
+			assertTrue(loader.nChunks() > 0);
+			assertTrue(loader.hasPendingObjects());
+			assertEquals(0, loader.getLoadedObjectCount());
+			
+			// Annotations shouldn't require detections to be loaded
+			assertEquals(1, hierarchy.getObjects(null, PathAnnotationObject.class).size());
+			assertEquals(0, loader.getLoadedObjectCount());
+			
+			// Requesting a region should only load the detections nearby
+			ImageRegion region = ImageRegion.createInstance(1000, 1000, 500, 500, 0, 0);
+			int nExpected = hierarchyExpected.getObjectsForRegion(PathDetectionObject.class, region, null).size();
+			assertTrue(nExpected > 0);
+			assertEquals(nExpected, hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null).size());
+			assertTrue(loader.getLoadedObjectCount() >= nExpected);
+			assertTrue(loader.getLoadedObjectCount() < 2500);
+			
+			// Objects should be unloaded if too many have been requested
+			loader.setMaxLoadedObjects(200);
+			for (int x = 0; x < 10000; x += 1000) {
+				region = ImageRegion.createInstance(x, 2000, 1000, 1000, 0, 0);
+				nExpected = hierarchyExpected.getObjectsForRegion(PathDetectionObject.class, region, null).size();
+				assertEquals(nExpected, hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null).size());
+			}
+			assertTrue(loader.getLoadedObjectCount() < 500);
+			
+			// Changed objects shouldn't be unloaded
+			PathObject changed = hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null).iterator().next();
+			hierarchy.fireObjectsChangedEvent(this, Collections.singleton(changed));
+			hierarchy.getObjectsForRegion(PathDetectionObject.class, ImageRegion.createInstance(0, 0, 1000, 1000, 0, 0), null);
+			assertSame(hierarchy.getRootObject(), changed.getParent());
+			
+			// Requesting all detections should load everything, after which no loader is needed - 
+			// so that later region queries can't unload any of the objects returned
+			List<PathObject> detections = hierarchy.getObjects(null, PathDetectionObject.class);
+			assertEquals(hierarchyExpected.getObjects(null, PathDetectionObject.class).size(), detections.size());
+			assertNull(hierarchy.getObjectLoader());
+			hierarchy.getObjectsForRegion(PathDetectionObject.class, ImageRegion.createInstance(5000, 0, 1000, 1000, 0, 0), null);
+			for (PathObject detection : detections)
+				assertNotNull(detection.getParent());
+			assertEquals(hierarchyExpected.nObjects(), hierarchy.nObjects());
+			assertNull(hierarchy.getObjectLoader());
+			assertFalse(loader.hasPendingObjects());
+		} finally {
+			ChunkedHierarchyIO.CHUNK_OBJECTS = chunkObjects;
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void test_changesDuringUpdate() throws Exception {
+		int chunkObjects = ChunkedHierarchyIO.CHUNK_OBJECTS;
+		File file = File.createTempFile("lazy", ".qpdata");
+		try {
+			ChunkedHierarchyIO.CHUNK_OBJECTS = 50;
+			writeChunked(file, createRoot());
+			LazyObjectLoader loader = new LazyObjectLoader(file);
+			PathObjectHierarchy hierarchy = readLazily(file, loader);
+			loader.setMaxLoadedObjects(200);
+			
+			// Change measurements while an update is open, then request enough other regions to force unloading
+			ImageRegion region = ImageRegion.createInstance(1000, 1000, 500, 500, 0, 0);
+			hierarchy.beginUpdate();
+			try {
+				Collection<PathObject> pathObjects = hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null);
+				assertFalse(pathObjects.isEmpty());
+				for (PathObject pathObject : pathObjects)
+					pathObject.getMeasurementList().putMeasurement("Test", 1.0);
+				hierarchy.fireObjectMeasurementsChangedEvent(this, pathObjects);
+				for (int x = 0; x < 10000; x += 1000) {
+					for (int y = 0; y < 5000; y += 1000)
+						hierarchy.getObjectsForRegion(PathDetectionObject.class, ImageRegion.createInstance(x, y, 1000, 1000, 0, 0), null);
+				}
+			} finally {
+				hierarchy.endUpdate();
+			}
+			
+			// The changed objects must not have been replaced by the originals from the file
+			for (PathObject pathObject : hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null))
+				assertEquals(1.0, pathObject.getMeasurementList().getMeasurementValue("Test"), 0.0);
+		} finally {
+			ChunkedHierarchyIO.CHUNK_OBJECTS = chunkObjects;
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void test_addOverUnloaded() throws Exception {
+		int chunkObjects = ChunkedHierarchyIO.CHUNK_OBJECTS;
+		File file = File.createTempFile("lazy", ".qpdata");
+		try {
+			ChunkedHierarchyIO.CHUNK_OBJECTS = 50;
+			writeChunked(file, createRoot());
+			PathObjectHierarchy hierarchyExpected = new PathObjectHierarchy();
+			hierarchyExpected.setHierarchy(createRoot(), null);
+			LazyObjectLoader loader = new LazyObjectLoader(file);
+			PathObjectHierarchy hierarchy = readLazily(file, loader);
+			
+			// A new annotation should acquire the detections it contains, even if they haven't yet been loaded
+			PathObject annotationExpected = new PathAnnotationObject(new RectangleROI(6000, 1000, 1000, 1000));
+			hierarchyExpected.addPathObject(annotationExpected, false);
+			PathObject annotation = new PathAnnotationObject(new RectangleROI(6000, 1000, 1000, 1000));
+			assertEquals(0, loader.getLoadedObjectCount());
+			hierarchy.addPathObject(annotation, false);
+			assertTrue(annotationExpected.nChildObjects() > 0);
+			assertEquals(annotationExpected.nChildObjects(), annotation.nChildObjects());
+			
+			// The same applies to objects added by scripts
+			annotationExpected = new PathAnnotationObject(new RectangleROI(8000, 3000, 1000, 1000));
+			hierarchyExpected.addPathObject(annotationExpected, false);
+			annotation = new PathAnnotationObject(new RectangleROI(8000, 3000, 1000, 1000));
+			QP.setBatchImageData(new ImageData<>(null, hierarchy, null));
+			try {
+				QP.addObjects(Collections.singletonList(annotation));
+			} finally {
+				QP.setBatchImageData(null);
+			}
+			assertTrue(annotationExpected.nChildObjects() > 0);
+			assertEquals(annotationExpected.nChildObjects(), annotation.nChildObjects());
+		} finally {
+			ChunkedHierarchyIO.CHUNK_OBJECTS = chunkObjects;
+			file.delete();
+		}
+	}
+
+}
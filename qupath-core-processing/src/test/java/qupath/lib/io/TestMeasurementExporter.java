@@ -0,0 +1,216 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.roi.RectangleROI;
+
+public class TestMeasurementExporter {
+	
+	private static PathObjectHierarchy createHierarchy(int nDetections) {
+		PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+		PathAnnotationObject annotation = new PathAnnotationObject(new RectangleROI(0, 0, 1000, 1000));
+		annotation.setName("Region, 1");
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < nDetections; i++) {
+			PathDetectionObject detection = new PathDetectionObject(new RectangleROI(i, 0, 2, 2), PathClassFactory.getPathClass("Tumor"));
+			detection.getMeasurementList().putMeasurement("A", i);
+			// Not every detection has every measurement
+			if (i % 2 == 0)
+				detection.getMeasurementList().putMeasurement("B", -i);
+			detection.getMeasurementList().closeList();
+			detections.add(detection);
+		}
+		annotation.addPathObjects(detections);
+		hierarchy.addPathObject(annotation, false);
+		return hierarchy;
+	}
+	
+	private static String readString(DataInputStream in) throws Exception {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void test_exportCSV() throws Exception {
+		PathObjectHierarchy hierarchy = createHierarchy(5);
+		MeasurementExporter exporter = new MeasurementExporter();
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		assertEquals(5, exporter.exportMeasurements(hierarchy, "Image", stream));
+		
+		String[] lines = new String(stream.toByteArray(), StandardCharsets.UTF_8).split(System.lineSeparator());
+		assertEquals(6, lines.length);
+		assertEquals("Image,Name,Class,Parent,ROI,Centroid X px,Centroid Y px,A,B", lines[0]);
+		assertEquals("Image,Tumor,Tumor,\"Region, 1\",Rectangle,2.0,1.0,1.0,", lines[2]);
+		assertTrue(lines[3].endsWith(",2.0,-2.0"));
+	}
+	
+	@Test
+	public void test_exportBinary() throws Exception {
+		int n = 25;
+		PathObjectHierarchy hierarchy = createHierarchy(n);
+		MeasurementExporter exporter = new MeasurementExporter()
+				.setFormat(MeasurementExporter.Format.BINARY)
+				.setRowGroupSize(10);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		assertEquals(n, exporter.exportMeasurements(hierarchy, "Image", stream));
+		
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream.toByteArray()));
+		assertEquals(MeasurementExporter.BINARY_MAGIC, in.readInt());
+		assertEquals(MeasurementExporter.BINARY_VERSION, in.readInt());
+		assertEquals("Image", readString(in));
+		int nStrings = in.readInt();
+		for (int i = 0; i < nStrings; i++)
+			readString(in);
+		int nNumeric = in.readInt();
+		assertEquals(4, nNumeric);
+		for (int i = 0; i < nNumeric; i++)
+			readString(in);
+		
+		// Expect row groups of 10, 10 & 5
+		int count = 0;
+		int nRows;
+		while ((nRows = in.readInt()) > 0) {
+			assertTrue(nRows <= 10);
+			for (int c = 0; c < nStrings; c++) {
+				for (int i = 0; i < nRows; i++)
+					readString(in);
+			}
+			double[][] values = new double[nNumeric][nRows];
+			for (int c = 0; c < nNumeric; c++) {
+				for (int i = 0; i < nRows; i++)
+					values[c][i] = in.readDouble();
+			}
+			for (int i = 0; i < nRows; i++) {
+				int ind = count + i;
+				assertEquals(ind, values[2][i], 0.0);
+				assertEquals(ind % 2 == 0 ? -ind : Double.NaN, values[3][i], 0.0);
+			}
+			count += nRows;
+		}
+		assertEquals(n, count);
+		assertEquals(-1, in.read());
+	}
+	
+	@Test
+	public void test_exportLongStrings() throws Exception {
+		PathObjectHierarchy hierarchy = createHierarchy(1);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 40000; i++)
+			sb.append("\u00b5");
+		String name = sb.toString();
+		hierarchy.getRootObject().getChildObjects().iterator().next().setName(name);
+		MeasurementExporter exporter = new MeasurementExporter()
+				.setFormat(MeasurementExporter.Format.BINARY);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		assertEquals(1, exporter.exportMeasurements(hierarchy, "Image", stream));
+		
+		// The parent name requires more than 64KB in UTF-8
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream.toByteArray()));
+		in.skipBytes(8);
+		readString(in);
+		int nStrings = in.readInt();
+		for (int i = 0; i < nStrings; i++)
+			readString(in);
+		int nNumeric = in.readInt();
+		for (int i = 0; i < nNumeric; i++)
+			readString(in);
+		assertEquals(1, in.readInt());
+		assertEquals("Image", readString(in));
+		readString(in);
+		readString(in);
+		assertEquals(name, readString(in));
+	}
+	
+	@Test
+	public void test_exportProject() throws Exception {
+		File dir = Files.createTempDirectory("project").toFile();
+		try {
+			Project<Object> project = new Project<>(new File(dir, "project.qpproj"), Object.class);
+			ProjectImageEntry<Object> entry1 = new ProjectImageEntry<>(project, "/images/first.tif", "Image", null);
+			ProjectImageEntry<Object> entry2 = new ProjectImageEntry<>(project, "/images/second.tif", "image", null);
+			ProjectImageEntry<Object> entry3 = new ProjectImageEntry<>(project, "/images/third.tif", "Unsaved", null);
+			project.addImage(entry1);
+			project.addImage(entry2);
+			project.addImage(entry3);
+			
+			// Only the first two images have data files - with names that differ only by case
+			File dirData = new File(dir, "data");
+			assertTrue(dirData.mkdirs());
+			File fileData1 = new File(dirData, "first.qpdata");
+			File fileData2 = new File(dirData, "second.qpdata");
+			assertTrue(PathIO.writeImageData(fileData1, new ImageData<>(null, createHierarchy(5), null)));
+			assertTrue(PathIO.writeImageData(fileData2, new ImageData<>(null, createHierarchy(3), null)));
+			
+			File dirOutput = new File(dir, "export");
+			Map<ProjectImageEntry<Object>, File> results = new MeasurementExporter().exportProject(project, entry -> {
+				if (entry == entry1)
+					return fileData1;
+				if (entry == entry2)
+					return fileData2;
+				return new File(dirData, "missing.qpdata");
+			}, dirOutput, 2);
+			
+			assertEquals(2, results.size());
+			assertFalse(results.containsKey(entry3));
+			File fileOutput1 = results.get(entry1);
+			File fileOutput2 = results.get(entry2);
+			assertNotEquals(fileOutput1.getName().toLowerCase(), fileOutput2.getName().toLowerCase());
+			assertEquals(dirOutput, fileOutput1.getParentFile());
+			assertEquals(6, Files.readAllLines(fileOutput1.toPath(), StandardCharsets.UTF_8).size());
+			assertEquals(4, Files.readAllLines(fileOutput2.toPath(), StandardCharsets.UTF_8).size());
+			assertTrue(Files.readAllLines(fileOutput2.toPath(), StandardCharsets.UTF_8).get(1).startsWith("image,"));
+		} finally {
+			try (Stream<File> files = Files.walk(dir.toPath()).sorted(Comparator.reverseOrder()).map(p -> p.toFile())) {
+				files.forEach(File::delete);
+			}
+		}
+	}
+
+}
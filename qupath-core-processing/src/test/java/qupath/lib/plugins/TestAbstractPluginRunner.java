@@ -0,0 +1,88 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.plugins;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestAbstractPluginRunner {
+	
+	static class CountingTask implements PathTask {
+		
+		private static AtomicInteger running = new AtomicInteger();
+		private static AtomicInteger maxRunning = new AtomicInteger();
+		
+		private boolean complete = false;
+
+		@Override
+		public void run() {
+			int n = running.incrementAndGet();
+			maxRunning.accumulateAndGet(n, Math::max);
+			try {
+				Thread.sleep(2);
+			} catch (InterruptedException e) {}
+			running.decrementAndGet();
+		}
+
+		@Override
+		public void taskComplete() {
+			complete = true;
+		}
+
+		@Override
+		public String getLastResultsDescription() {
+			return "Done";
+		}
+		
+	}
+
+	@Test
+	public void test_runTasks() {
+		AbstractPluginRunner.resetTaskStatistics();
+		
+		CommandLinePluginRunner<Object> runner = new CommandLinePluginRunner<>(null, null, true, 2);
+		assertEquals(Math.min(2, AbstractPluginRunner.getNumThreads()), runner.getParallelism());
+		List<CountingTask> tasks = new ArrayList<>();
+		for (int i = 0; i < 50; i++)
+			tasks.add(new CountingTask());
+		runner.runTasks(new ArrayList<>(tasks));
+		
+		for (CountingTask task : tasks)
+			assertTrue(task.complete);
+		// The number of tasks running at any time should be limited by the runner's parallelism
+		assertTrue(CountingTask.maxRunning.get() <= 2);
+		
+		assertEquals(50, AbstractPluginRunner.getCompletedTaskCount());
+		AbstractPluginRunner.LatencyHistogram histogram = AbstractPluginRunner.getTaskLatencies().get(CountingTask.class.getSimpleName());
+		assertEquals(50, histogram.getCount());
+		assertTrue(histogram.getMeanMillis() >= 2);
+		assertTrue(histogram.getPercentileMillis(50) <= histogram.getMaxMillis());
+	}
+
+}
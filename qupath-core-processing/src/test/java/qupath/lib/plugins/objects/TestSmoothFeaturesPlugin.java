@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.plugins.objects;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.roi.RectangleROI;
+
+public class TestSmoothFeaturesPlugin {
+	
+	private static final List<String> NAMES = Arrays.asList("A", "B", "C");
+	
+	private static List<PathObject> createDetections(int n, double size, long seed) {
+		Random random = new Random(seed);
+		PathClass[] pathClasses = {null, PathClassFactory.getPathClass("Tumor"), PathClassFactory.getPathClass("Stroma")};
+		List<PathObject> pathObjects = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			MeasurementList ml = MeasurementListFactory.createMeasurementList(NAMES.size(), MeasurementList.TYPE.FLOAT);
+			ml.putMeasurement("A", random.nextGaussian());
+			ml.putMeasurement("B", random.nextDouble() * 100);
+			ml.putMeasurement("C", random.nextInt(10) == 0 ? Double.NaN : random.nextDouble());
+			ml.closeList();
+			RectangleROI roi = new RectangleROI(random.nextDouble() * size, random.nextDouble() * size, 4, 4);
+			pathObjects.add(new PathDetectionObject(roi, pathClasses[random.nextInt(pathClasses.length)], ml));
+		}
+		return pathObjects;
+	}
+	
+	@Test
+	public void test_smoothMeasurements() {
+		for (boolean withinClass : new boolean[] {false, true}) {
+			double fwhm = 40;
+			List<PathObject> pathObjects = createDetections(2000, 500, withinClass ? 1 : 2);
+			
+			// Compute the expected values by brute force, before the measurement lists are updated
+			double sigma = fwhm / Math.sqrt(8 * Math.log(2));
+			double maxDist = sigma * 3;
+			int n = pathObjects.size();
+			double[][] expected = new double[n][NAMES.size()];
+			int[] expectedCounts = new int[n];
+			for (int i = 0; i < n; i++) {
+				PathObject pi = pathObjects.get(i);
+				for (int k = 0; k < NAMES.size(); k++) {
+					double sum = pi.getMeasurementList().getMeasurementValue(NAMES.get(k));
+					double denominator = 1;
+					for (int j = 0; j < n; j++) {
+						PathObject pj = pathObjects.get(j);
+						if (i == j || (withinClass && pi.getPathClass() != pj.getPathClass()))
+							continue;
+						double dist = Math.hypot(pi.getROI().getCentroidX() - pj.getROI().getCentroidX(), pi.getROI().getCentroidY() - pj.getROI().getCentroidY());
+						if (dist > maxDist)
+							continue;
+						if (k == 0 && dist < fwhm)
+							expectedCounts[i]++;
+						double val = pj.getMeasurementList().getMeasurementValue(NAMES.get(k));
+						if (Double.isNaN(val))
+							continue;
+						double weight = Math.exp(-Math.pow((int)(dist + .5), 2) / (2 * sigma * sigma));
+						sum += val * weight;
+						denominator += weight;
+					}
+					expected[i][k] = sum / denominator;
+				}
+			}
+			
+			SmoothFeaturesPlugin.smoothMeasurements(new ArrayList<>(pathObjects), NAMES, fwhm, "40 px", withinClass, false);
+			for (int i = 0; i < n; i++) {
+				MeasurementList ml = pathObjects.get(i).getMeasurementList();
+				for (int k = 0; k < NAMES.size(); k++)
+					assertEquals(expected[i][k], ml.getMeasurementValue("Smoothed: 40 px: " + NAMES.get(k)), 1e-4);
+				assertEquals(expectedCounts[i], ml.getMeasurementValue("Smoothed: 40 px: Nearby detection counts"), 0);
+			}
+		}
+	}
+	
+	@Test
+	public void test_smoothMeasurementsApproximate() {
+		// For large radii, the approximation should be close to the exact values
+		double fwhm = 100;
+		List<PathObject> exact = createDetections(4000, 300, 3);
+		List<PathObject> approximate = createDetections(4000, 300, 3);
+		SmoothFeaturesPlugin.smoothMeasurements(exact, NAMES, fwhm, null, false, false, false);
+		SmoothFeaturesPlugin.smoothMeasurements(approximate, NAMES, fwhm, null, false, false, true);
+		for (int i = 0; i < exact.size(); i++) {
+			MeasurementList ml1 = exact.get(i).getMeasurementList();
+			MeasurementList ml2 = approximate.get(i).getMeasurementList();
+			assertEquals(ml1.getMeasurementNames(), ml2.getMeasurementNames());
+			for (String name : ml1.getMeasurementNames()) {
+				if (name.startsWith("Smoothed: ") && !name.endsWith("counts"))
+					assertEquals(ml1.getMeasurementValue(name), ml2.getMeasurementValue(name), 0.5);
+			}
+		}
+	}
+
+}
@@ -37,6 +37,7 @@ import qupath.lib.color.ColorDeconvolutionStains.DEFAULT_CD_STAINS;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.PathObjectLoader;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
 import qupath.lib.plugins.workflow.DefaultScriptableWorkflowStep;
@@ -368,6 +369,9 @@ public class ImageData<T> implements WorkflowListener, PathObjectHierarchyListen
 
 	@Override
 	public void hierarchyChanged(PathObjectHierarchyEvent event) {
+		// Objects being loaded (or unloaded) on demand doesn't change the data
+		if (event.getSource() instanceof PathObjectLoader)
+			return;
 		changes = true;
 	}
 
@@ -25,8 +25,11 @@ package qupath.lib.images.stores;
 
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.regions.RegionRequest;
@@ -37,112 +40,323 @@ import qupath.lib.regions.RegionRequest;
  * 
  * The memory consumption estimate is based on the bit-depth of the image & number of pixels it contains
  * (other overhead is ignored).
+ * <p>
+ * To reduce contention when many threads are requesting tiles, the cache is split into segments 
+ * that are locked independently.  Each segment uses a 'segmented LRU' policy: newly-added tiles are 
+ * <i>probationary</i>, and only become <i>protected</i> if they are requested again.  Probationary tiles 
+ * are evicted first, so that a scan through many tiles that are only needed once (e.g. during batch analysis) 
+ * does not displace the tiles that are used repeatedly (e.g. for viewing).
+ * <p>
+ * Null values may be stored, e.g. as placeholders for tiles that have been requested but not yet returned.
  * 
  * @author Pete Bankhead
  *
  */
 public class RegionCache<T> {
+	
+	private static final int N_SEGMENTS = 16;
+	
+	// Maximum proportion of each segment that may be occupied by protected tiles
+	private static final double PROTECTED_PROPORTION = 0.8;
 
-	private LinkedHashMap<RegionRequest, T> map;
+	private final Segment<T>[] segments;
 	private final SizeEstimator<T> sizeEstimator;
-	private int maxCapacity;
-	private int nonNullSize = 0;
-	private long maxMemoryBytes;
-	private long memoryBytes = 0; // Rely on synchronization to control access to map anyway, so no need for atomic...?
+	private final int maxCapacity;
+	private final long maxMemoryBytes;
+	
+	private final AtomicInteger nonNullSize = new AtomicInteger();
+	private final AtomicLong memoryBytes = new AtomicLong();
+	
+	// Counters, used to help determine whether the cache is a sensible size
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+	
+	// Segment from which the next eviction should be attempted
+	private final AtomicInteger evictionIndex = new AtomicInteger();
 
+	@SuppressWarnings("unchecked")
 	RegionCache(final SizeEstimator<T> sizeEstimator, final int maxCapacity, final long maxSizeBytes) {
 		this.maxMemoryBytes = maxSizeBytes;
 		this.sizeEstimator = sizeEstimator;
 		this.maxCapacity = maxCapacity;
-		map = new LinkedHashMap<RegionRequest, T>(maxCapacity+1, 2f, true) {
-
-			private static final long serialVersionUID = 1L;
-
-			@Override
-			protected synchronized boolean removeEldestEntry(Map.Entry<RegionRequest, T> eldest) {
-				// Remove if the map is full (in terms of numbers), or occupying too much memory
-				boolean doRemove = nonNullSize >= maxCapacity || memoryBytes > maxMemoryBytes;
-				if (doRemove) {
-					memoryBytes = memoryBytes - sizeEstimator.getApproxImageSize(eldest.getValue());
-					if (eldest.getValue() != null)
-						nonNullSize--;
-//					if (getApproxImageSize(eldest.getValue()) > 10784000)
-//											logger.info(String.format("REMOVED! %.2f MB remaining, %d images", memoryBytes/(1024. * 1024.), size()));
-				}
-				return doRemove;
-			}
-
-		}; // Should never have to resize the cache, so loadfactor is > 1
-		//			logger.info("Max capacity: " + maxCapacity);
-		//			logger.info("Max size: " + maxSizeBytes);
+		this.segments = (Segment<T>[])new Segment<?>[N_SEGMENTS];
+		for (int i = 0; i < N_SEGMENTS; i++)
+			segments[i] = new Segment<>(this, (long)(maxSizeBytes * PROTECTED_PROPORTION / N_SEGMENTS));
 	}
 
 	RegionCache(final SizeEstimator<T> sizeEstimator, long maxSizeBytes) {
 		this(sizeEstimator, Math.max(200, (int)(maxSizeBytes / (256 * 256 * 4) + 10)), maxSizeBytes);
 	}
+	
+	private Segment<T> getSegment(final RegionRequest request) {
+		int h = request.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & (N_SEGMENTS - 1)];
+	}
+	
+	private long getSize(final T img) {
+		return img == null ? 0 : sizeEstimator.getApproxImageSize(img);
+	}
 
-	synchronized void clearCacheForServer(ImageServer<?> server) {
-		Iterator<Entry<RegionRequest, T>> iter = map.entrySet().iterator();
-		while (iter.hasNext()) {
-			Entry<RegionRequest, T> entry = iter.next();
-			if (entry.getKey().getPath().equals(server.getPath())) {
-				memoryBytes -= sizeEstimator.getApproxImageSize(entry.getValue());
-				if (entry.getValue() != null)
-					nonNullSize--;
-				iter.remove();
-			}
-		}
+	void clearCacheForServer(ImageServer<?> server) {
+		String path = server.getPath();
+		for (Segment<T> segment : segments)
+			segment.removeIf(r -> r.getPath().equals(path));
 	}
 	
 	
-	synchronized void clearCacheForRequestOverlap(RegionRequest request) {
-		Iterator<Entry<RegionRequest, T>> iter = map.entrySet().iterator();
-		while (iter.hasNext()) {
-			Entry<RegionRequest, T> entry = iter.next();
-			if (request.overlapsRequest(entry.getKey())) {
-				memoryBytes -= sizeEstimator.getApproxImageSize(entry.getValue());
-				if (entry.getValue() != null)
-					nonNullSize--;
-				iter.remove();
-			}
-		}
+	void clearCacheForRequestOverlap(RegionRequest request) {
+		for (Segment<T> segment : segments)
+			segment.removeIf(r -> request.overlapsRequest(r));
 	}
 
-	synchronized T put(RegionRequest request, T img) {
-		// Update the memory requirements
-		T imgPrevious = map.put(request, img);
-		if (img != null) {
-			memoryBytes += sizeEstimator.getApproxImageSize(img);
-			nonNullSize++;
-		}
-		if (imgPrevious != null) {
-			memoryBytes -= sizeEstimator.getApproxImageSize(imgPrevious);
-			nonNullSize--;
-		}
-//		else
-//			System.out.println("PUTTING NEW: " + nonNullSize + ", " + request + ", " + Thread.currentThread());
+	T put(RegionRequest request, T img) {
+		T imgPrevious = getSegment(request).put(request, img);
+		evictIfNeeded();
 		return imgPrevious;
 	}
 	
-	public synchronized boolean containsKey(RegionRequest request) {
-		return map.containsKey(request);
+	public boolean containsKey(RegionRequest request) {
+		return getSegment(request).containsKey(request);
 	}
 
-	synchronized T get(RegionRequest request) {
-		return map.get(request);
+	T get(RegionRequest request) {
+		T img = getSegment(request).get(request);
+		if (img == null)
+			missCount.increment();
+		else
+			hitCount.increment();
+		return img;
 	}
 
-	synchronized void clear() {
-		memoryBytes = 0;
-		nonNullSize = 0;
-		map.clear();
+	void clear() {
+		for (Segment<T> segment : segments)
+			segment.clear();
+	}
+	
+	/**
+	 * Remove tiles until the cache is within its memory and capacity limits.
+	 * <p>
+	 * This is called without holding any segment lock, to avoid any risk of deadlock.
+	 * Segments are visited in turn, so that eviction is approximately (but not strictly) least-recently-used.
+	 */
+	private void evictIfNeeded() {
+		int nFailed = 0;
+		while ((memoryBytes.get() > maxMemoryBytes || nonNullSize.get() > maxCapacity) && nFailed < N_SEGMENTS) {
+			Segment<T> segment = segments[Math.floorMod(evictionIndex.getAndIncrement(), N_SEGMENTS)];
+			if (segment.evictOne())
+				nFailed = 0;
+			else
+				nFailed++;
+		}
+	}
+	
+	/**
+	 * Get the number of requests for which a (non-null) tile was returned from the cache.
+	 * @return
+	 */
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+	
+	/**
+	 * Get the number of requests for which no tile was available in the cache.
+	 * @return
+	 */
+	public long getMissCount() {
+		return missCount.sum();
+	}
+	
+	/**
+	 * Get the number of tiles that have been removed to keep the cache within its limits.
+	 * This does not include tiles that were removed explicitly, e.g. by clearing the cache.
+	 * @return
+	 */
+	public long getEvictionCount() {
+		return evictionCount.sum();
+	}
+	
+	/**
+	 * Get the estimated memory currently used by cached tiles.
+	 * @return
+	 */
+	public long getMemoryBytes() {
+		return memoryBytes.get();
+	}
+	
+	/**
+	 * Get the maximum memory that cached tiles may use.
+	 * @return
+	 */
+	public long getMaxMemoryBytes() {
+		return maxMemoryBytes;
+	}
+	
+	/**
+	 * Get the number of (non-null) tiles currently in the cache.
+	 * @return
+	 */
+	public int getTileCount() {
+		return nonNullSize.get();
 	}
 	
 	
 	@Override
 	public String toString() {
-		return String.format("Cache: %d (%d/%d non-null), %s", map.size(), nonNullSize, maxCapacity, map.toString());
+		long hits = getHitCount();
+		long misses = getMissCount();
+		double hitRate = hits + misses == 0 ? Double.NaN : (double)hits / (hits + misses);
+		return String.format("Cache: %d/%d tiles, %.1f/%.1f MB, hits=%d, misses=%d (hit rate %.3f), evictions=%d",
+				getTileCount(), maxCapacity,
+				getMemoryBytes() / (1024.0 * 1024.0), maxMemoryBytes / (1024.0 * 1024.0),
+				hits, misses, hitRate, getEvictionCount());
+	}
+	
+	
+	/**
+	 * Cached value, along with its estimated size (which is stored so that it is consistent when removed).
+	 */
+	private static class CacheEntry<T> {
+		
+		private final T value;
+		private final long size;
+		
+		CacheEntry(final T value, final long size) {
+			this.value = value;
+			this.size = size;
+		}
+		
+	}
+	
+	
+	/**
+	 * Independently-locked part of the cache, containing separate probationary and protected regions 
+	 * (both in access order).
+	 */
+	private static class Segment<T> {
+		
+		private final RegionCache<T> cache;
+		private final LinkedHashMap<RegionRequest, CacheEntry<T>> probation = new LinkedHashMap<>(16, 0.75f, true);
+		private final LinkedHashMap<RegionRequest, CacheEntry<T>> protectedMap = new LinkedHashMap<>(16, 0.75f, true);
+		private final long maxProtectedBytes;
+		private long protectedBytes = 0;
+		
+		Segment(final RegionCache<T> cache, final long maxProtectedBytes) {
+			this.cache = cache;
+			this.maxProtectedBytes = maxProtectedBytes;
+		}
+		
+		synchronized boolean containsKey(final RegionRequest request) {
+			return protectedMap.containsKey(request) || probation.containsKey(request);
+		}
+		
+		synchronized T get(final RegionRequest request) {
+			CacheEntry<T> entry = protectedMap.get(request);
+			if (entry != null)
+				return entry.value;
+			entry = probation.get(request);
+			if (entry == null)
+				return null;
+			// Promote tiles that are accessed again (but not placeholders)
+			if (entry.value != null) {
+				probation.remove(request);
+				protectedMap.put(request, entry);
+				protectedBytes += entry.size;
+				demoteIfNeeded();
+			}
+			return entry.value;
+		}
+		
+		synchronized T put(final RegionRequest request, final T img) {
+			CacheEntry<T> entry = new CacheEntry<>(img, cache.getSize(img));
+			CacheEntry<T> previous = protectedMap.get(request);
+			if (previous != null) {
+				// Replace within the protected region
+				protectedMap.put(request, entry);
+				protectedBytes += entry.size - previous.size;
+				demoteIfNeeded();
+			} else
+				previous = probation.put(request, entry);
+			if (previous != null)
+				removed(previous);
+			added(entry);
+			return previous == null ? null : previous.value;
+		}
+		
+		/**
+		 * Move the least-recently-used protected tiles back to probation, if the protected region is too large.
+		 */
+		private void demoteIfNeeded() {
+			Iterator<Entry<RegionRequest, CacheEntry<T>>> iter = protectedMap.entrySet().iterator();
+			while (protectedBytes > maxProtectedBytes && protectedMap.size() > 1 && iter.hasNext()) {
+				Entry<RegionRequest, CacheEntry<T>> eldest = iter.next();
+				iter.remove();
+				protectedBytes -= eldest.getValue().size;
+				probation.put(eldest.getKey(), eldest.getValue());
+			}
+		}
+		
+		/**
+		 * Remove the least-recently-used entry, taken from the probationary region if possible.
+		 * @return true if an entry was removed, false if the segment is empty
+		 */
+		synchronized boolean evictOne() {
+			LinkedHashMap<RegionRequest, CacheEntry<T>> map = probation.isEmpty() ? protectedMap : probation;
+			Iterator<CacheEntry<T>> iter = map.values().iterator();
+			if (!iter.hasNext())
+				return false;
+			CacheEntry<T> entry = iter.next();
+			iter.remove();
+			if (map == protectedMap)
+				protectedBytes -= entry.size;
+			removed(entry);
+			cache.evictionCount.increment();
+			return true;
+		}
+		
+		synchronized void removeIf(final Predicate<RegionRequest> predicate) {
+			removeIf(probation, predicate);
+			protectedBytes -= removeIf(protectedMap, predicate);
+		}
+		
+		private long removeIf(final LinkedHashMap<RegionRequest, CacheEntry<T>> map, final Predicate<RegionRequest> predicate) {
+			long removedBytes = 0;
+			Iterator<Entry<RegionRequest, CacheEntry<T>>> iter = map.entrySet().iterator();
+			while (iter.hasNext()) {
+				Entry<RegionRequest, CacheEntry<T>> entry = iter.next();
+				if (predicate.test(entry.getKey())) {
+					iter.remove();
+					removed(entry.getValue());
+					removedBytes += entry.getValue().size;
+				}
+			}
+			return removedBytes;
+		}
+		
+		synchronized void clear() {
+			for (CacheEntry<T> entry : probation.values())
+				removed(entry);
+			for (CacheEntry<T> entry : protectedMap.values())
+				removed(entry);
+			probation.clear();
+			protectedMap.clear();
+			protectedBytes = 0;
+		}
+		
+		private void added(final CacheEntry<T> entry) {
+			cache.memoryBytes.addAndGet(entry.size);
+			if (entry.value != null)
+				cache.nonNullSize.incrementAndGet();
+		}
+		
+		private void removed(final CacheEntry<T> entry) {
+			cache.memoryBytes.addAndGet(-entry.size);
+			if (entry.value != null)
+				cache.nonNullSize.decrementAndGet();
+		}
+		
 	}
 	
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,547 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.measurements;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A table that stores the measurements of many MeasurementLists column-by-column,
+ * using one (chunked) float array per measurement name.
+ * <p>
+ * Each MeasurementList created by the table only holds its row index, along with a reference to
+ * a shared 'layout' that records which measurements it contains.  This avoids creating separate arrays
+ * for every object, and means that all the values for a single measurement can be read without any
+ * per-object name lookups (see {@link #getMeasurementValues(List, String, double[])}).
+ * <p>
+ * Rows are reused after the MeasurementList that owned them has been garbage collected.
+ * Each image should have its own table (see {@link qupath.lib.objects.hierarchy.PathObjectHierarchy#getMeasurementTable()}), 
+ * so that the table can be released along with the objects of the image.
+ * <p>
+ * When a MeasurementList created by the table is serialized, it is replaced by a standalone list 
+ * containing only its own measurements.
+ * <p>
+ * Note that values are stored as floats, and adding a measurement with the same name as an existing
+ * measurement replaces the existing value (i.e. names are always unique within a list).
+ */
+public class ColumnarMeasurementTable implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int CHUNK_SHIFT = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private List<String> columnNames = new ArrayList<>();
+	private Map<String, Integer> columnMap = new HashMap<>();
+	private volatile Column[] columns = new Column[0];
+
+	private int nRows = 0;
+
+	private transient Layout emptyLayout;
+	private transient Map<List<String>, Layout> layoutPool;
+
+	private transient ReferenceQueue<ColumnarMeasurementList> referenceQueue;
+	private transient Set<RowReference> rowReferences;
+	private transient Deque<Integer> freeRows;
+
+
+	public ColumnarMeasurementTable() {
+		initializeTransientFields();
+	}
+
+	private void initializeTransientFields() {
+		layoutPool = new HashMap<>();
+		emptyLayout = new Layout(Collections.emptyList(), new int[0]);
+		layoutPool.put(emptyLayout.names, emptyLayout);
+		referenceQueue = new ReferenceQueue<>();
+		rowReferences = new HashSet<>();
+		freeRows = new ArrayDeque<>();
+	}
+
+	/**
+	 * Create a new, empty MeasurementList backed by this table.
+	 *
+	 * @return
+	 */
+	public MeasurementList createMeasurementList() {
+		ColumnarMeasurementList list = new ColumnarMeasurementList(this, emptyLayout);
+		list.row = allocateRow(list);
+		return list;
+	}
+
+	/**
+	 * Get the names of all measurements that have been stored in the table.
+	 *
+	 * @return
+	 */
+	public synchronized List<String> getMeasurementNames() {
+		return Collections.unmodifiableList(new ArrayList<>(columnNames));
+	}
+
+	/**
+	 * Get the number of rows currently allocated, including any that are available for reuse.
+	 *
+	 * @return
+	 */
+	public synchronized int nRows() {
+		return nRows;
+	}
+
+	/**
+	 * Get the values of a named measurement for each MeasurementList.
+	 * <p>
+	 * Where the lists are backed by a ColumnarMeasurementTable, values are read directly from the
+	 * corresponding column; otherwise, the value is requested from the list in the usual way.
+	 * Missing values are NaN.
+	 *
+	 * @param measurementLists
+	 * @param name
+	 * @param values optional array to store the output; a new array will be created if this is null or too short
+	 * @return
+	 */
+	public static double[] getMeasurementValues(final List<? extends MeasurementList> measurementLists, final String name, double[] values) {
+		int n = measurementLists.size();
+		if (values == null || values.length < n)
+			values = new double[n];
+		ColumnarMeasurementTable lastTable = null;
+		int column = -1;
+		Column[] columns = null;
+		int index = -1;
+		for (int i = 0; i < n; i++) {
+			MeasurementList list = measurementLists.get(i);
+			if (list instanceof ColumnarMeasurementList) {
+				ColumnarMeasurementList columnarList = (ColumnarMeasurementList)list;
+				// Only look up the column when the table changes (which should be rare)
+				if (columnarList.table != lastTable) {
+					lastTable = columnarList.table;
+					column = lastTable.getColumnIndex(name);
+					columns = lastTable.columns;
+				}
+				if (column >= 0 && columnarList.layout.contains(column))
+					values[i] = columns[column].get(columnarList.row);
+				else
+					values[i] = Double.NaN;
+			} else if (list == null)
+				values[i] = Double.NaN;
+			else {
+				// Lists often share the same measurement names, so try the index found for the previous list first
+				if (index < 0 || index >= list.size() || !name.equals(list.getMeasurementName(index)))
+					index = list.getMeasurementNames().indexOf(name);
+				values[i] = index < 0 ? Double.NaN : list.getMeasurementValue(index);
+			}
+		}
+		return values;
+	}
+
+
+	private synchronized int allocateRow(final ColumnarMeasurementList list) {
+		reclaimRows();
+		int row = freeRows.isEmpty() ? nRows++ : freeRows.pop();
+		rowReferences.add(new RowReference(list, referenceQueue, row));
+		return row;
+	}
+
+	/**
+	 * Make rows available for reuse if the lists that owned them have been garbage collected.
+	 * Stored values don't need to be reset, since a new list starts with an empty layout.
+	 */
+	private void reclaimRows() {
+		Reference<? extends ColumnarMeasurementList> ref;
+		while ((ref = referenceQueue.poll()) != null) {
+			RowReference rowRef = (RowReference)ref;
+			rowReferences.remove(rowRef);
+			freeRows.push(rowRef.row);
+		}
+	}
+
+	synchronized int getColumnIndex(final String name) {
+		Integer ind = columnMap.get(name);
+		return ind == null ? -1 : ind;
+	}
+
+	private synchronized int getOrCreateColumnIndex(final String name) {
+		Integer ind = columnMap.get(name);
+		if (ind != null)
+			return ind;
+		int column = columnNames.size();
+		columnNames.add(name);
+		columnMap.put(name, column);
+		Column[] columnsNew = Arrays.copyOf(columns, column + 1);
+		columnsNew[column] = new Column();
+		columns = columnsNew;
+		return column;
+	}
+
+	/**
+	 * Get the layout resulting from adding a measurement to an existing layout.
+	 */
+	private synchronized Layout getLayoutWithMeasurement(final Layout layout, final String name) {
+		Layout next = layout.getNext(name);
+		if (next != null)
+			return next;
+		List<String> names = new ArrayList<>(layout.names);
+		names.add(name);
+		next = getLayout(names);
+		layout.putNext(name, next);
+		return next;
+	}
+
+	private synchronized Layout getLayout(final List<String> names) {
+		Layout layout = layoutPool.get(names);
+		if (layout == null) {
+			int[] columnIndices = new int[names.size()];
+			for (int i = 0; i < columnIndices.length; i++)
+				columnIndices[i] = getOrCreateColumnIndex(names.get(i));
+			layout = new Layout(names, columnIndices);
+			layoutPool.put(layout.names, layout);
+		}
+		return layout;
+	}
+
+	private double getValue(final int column, final int row) {
+		return columns[column].get(row);
+	}
+
+	private void setValue(final int column, final int row, final double value) {
+		columns[column].set(row, (float)value);
+	}
+
+	private void readObject(ObjectInputStream in) throws ClassNotFoundException, IOException {
+		in.defaultReadObject();
+		initializeTransientFields();
+	}
+
+
+
+	/**
+	 * Storage for a single column.  Chunks are never moved once allocated, so that values can be
+	 * written from multiple threads (for different rows) without locking.
+	 */
+	private static class Column implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private volatile float[][] chunks = new float[0][];
+
+		double get(final int row) {
+			float[][] chunks = this.chunks;
+			int c = row >> CHUNK_SHIFT;
+			if (c >= chunks.length || chunks[c] == null)
+				return Double.NaN;
+			return chunks[c][row & CHUNK_MASK];
+		}
+
+		void set(final int row, final float value) {
+			getChunk(row >> CHUNK_SHIFT)[row & CHUNK_MASK] = value;
+		}
+
+		private float[] getChunk(final int c) {
+			float[][] chunks = this.chunks;
+			if (c < chunks.length && chunks[c] != null)
+				return chunks[c];
+			synchronized (this) {
+				chunks = this.chunks;
+				if (c < chunks.length && chunks[c] != null)
+					return chunks[c];
+				// Never modify an array that has already been published, since elements aren't volatile - 
+				// rather, copy it & publish the copy through the volatile field
+				float[] chunk = new float[CHUNK_SIZE];
+				Arrays.fill(chunk, Float.NaN);
+				float[][] chunksNew = Arrays.copyOf(chunks, Math.max(chunks.length, c + 1));
+				chunksNew[c] = chunk;
+				this.chunks = chunksNew;
+				return chunk;
+			}
+		}
+
+	}
+
+
+	/**
+	 * Immutable description of the measurements contained in a list, and the columns where they are stored.
+	 * Layouts are shared between all lists with the same measurements (in the same order).
+	 */
+	private static class Layout implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<String> names;
+		private final int[] columnIndices;
+		private final Map<String, Integer> positions = new HashMap<>();
+		private final boolean[] containsColumn;
+
+		private transient Map<String, Layout> transitions;
+
+		Layout(final List<String> names, final int[] columnIndices) {
+			this.names = Collections.unmodifiableList(new ArrayList<>(names));
+			this.columnIndices = columnIndices;
+			int maxColumn = -1;
+			for (int i = 0; i < columnIndices.length; i++) {
+				positions.put(names.get(i), i);
+				maxColumn = Math.max(maxColumn, columnIndices[i]);
+			}
+			containsColumn = new boolean[maxColumn + 1];
+			for (int c : columnIndices)
+				containsColumn[c] = true;
+		}
+
+		boolean contains(final int column) {
+			return column < containsColumn.length && containsColumn[column];
+		}
+
+		int getPosition(final String name) {
+			Integer ind = positions.get(name);
+			return ind == null ? -1 : ind;
+		}
+
+		Layout getNext(final String name) {
+			return transitions == null ? null : transitions.get(name);
+		}
+
+		void putNext(final String name, final Layout layout) {
+			if (transitions == null)
+				transitions = new HashMap<>();
+			transitions.put(name, layout);
+		}
+
+	}
+
+
+	private static class RowReference extends PhantomReference<ColumnarMeasurementList> {
+
+		private final int row;
+
+		RowReference(final ColumnarMeasurementList list, final ReferenceQueue<ColumnarMeasurementList> queue, final int row) {
+			super(list, queue);
+			this.row = row;
+		}
+
+	}
+
+
+
+	static class ColumnarMeasurementList implements MeasurementList {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ColumnarMeasurementTable table;
+		private int row;
+		private volatile Layout layout;
+
+		private ColumnarMeasurementList(final ColumnarMeasurementTable table, final Layout layout) {
+			this.table = table;
+			this.layout = layout;
+		}
+
+		@Override
+		public synchronized boolean addMeasurement(String name, double value) {
+			putMeasurement(name, value);
+			return true;
+		}
+
+		@SuppressWarnings("deprecation")
+		@Override
+		public synchronized Measurement putMeasurement(Measurement measurement) {
+			if (measurement.isDynamic())
+				throw new UnsupportedOperationException("This MeasurementList does not support dynamic measurements");
+			String name = measurement.getName();
+			Measurement previous = null;
+			int ind = layout.getPosition(name);
+			if (ind >= 0)
+				previous = MeasurementFactory.createMeasurement(name, getMeasurementValue(ind));
+			putMeasurement(name, measurement.getValue());
+			return previous;
+		}
+
+		@Override
+		public synchronized void putMeasurement(String name, double value) {
+			int ind = layout.getPosition(name);
+			if (ind < 0) {
+				layout = table.getLayoutWithMeasurement(layout, name);
+				ind = layout.getPosition(name);
+			}
+			table.setValue(layout.columnIndices[ind], row, value);
+		}
+
+		@Override
+		public List<String> getMeasurementNames() {
+			return layout.names;
+		}
+
+		@Override
+		public String getMeasurementName(int ind) {
+			return layout.names.get(ind);
+		}
+
+		@Override
+		public double getMeasurementValue(int ind) {
+			Layout layout = this.layout;
+			if (ind >= 0 && ind < layout.columnIndices.length)
+				return table.getValue(layout.columnIndices[ind], row);
+			return Double.NaN;
+		}
+
+		@Override
+		public double getMeasurementValue(String name) {
+			return getMeasurementValue(layout.getPosition(name));
+		}
+
+		@Override
+		public boolean containsAllNamedMeasurements(Collection<String> keys) {
+			Layout layout = this.layout;
+			for (String key : keys) {
+				if (layout.getPosition(key) < 0)
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		public boolean containsNamedMeasurement(String name) {
+			return layout.getPosition(name) >= 0;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return layout.names.isEmpty();
+		}
+
+		@Override
+		public int size() {
+			return layout.names.size();
+		}
+
+		@SuppressWarnings("deprecation")
+		@Override
+		public boolean add(Measurement measurement) {
+			if (measurement.isDynamic())
+				throw new UnsupportedOperationException("This MeasurementList does not support dynamic measurements");
+			return addMeasurement(measurement.getName(), measurement.getValue());
+		}
+
+		@Override
+		public Iterator<Measurement> iterator() {
+			final Layout layout = this.layout;
+			return new Iterator<Measurement>() {
+
+				private int cursor = 0;
+
+				@Override
+				public boolean hasNext() {
+					return cursor < layout.names.size();
+				}
+
+				@SuppressWarnings("deprecation")
+				@Override
+				public Measurement next() {
+					if (!hasNext())
+						throw new NoSuchElementException();
+					Measurement next = MeasurementFactory.createMeasurement(layout.names.get(cursor), table.getValue(layout.columnIndices[cursor], row));
+					cursor++;
+					return next;
+				}
+
+			};
+		}
+
+		@Override
+		public boolean supportsDynamicMeasurements() {
+			return false;
+		}
+
+		/**
+		 * Always returns false, as the list does not support dynamic measurements.
+		 */
+		@Override
+		public boolean hasDynamicMeasurements() {
+			return false;
+		}
+
+		/**
+		 * Does nothing, since storage is already shared; the list can still be modified afterwards.
+		 */
+		@Override
+		public void closeList() {}
+
+		@Override
+		public synchronized void removeMeasurements(String... measurementNames) {
+			List<String> names = new ArrayList<>(layout.names);
+			if (names.removeAll(Arrays.asList(measurementNames)))
+				layout = table.getLayout(names);
+		}
+
+		@Override
+		public synchronized void clear() {
+			layout = table.emptyLayout;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			int n = size();
+			sb.append("[");
+			for (int i = 0; i < n; i++) {
+				sb.append(getMeasurementName(i)).append(": ").append(getMeasurementValue(i));
+				if (i < n - 1)
+					sb.append(", ");
+			}
+			sb.append("]");
+			return sb.toString();
+		}
+
+		/**
+		 * Serialize a standalone list containing only the measurements of this list, 
+		 * rather than the entire shared table.
+		 */
+		private Object writeReplace() {
+			Layout layout = this.layout;
+			int n = layout.names.size();
+			MeasurementList list = MeasurementListFactory.createMeasurementList(n, MeasurementList.TYPE.FLOAT);
+			for (int i = 0; i < n; i++)
+				list.addMeasurement(layout.names.get(i), table.getValue(layout.columnIndices[i], row));
+			list.closeList();
+			return list;
+		}
+
+	}
+
+}
@@ -39,7 +39,14 @@ import java.util.List;
  */
 public interface MeasurementList extends Serializable, Iterable<Measurement> {
 	
-	public enum TYPE {GENERAL, DOUBLE, FLOAT}
+	/**
+	 * Storage type for a measurement list.
+	 * <p>
+	 * COLUMNAR lists store their (float) values in a table shared with other lists of the same image, 
+	 * see {@link ColumnarMeasurementTable}.  Because they require a table, they should be created with 
+	 * {@link MeasurementListFactory#createMeasurementList(ColumnarMeasurementTable)}.
+	 */
+	public enum TYPE {GENERAL, DOUBLE, FLOAT, COLUMNAR}
 	
 	public boolean addMeasurement(String name, double value);
 	
@@ -35,16 +35,59 @@ public class MeasurementListFactory {
 	
 	private MeasurementListFactory() {}
 
+	/**
+	 * Create a new measurement list of the specified type.
+	 * <p>
+	 * {@link MeasurementList.TYPE#COLUMNAR} lists require a table, and should be created with 
+	 * {@link #createMeasurementList(ColumnarMeasurementTable)}; if requested here, a FLOAT list 
+	 * is returned instead - since this stores values with the same precision.
+	 * 
+	 * @param capacity
+	 * @param type
+	 * @return
+	 */
 	public static MeasurementList createMeasurementList(int capacity, MeasurementList.TYPE type) {
 		switch (type) {
 		case DOUBLE:
 			return new NumericMeasurementList.DoubleList(capacity);
 		case FLOAT:
+		case COLUMNAR:
 			return new NumericMeasurementList.FloatList(capacity);
 		case GENERAL:
 		default:
 			return new DefaultMeasurementList(capacity);
 		}
 	}
+	
+	/**
+	 * Get the storage type of an existing measurement list.
+	 * <p>
+	 * Lists that were not created by this factory are reported as {@link MeasurementList.TYPE#GENERAL}.
+	 *
+	 * @param list
+	 * @return
+	 */
+	public static MeasurementList.TYPE getType(final MeasurementList list) {
+		if (list instanceof NumericMeasurementList.FloatList)
+			return MeasurementList.TYPE.FLOAT;
+		if (list instanceof NumericMeasurementList.DoubleList)
+			return MeasurementList.TYPE.DOUBLE;
+		if (list instanceof ColumnarMeasurementTable.ColumnarMeasurementList)
+			return MeasurementList.TYPE.COLUMNAR;
+		return MeasurementList.TYPE.GENERAL;
+	}
+
+	/**
+	 * Create a new measurement list that stores its values within the specified table.
+	 * <p>
+	 * The table should belong to the image containing the object, 
+	 * see {@link qupath.lib.objects.hierarchy.PathObjectHierarchy#getMeasurementTable()}.
+	 * 
+	 * @param table
+	 * @return
+	 */
+	public static MeasurementList createMeasurementList(ColumnarMeasurementTable table) {
+		return table.createMeasurementList();
+	}
 
 }
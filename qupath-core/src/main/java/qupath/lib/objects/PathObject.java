@@ -467,6 +467,20 @@ public abstract class PathObject implements Externalizable {
 		if (childList == null)
 			childList = new ArrayList<>(capacity);
 	}
+
+	/**
+	 * Append child objects in the order provided, without sorting or checking for any previous parent.
+	 *
+	 * This is intended for objects that are being read from a file, where the order is already known to be correct.
+	 *
+	 * @param pathObjects
+	 */
+	void appendChildObjects(final Collection<? extends PathObject> pathObjects) {
+		ensureChildList(pathObjects.size());
+		for (PathObject pathObject : pathObjects)
+			pathObject.parent = this;
+		childList.addAll(pathObjects);
+	}
 	
 	/**
 	 * Store a metadata value.
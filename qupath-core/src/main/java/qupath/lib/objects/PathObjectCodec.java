@@ -0,0 +1,1114 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.objects;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import qupath.lib.geom.Point2;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.roi.EllipseROI;
+import qupath.lib.roi.LineROI;
+import qupath.lib.roi.PointsROI;
+import qupath.lib.roi.PolygonROI;
+import qupath.lib.roi.RectangleROI;
+import qupath.lib.roi.interfaces.ROI;
+import qupath.lib.rois.vertices.Vertices;
+
+/**
+ * Compact binary encoding for PathObjects, used as an alternative to Java serialization when saving large hierarchies.
+ * <p>
+ * Objects are written in self-contained chunks.  Within a chunk, the structure is stored as an array of parent indices,
+ * PathClasses and measurement names are stored once in lookup tables, ROI vertices are stored as packed arrays
+ * and measurements are stored column-by-column (as floats wherever this is lossless).
+ * This is much faster to write and read than recursive serialization, and compresses considerably better.
+ * <p>
+ * Object types, ROIs and measurement lists that aren't recognized here fall back to Java serialization,
+ * so that nothing is lost - although these don't benefit from the more compact representation.
+ */
+public class PathObjectCodec {
+	
+	private static final int CHUNK_VERSION = 1;
+	
+	private static final byte COMPRESSION_NONE = 0;
+	private static final byte COMPRESSION_DEFLATE = 1;
+	
+	private static final byte TYPE_SERIALIZED = 0;
+	private static final byte TYPE_ROOT = 1;
+	private static final byte TYPE_ANNOTATION = 2;
+	private static final byte TYPE_DETECTION = 3;
+	private static final byte TYPE_CELL = 4;
+	private static final byte TYPE_TILE = 5;
+	private static final byte TYPE_TMA_CORE = 6;
+	
+	private static final int FLAG_LOCKED = 1;
+	private static final int FLAG_NAME = 1 << 1;
+	private static final int FLAG_COLOR = 1 << 2;
+	private static final int FLAG_METADATA = 1 << 3;
+	private static final int FLAG_MISSING = 1 << 4;
+	private static final int FLAG_PROBABILITY = 1 << 5;
+	private static final int FLAG_NUCLEUS = 1 << 6;
+	
+	private static final byte ROI_NONE = 0;
+	private static final byte ROI_SERIALIZED = 1;
+	private static final byte ROI_RECTANGLE = 2;
+	private static final byte ROI_ELLIPSE = 3;
+	private static final byte ROI_LINE = 4;
+	private static final byte ROI_POLYGON = 5;
+	private static final byte ROI_POINTS = 6;
+	
+	// Measurement lists are otherwise identified by the ordinal of their MeasurementList.TYPE
+	private static final byte LIST_NONE = -1;
+	private static final byte LIST_SERIALIZED = -2;
+	
+	private static final byte COLUMN_FLOAT = 0;
+	private static final byte COLUMN_DOUBLE = 1;
+	
+	private static final MeasurementList.TYPE[] LIST_TYPES = MeasurementList.TYPE.values();
+	
+	private PathObjectCodec() {}
+	
+	
+	/**
+	 * Encode objects, along with all their descendants, as a single chunk.
+	 * <p>
+	 * The objects themselves become the roots of the chunk, i.e. they will be returned without any parent by
+	 * {@link #decodeChunk(byte[])}.
+	 * 
+	 * @param pathObjects the objects to encode
+	 * @param compress if true, apply (fast) compression to the encoded chunk
+	 * @return the encoded chunk, which can be written directly to a stream
+	 * @throws IOException
+	 */
+	public static byte[] encodeChunk(final Collection<? extends PathObject> pathObjects, final boolean compress) throws IOException {
+		return encodeChunk(pathObjects, true, compress);
+	}
+	
+	/**
+	 * Encode objects as a single chunk, optionally along with all their descendants.
+	 * <p>
+	 * If descendants are not included, then the objects are encoded individually (without any children); this is useful 
+	 * whenever the structure is stored separately, e.g. because a large hierarchy is split across several chunks.
+	 * 
+	 * @param pathObjects the objects to encode
+	 * @param includeDescendants if true, encode all descendants of the objects; otherwise, encode only the objects themselves
+	 * @param compress if true, apply (fast) compression to the encoded chunk
+	 * @return the encoded chunk, which can be written directly to a stream
+	 * @throws IOException
+	 */
+	public static byte[] encodeChunk(final Collection<? extends PathObject> pathObjects, final boolean includeDescendants, final boolean compress) throws IOException {
+		return encodeChunk(flattenObjects(pathObjects, includeDescendants), compress);
+	}
+	
+	/**
+	 * Encode objects that have previously been flattened as a single chunk.
+	 * 
+	 * @param flattened the objects to encode, as returned by {@link #flattenObjects(Collection, boolean)}
+	 * @param compress if true, apply (fast) compression to the encoded chunk
+	 * @return the encoded chunk, which can be written directly to a stream
+	 * @throws IOException
+	 */
+	public static byte[] encodeChunk(final FlattenedObjects flattened, final boolean compress) throws IOException {
+		byte[] payload = encodePayload(flattened.objects, flattened.parents);
+		byte[] stored = payload;
+		byte compression = COMPRESSION_NONE;
+		if (compress) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				deflater.setInput(payload);
+				deflater.finish();
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(1024, payload.length / 2));
+				byte[] buffer = new byte[64 * 1024];
+				while (!deflater.finished()) {
+					int n = deflater.deflate(buffer);
+					bytes.write(buffer, 0, n);
+				}
+				// Only use compression if it actually helped
+				if (bytes.size() < payload.length) {
+					stored = bytes.toByteArray();
+					compression = COMPRESSION_DEFLATE;
+				}
+			} finally {
+				deflater.end();
+			}
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(9 + stored.length);
+		buffer.put(compression);
+		buffer.putInt(payload.length);
+		buffer.putInt(stored.length);
+		buffer.put(stored);
+		return buffer.array();
+	}
+	
+	/**
+	 * Query whether the children of an object are encoded separately from the object itself.
+	 * <p>
+	 * This is true for all the standard object types.  Other objects fall back to Java serialization, which includes 
+	 * all their descendants - and therefore they can't be split across chunks.
+	 * 
+	 * @param pathObject
+	 * @return
+	 */
+	public static boolean encodesChildrenSeparately(final PathObject pathObject) {
+		return getType(pathObject) != TYPE_SERIALIZED;
+	}
+	
+	/**
+	 * Append decoded objects to the child list of a parent, preserving their order.
+	 * <p>
+	 * This is intended only for reassembling a hierarchy that has been split across several chunks; 
+	 * unlike {@link PathObject#addPathObjects(Collection)}, the children are not sorted, and any previous parent is not checked.
+	 * 
+	 * @param parent
+	 * @param children
+	 */
+	public static void appendDecodedChildren(final PathObject parent, final Collection<? extends PathObject> children) {
+		parent.appendChildObjects(children);
+	}
+
+	/**
+	 * Update an existing object so that its properties match those of a decoded object, without changing its identity
+	 * or its position in the hierarchy.
+	 * <p>
+	 * This covers the classification, name, color, lock status, measurements, metadata and (for TMA cores) missing status.
+	 * The ROI is also updated for objects that support this; the nucleus ROI of a cell cannot be changed.
+	 *
+	 * @param target the object to update
+	 * @param decoded an object of the same class, containing the properties to apply
+	 * @throws IllegalArgumentException if the objects are of different classes
+	 */
+	public static void applyDecodedProperties(final PathObject target, final PathObject decoded) {
+		if (target.getClass() != decoded.getClass())
+			throw new IllegalArgumentException("Cannot apply properties of " + decoded.getClass().getSimpleName() + " to " + target.getClass().getSimpleName());
+
+		if (target instanceof PathROIObject) {
+			PathROIObject roiObject = (PathROIObject)target;
+			if (decoded.getROI() != null && !(target instanceof PathCellObject))
+				roiObject.setROI(decoded.getROI());
+			roiObject.setLocked(((PathROIObject)decoded).isLocked());
+		}
+		if (target instanceof TMACoreObject)
+			((TMACoreObject)target).setMissing(((TMACoreObject)decoded).isMissing());
+		if (!(target instanceof PathRootObject))
+			target.setPathClass(decoded.getPathClass(), decoded.getClassProbability());
+		target.setName(decoded.getName());
+		target.setColorRGB(decoded.getColorRGB());
+
+		MeasurementList measurements = target.getMeasurementList();
+		measurements.clear();
+		for (int i = 0; i < decoded.getMeasurementList().size(); i++)
+			measurements.addMeasurement(decoded.getMeasurementList().getMeasurementName(i), decoded.getMeasurementList().getMeasurementValue(i));
+		measurements.closeList();
+
+		target.clearMetadataMap();
+		for (String key : decoded.retrieveMetadataKeys()) {
+			Object value = decoded.retrieveMetadataValue(key);
+			if (value != null && !(value instanceof String))
+				throw new IllegalArgumentException("Unsupported metadata value for key " + key + ": " + value);
+			target.storeMetadataValue(key, (String)value);
+		}
+	}
+
+	/**
+	 * Write a chunk containing the specified objects (and their descendants) to an output.
+	 * 
+	 * @param out
+	 * @param pathObjects
+	 * @param compress
+	 * @throws IOException
+	 * 
+	 * @see #encodeChunk(Collection, boolean)
+	 */
+	public static void writeChunk(final DataOutput out, final Collection<? extends PathObject> pathObjects, final boolean compress) throws IOException {
+		out.write(encodeChunk(pathObjects, compress));
+	}
+	
+	/**
+	 * Read the bytes of the next chunk from an input, without decoding them.
+	 * <p>
+	 * This makes it possible to read chunks sequentially, but decode them in parallel.
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] readChunkBytes(final DataInput in) throws IOException {
+		byte compression = in.readByte();
+		int rawLength = in.readInt();
+		int storedLength = in.readInt();
+		ByteBuffer buffer = ByteBuffer.allocate(9 + storedLength);
+		buffer.put(compression);
+		buffer.putInt(rawLength);
+		buffer.putInt(storedLength);
+		in.readFully(buffer.array(), 9, storedLength);
+		return buffer.array();
+	}
+	
+	/**
+	 * Skip over the next chunk in an input, without reading its contents.
+	 *
+	 * @param in
+	 * @return the total number of bytes occupied by the chunk
+	 * @throws IOException
+	 */
+	public static int skipChunk(final DataInput in) throws IOException {
+		in.readByte();
+		in.readInt();
+		int storedLength = in.readInt();
+		int remaining = storedLength;
+		while (remaining > 0) {
+			int skipped = in.skipBytes(remaining);
+			if (skipped <= 0) {
+				// Make sure we haven't reached the end of the input
+				in.readByte();
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+		return 9 + storedLength;
+	}
+
+	/**
+	 * Read and decode the next chunk from an input.
+	 * 
+	 * @param in
+	 * @return the root objects of the chunk, with all descendants attached
+	 * @throws IOException
+	 */
+	public static List<PathObject> readChunk(final DataInput in) throws IOException {
+		return decodeChunk(readChunkBytes(in));
+	}
+	
+	/**
+	 * Decode a chunk created with {@link #encodeChunk(Collection, boolean)}.
+	 * 
+	 * @param chunk
+	 * @return the root objects of the chunk, with all descendants attached
+	 * @throws IOException
+	 */
+	public static List<PathObject> decodeChunk(final byte[] chunk) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(chunk);
+		byte compression = buffer.get();
+		int rawLength = buffer.getInt();
+		int storedLength = buffer.getInt();
+		byte[] payload;
+		if (compression == COMPRESSION_NONE) {
+			payload = Arrays.copyOfRange(chunk, 9, 9 + storedLength);
+		} else if (compression == COMPRESSION_DEFLATE) {
+			payload = new byte[rawLength];
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(chunk, 9, storedLength);
+				int n = 0;
+				while (n < rawLength && !inflater.finished())
+					n += inflater.inflate(payload, n, rawLength - n);
+				if (n != rawLength)
+					throw new IOException("Chunk is truncated - expected " + rawLength + " bytes, but found " + n);
+			} catch (DataFormatException e) {
+				throw new IOException("Unable to decompress chunk", e);
+			} finally {
+				inflater.end();
+			}
+		} else
+			throw new IOException("Unknown chunk compression " + compression);
+		try {
+			return decodePayload(ByteBuffer.wrap(payload));
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Chunk is truncated", e);
+		}
+	}
+	
+	
+	
+	/**
+	 * Objects in the order in which they are encoded, along with the structure relating them.
+	 * <p>
+	 * This makes it possible to capture the structure of part of a hierarchy quickly (e.g. while holding its lock), 
+	 * and to encode the objects later.
+	 * 
+	 * @see PathObjectCodec#flattenObjects(Collection, boolean)
+	 */
+	public static class FlattenedObjects {
+		
+		private final PathObject[] objects;
+		private final int[] parents;
+		
+		private FlattenedObjects(final PathObject[] objects, final int[] parents) {
+			this.objects = objects;
+			this.parents = parents;
+		}
+		
+		/**
+		 * Get the number of objects, including any descendants.
+		 * 
+		 * @return
+		 */
+		public int size() {
+			return objects.length;
+		}
+		
+	}
+	
+	/**
+	 * Flatten objects (optionally along with all their descendants), so that they can be encoded later with 
+	 * {@link #encodeChunk(FlattenedObjects, boolean)} - even if the child lists have since changed.
+	 * <p>
+	 * Objects that fall back to Java serialization still take care of their own descendants when they are encoded.
+	 * 
+	 * @param pathObjects the objects to flatten
+	 * @param includeDescendants if true, include all descendants of the objects; otherwise, include only the objects themselves
+	 * @return
+	 */
+	public static FlattenedObjects flattenObjects(final Collection<? extends PathObject> pathObjects, final boolean includeDescendants) {
+		// Parents always come before their children
+		PathObject[] objects;
+		int[] parents;
+		if (includeDescendants) {
+			int n = 0;
+			for (PathObject pathObject : pathObjects)
+				n += countObjects(pathObject);
+			objects = new PathObject[n];
+			parents = new int[n];
+			int ind = 0;
+			for (PathObject pathObject : pathObjects)
+				ind = flatten(pathObject, -1, objects, parents, ind);
+		} else {
+			objects = pathObjects.toArray(new PathObject[pathObjects.size()]);
+			parents = new int[objects.length];
+			Arrays.fill(parents, -1);
+		}
+		return new FlattenedObjects(objects, parents);
+	}
+
+	private static byte[] encodePayload(final PathObject[] objects, final int[] parents) throws IOException {
+		
+		int n = objects.length;
+		byte[] types = new byte[n];
+		for (int i = 0; i < n; i++)
+			types[i] = getType(objects[i]);
+		
+		Output out = new Output(Math.max(1024, n * 64));
+		out.putInt(CHUNK_VERSION);
+		out.putInt(n);
+		for (int i = 0; i < n; i++)
+			out.putInt(parents[i]);
+		out.putBytes(types);
+		
+		// Write the classifications
+		List<PathClass> pathClasses = new ArrayList<>();
+		Map<PathClass, Integer> pathClassMap = new HashMap<>();
+		int[] classIndex = new int[n];
+		for (int i = 0; i < n; i++) {
+			PathObject pathObject = objects[i];
+			classIndex[i] = types[i] == TYPE_SERIALIZED || types[i] == TYPE_ROOT ? -1 : getClassIndex(pathObject.getPathClass(), pathClasses, pathClassMap);
+		}
+		out.putInt(pathClasses.size());
+		for (PathClass pathClass : pathClasses) {
+			out.putInt(pathClass.getParentClass() == null ? -1 : pathClassMap.get(pathClass.getParentClass()));
+			out.putString(pathClass.getName());
+			Integer color = pathClass.getColor();
+			out.putByte(color == null ? 0 : 1);
+			out.putInt(color == null ? 0 : color);
+		}
+		for (int i = 0; i < n; i++)
+			out.putInt(classIndex[i]);
+		
+		// Write the flags and other sparse properties
+		byte[] flags = new byte[n];
+		for (int i = 0; i < n; i++) {
+			if (types[i] != TYPE_SERIALIZED)
+				flags[i] = getFlags(objects[i]);
+		}
+		out.putBytes(flags);
+		for (int i = 0; i < n; i++) {
+			PathObject pathObject = objects[i];
+			int flag = flags[i];
+			if ((flag & FLAG_NAME) != 0)
+				out.putString(pathObject.getName());
+			if ((flag & FLAG_COLOR) != 0)
+				out.putInt(pathObject.getColorRGB());
+			if ((flag & FLAG_PROBABILITY) != 0)
+				out.putDouble(pathObject.getClassProbability());
+			if ((flag & FLAG_METADATA) != 0) {
+				Map<String, String> metadata = pathObject.getUnmodifiableMetadataMap();
+				out.putInt(metadata.size());
+				for (Entry<String, String> entry : metadata.entrySet()) {
+					out.putString(entry.getKey());
+					out.putString(entry.getValue());
+				}
+			}
+		}
+		
+		// Write the ROIs
+		for (int i = 0; i < n; i++) {
+			if (types[i] == TYPE_SERIALIZED || types[i] == TYPE_ROOT)
+				continue;
+			writeROI(out, objects[i].getROI());
+			if ((flags[i] & FLAG_NUCLEUS) != 0)
+				writeROI(out, ((PathCellObject)objects[i]).getNucleusROI());
+		}
+		
+		writeMeasurements(out, objects, types);
+		
+		// Write anything else that we need to serialize
+		for (int i = 0; i < n; i++) {
+			if (types[i] == TYPE_SERIALIZED)
+				writeSerialized(out, objects[i]);
+		}
+		
+		return out.toByteArray();
+	}
+	
+	
+	private static List<PathObject> decodePayload(final ByteBuffer in) throws IOException {
+		int version = in.getInt();
+		if (version != CHUNK_VERSION)
+			throw new IOException("Unsupported chunk version " + version);
+		int n = in.getInt();
+		int[] parents = new int[n];
+		for (int i = 0; i < n; i++)
+			parents[i] = in.getInt();
+		byte[] types = new byte[n];
+		in.get(types);
+		
+		PathClass[] pathClasses = new PathClass[in.getInt()];
+		for (int c = 0; c < pathClasses.length; c++) {
+			int parentIndex = in.getInt();
+			String name = getString(in);
+			boolean hasColor = in.get() != 0;
+			int rgb = in.getInt();
+			Integer color = hasColor ? Integer.valueOf(rgb) : null;
+			if (parentIndex < 0)
+				pathClasses[c] = PathClassFactory.getPathClass(name, color);
+			else
+				pathClasses[c] = PathClassFactory.getDerivedPathClass(pathClasses[parentIndex], name, color);
+		}
+		int[] classIndex = new int[n];
+		for (int i = 0; i < n; i++)
+			classIndex[i] = in.getInt();
+		
+		byte[] flags = new byte[n];
+		in.get(flags);
+		String[] names = new String[n];
+		Integer[] colors = new Integer[n];
+		double[] probabilities = new double[n];
+		Arrays.fill(probabilities, Double.NaN);
+		String[][] metadata = new String[n][];
+		for (int i = 0; i < n; i++) {
+			int flag = flags[i];
+			if ((flag & FLAG_NAME) != 0)
+				names[i] = getString(in);
+			if ((flag & FLAG_COLOR) != 0)
+				colors[i] = in.getInt();
+			if ((flag & FLAG_PROBABILITY) != 0)
+				probabilities[i] = in.getDouble();
+			if ((flag & FLAG_METADATA) != 0) {
+				String[] entries = new String[in.getInt() * 2];
+				for (int k = 0; k < entries.length; k++)
+					entries[k] = getString(in);
+				metadata[i] = entries;
+			}
+		}
+		
+		ROI[] rois = new ROI[n];
+		ROI[] nuclei = new ROI[n];
+		for (int i = 0; i < n; i++) {
+			if (types[i] == TYPE_SERIALIZED || types[i] == TYPE_ROOT)
+				continue;
+			rois[i] = readROI(in);
+			if ((flags[i] & FLAG_NUCLEUS) != 0)
+				nuclei[i] = readROI(in);
+		}
+		
+		MeasurementList[] measurements = readMeasurements(in, n);
+		
+		// Create the objects
+		PathObject[] objects = new PathObject[n];
+		for (int i = 0; i < n; i++) {
+			PathObject pathObject;
+			MeasurementList list = measurements[i];
+			int flag = flags[i];
+			switch (types[i]) {
+			case TYPE_SERIALIZED:
+				objects[i] = (PathObject)readSerialized(in);
+				continue;
+			case TYPE_ROOT:
+				pathObject = new PathRootObject();
+				copyMeasurements(list, pathObject);
+				break;
+			case TYPE_ANNOTATION:
+				pathObject = new PathAnnotationObject(rois[i], null, list);
+				break;
+			case TYPE_DETECTION:
+				pathObject = new PathDetectionObject(rois[i], null, list);
+				break;
+			case TYPE_CELL:
+				pathObject = new PathCellObject(rois[i], nuclei[i], null, list);
+				break;
+			case TYPE_TILE:
+				pathObject = new PathTileObject(rois[i], list);
+				break;
+			case TYPE_TMA_CORE:
+				TMACoreObject core = new TMACoreObject();
+				if (rois[i] != null)
+					core.setROI(rois[i]);
+				core.setMissing((flag & FLAG_MISSING) != 0);
+				copyMeasurements(list, core);
+				pathObject = core;
+				break;
+			default:
+				throw new IOException("Unknown object type " + types[i]);
+			}
+			// Setting the classification resets the color, so this needs to come first
+			if (classIndex[i] >= 0 || (flag & FLAG_PROBABILITY) != 0)
+				pathObject.setPathClass(classIndex[i] < 0 ? null : pathClasses[classIndex[i]], probabilities[i]);
+			if ((flag & FLAG_LOCKED) != 0)
+				((PathROIObject)pathObject).setLocked(true);
+			pathObject.setName(names[i]);
+			pathObject.setColorRGB(colors[i]);
+			if (metadata[i] != null) {
+				String[] entries = metadata[i];
+				for (int k = 0; k < entries.length; k += 2)
+					pathObject.storeMetadataValue(entries[k], entries[k+1]);
+			}
+			objects[i] = pathObject;
+		}
+		
+		// Assign children to parents, preserving the original order
+		List<PathObject> roots = new ArrayList<>();
+		@SuppressWarnings("unchecked")
+		List<PathObject>[] children = (List<PathObject>[])new List<?>[n];
+		for (int i = 0; i < n; i++) {
+			int p = parents[i];
+			if (p < 0) {
+				roots.add(objects[i]);
+				continue;
+			}
+			if (children[p] == null)
+				children[p] = new ArrayList<>();
+			children[p].add(objects[i]);
+		}
+		for (int i = 0; i < n; i++) {
+			if (children[i] != null)
+				objects[i].appendChildObjects(children[i]);
+		}
+		return roots;
+	}
+	
+	
+	private static int countObjects(final PathObject pathObject) {
+		int n = 1;
+		if (getType(pathObject) != TYPE_SERIALIZED && pathObject.hasChildren()) {
+			for (PathObject child : pathObject.getChildObjects())
+				n += countObjects(child);
+		}
+		return n;
+	}
+	
+	private static int flatten(final PathObject pathObject, final int parent, final PathObject[] objects, final int[] parents, int ind) {
+		int current = ind;
+		objects[current] = pathObject;
+		parents[current] = parent;
+		ind++;
+		// Serialized objects take care of their own descendants
+		if (getType(pathObject) != TYPE_SERIALIZED && pathObject.hasChildren()) {
+			for (PathObject child : pathObject.getChildObjects())
+				ind = flatten(child, current, objects, parents, ind);
+		}
+		return ind;
+	}
+	
+	/**
+	 * Identify object types that can be encoded directly.
+	 * Subclasses are deliberately excluded, since they may contain additional fields.
+	 */
+	private static byte getType(final PathObject pathObject) {
+		Class<?> cls = pathObject.getClass();
+		if (cls == PathDetectionObject.class)
+			return TYPE_DETECTION;
+		if (cls == PathCellObject.class)
+			return TYPE_CELL;
+		if (cls == PathAnnotationObject.class)
+			return TYPE_ANNOTATION;
+		if (cls == PathTileObject.class)
+			return TYPE_TILE;
+		if (cls == TMACoreObject.class)
+			return TYPE_TMA_CORE;
+		if (cls == PathRootObject.class)
+			return TYPE_ROOT;
+		return TYPE_SERIALIZED;
+	}
+	
+	private static byte getFlags(final PathObject pathObject) {
+		int flag = 0;
+		if (pathObject.getName() != null)
+			flag |= FLAG_NAME;
+		if (pathObject.getColorRGB() != null)
+			flag |= FLAG_COLOR;
+		if (!pathObject.retrieveMetadataKeys().isEmpty())
+			flag |= FLAG_METADATA;
+		if (pathObject instanceof PathROIObject) {
+			if (((PathROIObject)pathObject).isLocked())
+				flag |= FLAG_LOCKED;
+			if (!Double.isNaN(pathObject.getClassProbability()))
+				flag |= FLAG_PROBABILITY;
+		}
+		if (pathObject instanceof TMACoreObject && ((TMACoreObject)pathObject).isMissing())
+			flag |= FLAG_MISSING;
+		if (pathObject instanceof PathCellObject && ((PathCellObject)pathObject).hasNucleus())
+			flag |= FLAG_NUCLEUS;
+		return (byte)flag;
+	}
+	
+	private static int getClassIndex(final PathClass pathClass, final List<PathClass> pathClasses, final Map<PathClass, Integer> pathClassMap) {
+		if (pathClass == null)
+			return -1;
+		Integer ind = pathClassMap.get(pathClass);
+		if (ind == null) {
+			// Ensure parents are always added first
+			if (pathClass.getParentClass() != null)
+				getClassIndex(pathClass.getParentClass(), pathClasses, pathClassMap);
+			ind = pathClasses.size();
+			pathClasses.add(pathClass);
+			pathClassMap.put(pathClass, ind);
+		}
+		return ind;
+	}
+	
+	
+	private static void writeROI(final Output out, final ROI roi) throws IOException {
+		if (roi == null) {
+			out.putByte(ROI_NONE);
+			return;
+		}
+		Class<?> cls = roi.getClass();
+		if (cls == RectangleROI.class || cls == EllipseROI.class) {
+			out.putByte(cls == RectangleROI.class ? ROI_RECTANGLE : ROI_ELLIPSE);
+			putPlane(out, roi);
+			out.putDouble(roi.getBoundsX());
+			out.putDouble(roi.getBoundsY());
+			out.putDouble(roi.getBoundsWidth());
+			out.putDouble(roi.getBoundsHeight());
+		} else if (cls == LineROI.class) {
+			LineROI line = (LineROI)roi;
+			out.putByte(ROI_LINE);
+			putPlane(out, roi);
+			out.putDouble(line.getX1());
+			out.putDouble(line.getY1());
+			out.putDouble(line.getX2());
+			out.putDouble(line.getY2());
+		} else if (cls == PolygonROI.class) {
+			Vertices vertices = ((PolygonROI)roi).getVertices();
+			out.putByte(ROI_POLYGON);
+			putPlane(out, roi);
+			float[] x = vertices.getX(null);
+			float[] y = vertices.getY(null);
+			out.putInt(x.length);
+			out.putFloats(x);
+			out.putFloats(y);
+		} else if (cls == PointsROI.class) {
+			// Points are stored as doubles, so retain full precision
+			List<Point2> points = ((PointsROI)roi).getPointList();
+			out.putByte(ROI_POINTS);
+			putPlane(out, roi);
+			out.putInt(points.size());
+			for (Point2 p : points) {
+				out.putDouble(p.getX());
+				out.putDouble(p.getY());
+			}
+		} else {
+			out.putByte(ROI_SERIALIZED);
+			writeSerialized(out, roi);
+		}
+	}
+	
+	private static void putPlane(final Output out, final ROI roi) {
+		out.putInt(roi.getC());
+		out.putInt(roi.getZ());
+		out.putInt(roi.getT());
+	}
+	
+	private static ROI readROI(final ByteBuffer in) throws IOException {
+		byte type = in.get();
+		if (type == ROI_NONE)
+			return null;
+		if (type == ROI_SERIALIZED)
+			return (ROI)readSerialized(in);
+		int c = in.getInt();
+		int z = in.getInt();
+		int t = in.getInt();
+		switch (type) {
+		case ROI_RECTANGLE:
+			return new RectangleROI(in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble(), c, z, t);
+		case ROI_ELLIPSE:
+			return new EllipseROI(in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble(), c, z, t);
+		case ROI_LINE:
+			return new LineROI(in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble(), c, z, t);
+		case ROI_POLYGON:
+			int nVertices = in.getInt();
+			float[] x = new float[nVertices];
+			float[] y = new float[nVertices];
+			in.asFloatBuffer().get(x);
+			in.position(in.position() + nVertices * 4);
+			in.asFloatBuffer().get(y);
+			in.position(in.position() + nVertices * 4);
+			return new PolygonROI(x, y, c, z, t);
+		case ROI_POINTS:
+			int nPoints = in.getInt();
+			List<Point2> points = new ArrayList<>(nPoints);
+			for (int i = 0; i < nPoints; i++)
+				points.add(new Point2(in.getDouble(), in.getDouble()));
+			return new PointsROI(points, c, z, t);
+		default:
+			throw new IOException("Unknown ROI type " + type);
+		}
+	}
+	
+	
+	/**
+	 * Write measurements in columns, one per measurement name.
+	 * <p>
+	 * Each measurement list is described by a 'layout', i.e. its sequence of measurement names.
+	 * Usually there are only a handful of distinct layouts in a hierarchy (e.g. one per detection type),
+	 * so storing these once and then reading the values column-wise is much more efficient than storing
+	 * the names for each object individually.
+	 */
+	private static void writeMeasurements(final Output out, final PathObject[] objects, final byte[] types) throws IOException {
+		int n = objects.length;
+		Map<String, Integer> nameMap = new HashMap<>();
+		List<String> names = new ArrayList<>();
+		Map<List<String>, Integer> layoutMap = new HashMap<>();
+		List<int[]> layouts = new ArrayList<>();
+		
+		byte[] listTypes = new byte[n];
+		int[] layoutIndex = new int[n];
+		List<String> lastNames = null;
+		int lastLayout = -1;
+		for (int i = 0; i < n; i++) {
+			PathObject pathObject = objects[i];
+			if (types[i] == TYPE_SERIALIZED || !pathObject.hasMeasurements()) {
+				listTypes[i] = LIST_NONE;
+				continue;
+			}
+			MeasurementList list = pathObject.getMeasurementList();
+			if (list.hasDynamicMeasurements()) {
+				listTypes[i] = LIST_SERIALIZED;
+				continue;
+			}
+			listTypes[i] = (byte)MeasurementListFactory.getType(list).ordinal();
+			// Lists of the same type often share their name list, so check this first
+			List<String> listNames = list.getMeasurementNames();
+			if (listNames != lastNames) {
+				Integer layout = layoutMap.get(listNames);
+				if (layout == null) {
+					int[] nameIndices = new int[listNames.size()];
+					for (int k = 0; k < nameIndices.length; k++) {
+						String name = listNames.get(k);
+						Integer nameIndex = nameMap.get(name);
+						if (nameIndex == null) {
+							nameIndex = names.size();
+							names.add(name);
+							nameMap.put(name, nameIndex);
+						}
+						nameIndices[k] = nameIndex;
+					}
+					layout = layouts.size();
+					layouts.add(nameIndices);
+					layoutMap.put(new ArrayList<>(listNames), layout);
+				}
+				lastNames = listNames;
+				lastLayout = layout;
+			}
+			layoutIndex[i] = lastLayout;
+		}
+		
+		out.putInt(names.size());
+		for (String name : names)
+			out.putString(name);
+		out.putInt(layouts.size());
+		for (int[] layout : layouts) {
+			out.putInt(layout.length);
+			for (int nameIndex : layout)
+				out.putInt(nameIndex);
+		}
+		for (int i = 0; i < n; i++) {
+			out.putByte(listTypes[i]);
+			if (listTypes[i] >= 0)
+				out.putInt(layoutIndex[i]);
+		}
+		for (int i = 0; i < n; i++) {
+			if (listTypes[i] == LIST_SERIALIZED)
+				writeSerialized(out, objects[i].getMeasurementList());
+		}
+		
+		// Gather the values into columns
+		int[] counts = new int[names.size()];
+		for (int i = 0; i < n; i++) {
+			if (listTypes[i] >= 0) {
+				for (int nameIndex : layouts.get(layoutIndex[i]))
+					counts[nameIndex]++;
+			}
+		}
+		double[][] columns = new double[names.size()][];
+		for (int j = 0; j < columns.length; j++)
+			columns[j] = new double[counts[j]];
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < n; i++) {
+			if (listTypes[i] < 0)
+				continue;
+			MeasurementList list = objects[i].getMeasurementList();
+			int[] layout = layouts.get(layoutIndex[i]);
+			for (int k = 0; k < layout.length; k++) {
+				int nameIndex = layout[k];
+				columns[nameIndex][counts[nameIndex]++] = list.getMeasurementValue(k);
+			}
+		}
+		
+		// Write columns as floats if we can do so without losing precision
+		for (double[] column : columns) {
+			boolean isFloat = true;
+			for (double v : column) {
+				if ((float)v != v && !Double.isNaN(v)) {
+					isFloat = false;
+					break;
+				}
+			}
+			if (isFloat) {
+				out.putByte(COLUMN_FLOAT);
+				for (double v : column)
+					out.putFloat((float)v);
+			} else {
+				out.putByte(COLUMN_DOUBLE);
+				for (double v : column)
+					out.putDouble(v);
+			}
+		}
+	}
+	
+	
+	private static MeasurementList[] readMeasurements(final ByteBuffer in, final int n) throws IOException {
+		String[] names = new String[in.getInt()];
+		for (int j = 0; j < names.length; j++)
+			names[j] = getString(in);
+		int[][] layouts = new int[in.getInt()][];
+		for (int l = 0; l < layouts.length; l++) {
+			int[] layout = new int[in.getInt()];
+			for (int k = 0; k < layout.length; k++)
+				layout[k] = in.getInt();
+			layouts[l] = layout;
+		}
+		byte[] listTypes = new byte[n];
+		int[] layoutIndex = new int[n];
+		for (int i = 0; i < n; i++) {
+			listTypes[i] = in.get();
+			if (listTypes[i] >= 0)
+				layoutIndex[i] = in.getInt();
+		}
+		MeasurementList[] lists = new MeasurementList[n];
+		for (int i = 0; i < n; i++) {
+			if (listTypes[i] == LIST_SERIALIZED)
+				lists[i] = (MeasurementList)readSerialized(in);
+		}
+		
+		// Read the columns
+		int[] counts = new int[names.length];
+		for (int i = 0; i < n; i++) {
+			if (listTypes[i] >= 0) {
+				for (int nameIndex : layouts[layoutIndex[i]])
+					counts[nameIndex]++;
+			}
+		}
+		double[][] columns = new double[names.length][];
+		for (int j = 0; j < names.length; j++) {
+			double[] column = new double[counts[j]];
+			byte columnType = in.get();
+			if (columnType == COLUMN_FLOAT) {
+				for (int k = 0; k < column.length; k++)
+					column[k] = in.getFloat();
+			} else if (columnType == COLUMN_DOUBLE) {
+				for (int k = 0; k < column.length; k++)
+					column[k] = in.getDouble();
+			} else
+				throw new IOException("Unknown measurement column type " + columnType);
+			columns[j] = column;
+		}
+		
+		// Create the lists
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < n; i++) {
+			if (listTypes[i] < 0)
+				continue;
+			if (listTypes[i] >= LIST_TYPES.length)
+				throw new IOException("Unknown measurement list type " + listTypes[i]);
+			int[] layout = layouts[layoutIndex[i]];
+			MeasurementList list = MeasurementListFactory.createMeasurementList(layout.length, LIST_TYPES[listTypes[i]]);
+			for (int nameIndex : layout)
+				list.addMeasurement(names[nameIndex], columns[nameIndex][counts[nameIndex]++]);
+			list.closeList();
+			lists[i] = list;
+		}
+		return lists;
+	}
+	
+	
+	/**
+	 * Copy measurements for objects that don't accept a measurement list in their constructor.
+	 */
+	private static void copyMeasurements(final MeasurementList source, final PathObject target) {
+		if (source == null)
+			return;
+		MeasurementList list = target.getMeasurementList();
+		for (int k = 0; k < source.size(); k++)
+			list.addMeasurement(source.getMeasurementName(k), source.getMeasurementValue(k));
+		list.closeList();
+	}
+	
+	
+	private static void writeSerialized(final Output out, final Object object) throws IOException {
+		if (!(object instanceof Serializable))
+			throw new IOException("Unable to encode " + object + " - object is not serializable");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream stream = new ObjectOutputStream(bytes)) {
+			stream.writeObject(object);
+		}
+		out.putInt(bytes.size());
+		out.putBytes(bytes.toByteArray());
+	}
+	
+	private static Object readSerialized(final ByteBuffer in) throws IOException {
+		int length = in.getInt();
+		try (ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(in.array(), in.arrayOffset() + in.position(), length))) {
+			in.position(in.position() + length);
+			return stream.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unable to decode object", e);
+		}
+	}
+	
+	private static String getString(final ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0)
+			return null;
+		String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return s;
+	}
+	
+	
+	/**
+	 * Simple growable buffer for encoding.
+	 * <p>
+	 * This avoids the per-value synchronization &amp; virtual calls involved when writing through a DataOutputStream.
+	 */
+	private static class Output {
+		
+		private ByteBuffer buffer;
+		
+		Output(final int capacity) {
+			buffer = ByteBuffer.allocate(capacity);
+		}
+		
+		private void ensureCapacity(final int n) {
+			if (buffer.remaining() >= n)
+				return;
+			long capacity = Math.max((long)buffer.capacity() * 2, (long)buffer.position() + n);
+			if (capacity > Integer.MAX_VALUE - 16)
+				capacity = (long)buffer.position() + n;
+			ByteBuffer buffer2 = ByteBuffer.allocate((int)capacity);
+			buffer.flip();
+			buffer2.put(buffer);
+			buffer = buffer2;
+		}
+		
+		void putByte(final int b) {
+			ensureCapacity(1);
+			buffer.put((byte)b);
+		}
+		
+		void putInt(final int v) {
+			ensureCapacity(4);
+			buffer.putInt(v);
+		}
+		
+		void putFloat(final float v) {
+			ensureCapacity(4);
+			buffer.putFloat(v);
+		}
+		
+		void putDouble(final double v) {
+			ensureCapacity(8);
+			buffer.putDouble(v);
+		}
+		
+		void putBytes(final byte[] bytes) {
+			ensureCapacity(bytes.length);
+			buffer.put(bytes);
+		}
+		
+		void putFloats(final float[] values) {
+			ensureCapacity(values.length * 4);
+			buffer.asFloatBuffer().put(values);
+			buffer.position(buffer.position() + values.length * 4);
+		}
+		
+		void putString(final String s) {
+			if (s == null) {
+				putInt(-1);
+				return;
+			}
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			putInt(bytes.length);
+			putBytes(bytes);
+		}
+		
+		byte[] toByteArray() {
+			return Arrays.copyOf(buffer.array(), buffer.position());
+		}
+		
+	}
+
+}
@@ -241,8 +241,8 @@ public class PathObjectTools {
 		double py2 = py + parentROI.getBoundsHeight();
 		double cx = childROI.getBoundsX();
 		double cy = childROI.getBoundsY();
-		double cx2 = px + childROI.getBoundsWidth();
-		double cy2 = py + childROI.getBoundsHeight();
+		double cx2 = cx + childROI.getBoundsWidth();
+		double cy2 = cy + childROI.getBoundsHeight();
 		if (!(cx >= px && cx2 <= px2 && cy >= py && cy2 <= py2))
 			return false;
 		
@@ -25,25 +25,36 @@ package qupath.lib.objects.hierarchy;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import qupath.lib.geom.Point2;
+import qupath.lib.measurements.ColumnarMeasurementTable;
+import qupath.lib.measurements.MeasurementListFactory;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathCellObject;
 import qupath.lib.objects.PathDetectionObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathRootObject;
 import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.TemporaryObject;
 import qupath.lib.objects.helpers.PathObjectTools;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
@@ -62,6 +73,11 @@ import qupath.lib.roi.interfaces.ROI;
  * However, by adding/removing objects via this hierarchy (rather than through the child lists directly), it is possible
  * to maintain a more consistent structure (e.g. by automatically inserting objects as children of the objects whose ROI completely
  * contains the object to be added), along with a spatial cache so that objects can be extracted if their ROIs overlap with a specified region.
+ * <p>
+ * The hierarchy is guarded by a read/write lock: methods that only query the hierarchy (e.g. getObjects, nObjects) 
+ * may run concurrently on different threads, while methods that modify it - or fire events - have exclusive access.
+ * Multiple changes can be made while holding the write lock throughout by calling batch.
+ * Note that changes made directly to the child lists of objects (rather than through the hierarchy) are not protected.
  * 
  * TODO: Convert to more sustainable serialization
  * 
@@ -106,7 +122,21 @@ public class PathObjectHierarchy implements Serializable {
 	transient private Vector<PathObjectHierarchyListener> listeners = new Vector<>();
 
 	// Cache enabling faster access of objects according to location
-	transient private PathObjectTileCache tileCache = new PathObjectTileCache(this, 512);
+	transient private PathObjectTileCache tileCache = new PathObjectTileCache(this);
+	
+	// Lock to permit concurrent reads, while modifications (and firing events) are exclusive
+	transient private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+	transient private final Lock r = rwl.readLock();
+	transient private final Lock w = rwl.writeLock();
+	
+	// Updates started by beginUpdate(), mapped to the thread that started them - guarded by the write lock
+	transient private Map<Thread, PendingUpdate> pendingUpdates = new HashMap<>();
+	
+	// Optional loader, for hierarchies where not all objects are present from the start
+	transient private volatile PathObjectLoader objectLoader;
+	
+	// Table storing the values of columnar measurement lists for this image - created when first needed
+	transient private volatile ColumnarMeasurementTable measurementTable;
 
 	
 	public PathObjectHierarchy() {
@@ -119,8 +149,13 @@ public class PathObjectHierarchy implements Serializable {
 	 * 
 	 * @return
 	 */
-	public synchronized boolean isEmpty() {
-		return (tmaGrid == null || tmaGrid.nCores() == 0) && !rootObject.hasChildren();// && featureMaps.isEmpty();
+	public boolean isEmpty() {
+		r.lock();
+		try {
+			return (tmaGrid == null || tmaGrid.nCores() == 0) && !rootObject.hasChildren() && (objectLoader == null || !objectLoader.hasPendingObjects());// && featureMaps.isEmpty();
+		} finally {
+			r.unlock();
+		}
 	}
 	
 	public void addPathObjectListener(PathObjectHierarchyListener listener) {
@@ -135,8 +170,13 @@ public class PathObjectHierarchy implements Serializable {
 		return rootObject;
 	}
 		
-	public synchronized TMAGrid getTMAGrid() {
-		return tmaGrid;
+	public TMAGrid getTMAGrid() {
+		r.lock();
+		try {
+			return tmaGrid;
+		} finally {
+			r.unlock();
+		}
 	}
 	
 	public PathObjectSelectionModel getSelectionModel() {
@@ -157,58 +197,76 @@ public class PathObjectHierarchy implements Serializable {
 //		this.changing = changing;
 //	}
 	
-	public synchronized void setTMAGrid(TMAGrid tmaGrid) {
-		clearTMAGrid();
-		if (tmaGrid == null)
-			return;
-		this.tmaGrid = tmaGrid;
-		updateTMAHierarchy();
+	public void setTMAGrid(TMAGrid tmaGrid) {
+		w.lock();
+		try {
+			clearTMAGrid();
+			if (tmaGrid == null)
+				return;
+			this.tmaGrid = tmaGrid;
+			updateTMAHierarchy();
+		} finally {
+			w.unlock();
+		}
 	}
 	
 	// TODO: Improve TMA grid modification whenever many detection objects already exist
-	synchronized void clearTMAGrid() {
-		if (tmaGrid == null)
-			return;
-		removeObjects(new ArrayList<>(tmaGrid.getTMACoreList()), true);
-//		for (TMACoreObject core : tmaGrid.getTMACoreList())
-//			removeObject(core, true);
-//		this.tmaGrid = null;
-		// Notify listeners of changes
-		fireHierarchyChangedEvent(getRootObject());
+	void clearTMAGrid() {
+		w.lock();
+		try {
+			if (tmaGrid == null)
+				return;
+			removeObjects(new ArrayList<>(tmaGrid.getTMACoreList()), true);
+	//		for (TMACoreObject core : tmaGrid.getTMACoreList())
+	//			removeObject(core, true);
+	//		this.tmaGrid = null;
+			// Notify listeners of changes
+			fireHierarchyChangedEvent(getRootObject(), getRootObject(), Collections.emptyList(), Collections.emptyList());
+		} finally {
+			w.unlock();
+		}
 	}
 	
-	public synchronized boolean removeObject(PathObject pathObject, boolean keepChildren) {
+	public boolean removeObject(PathObject pathObject, boolean keepChildren) {
 		return removeObject(pathObject, keepChildren, true);
 	}
 	
-	public synchronized boolean removeObject(PathObject pathObject, boolean keepChildren, boolean fireEvent) {
-		// Check the object is within the hierarchy & has a valid parent (from which it can be removed)
-		PathObject pathObjectParent = pathObject.getParent();
-		if (!inHierarchy(pathObject) || pathObjectParent == null) {
-			logger.warn(pathObject + " could not be removed from the hierarchy");
-			return false;
-		}
+	public boolean removeObject(PathObject pathObject, boolean keepChildren, boolean fireEvent) {
+		w.lock();
+		try {
+			// Check the object is within the hierarchy & has a valid parent (from which it can be removed)
+			PathObject pathObjectParent = pathObject.getParent();
+			if (!inHierarchy(pathObject) || pathObjectParent == null) {
+				logger.warn(pathObject + " could not be removed from the hierarchy");
+				return false;
+			}
 
-		// Can't keep children if there aren't any
-		keepChildren = keepChildren && pathObject.hasChildren();
+			// Can't keep children if there aren't any
+			keepChildren = keepChildren && pathObject.hasChildren();
 		
-		pathObjectParent.removePathObject(pathObject);
+			pathObjectParent.removePathObject(pathObject);
 
-		// Assign the children to the parent object, if necessary
-		if (keepChildren) {
-			// We create a new array list because getPathObjectList returns an unmodifiable collection
-//			List<PathObject> list = new ArrayList<>(pathObject.getPathObjectList());
-			pathObjectParent.addPathObjects(pathObject.getChildObjects());
-//			pathObject.clearPathObjects(); // Clear child objects, just in case
-		}
-		if (fireEvent) {
-			if (keepChildren)
-				fireObjectRemovedEvent(this, pathObject, pathObjectParent);
-			else
-				fireHierarchyChangedEvent(this, pathObjectParent);
-		}
+			// Assign the children to the parent object, if necessary
+			if (keepChildren) {
+				// We create a new array list because getPathObjectList returns an unmodifiable collection
+	//			List<PathObject> list = new ArrayList<>(pathObject.getPathObjectList());
+				pathObjectParent.addPathObjects(pathObject.getChildObjects());
+	//			pathObject.clearPathObjects(); // Clear child objects, just in case
+			}
+			if (fireEvent) {
+				if (keepChildren)
+					fireObjectRemovedEvent(this, pathObject, pathObjectParent);
+				else {
+					List<PathObject> removed = new ArrayList<>();
+					addPathObjectsRecursively(Collections.singleton(pathObject), removed, null);
+					fireHierarchyChangedEvent(this, pathObjectParent, Collections.emptyList(), removed);
+				}
+			}
 		
-		return true;
+			return true;
+		} finally {
+			w.unlock();
+		}
 	}
 	
 	/**
@@ -218,48 +276,86 @@ public class PathObjectHierarchy implements Serializable {
 	 * @param pathObjects
 	 * @param keepChildren
 	 */
-	public synchronized void removeObjects(Collection<PathObject> pathObjects, boolean keepChildren) {
+	public void removeObjects(Collection<PathObject> pathObjects, boolean keepChildren) {
+		w.lock();
+		try {
 		
-		if (pathObjects.isEmpty())
-			return;
+			if (pathObjects.isEmpty())
+				return;
 		
-		List<PathObject> pathObjectSet = new ArrayList<>(pathObjects);
-		pathObjectSet.sort((o1, o2) -> Integer.compare(o2.getLevel(), o1.getLevel()));
+			List<PathObject> pathObjectSet = new ArrayList<>(pathObjects);
+			pathObjectSet.sort((o1, o2) -> Integer.compare(o2.getLevel(), o1.getLevel()));
 		
-		// Determine the parents for each object
-		Map<PathObject, List<PathObject>> map = new HashMap<>();
-		for (PathObject pathObject : pathObjectSet) {
-			PathObject parent = pathObject.getParent();
-			if (parent == null)
-				continue;
-			List<PathObject> list = map.get(parent);
-			if (list == null) {
-				list = new ArrayList<>();
-				map.put(parent, list);
+			// Determine the parents for each object
+			Map<PathObject, List<PathObject>> map = new HashMap<>();
+			for (PathObject pathObject : pathObjectSet) {
+				PathObject parent = pathObject.getParent();
+				if (parent == null)
+					continue;
+				List<PathObject> list = map.get(parent);
+				if (list == null) {
+					list = new ArrayList<>();
+					map.put(parent, list);
+				}
+				list.add(pathObject);
 			}
-			list.add(pathObject);
-		}
 		
-		if (map.isEmpty())
-			return;
+			if (map.isEmpty())
+				return;
 		
-		// Loop through and remove objects
-		for (Entry<PathObject, List<PathObject>> entry : map.entrySet()) {
-			PathObject parent = entry.getKey();
-			List<PathObject> children = entry.getValue();
-			parent.removePathObjects(children);
-			if (keepChildren) {
-				for (PathObject child : children) {
-					if (child.hasChildren()) {
-						List<PathObject> newChildList = new ArrayList<>(child.getChildObjects());
-						newChildList.removeAll(pathObjects);
-						parent.addPathObjects(newChildList);
+			// Loop through and remove objects
+			List<PathObject> removed = new ArrayList<>();
+			for (Entry<PathObject, List<PathObject>> entry : map.entrySet()) {
+				PathObject parent = entry.getKey();
+				List<PathObject> children = entry.getValue();
+				parent.removePathObjects(children);
+				if (keepChildren) {
+					removed.addAll(children);
+					for (PathObject child : children) {
+						if (child.hasChildren()) {
+							List<PathObject> newChildList = new ArrayList<>(child.getChildObjects());
+							newChildList.removeAll(pathObjects);
+							parent.addPathObjects(newChildList);
+						}
 					}
-				}
+				} else
+					addPathObjectsRecursively(children, removed, null);
 			}
-		}
-		fireHierarchyChangedEvent(this);
+			// Use the most specific base object possible, so that listeners know which part of the hierarchy changed
+			fireHierarchyChangedEvent(this, getCommonAncestor(map.keySet()), Collections.emptyList(), removed);
 		
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	
+	/**
+	 * Get the deepest object that is an ancestor of (or the same as) all the objects in a collection.
+	 * 
+	 * @param pathObjects
+	 * @return
+	 */
+	private PathObject getCommonAncestor(Collection<PathObject> pathObjects) {
+		PathObject common = null;
+		for (PathObject pathObject : pathObjects) {
+			if (common == null) {
+				common = pathObject;
+				continue;
+			}
+			PathObject other = pathObject;
+			while (other.getLevel() > common.getLevel())
+				other = other.getParent();
+			while (common.getLevel() > other.getLevel())
+				common = common.getParent();
+			while (common != other && common != null) {
+				common = common.getParent();
+				other = other.getParent();
+			}
+			if (common == null)
+				return getRootObject();
+		}
+		return common == null ? getRootObject() : common;
 	}
 	
 	
@@ -270,30 +366,43 @@ public class PathObjectHierarchy implements Serializable {
 	 * @param pathObject
 	 * @return
 	 */
-	private synchronized boolean inHierarchy(PathObject pathObject) { // made private as only called here
-		if (pathObject == null)
-			return false;
-		while (pathObject.getParent() != null)
-			pathObject = pathObject.getParent();
-		return pathObject.equals(getRootObject());
+	private boolean inHierarchy(PathObject pathObject) {
+		r.lock();
+		try {
+	 // made private as only called here
+			if (pathObject == null)
+				return false;
+			while (pathObject.getParent() != null)
+				pathObject = pathObject.getParent();
+			return pathObject.equals(getRootObject());
+		} finally {
+			r.unlock();
+		}
 	}
 	
 	
-	private synchronized void updateTMAHierarchy() {
-		if (tmaGrid == null)
-			return;
+	private void updateTMAHierarchy() {
+		w.lock();
+		try {
+			if (tmaGrid == null)
+				return;
 
-		// Assign annotations to cores
-		List<PathObject> pathObjectChildren = new ArrayList<>(rootObject.getChildObjects());
-		rootObject.clearPathObjects();
-		// Add cores to the start of the object list
-		rootObject.addPathObjects(tmaGrid.getTMACoreList());
-		// Add back any other objects
-		for (PathObject pathObject : pathObjectChildren)
-			addPathObject(pathObject, false, false);
+			// Assign annotations to cores
+			List<PathObject> pathObjectChildren = new ArrayList<>(rootObject.getChildObjects());
+			rootObject.clearPathObjects();
+			// Add cores to the start of the object list
+			rootObject.addPathObjects(tmaGrid.getTMACoreList());
+			// Add back any other objects (these were already in the hierarchy, so there is nothing more to load)
+			for (PathObject pathObject : pathObjectChildren) {
+				if (pathObject.hasROI())
+					addPathObjectToList(getRootObject(), pathObject, false, false);
+			}
 
-		// Notify listeners of changes
-		fireHierarchyChangedEvent(getRootObject());
+			// Notify listeners of changes - only the cores are new, everything else has at most been given a new parent
+			fireHierarchyChangedEvent(getRootObject(), getRootObject(), tmaGrid.getTMACoreList(), Collections.emptyList());
+		} finally {
+			w.unlock();
+		}
 	}
 	
 	
@@ -318,83 +427,42 @@ public class PathObjectHierarchy implements Serializable {
 //J		return true;
 //J	}
 	
-	// TODO: Be very cautious about this!!!!  Use of tileCache inside a synchronized method might lead to deadlocks?
-	private synchronized boolean addPathObjectToList(PathObject pathObjectParent, PathObject pathObject, boolean avoidDuplicates, boolean fireChangeEvents) {
-		
-		if (pathObject != null && !pathObject.isDetection())
-			logger.debug("Adding {} to hierarchy", pathObject);
-		
-//		// We can't add to a non-ROI
-//		if (!pathObjectParent.hasROI() && pathObjectParent != getRootObject())
-//			return false;
+	// Note: the tile cache has its own lock, which may be acquired while holding the hierarchy lock - but never the other way around
+	private boolean addPathObjectToList(PathObject pathObjectParent, PathObject pathObject, boolean avoidDuplicates, boolean fireChangeEvents) {
+		w.lock();
+		try {
 		
-		if (!pathObjectParent.hasChildren()) {
-			// The parent doesn't have any other children - so we can just add the object directly
-			pathObjectParent.addPathObject(pathObject);
-			// Notify listeners of changes
-			if (fireChangeEvents)
-				fireObjectAddedEvent(this, pathObject);
-			logger.debug("Adding directly: {} has no child objects", pathObjectParent);
-			return true;
-		}
-		Collection<PathObject> pathObjects = pathObjectParent.getChildObjects();
-		if (avoidDuplicates && pathObjects.contains(pathObject)) {
-			logger.warn("Warning: List already contains {}, will not be added again", pathObject);
-			return false;
-		}
+			if (pathObject != null && !pathObject.isDetection())
+				logger.debug("Adding {} to hierarchy", pathObject);
 		
+	//		// We can't add to a non-ROI
+	//		if (!pathObjectParent.hasROI() && pathObjectParent != getRootObject())
+	//			return false;
 		
-		ROI pathROI = pathObject.getROI();
-		ROI pathROIInner = useCellNucleiForInsideTest && (pathObject instanceof PathCellObject) ? ((PathCellObject)pathObject).getNucleusROI() : pathROI; //J
-		if (useTileCentroidsForInsideTest && pathObject instanceof PathDetectionObject && !(pathROIInner instanceof PointsROI)) {
-			double cx = pathROIInner.getCentroidX();
-			double cy = pathROIInner.getCentroidY();
-			boolean usePoint = true;
-			if (pathROIInner instanceof PathArea) {
-				PathArea tempArea = (PathArea)pathROIInner;
-				// If the centroid is outside the tile, try the center of the bounding box instead
-				if (!tempArea.contains(cx, cy)) {
-					Point2 p = PathObjectTools.getContainedPoint(tempArea);
-					usePoint = p != null;
-					if (usePoint) {
-						cx = p.getX();
-						cy = p.getY();
-					}
-				}
+			if (!pathObjectParent.hasChildren()) {
+				// The parent doesn't have any other children - so we can just add the object directly
+				pathObjectParent.addPathObject(pathObject);
+				// Notify listeners of changes
+				if (fireChangeEvents)
+					fireObjectAddedEvent(this, pathObject);
+				logger.debug("Adding directly: {} has no child objects", pathObjectParent);
+				return true;
 			}
-			if (usePoint)
-				pathROIInner = new PointsROI(cx, cy, pathROIInner.getC(), pathROIInner.getZ(), pathROIInner.getT());
-//			pathROIInner = new PointsROI(pathROIInner.getCentroidX(), pathROIInner.getCentroidY(), pathROIInner.getC(), pathROIInner.getZ(), pathROIInner.getT());
-		}
-		
-		PathObject possibleParent = pathObjectParent;
-		List<PathObject> possibleChildren = new ArrayList<>();
-		ImageRegion region = ImageRegion.createInstance(pathROI);
-		for (PathObject temp : tileCache.getObjectsForRegion(PathObject.class, region, null, true)) {
-			
-//			if (useTileCentroidsForInsideTest && temp.isDetection())
-//				continue;
-			
-//			if (!temp.hasROI() || !temp.getParent().hasROI())
-//				continue;
-			
-			ROI tempROI = temp.getROI();
-			ROI tempROIInner = tempROI;;
-			// Use the nucleus ROI of a cell if available & requested
-			if (temp instanceof PathCellObject && useCellNucleiForInsideTest) {
-				ROI nucleusROI = ((PathCellObject)temp).getNucleusROI();
-				if (nucleusROI != null)
-					tempROIInner = nucleusROI;
+			Collection<PathObject> pathObjects = pathObjectParent.getChildObjects();
+			if (avoidDuplicates && pathObjects.contains(pathObject)) {
+				logger.warn("Warning: List already contains {}, will not be added again", pathObject);
+				return false;
 			}
-//			= useCellNucleiForInsideTest && (temp instanceof PathCellObject) ? ((PathCellObject)temp).getNucleusROI() : tempROI; //J
-			
-//			if (useTileCentroidsForInsideTest && temp instanceof PathTileObject)
-			if (useTileCentroidsForInsideTest && temp instanceof PathDetectionObject) {
-				double cx = tempROIInner.getCentroidX();
-				double cy = tempROIInner.getCentroidY();
+		
+		
+			ROI pathROI = pathObject.getROI();
+			ROI pathROIInner = useCellNucleiForInsideTest && (pathObject instanceof PathCellObject) ? ((PathCellObject)pathObject).getNucleusROI() : pathROI; //J
+			if (useTileCentroidsForInsideTest && pathObject instanceof PathDetectionObject && !(pathROIInner instanceof PointsROI)) {
+				double cx = pathROIInner.getCentroidX();
+				double cy = pathROIInner.getCentroidY();
 				boolean usePoint = true;
-				if (tempROIInner instanceof PathArea) {
-					PathArea tempArea = (PathArea)tempROIInner;
+				if (pathROIInner instanceof PathArea) {
+					PathArea tempArea = (PathArea)pathROIInner;
 					// If the centroid is outside the tile, try the center of the bounding box instead
 					if (!tempArea.contains(cx, cy)) {
 						Point2 p = PathObjectTools.getContainedPoint(tempArea);
@@ -406,69 +474,115 @@ public class PathObjectHierarchy implements Serializable {
 					}
 				}
 				if (usePoint)
-					tempROIInner = new PointsROI(cx, cy, tempROI.getC(), tempROI.getZ(), tempROI.getT());
-//				tempROIInner = new RectangleROI(tempROIInner.getCentroidX()-.5, tempROIInner.getCentroidY()-.5,  1,  1, tempROI.getC(), tempROI.getZ(), tempROI.getT());
+					pathROIInner = new PointsROI(cx, cy, pathROIInner.getC(), pathROIInner.getZ(), pathROIInner.getT());
+	//			pathROIInner = new PointsROI(pathROIInner.getCentroidX(), pathROIInner.getCentroidY(), pathROIInner.getC(), pathROIInner.getZ(), pathROIInner.getT());
 			}
+		
+			PathObject possibleParent = pathObjectParent;
+			List<PathObject> possibleChildren = new ArrayList<>();
+			ImageRegion region = ImageRegion.createInstance(pathROI);
+			for (PathObject temp : tileCache.getObjectsForRegion(PathObject.class, region, null, true)) {
+			
+	//			if (useTileCentroidsForInsideTest && temp.isDetection())
+	//				continue;
+			
+	//			if (!temp.hasROI() || !temp.getParent().hasROI())
+	//				continue;
+			
+				ROI tempROI = temp.getROI();
+				ROI tempROIInner = tempROI;;
+				// Use the nucleus ROI of a cell if available & requested
+				if (temp instanceof PathCellObject && useCellNucleiForInsideTest) {
+					ROI nucleusROI = ((PathCellObject)temp).getNucleusROI();
+					if (nucleusROI != null)
+						tempROIInner = nucleusROI;
+				}
+	//			= useCellNucleiForInsideTest && (temp instanceof PathCellObject) ? ((PathCellObject)temp).getNucleusROI() : tempROI; //J
+			
+	//			if (useTileCentroidsForInsideTest && temp instanceof PathTileObject)
+				if (useTileCentroidsForInsideTest && temp instanceof PathDetectionObject) {
+					double cx = tempROIInner.getCentroidX();
+					double cy = tempROIInner.getCentroidY();
+					boolean usePoint = true;
+					if (tempROIInner instanceof PathArea) {
+						PathArea tempArea = (PathArea)tempROIInner;
+						// If the centroid is outside the tile, try the center of the bounding box instead
+						if (!tempArea.contains(cx, cy)) {
+							Point2 p = PathObjectTools.getContainedPoint(tempArea);
+							usePoint = p != null;
+							if (usePoint) {
+								cx = p.getX();
+								cy = p.getY();
+							}
+						}
+					}
+					if (usePoint)
+						tempROIInner = new PointsROI(cx, cy, tempROI.getC(), tempROI.getZ(), tempROI.getT());
+	//				tempROIInner = new RectangleROI(tempROIInner.getCentroidX()-.5, tempROIInner.getCentroidY()-.5,  1,  1, tempROI.getC(), tempROI.getZ(), tempROI.getT());
+				}
 
-			if (!(temp instanceof TMACoreObject) && pathROI != tempROIInner && PathObjectTools.containsROI(pathROI, tempROIInner)){
-				possibleChildren.add(temp);
-			} else if (tempROI != pathROIInner && PathObjectTools.containsROI(tempROI, pathROIInner)) {
-				if (possibleParent == null)
-					possibleParent = temp;
-				else if (temp.getLevel() > possibleParent.getLevel()) // We want the highest level to be the parent, i.e. deepest in hierarchy
-					possibleParent = temp;
+				if (!(temp instanceof TMACoreObject) && pathROI != tempROIInner && PathObjectTools.containsROI(pathROI, tempROIInner)){
+					possibleChildren.add(temp);
+				} else if (tempROI != pathROIInner && PathObjectTools.containsROI(tempROI, pathROIInner)) {
+					if (possibleParent == null)
+						possibleParent = temp;
+					else if (temp.getLevel() > possibleParent.getLevel()) // We want the highest level to be the parent, i.e. deepest in hierarchy
+						possibleParent = temp;
+				}
 			}
-		}
-		// Add the ROI, and reassign any children from the parent
-		Iterator<PathObject> iterChild = possibleChildren.iterator();
-		while (iterChild.hasNext()) {
-			if (iterChild.next().getParent() != possibleParent)
-				iterChild.remove();
-		}
-		pathObject.addPathObjects(possibleChildren);
-		possibleParent.addPathObject(pathObject);
+			// Add the ROI, and reassign any children from the parent
+			Iterator<PathObject> iterChild = possibleChildren.iterator();
+			while (iterChild.hasNext()) {
+				if (iterChild.next().getParent() != possibleParent)
+					iterChild.remove();
+			}
+			pathObject.addPathObjects(possibleChildren);
+			possibleParent.addPathObject(pathObject);
 		
 
 				
-//		// If an object completely contains the ROI of the object we want to add, then add it as child of the containing object
-//		for (PathObject pathObjectChild : pathObjectList) {
-//			if (containsROI(pathObjectChild.getROI(), pathROI)) {
-//				// Check the next level of the hierarchy, trying to add there
-//				return addPathObjectToList(pathObjectChild, pathObject, avoidDuplicates, fireChangeEvents);
-//			}
-//		}
-//		
-//		// We will be adding the object here - but first check to see if we need to set some new parents, i.e.
-//		// find out if there are any other objects at this level that should be added as children
-//		List<PathObject> childrenToReassign = null;
-//		for (PathObject child : pathObjectList) {
-//			if (!(child instanceof TMACoreObject ) && containsROI(pathROI, child.getROI())) {
-//				if (childrenToReassign == null)
-//					childrenToReassign = new ArrayList<>();
-//				childrenToReassign.add(child);
-//			}
-//		}
-//		if (childrenToReassign != null)
-//			pathObject.addPathObjects(childrenToReassign);
-//		
-////		Iterator<PathObject> iter = pathObjectList.iterator();
-////		while (iter.hasNext()) {
-//////			logger.info(pathObjectParent);
-////			PathObject pathObjectChild = iter.next();
-////			if (containsROI(pathObject.getROI(), pathObjectChild.getROI())) {
-////				iter.remove();
-//////				pathObjectChild.setParent(null);
-////				pathObject.addPathObject(pathObjectChild);
-////			}
-////		}
-//		
-//		// Add as a child
-//		pathObjectParent.addPathObject(pathObject);
-		
-		// Notify listeners of changes, if required
-		if (fireChangeEvents)
-			fireObjectAddedEvent(this, pathObject);
-		return true;
+	//		// If an object completely contains the ROI of the object we want to add, then add it as child of the containing object
+	//		for (PathObject pathObjectChild : pathObjectList) {
+	//			if (containsROI(pathObjectChild.getROI(), pathROI)) {
+	//				// Check the next level of the hierarchy, trying to add there
+	//				return addPathObjectToList(pathObjectChild, pathObject, avoidDuplicates, fireChangeEvents);
+	//			}
+	//		}
+	//		
+	//		// We will be adding the object here - but first check to see if we need to set some new parents, i.e.
+	//		// find out if there are any other objects at this level that should be added as children
+	//		List<PathObject> childrenToReassign = null;
+	//		for (PathObject child : pathObjectList) {
+	//			if (!(child instanceof TMACoreObject ) && containsROI(pathROI, child.getROI())) {
+	//				if (childrenToReassign == null)
+	//					childrenToReassign = new ArrayList<>();
+	//				childrenToReassign.add(child);
+	//			}
+	//		}
+	//		if (childrenToReassign != null)
+	//			pathObject.addPathObjects(childrenToReassign);
+	//		
+	////		Iterator<PathObject> iter = pathObjectList.iterator();
+	////		while (iter.hasNext()) {
+	//////			logger.info(pathObjectParent);
+	////			PathObject pathObjectChild = iter.next();
+	////			if (containsROI(pathObject.getROI(), pathObjectChild.getROI())) {
+	////				iter.remove();
+	//////				pathObjectChild.setParent(null);
+	////				pathObject.addPathObject(pathObjectChild);
+	////			}
+	////		}
+	//		
+	//		// Add as a child
+	//		pathObjectParent.addPathObject(pathObject);
+		
+			// Notify listeners of changes, if required
+			if (fireChangeEvents)
+				fireObjectAddedEvent(this, pathObject);
+			return true;
+		} finally {
+			w.unlock();
+		}
 	}
 	
 	
@@ -480,7 +594,7 @@ public class PathObjectHierarchy implements Serializable {
 	 * @param avoidDuplicates
 	 * @return
 	 */
-	public synchronized boolean addPathObject(PathObject pathObject, boolean avoidDuplicates) {
+	public boolean addPathObject(PathObject pathObject, boolean avoidDuplicates) {
 		return addPathObject(pathObject, avoidDuplicates, true);
 	}
 	
@@ -493,46 +607,438 @@ public class PathObjectHierarchy implements Serializable {
 	 * @param fireUpdate
 	 * @return
 	 */
-	public synchronized boolean addPathObjectBelowParent(PathObject pathObjectParent, PathObject pathObject, boolean avoidDuplicates, boolean fireUpdate) {
+	public boolean addPathObjectBelowParent(PathObject pathObjectParent, PathObject pathObject, boolean avoidDuplicates, boolean fireUpdate) {
 		if (pathObjectParent == null)
 			return addPathObject(pathObject, avoidDuplicates, fireUpdate);
-		else
+		else {
+			loadObjectsForAdding(Collections.singletonList(pathObject));
 			return addPathObjectToList(pathObjectParent, pathObject, avoidDuplicates, fireUpdate);
+		}
 	}
 	
-	public synchronized boolean addPathObject(PathObject pathObject, boolean avoidDuplicates, boolean fireUpdate) {
+	public boolean addPathObject(PathObject pathObject, boolean avoidDuplicates, boolean fireUpdate) {
 		if (pathObject == getRootObject() || !pathObject.hasROI())
 			return false;
+		loadObjectsForAdding(Collections.singletonList(pathObject));
 		return addPathObjectToList(getRootObject(), pathObject, avoidDuplicates, fireUpdate);
 	}
 	
-	public synchronized boolean addPathObjects(Collection<PathObject> pathObjects, boolean avoidDuplicates) {
-		boolean changes = false;
-		int n = pathObjects.size();
-		int counter = 0;
-		for (PathObject pathObject : pathObjects) {
-			if (n > 10000) {
-				if (counter % 1000 == 0)
+	/**
+	 * Add multiple objects to the hierarchy, firing a single event at the end.
+	 * <p>
+	 * If a large number of detection objects are provided (and nothing else), then parents are assigned in bulk - 
+	 * see {@link #BULK_INSERT_THRESHOLD}.
+	 * 
+	 * @param pathObjects
+	 * @param avoidDuplicates
+	 * @return
+	 */
+	public boolean addPathObjects(Collection<PathObject> pathObjects, boolean avoidDuplicates) {
+		loadObjectsForAdding(pathObjects);
+		w.lock();
+		try {
+			if (pathObjects.size() >= BULK_INSERT_THRESHOLD && pathObjects.stream().allMatch(p -> p != null && p.isDetection()))
+				return addDetectionObjectsInBulk(pathObjects, avoidDuplicates);
+			
+			List<PathObject> added = new ArrayList<>();
+			int n = pathObjects.size();
+			int counter = 0;
+			for (PathObject pathObject : pathObjects) {
+				if (n > 10000) {
+					if (counter % 1000 == 0)
+						logger.info("Adding {} of {}", counter, n);
+				} else if (n > 1000 && counter % 100 == 0)
 					logger.info("Adding {} of {}", counter, n);
-			} else if (n > 1000 && counter % 100 == 0)
-				logger.info("Adding {} of {}", counter, n);
-			changes = addPathObjectToList(getRootObject(), pathObject, avoidDuplicates, false) || changes;
-			counter++;
+				if (addPathObjectToList(getRootObject(), pathObject, avoidDuplicates, false))
+					added.add(pathObject);
+				counter++;
+			}
+			boolean changes = !added.isEmpty();
+			if (changes)
+				fireHierarchyChangedEvent(getRootObject(), getRootObject(), added, Collections.emptyList());
+	//			fireChangeEvent(getRootObject());
+			return changes;
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	/**
+	 * Minimum number of detections for which {@link #addPathObjects(Collection, boolean)} assigns parents in bulk.
+	 * <p>
+	 * Rather than querying the spatial cache for every object & testing it against all the objects that it overlaps, 
+	 * the detections are sorted by location and checked only against an index of the non-detection objects 
+	 * (e.g. annotations, TMA cores).  Children are then added to each parent in one go, so that child lists are sorted only once.
+	 * <p>
+	 * The result is the same as adding the objects individually.  Any detection that might interact with other detections 
+	 * already in the hierarchy, or that might itself become the parent of an existing object, is still added individually.
+	 */
+	static final int BULK_INSERT_THRESHOLD = 1000;
+	
+	/**
+	 * Add detection objects, assigning parents in bulk.
+	 * The write lock must be held.
+	 * 
+	 * @param pathObjects
+	 * @param avoidDuplicates
+	 * @return
+	 */
+	private boolean addDetectionObjectsInBulk(Collection<PathObject> pathObjects, boolean avoidDuplicates) {
+		long startTime = System.currentTimeMillis();
+		
+		// Objects that are already children of the root can be skipped, as when adding individually
+		Set<PathObject> existing = avoidDuplicates && rootObject.hasChildren() ? new HashSet<>(rootObject.getChildObjects()) : Collections.emptySet();
+		Set<PathObject> seen = new HashSet<>();
+		List<PathObject> detections = new ArrayList<>(pathObjects.size());
+		for (PathObject pathObject : pathObjects) {
+			if (!pathObject.hasROI() || !seen.add(pathObject))
+				continue;
+			if (existing.contains(pathObject))
+				logger.warn("Warning: List already contains {}, will not be added again", pathObject);
+			else
+				detections.add(pathObject);
+		}
+		int n = detections.size();
+		
+		// Index all the possible parents for each plane
+		Map<Long, PathObjectRTree> parentIndexes = new HashMap<>();
+		Map<Long, List<PathObject>> possibleParents = new HashMap<>();
+		collectNonDetectionObjects(rootObject, possibleParents);
+		for (Entry<Long, List<PathObject>> entry : possibleParents.entrySet()) {
+			PathObjectRTree index = new PathObjectRTree();
+			index.addAll(entry.getValue());
+			parentIndexes.put(entry.getKey(), index);
+		}
+		
+		// Sort by location, so that neighboring objects are handled together
+		long[] keys = new long[n];
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			ROI roi = detections.get(i).getROI();
+			keys[i] = getSpatialSortKey(roi.getCentroidX(), roi.getCentroidY());
+			order[i] = i;
+		}
+		Arrays.sort(order, (i1, i2) -> {
+			ROI roi1 = detections.get(i1).getROI();
+			ROI roi2 = detections.get(i2).getROI();
+			int cmp = Integer.compare(roi1.getZ(), roi2.getZ());
+			if (cmp == 0)
+				cmp = Integer.compare(roi1.getT(), roi2.getT());
+			return cmp == 0 ? Long.compare(keys[i1], keys[i2]) : cmp;
+		});
+		
+		// Find the parent for each object (or null if it needs to be added individually)
+		PathObject[] parents = new PathObject[n];
+		List<PathObject> candidates = new ArrayList<>();
+		for (int i : order) {
+			PathObject pathObject = detections.get(i);
+			ROI pathROI = pathObject.getROI();
+			ImageRegion region = ImageRegion.createInstance(pathROI);
+			// Other detections could be parents or children, so fall back to the usual insertion
+			if (tileCache.hasObjectsForRegion(PathDetectionObject.class, region, true))
+				continue;
+			ROI pathROIInner = getInsideTestROI(pathObject);
+			PathObject possibleParent = rootObject;
+			boolean addIndividually = false;
+			PathObjectRTree index = parentIndexes.get(getPlaneKey(pathROI));
+			if (index != null) {
+				candidates.clear();
+				index.getObjects(region.getX(), region.getY(), region.getWidth(), region.getHeight(), candidates);
+				for (PathObject temp : candidates) {
+					ROI tempROI = temp.getROI();
+					if (!(temp instanceof TMACoreObject) && pathROI != tempROI && PathObjectTools.containsROI(pathROI, tempROI)) {
+						addIndividually = true;
+						break;
+					} else if (tempROI != pathROIInner && PathObjectTools.containsROI(tempROI, pathROIInner)) {
+						if (temp.getLevel() > possibleParent.getLevel())
+							possibleParent = temp;
+					}
+				}
+			}
+			if (!addIndividually)
+				parents[i] = possibleParent;
 		}
+		
+		// Add children to each parent in one go, retaining the original order
+		Map<PathObject, List<PathObject>> childMap = new LinkedHashMap<>();
+		List<PathObject> added = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			PathObject parent = parents[i];
+			if (parent == null)
+				continue;
+			List<PathObject> children = childMap.get(parent);
+			if (children == null) {
+				children = new ArrayList<>();
+				childMap.put(parent, children);
+			}
+			children.add(detections.get(i));
+		}
+		for (Entry<PathObject, List<PathObject>> entry : childMap.entrySet()) {
+			entry.getKey().addPathObjects(entry.getValue());
+			added.addAll(entry.getValue());
+		}
+		int nBulk = added.size();
+		for (int i = 0; i < n; i++) {
+			if (parents[i] == null && addPathObjectToList(rootObject, detections.get(i), avoidDuplicates, false))
+				added.add(detections.get(i));
+		}
+		logger.debug("Added {} detections in bulk & {} individually ({} ms)", nBulk, added.size() - nBulk, System.currentTimeMillis() - startTime);
+		
+		boolean changes = !added.isEmpty();
 		if (changes)
-			fireHierarchyChangedEvent(getRootObject());
-//			fireChangeEvent(getRootObject());
+			fireHierarchyChangedEvent(getRootObject(), getRootObject(), added, Collections.emptyList());
 		return changes;
 	}
 	
-	public synchronized void clearAll() {
-		getRootObject().clearPathObjects();
-		tmaGrid = null;
-		fireHierarchyChangedEvent(getRootObject());
+	/**
+	 * Get the ROI used to test whether a detection is inside another object, consistent with {@link #addPathObjectToList(PathObject, PathObject, boolean, boolean)}.
+	 * 
+	 * @param pathObject
+	 * @return
+	 */
+	private static ROI getInsideTestROI(PathObject pathObject) {
+		ROI pathROI = pathObject.getROI();
+		ROI pathROIInner = pathROI;
+		if (useCellNucleiForInsideTest && pathObject instanceof PathCellObject) {
+			ROI nucleusROI = ((PathCellObject)pathObject).getNucleusROI();
+			if (nucleusROI != null)
+				pathROIInner = nucleusROI;
+		}
+		if (useTileCentroidsForInsideTest && pathObject instanceof PathDetectionObject && !(pathROIInner instanceof PointsROI)) {
+			double cx = pathROIInner.getCentroidX();
+			double cy = pathROIInner.getCentroidY();
+			if (pathROIInner instanceof PathArea) {
+				PathArea tempArea = (PathArea)pathROIInner;
+				// If the centroid is outside the tile, try the center of the bounding box instead
+				if (!tempArea.contains(cx, cy)) {
+					Point2 p = PathObjectTools.getContainedPoint(tempArea);
+					if (p == null)
+						return pathROIInner;
+					cx = p.getX();
+					cy = p.getY();
+				}
+			}
+			return new PointsROI(cx, cy, pathROIInner.getC(), pathROIInner.getZ(), pathROIInner.getT());
+		}
+		return pathROIInner;
+	}
+	
+	/**
+	 * Collect all the objects with ROIs that aren't detections, grouped by plane.
+	 * As with the spatial cache, descendants of temporary objects are ignored.
+	 */
+	private static void collectNonDetectionObjects(PathObject pathObject, Map<Long, List<PathObject>> map) {
+		if (pathObject.hasROI() && !pathObject.isDetection()) {
+			Long key = getPlaneKey(pathObject.getROI());
+			List<PathObject> list = map.get(key);
+			if (list == null) {
+				list = new ArrayList<>();
+				map.put(key, list);
+			}
+			list.add(pathObject);
+		}
+		if (!(pathObject instanceof TemporaryObject) && pathObject.hasChildren()) {
+			for (PathObject child : pathObject.getChildObjects())
+				collectNonDetectionObjects(child, map);
+		}
+	}
+	
+	private static long getPlaneKey(ROI roi) {
+		return ((long)roi.getZ() << 32) | (roi.getT() & 0xffffffffL);
+	}
+	
+	/**
+	 * Get a key that orders points along a Z-order curve, using a grid of 64 x 64 pixel cells.
+	 */
+	private static long getSpatialSortKey(double x, double y) {
+		long ix = Math.max(0, Math.min(0xffffffL, (long)(x / 64)));
+		long iy = Math.max(0, Math.min(0xffffffL, (long)(y / 64)));
+		long key = 0;
+		for (int b = 0; b < 24; b++) {
+			key |= ((ix >> b) & 1L) << (2 * b);
+			key |= ((iy >> b) & 1L) << (2 * b + 1);
+		}
+		return key;
+	}
+	
+	/**
+	 * Make a series of changes to the hierarchy while holding its write lock throughout.
+	 * <p>
+	 * This avoids acquiring the lock separately for each change, and ensures that other threads cannot
+	 * query the hierarchy while it is in an intermediate state.
+	 * Since the lock is reentrant, the hierarchy's own methods may be freely called within the Runnable.
+	 * <p>
+	 * Listeners are not notified until all the changes have been made, at which point they receive 
+	 * coalesced events as described in {@link #endUpdate()}.
+	 * <p>
+	 * Objects that haven't been loaded yet (see {@link #setObjectLoader(PathObjectLoader)}) can't be loaded while 
+	 * the lock is held, so objects added within a batch may not find their parents or children among them; 
+	 * use {@link #beginUpdate()} and {@link #endUpdate()} instead when adding objects to a hierarchy that might be lazily loaded.
+	 * 
+	 * @param changes
+	 */
+	public void batch(Runnable changes) {
+		w.lock();
+		try {
+			beginUpdate();
+			try {
+				changes.run();
+			} finally {
+				endUpdate();
+			}
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	/**
+	 * Start buffering hierarchy events, so that listeners are not notified of every individual change.
+	 * <p>
+	 * Each call must be matched by a call to {@link #endUpdate()}, ideally within a finally block.
+	 * Calls may be nested, in which case events are only passed on to listeners after the outermost update ends.
+	 * <p>
+	 * Unlike {@link #batch(Runnable)}, this does not hold the write lock between calls - so the hierarchy 
+	 * may still be modified from other threads (e.g. when running plugins in parallel).
+	 * <p>
+	 * Only events fired from the thread that called this method are buffered; events from other threads 
+	 * (e.g. interactive edits), along with events flagged as 'changing', are passed to listeners immediately.
+	 * 
+	 * @see #endUpdate()
+	 */
+	public void beginUpdate() {
+		w.lock();
+		try {
+			PendingUpdate update = pendingUpdates.get(Thread.currentThread());
+			if (update == null) {
+				update = new PendingUpdate();
+				pendingUpdates.put(Thread.currentThread(), update);
+			}
+			update.depth++;
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	/**
+	 * End an update started with {@link #beginUpdate()}.
+	 * <p>
+	 * If this ends the outermost update, any events fired in the meantime are coalesced and passed to listeners.
+	 * Structural changes result in a single event for the root object, which records the added & removed objects whenever these are known.
+	 * Other changes result in at most one event for each type (e.g. classification, measurements), containing all the changed objects.
+	 * 
+	 * @throws IllegalStateException if there was no matching call to beginUpdate() from the same thread
+	 */
+	public void endUpdate() {
+		w.lock();
+		try {
+			PendingUpdate update = pendingUpdates.get(Thread.currentThread());
+			if (update == null)
+				throw new IllegalStateException("endUpdate() called without a matching call to beginUpdate()");
+			update.depth--;
+			if (update.depth > 0)
+				return;
+			pendingUpdates.remove(Thread.currentThread());
+			if (update.events.isEmpty())
+				return;
+			// The loader has already been notified of the individual events
+			for (PathObjectHierarchyEvent event : coalesceEvents(update.events))
+				notifyListeners(event, objectLoader);
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	/**
+	 * Merge a list of events into the smallest number of events that convey the same information.
+	 * 
+	 * @param events
+	 * @return
+	 */
+	private List<PathObjectHierarchyEvent> coalesceEvents(List<PathObjectHierarchyEvent> events) {
+		if (events.size() == 1)
+			return events;
+		
+		boolean structureChanged = false;
+		boolean structureDeltaKnown = true;
+		Set<PathObject> added = new LinkedHashSet<>();
+		Set<PathObject> removed = new LinkedHashSet<>();
+		Set<PathObject> bases = new HashSet<>();
+		Map<HierarchyEventType, Set<PathObject>> changed = new EnumMap<>(HierarchyEventType.class);
+		
+		for (PathObjectHierarchyEvent event : events) {
+			if (event.isStructureChangeEvent()) {
+				structureChanged = true;
+				if (event.getStructureChangeBase() != null)
+					bases.add(event.getStructureChangeBase());
+				if (event.getEventType() == HierarchyEventType.ADDED)
+					recordAdded(event.getChangedObjects(), added, removed);
+				else if (event.getEventType() == HierarchyEventType.REMOVED)
+					recordRemoved(event.getChangedObjects(), added, removed);
+				else if (event.hasStructureDelta()) {
+					recordRemoved(event.getRemovedObjects(), added, removed);
+					recordAdded(event.getAddedObjects(), added, removed);
+				} else
+					structureDeltaKnown = false;
+			} else {
+				Set<PathObject> set = changed.get(event.getEventType());
+				if (set == null) {
+					set = new LinkedHashSet<>();
+					changed.put(event.getEventType(), set);
+				}
+				set.addAll(event.getChangedObjects());
+			}
+		}
+		
+		// Objects may have been added, but then discarded without an event (e.g. when resolving overlaps between tiles)
+		Iterator<PathObject> iter = added.iterator();
+		while (iter.hasNext()) {
+			if (!inHierarchy(iter.next()))
+				iter.remove();
+		}
+		
+		List<PathObjectHierarchyEvent> coalesced = new ArrayList<>();
+		if (structureChanged) {
+			PathObject base = getCommonAncestor(bases);
+			if (!inHierarchy(base))
+				base = getRootObject();
+			if (structureDeltaKnown)
+				coalesced.add(PathObjectHierarchyEvent.createStructureChangeEvent(this, this, base, added, removed));
+			else
+				coalesced.add(PathObjectHierarchyEvent.createStructureChangeEvent(this, this, base));
+		}
+		for (Entry<HierarchyEventType, Set<PathObject>> entry : changed.entrySet())
+			coalesced.add(PathObjectHierarchyEvent.createObjectsChangedEvent(this, this, entry.getKey(), entry.getValue(), false));
+		return coalesced;
+	}
+	
+	private static void recordAdded(Collection<PathObject> pathObjects, Set<PathObject> added, Set<PathObject> removed) {
+		for (PathObject pathObject : pathObjects) {
+			removed.remove(pathObject);
+			added.add(pathObject);
+		}
+	}
+	
+	// If an object was only added during the update, then its removal cancels out the addition
+	private static void recordRemoved(Collection<PathObject> pathObjects, Set<PathObject> added, Set<PathObject> removed) {
+		for (PathObject pathObject : pathObjects) {
+			if (!added.remove(pathObject))
+				removed.add(pathObject);
+		}
+	}
+	
+	public void clearAll() {
+		w.lock();
+		try {
+			getRootObject().clearPathObjects();
+			tmaGrid = null;
+			fireHierarchyChangedEvent(getRootObject());
+		} finally {
+			w.unlock();
+		}
 	}
 	
 	
-	private synchronized void addPathObjectsRecursively(PathObject pathObject, List<PathObject> pathObjects, Class<? extends PathObject> cls) {
+	private void addPathObjectsRecursively(PathObject pathObject, List<PathObject> pathObjects, Class<? extends PathObject> cls) {
 		// Prefer to iterate through long lists and process as we go, rather than handle one object per method call
 		addPathObjectsRecursively(Collections.singleton(pathObject), pathObjects, cls);
 	}
@@ -548,7 +1054,7 @@ public class PathObjectHierarchy implements Serializable {
 		}
 	}
 
-	public synchronized List<PathObject> getPointObjects(Class<? extends PathObject> cls) {
+	public List<PathObject> getPointObjects(Class<? extends PathObject> cls) {
 		List<PathObject> pathObjects = getObjects(null, cls);
 		if (!pathObjects.isEmpty()) {
 			Iterator<PathObject> iter = pathObjects.iterator();
@@ -571,17 +1077,23 @@ public class PathObjectHierarchy implements Serializable {
 	//}
 
 	public List<PathObject> getObjects(List<PathObject> pathObjects, Class<? extends PathObject> cls) {
-		if (pathObjects == null)
-			pathObjects = new ArrayList<>();
+		loadObjects(cls, null);
+		r.lock();
+		try {
+			if (pathObjects == null)
+				pathObjects = new ArrayList<>();
 		
-		// If we want annotations, it can be much faster to get them from the tile cache than to sift through a potentially large number of detections
-		if (PathAnnotationObject.class == cls && tileCache != null && tileCache.isActive()) {
-			pathObjects.addAll(tileCache.getObjectsForRegion(cls, null, null, true));
+			// If we want annotations, it can be much faster to get them from the tile cache than to sift through a potentially large number of detections
+			if (PathAnnotationObject.class == cls && tileCache != null && tileCache.isActive()) {
+				pathObjects.addAll(tileCache.getObjectsForRegion(cls, null, null, true));
+				return pathObjects;
+			}
+		
+			addPathObjectsRecursively(getRootObject(), pathObjects, cls);
 			return pathObjects;
+		} finally {
+			r.unlock();
 		}
-		
-		addPathObjectsRecursively(getRootObject(), pathObjects, cls);
-		return pathObjects;
 	}
 	
 	/**
@@ -592,13 +1104,19 @@ public class PathObjectHierarchy implements Serializable {
 	 * @param type
 	 * @return
 	 */
-	public synchronized List<PathObject> getDescendantObjects(PathObject pathObject, List<PathObject> pathObjects, Class<? extends PathObject> cls) {
-		if (pathObjects == null)
-			pathObjects = new ArrayList<>();
-		if (pathObject == null || !pathObject.hasChildren())
+	public List<PathObject> getDescendantObjects(PathObject pathObject, List<PathObject> pathObjects, Class<? extends PathObject> cls) {
+		loadObjects(cls, null);
+		r.lock();
+		try {
+			if (pathObjects == null)
+				pathObjects = new ArrayList<>();
+			if (pathObject == null || !pathObject.hasChildren())
+				return pathObjects;
+			addPathObjectsRecursively(pathObject.getChildObjects(), pathObjects, cls);
 			return pathObjects;
-		addPathObjectsRecursively(pathObject.getChildObjects(), pathObjects, cls);
-		return pathObjects;
+		} finally {
+			r.unlock();
+		}
 	}
 	
 	
@@ -608,25 +1126,82 @@ public class PathObjectHierarchy implements Serializable {
 	 * @param list - optional list into which the objects should be added (may be null)
 	 * @return
 	 */
-	public synchronized List<PathObject> getFlattenedObjectList(List<PathObject> list) {
-		if (list == null)
-			list = new ArrayList<>(nObjects());
-		getObjects(list, PathObject.class);
-		return list;
+	public List<PathObject> getFlattenedObjectList(List<PathObject> list) {
+		loadObjects(null, null);
+		r.lock();
+		try {
+			if (list == null)
+				list = new ArrayList<>(nObjects());
+			getObjects(list, PathObject.class);
+			return list;
+		} finally {
+			r.unlock();
+		}
 	}
 	
 	
-	public synchronized int nObjects() {
-		int count = PathObjectTools.countDescendants(getRootObject());
-		return count;
+	public int nObjects() {
+		loadObjects(null, null);
+		r.lock();
+		try {
+			int count = PathObjectTools.countDescendants(getRootObject());
+			return count;
+		} finally {
+			r.unlock();
+		}
 	}
 	
-	public synchronized void setHierarchy(PathObjectHierarchy hierarchy) {
+	public void setHierarchy(PathObjectHierarchy hierarchy) {
 		if (this == hierarchy)
 			return;
-		rootObject = hierarchy.getRootObject();
-		tmaGrid = hierarchy.tmaGrid;
-		fireHierarchyChangedEvent(rootObject);
+		// Take over any objects that remain to be loaded
+		// (a deserialized hierarchy never has a loader, nor the lock needed to remove one)
+		PathObjectLoader loader = hierarchy.objectLoader;
+		if (loader != null)
+			hierarchy.setObjectLoader(null);
+		setHierarchy(hierarchy.getRootObject(), hierarchy.tmaGrid);
+		setObjectLoader(loader);
+		// Keep using the same table as the measurement lists of the objects
+		if (hierarchy.measurementTable != null)
+			measurementTable = hierarchy.measurementTable;
+	}
+
+	/**
+	 * Get the table in which columnar measurement lists for objects in this hierarchy should store their values.
+	 * <p>
+	 * Lists are created from the table with {@link MeasurementListFactory#createMeasurementList(ColumnarMeasurementTable)}, 
+	 * so that the measurements of different images are kept separate.
+	 * 
+	 * @return
+	 */
+	public synchronized ColumnarMeasurementTable getMeasurementTable() {
+		if (measurementTable == null)
+			measurementTable = new ColumnarMeasurementTable();
+		return measurementTable;
+	}
+
+	/**
+	 * Replace the contents of this hierarchy with a root object (and optional TMA grid).
+	 * <p>
+	 * The parent/child relationships of the objects are not checked, and any TMA cores should already be
+	 * children of the root object - this is intended for use when objects are read from a file.
+	 * Any object loader is removed.
+	 *
+	 * @param rootObject
+	 * @param tmaGrid
+	 */
+	public void setHierarchy(PathObject rootObject, TMAGrid tmaGrid) {
+		if (!rootObject.isRootObject())
+			throw new IllegalArgumentException("Hierarchy requires a root object, not " + rootObject);
+		setObjectLoader(null);
+		w.lock();
+		try {
+			this.rootObject = rootObject;
+			this.tmaGrid = tmaGrid;
+			fireHierarchyChangedEvent(rootObject);
+		} finally {
+			w.unlock();
+		}
 	}
 	
 	
@@ -635,42 +1210,100 @@ public class PathObjectHierarchy implements Serializable {
 //	}
 	
 	
+	/**
+	 * Get all the objects of a specified class (or subclasses) with ROI bounding boxes overlapping a specified region.
+	 * Each object is added to the collection at most once.
+	 * 
+	 * @param cls
+	 * @param region
+	 * @param pathObjects optional collection to which objects should be added; if null, a new collection will be created
+	 * @return
+	 */
 	public Collection<PathObject> getObjectsForRegion(Class<? extends PathObject> cls, ImageRegion region, Collection<PathObject> pathObjects) {
+		loadObjects(cls, region);
 		return tileCache.getObjectsForRegion(cls, region, pathObjects, true);
 	}
 	
 	public boolean hasObjectsForRegion(Class<? extends PathObject> cls, ImageRegion region) {
+		loadObjects(cls, region);
 		return tileCache.hasObjectsForRegion(cls, region, true);
 	}
 	
+	/**
+	 * Get the number of times the spatial cache used by getObjectsForRegion has been fully rebuilt.
+	 * <p>
+	 * This should only be necessary whenever the hierarchy is changed in a way that isn't described in detail by the 
+	 * hierarchy events, e.g. with clearAll or setHierarchy.  Other changes are applied to the cache incrementally.
+	 * 
+	 * @return
+	 */
+	public long getSpatialCacheRebuildCount() {
+		return tileCache.getRebuildCount();
+	}
+	
+	/**
+	 * Get the total time spent fully rebuilding the spatial cache, in milliseconds.
+	 * 
+	 * @return
+	 * @see #getSpatialCacheRebuildCount()
+	 */
+	public long getSpatialCacheRebuildTimeMillis() {
+		return tileCache.getRebuildTimeMillis();
+	}
+	
+	/**
+	 * Get the objects of a specified class (or subclasses) with ROI centroids nearest to a specified location,
+	 * sorted by increasing distance.
+	 * 
+	 * @param cls
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param t
+	 * @param maxCount maximum number of objects to return
+	 * @param maxDistance maximum distance between (x, y) and the ROI centroid; use Double.POSITIVE_INFINITY if this should not be limited
+	 * @return
+	 */
+	public List<PathObject> getNearestObjects(Class<? extends PathObject> cls, double x, double y, int z, int t, int maxCount, double maxDistance) {
+		if (Double.isFinite(maxDistance)) {
+			int x1 = (int)Math.floor(x - maxDistance);
+			int y1 = (int)Math.floor(y - maxDistance);
+			int x2 = (int)Math.ceil(x + maxDistance);
+			int y2 = (int)Math.ceil(y + maxDistance);
+			loadObjects(cls, ImageRegion.createInstance(x1, y1, x2 - x1, y2 - y1, z, t));
+		} else
+			loadObjects(cls, null);
+		return tileCache.getNearestObjects(cls, x, y, z, t, maxCount, maxDistance, true);
+	}
+	
 	
-	protected synchronized void fireObjectRemovedEvent(Object source, PathObject pathObject, PathObject previousParent) {
+	protected void fireObjectRemovedEvent(Object source, PathObject pathObject, PathObject previousParent) {
 		PathObjectHierarchyEvent event = PathObjectHierarchyEvent.createObjectRemovedEvent(source, this, previousParent, pathObject);
 		fireEvent(event);
 	}
 
-	protected synchronized void fireObjectAddedEvent(Object source, PathObject pathObject) {
+	protected void fireObjectAddedEvent(Object source, PathObject pathObject) {
 		PathObjectHierarchyEvent event = PathObjectHierarchyEvent.createObjectAddedEvent(source, this, pathObject.getParent(), pathObject);
 		fireEvent(event);
 	}
 	
 	
-	public synchronized void fireObjectMeasurementsChangedEvent(Object source, Collection<PathObject> pathObjects) {
+	public void fireObjectMeasurementsChangedEvent(Object source, Collection<PathObject> pathObjects) {
 		PathObjectHierarchyEvent event = PathObjectHierarchyEvent.createObjectsChangedEvent(source, this, HierarchyEventType.CHANGE_MEASUREMENTS, pathObjects, false);
 		fireEvent(event);
 	}
 	
-	public synchronized void fireObjectClassificationsChangedEvent(Object source, Collection<PathObject> pathObjects) {
+	public void fireObjectClassificationsChangedEvent(Object source, Collection<PathObject> pathObjects) {
 		PathObjectHierarchyEvent event = PathObjectHierarchyEvent.createObjectsChangedEvent(source, this, HierarchyEventType.CHANGE_CLASSIFICATION, pathObjects, false);
 		fireEvent(event);
 	}
 	
 
-	public synchronized void fireObjectsChangedEvent(Object source, Collection<? extends PathObject> pathObjects) {
+	public void fireObjectsChangedEvent(Object source, Collection<? extends PathObject> pathObjects) {
 		fireObjectsChangedEvent(source, pathObjects, false);
 	}
 
-	public synchronized void fireObjectsChangedEvent(Object source, Collection<? extends PathObject> pathObjects, boolean isChanging) {
+	public void fireObjectsChangedEvent(Object source, Collection<? extends PathObject> pathObjects, boolean isChanging) {
 		PathObjectHierarchyEvent event = PathObjectHierarchyEvent.createObjectsChangedEvent(source, this, HierarchyEventType.CHANGE_OTHER, pathObjects, isChanging);
 		fireEvent(event);
 	}
@@ -681,20 +1314,241 @@ public class PathObjectHierarchy implements Serializable {
 //			listener.hierarchyChanged(event);
 //	}
 	
-	public synchronized void fireHierarchyChangedEvent(Object source, PathObject pathObject) {
+	public void fireHierarchyChangedEvent(Object source, PathObject pathObject) {
 		PathObjectHierarchyEvent event = PathObjectHierarchyEvent.createStructureChangeEvent(source, this, pathObject);
 		fireEvent(event);
 	}
 
-	public synchronized void fireHierarchyChangedEvent(Object source) {
+	public void fireHierarchyChangedEvent(Object source) {
 		fireHierarchyChangedEvent(source, getRootObject());
 	}
 	
+	/**
+	 * Fire a structure change event for which the added & removed objects are known, so that listeners can update incrementally.
+	 * 
+	 * @param source
+	 * @param pathObject
+	 * @param added
+	 * @param removed
+	 */
+	public void fireHierarchyChangedEvent(Object source, PathObject pathObject, Collection<? extends PathObject> added, Collection<? extends PathObject> removed) {
+		PathObjectHierarchyEvent event = PathObjectHierarchyEvent.createStructureChangeEvent(source, this, pathObject, added, removed);
+		fireEvent(event);
+	}
+	
+	
+	/**
+	 * Set a loader used to add objects to the hierarchy on demand.
+	 * <p>
+	 * The loader is called whenever objects are queried (e.g. by {@link #getObjectsForRegion(Class, ImageRegion, Collection)} or 
+	 * {@link #getObjects(List, Class)}), so that callers see the same objects as they would if the entire hierarchy had been loaded.
+	 * However, code that accesses the child lists of objects directly (rather than querying the hierarchy) may not see 
+	 * objects that haven't been loaded yet; call {@link #ensureObjectsLoaded()} first if this matters.
+	 * 
+	 * @param loader the loader, or null if all objects are already present
+	 */
+	public void setObjectLoader(PathObjectLoader loader) {
+		w.lock();
+		try {
+			if (objectLoader == loader)
+				return;
+			if (objectLoader != null)
+				removePathObjectListener(objectLoader);
+			objectLoader = loader;
+			if (loader != null)
+				addPathObjectListener(loader);
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	/**
+	 * Get the loader used to add objects to the hierarchy on demand, if there is one.
+	 * 
+	 * @return the loader, or null if all objects are already present
+	 */
+	public PathObjectLoader getObjectLoader() {
+		return objectLoader;
+	}
+	
+	/**
+	 * Ensure that all objects are present in the hierarchy, so that no object loader is required any more.
+	 * <p>
+	 * This should be called before the hierarchy is saved, or accessed through the child lists of objects.
+	 * It must not be called while holding the lock of the hierarchy (e.g. within {@link #batch(Runnable)}).
+	 * 
+	 * @throws IllegalStateException if called while the current thread holds the hierarchy's lock
+	 */
+	public void ensureObjectsLoaded() {
+		if (objectLoader == null)
+			return;
+		if (rwl.isWriteLockedByCurrentThread() || rwl.getReadHoldCount() > 0)
+			throw new IllegalStateException("Cannot load all objects while holding the hierarchy lock");
+		loadObjects(null, null);
+	}
+	
+	/**
+	 * Request any objects required for a query from the loader.
+	 * <p>
+	 * The loader needs to modify the hierarchy, and so can't be called if the current thread holds the lock 
+	 * (e.g. queries from listeners, or within a batch) - in which case only the objects already present are available.
+	 */
+	private void loadObjects(Class<? extends PathObject> cls, ImageRegion region) {
+		PathObjectLoader loader = objectLoader;
+		if (loader == null || rwl.isWriteLockedByCurrentThread() || rwl.getReadHoldCount() > 0)
+			return;
+		loader.loadObjects(this, cls, region);
+		// Once everything has been loaded, the loader isn't needed any more - and must be removed, 
+		// since otherwise later region queries could unload objects that callers still hold
+		if (region == null && !loader.hasPendingObjects()) {
+			w.lock();
+			try {
+				if (objectLoader == loader)
+					setObjectLoader(null);
+			} finally {
+				w.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Request any objects that could become the parent or children of objects about to be added, 
+	 * so that the result is the same as if the entire hierarchy had been loaded.
+	 * <p>
+	 * As with other queries, this isn't possible if the current thread holds the lock.
+	 */
+	private void loadObjectsForAdding(Collection<? extends PathObject> pathObjects) {
+		PathObjectLoader loader = objectLoader;
+		if (loader == null || !loader.hasPendingObjects())
+			return;
+		if (rwl.isWriteLockedByCurrentThread() || rwl.getReadHoldCount() > 0) {
+			logger.warn("Cannot load objects while holding the hierarchy lock - parents may not be resolved correctly for {} added object(s)", pathObjects.size());
+			return;
+		}
+		// Combine the bounds of the ROIs on each plane
+		Map<ImageRegion, double[]> planeBounds = new LinkedHashMap<>();
+		for (PathObject pathObject : pathObjects) {
+			ROI roi = pathObject == null ? null : pathObject.getROI();
+			if (roi == null)
+				continue;
+			ImageRegion plane = ImageRegion.createInstance(0, 0, 0, 0, roi.getZ(), roi.getT());
+			double[] bounds = planeBounds.get(plane);
+			if (bounds == null) {
+				bounds = new double[] {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+				planeBounds.put(plane, bounds);
+			}
+			bounds[0] = Math.min(bounds[0], roi.getBoundsX());
+			bounds[1] = Math.min(bounds[1], roi.getBoundsY());
+			bounds[2] = Math.max(bounds[2], roi.getBoundsX() + roi.getBoundsWidth());
+			bounds[3] = Math.max(bounds[3], roi.getBoundsY() + roi.getBoundsHeight());
+		}
+		for (Entry<ImageRegion, double[]> entry : planeBounds.entrySet()) {
+			double[] bounds = entry.getValue();
+			int x1 = (int)Math.floor(bounds[0]);
+			int y1 = (int)Math.floor(bounds[1]);
+			int x2 = (int)Math.ceil(bounds[2]);
+			int y2 = (int)Math.ceil(bounds[3]);
+			loadObjects(null, ImageRegion.createInstance(x1, y1, x2 - x1, y2 - y1, entry.getKey().getZ(), entry.getKey().getT()));
+		}
+	}
+	
+	/**
+	 * Add objects that have been loaded by the hierarchy's object loader.
+	 * <p>
+	 * Unlike {@link #addPathObjects(Collection, boolean)}, the objects are added directly to the specified parent without 
+	 * checking their ROIs.  The event that is fired has the loader as its source, so that listeners can distinguish 
+	 * loading objects from changes to the data.
+	 * 
+	 * @param loader the loader, which must be the current loader for the hierarchy
+	 * @param parent the parent object, which must be in the hierarchy
+	 * @param pathObjects the objects to add
+	 * @return true if the objects were added, false if the loader is no longer used or the parent has been removed from the hierarchy
+	 */
+	public boolean addLoadedObjects(PathObjectLoader loader, PathObject parent, Collection<? extends PathObject> pathObjects) {
+		w.lock();
+		try {
+			if (loader == null || objectLoader != loader || !inHierarchy(parent))
+				return false;
+			if (pathObjects.isEmpty())
+				return true;
+			parent.addPathObjects(pathObjects);
+			fireHierarchyChangedEvent(loader, parent, pathObjects, Collections.emptyList());
+			return true;
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	/**
+	 * Remove objects that were previously added by the hierarchy's object loader, to free memory.
+	 * <p>
+	 * Objects are only removed if all are still children of the specified parent.
+	 * 
+	 * @param loader the loader, which must be the current loader for the hierarchy
+	 * @param parent the parent object
+	 * @param pathObjects the objects to remove
+	 * @return true if the objects were removed, false otherwise
+	 * @see #addLoadedObjects(PathObjectLoader, PathObject, Collection)
+	 */
+	public boolean removeLoadedObjects(PathObjectLoader loader, PathObject parent, Collection<? extends PathObject> pathObjects) {
+		w.lock();
+		try {
+			if (loader == null || objectLoader != loader || !inHierarchy(parent))
+				return false;
+			for (PathObject pathObject : pathObjects) {
+				if (pathObject.getParent() != parent)
+					return false;
+			}
+			if (pathObjects.isEmpty())
+				return true;
+			List<PathObject> list = new ArrayList<>(pathObjects);
+			parent.removePathObjects(list);
+			fireHierarchyChangedEvent(loader, parent, Collections.emptyList(), list);
+			return true;
+		} finally {
+			w.unlock();
+		}
+	}
+	
 	
 	void fireEvent(PathObjectHierarchyEvent event) {
+		w.lock();
+		try {
+			// The cache must always be kept up-to-date, since the hierarchy relies upon it when adding objects
+			if (tileCache != null)
+				tileCache.hierarchyChanged(event);
+			// Buffer completed changes during an update started by this thread; 'changing' events are only of interest at the time.
+			// Objects added or removed by the loader are passed on immediately, since they don't represent changes to the data.
+			PathObjectLoader loader = objectLoader;
+			PendingUpdate update = pendingUpdates.isEmpty() ? null : pendingUpdates.get(Thread.currentThread());
+			if (update != null && !event.isChanging() && (loader == null || event.getSource() != loader)) {
+				update.events.add(event);
+				// The loader must know about changes immediately, otherwise it might unload (and lose) changed objects
+				if (loader != null)
+					loader.hierarchyChanged(event);
+			} else
+				notifyListeners(event, null);
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	/**
+	 * Events buffered for an update started by a single thread.
+	 */
+	private static class PendingUpdate {
+		
+		private int depth = 0;
+		private List<PathObjectHierarchyEvent> events = new ArrayList<>();
+		
+	}
+	
+	private void notifyListeners(PathObjectHierarchyEvent event, PathObjectHierarchyListener skipListener) {
 		if (listeners != null) {
-			for (PathObjectHierarchyListener listener : listeners.toArray(new PathObjectHierarchyListener[0]))
-				listener.hierarchyChanged(event);
+			for (PathObjectHierarchyListener listener : listeners.toArray(new PathObjectHierarchyListener[0])) {
+				if (listener != skipListener)
+					listener.hierarchyChanged(event);
+			}
 		}
 	}
 	
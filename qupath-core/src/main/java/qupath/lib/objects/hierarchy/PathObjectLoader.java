@@ -0,0 +1,63 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.objects.hierarchy;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+import qupath.lib.regions.ImageRegion;
+
+/**
+ * Interface for adding objects to a hierarchy on demand, rather than all at once.
+ * <p>
+ * This makes it possible to open very large hierarchies quickly, e.g. by initially reading only annotations &amp; TMA cores 
+ * from a data file and loading detections whenever they are requested for a particular region.
+ * A loader may also remove objects it has loaded previously to free memory, provided they have not been changed - 
+ * for this reason it is also registered as a listener for the hierarchy.
+ * <p>
+ * The hierarchy calls the loader whenever objects are queried, but never while it holds its own lock.
+ * The loader should add objects using {@link PathObjectHierarchy#addLoadedObjects(PathObjectLoader, PathObject, java.util.Collection)}, 
+ * so that the resulting events can be distinguished from changes made to the data.
+ * 
+ * @see PathObjectHierarchy#setObjectLoader(PathObjectLoader)
+ */
+public interface PathObjectLoader extends PathObjectHierarchyListener {
+	
+	/**
+	 * Ensure that the objects of a specified class (or subclasses) overlapping a region are present in the hierarchy.
+	 * 
+	 * @param hierarchy the hierarchy to which any objects should be added
+	 * @param cls the class of objects that are required, or null if all objects are required
+	 * @param region the region for which objects are required, or null if objects are required for the entire image
+	 */
+	public void loadObjects(PathObjectHierarchy hierarchy, Class<? extends PathObject> cls, ImageRegion region);
+	
+	/**
+	 * Check if there remain objects that have not been added to the hierarchy (or have since been removed to free memory).
+	 * 
+	 * @return
+	 */
+	public boolean hasPendingObjects();
+
+}
@@ -0,0 +1,504 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.objects.hierarchy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * An R-tree implementation of a PathObjectSpatialIndex.
+ * <p>
+ * When the tree is empty, objects added with addAll are bulk-loaded using Sort-Tile-Recursive (STR) packing.
+ * After that, objects are inserted & removed incrementally.
+ * <p>
+ * Entries store the ROI bounds at the time the object was added, so that objects can still be removed
+ * if their ROIs have since been changed.
+ * As in the previous tile-based cache, bounding boxes are treated as having a width and height of at least 1 pixel,
+ * so that points and lines can be found with region requests.
+ */
+class PathObjectRTree implements PathObjectSpatialIndex {
+
+	private static final int MAX_ENTRIES = 16;
+	private static final int MIN_ENTRIES = 6;
+
+	private Node root = new Node(true);
+	private Map<PathObject, Entry> entries = new HashMap<>();
+
+
+	@Override
+	public void add(PathObject pathObject) {
+		if (!pathObject.hasROI())
+			return;
+		remove(pathObject);
+		Entry entry = new Entry(pathObject);
+		entries.put(pathObject, entry);
+		insert(entry);
+	}
+
+	@Override
+	public void addAll(Collection<? extends PathObject> pathObjects) {
+		if (!entries.isEmpty()) {
+			for (PathObject pathObject : pathObjects)
+				add(pathObject);
+			return;
+		}
+		List<Box> list = new ArrayList<>(pathObjects.size());
+		for (PathObject pathObject : pathObjects) {
+			if (!pathObject.hasROI() || entries.containsKey(pathObject))
+				continue;
+			Entry entry = new Entry(pathObject);
+			entries.put(pathObject, entry);
+			list.add(entry);
+		}
+		if (!list.isEmpty())
+			root = bulkLoad(list);
+	}
+
+	@Override
+	public boolean remove(PathObject pathObject) {
+		Entry entry = entries.remove(pathObject);
+		if (entry == null)
+			return false;
+		Node leaf = entry.parent;
+		leaf.remove(entry);
+		condenseTree(leaf);
+		return true;
+	}
+
+	@Override
+	public boolean contains(PathObject pathObject) {
+		return entries.containsKey(pathObject);
+	}
+
+	@Override
+	public void clear() {
+		root = new Node(true);
+		entries.clear();
+	}
+
+	@Override
+	public int size() {
+		return entries.size();
+	}
+
+	@Override
+	public Collection<PathObject> getAllObjects(Collection<PathObject> pathObjects) {
+		for (Entry entry : entries.values())
+			pathObjects.add(entry.pathObject);
+		return pathObjects;
+	}
+
+	@Override
+	public Collection<PathObject> getObjects(double x, double y, double width, double height, Collection<PathObject> pathObjects) {
+		if (entries.isEmpty() || !root.intersects(x, y, width, height))
+			return pathObjects;
+		double x2 = x + width;
+		double y2 = y + height;
+		Deque<Node> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Node node = stack.pop();
+			// If the node is completely inside the region, we don't need to check anything below it
+			if (node.x1 >= x && node.x2 <= x2 && node.y1 >= y && node.y2 <= y2) {
+				addAllEntries(node, pathObjects);
+				continue;
+			}
+			for (int i = 0; i < node.size; i++) {
+				Box child = node.children[i];
+				if (!child.intersects(x, y, width, height))
+					continue;
+				if (node.isLeaf)
+					pathObjects.add(((Entry)child).pathObject);
+				else
+					stack.push((Node)child);
+			}
+		}
+		return pathObjects;
+	}
+
+	@Override
+	public boolean hasObjects(double x, double y, double width, double height) {
+		if (entries.isEmpty() || !root.intersects(x, y, width, height))
+			return false;
+		Deque<Node> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Node node = stack.pop();
+			for (int i = 0; i < node.size; i++) {
+				Box child = node.children[i];
+				if (!child.intersects(x, y, width, height))
+					continue;
+				if (node.isLeaf)
+					return true;
+				stack.push((Node)child);
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public List<PathObject> getNearestObjects(double x, double y, int maxCount, double maxDistance, List<PathObject> pathObjects) {
+		if (entries.isEmpty() || maxCount <= 0)
+			return pathObjects;
+		// Best-first search: node distances are to the bounding box, entry distances are to the ROI centroid.
+		// Since the centroid lies within the bounding box, node distances are always a lower bound.
+		double maxDistSq = maxDistance * maxDistance;
+		PriorityQueue<Candidate> queue = new PriorityQueue<>();
+		queue.add(new Candidate(root, root.distanceSq(x, y)));
+		int count = 0;
+		while (!queue.isEmpty()) {
+			Candidate candidate = queue.poll();
+			if (candidate.distSq > maxDistSq)
+				break;
+			if (candidate.box instanceof Entry) {
+				pathObjects.add(((Entry)candidate.box).pathObject);
+				if (++count >= maxCount)
+					break;
+				continue;
+			}
+			Node node = (Node)candidate.box;
+			for (int i = 0; i < node.size; i++) {
+				Box child = node.children[i];
+				double d = node.isLeaf ? ((Entry)child).centroidDistanceSq(x, y) : child.distanceSq(x, y);
+				if (d <= maxDistSq)
+					queue.add(new Candidate(child, d));
+			}
+		}
+		return pathObjects;
+	}
+
+
+	private static void addAllEntries(Node node, Collection<PathObject> pathObjects) {
+		if (node.isLeaf) {
+			for (int i = 0; i < node.size; i++)
+				pathObjects.add(((Entry)node.children[i]).pathObject);
+			return;
+		}
+		for (int i = 0; i < node.size; i++)
+			addAllEntries((Node)node.children[i], pathObjects);
+	}
+
+
+	/**
+	 * Insert an entry, splitting nodes as required.
+	 *
+	 * @param entry
+	 */
+	private void insert(Entry entry) {
+		Node node = chooseLeaf(entry);
+		node.add(entry);
+		while (node != null) {
+			if (node.size > MAX_ENTRIES) {
+				Node sibling = split(node);
+				if (node == root) {
+					root = new Node(false);
+					root.add(node);
+					root.add(sibling);
+					root.updateBounds();
+					return;
+				}
+				node.parent.add(sibling);
+			} else
+				node.updateBounds();
+			node = node.parent;
+		}
+	}
+
+	private Node chooseLeaf(Box box) {
+		Node node = root;
+		while (!node.isLeaf) {
+			Node best = null;
+			double bestEnlargement = Double.POSITIVE_INFINITY;
+			double bestArea = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < node.size; i++) {
+				Node child = (Node)node.children[i];
+				double area = child.area();
+				double enlargement = child.enlargedArea(box) - area;
+				if (enlargement < bestEnlargement || (enlargement == bestEnlargement && area < bestArea)) {
+					best = child;
+					bestEnlargement = enlargement;
+					bestArea = area;
+				}
+			}
+			node = best;
+		}
+		return node;
+	}
+
+	/**
+	 * Split an overflowing node, by sorting its children along the axis in which their centers are most spread.
+	 * The first half remain in the node, the second half are moved to a new sibling node (which is returned).
+	 *
+	 * @param node
+	 * @return
+	 */
+	private static Node split(Node node) {
+		double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < node.size; i++) {
+			Box child = node.children[i];
+			minX = Math.min(minX, child.centerX());
+			maxX = Math.max(maxX, child.centerX());
+			minY = Math.min(minY, child.centerY());
+			maxY = Math.max(maxY, child.centerY());
+		}
+		Box[] children = Arrays.copyOf(node.children, node.size);
+		Arrays.sort(children, maxX - minX >= maxY - minY ? COMPARATOR_X : COMPARATOR_Y);
+		int half = children.length / 2;
+		Node sibling = new Node(node.isLeaf);
+		node.clearChildren();
+		for (int i = 0; i < children.length; i++) {
+			if (i < half)
+				node.add(children[i]);
+			else
+				sibling.add(children[i]);
+		}
+		node.updateBounds();
+		sibling.updateBounds();
+		return sibling;
+	}
+
+	/**
+	 * Tidy up the tree after an entry has been removed from a leaf,
+	 * removing underfull nodes & reinserting their entries.
+	 *
+	 * @param leaf
+	 */
+	private void condenseTree(Node leaf) {
+		List<Entry> orphans = null;
+		Node node = leaf;
+		while (node != root) {
+			Node parent = node.parent;
+			if (node.size < MIN_ENTRIES) {
+				parent.remove(node);
+				if (orphans == null)
+					orphans = new ArrayList<>();
+				collectEntries(node, orphans);
+			} else
+				node.updateBounds();
+			node = parent;
+		}
+		root.updateBounds();
+		while (!root.isLeaf && root.size == 1) {
+			root = (Node)root.children[0];
+			root.parent = null;
+		}
+		if (!root.isLeaf && root.size == 0)
+			root = new Node(true);
+		if (orphans != null) {
+			for (Entry entry : orphans)
+				insert(entry);
+		}
+	}
+
+	private static void collectEntries(Node node, List<Entry> list) {
+		for (int i = 0; i < node.size; i++) {
+			if (node.isLeaf)
+				list.add((Entry)node.children[i]);
+			else
+				collectEntries((Node)node.children[i], list);
+		}
+	}
+
+	/**
+	 * Build a tree from scratch using Sort-Tile-Recursive packing.
+	 *
+	 * @param boxes
+	 * @return the root of the new tree
+	 */
+	private static Node bulkLoad(List<Box> boxes) {
+		boolean isLeaf = true;
+		List<Box> level = boxes;
+		while (true) {
+			List<Box> nodes = packLevel(level, isLeaf);
+			if (nodes.size() == 1)
+				return (Node)nodes.get(0);
+			level = nodes;
+			isLeaf = false;
+		}
+	}
+
+	private static List<Box> packLevel(List<Box> boxes, boolean isLeaf) {
+		int n = boxes.size();
+		int nNodes = (n + MAX_ENTRIES - 1) / MAX_ENTRIES;
+		int nSlices = (int)Math.ceil(Math.sqrt(nNodes));
+		int sliceSize = nSlices * MAX_ENTRIES;
+		boxes.sort(COMPARATOR_X);
+		List<Box> nodes = new ArrayList<>(nNodes);
+		for (int s = 0; s < n; s += sliceSize) {
+			List<Box> slice = boxes.subList(s, Math.min(s + sliceSize, n));
+			slice.sort(COMPARATOR_Y);
+			for (int i = 0; i < slice.size(); i += MAX_ENTRIES) {
+				Node node = new Node(isLeaf);
+				int end = Math.min(i + MAX_ENTRIES, slice.size());
+				for (int j = i; j < end; j++)
+					node.add(slice.get(j));
+				node.updateBounds();
+				nodes.add(node);
+			}
+		}
+		return nodes;
+	}
+
+
+	private static final Comparator<Box> COMPARATOR_X = (b1, b2) -> Double.compare(b1.centerX(), b2.centerX());
+	private static final Comparator<Box> COMPARATOR_Y = (b1, b2) -> Double.compare(b1.centerY(), b2.centerY());
+
+
+	private static abstract class Box {
+
+		double x1, y1, x2, y2;
+		Node parent;
+
+		double centerX() {
+			return (x1 + x2) * 0.5;
+		}
+
+		double centerY() {
+			return (y1 + y2) * 0.5;
+		}
+
+		double area() {
+			return (x2 - x1) * (y2 - y1);
+		}
+
+		double enlargedArea(Box box) {
+			return (Math.max(x2, box.x2) - Math.min(x1, box.x1)) * (Math.max(y2, box.y2) - Math.min(y1, box.y1));
+		}
+
+		/**
+		 * Same test as ImageRegion.intersects.
+		 */
+		boolean intersects(double x, double y, double width, double height) {
+			return x2 > x && y2 > y && x1 < x + width && y1 < y + height;
+		}
+
+		double distanceSq(double x, double y) {
+			double dx = x < x1 ? x1 - x : (x > x2 ? x - x2 : 0);
+			double dy = y < y1 ? y1 - y : (y > y2 ? y - y2 : 0);
+			return dx*dx + dy*dy;
+		}
+
+	}
+
+	private static class Entry extends Box {
+
+		final PathObject pathObject;
+		final double cx, cy;
+
+		Entry(PathObject pathObject) {
+			this.pathObject = pathObject;
+			ROI roi = pathObject.getROI();
+			x1 = roi.getBoundsX();
+			y1 = roi.getBoundsY();
+			x2 = x1 + Math.max(roi.getBoundsWidth(), 1);
+			y2 = y1 + Math.max(roi.getBoundsHeight(), 1);
+			cx = roi.getCentroidX();
+			cy = roi.getCentroidY();
+		}
+
+		double centroidDistanceSq(double x, double y) {
+			double dx = x - cx;
+			double dy = y - cy;
+			return dx*dx + dy*dy;
+		}
+
+	}
+
+	private static class Node extends Box {
+
+		final boolean isLeaf;
+		Box[] children = new Box[MAX_ENTRIES + 1];
+		int size = 0;
+
+		Node(boolean isLeaf) {
+			this.isLeaf = isLeaf;
+		}
+
+		void add(Box box) {
+			children[size++] = box;
+			box.parent = this;
+		}
+
+		void remove(Box box) {
+			for (int i = 0; i < size; i++) {
+				if (children[i] == box) {
+					children[i] = children[size-1];
+					children[--size] = null;
+					box.parent = null;
+					return;
+				}
+			}
+		}
+
+		void clearChildren() {
+			Arrays.fill(children, null);
+			size = 0;
+		}
+
+		void updateBounds() {
+			x1 = Double.POSITIVE_INFINITY;
+			y1 = Double.POSITIVE_INFINITY;
+			x2 = Double.NEGATIVE_INFINITY;
+			y2 = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < size; i++) {
+				Box child = children[i];
+				x1 = Math.min(x1, child.x1);
+				y1 = Math.min(y1, child.y1);
+				x2 = Math.max(x2, child.x2);
+				y2 = Math.max(y2, child.y2);
+			}
+		}
+
+	}
+
+	private static class Candidate implements Comparable<Candidate> {
+
+		final Box box;
+		final double distSq;
+
+		Candidate(Box box, double distSq) {
+			this.box = box;
+			this.distSq = distSq;
+		}
+
+		@Override
+		public int compareTo(Candidate o) {
+			return Double.compare(distSq, o.distSq);
+		}
+
+	}
+
+}
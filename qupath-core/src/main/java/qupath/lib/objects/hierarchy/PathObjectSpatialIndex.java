@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.objects.hierarchy;
+
+import java.util.Collection;
+import java.util.List;
+
+import qupath.lib.objects.PathObject;
+
+/**
+ * A 2D spatial index for PathObjects, based upon the bounding boxes of their ROIs.
+ * <p>
+ * An index is expected to contain objects from a single z-slice and timepoint only;
+ * it is up to the caller (i.e. the PathObjectTileCache) to maintain one index per plane.
+ * <p>
+ * Implementations need not be thread-safe - locking is handled by the caller.
+ */
+interface PathObjectSpatialIndex {
+
+	/**
+	 * Add a single object to the index.  Objects without ROIs are ignored.
+	 *
+	 * @param pathObject
+	 */
+	public void add(PathObject pathObject);
+
+	/**
+	 * Add a collection of objects to the index.
+	 * This may be considerably more efficient than adding objects one at a time,
+	 * particularly if the index is currently empty.
+	 *
+	 * @param pathObjects
+	 */
+	public void addAll(Collection<? extends PathObject> pathObjects);
+
+	/**
+	 * Remove an object from the index.
+	 * <p>
+	 * This should succeed even if the object's ROI has changed since it was added.
+	 *
+	 * @param pathObject
+	 * @return true if the object was found (and removed), false otherwise
+	 */
+	public boolean remove(PathObject pathObject);
+
+	/**
+	 * Check if an object is currently in the index.
+	 * 
+	 * @param pathObject
+	 * @return
+	 */
+	public boolean contains(PathObject pathObject);
+
+	/**
+	 * Remove all objects from the index.
+	 */
+	public void clear();
+
+	/**
+	 * Number of objects currently in the index.
+	 * @return
+	 */
+	public int size();
+
+	/**
+	 * Add all objects in the index to the specified collection.
+	 *
+	 * @param pathObjects
+	 * @return the collection provided
+	 */
+	public Collection<PathObject> getAllObjects(Collection<PathObject> pathObjects);
+
+	/**
+	 * Add objects with ROI bounding boxes that intersect a rectangle to the specified collection.
+	 * Each object is added at most once.
+	 *
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param pathObjects
+	 * @return the collection provided
+	 */
+	public Collection<PathObject> getObjects(double x, double y, double width, double height, Collection<PathObject> pathObjects);
+
+	/**
+	 * Returns true if any object has a ROI bounding box that intersects the specified rectangle.
+	 *
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public boolean hasObjects(double x, double y, double width, double height);
+
+	/**
+	 * Add up to maxCount objects with ROI centroids closest to the point (x, y), and no further than maxDistance away,
+	 * to the specified list.  Objects are added in order of increasing distance.
+	 *
+	 * @param x
+	 * @param y
+	 * @param maxCount
+	 * @param maxDistance
+	 * @param pathObjects
+	 * @return the list provided
+	 */
+	public List<PathObject> getNearestObjects(double x, double y, int maxCount, double maxDistance, List<PathObject> pathObjects);
+
+}
@@ -23,13 +23,14 @@
 
 package qupath.lib.objects.hierarchy;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -45,10 +46,13 @@ import qupath.lib.regions.ImageRegion;
 import qupath.lib.roi.interfaces.ROI;
 
 /**
- * A tile cache that keeps a reference to a collection of PathObjects as flat lists.
+ * A spatial cache that keeps a reference to a collection of PathObjects, indexed according to their ROIs.
  * It endeavors to keep itself synchronized with a PathObjectHierarchy,
  * responding to its change events.
  * <p>
+ * One PathObjectSpatialIndex is maintained for each combination of PathObject class, z-slice and timepoint.
+ * By default, this is an R-tree - which is bulk-loaded whenever the cache is constructed, and updated incrementally after that.
+ * <p>
  * In practice, the cache itself is constructed lazily whenever a request is made 
  * through getObjectsForRegion, so as to avoid rebuilding it too often when the hierarchy
  * is changing a lot.
@@ -58,30 +62,47 @@ import qupath.lib.roi.interfaces.ROI;
  */
 class PathObjectTileCache implements PathObjectHierarchyListener {
 	
-	public static int DEFAULT_TILE_SIZE = 1024;
-	
 	final private static Logger logger = LoggerFactory.getLogger(PathObjectTileCache.class);
+	
+	/**
+	 * Maximum number of changed objects to handle incrementally; above this, the cache is rebuilt instead.
+	 */
+	private static int MAX_INCREMENTAL_CHANGES = 10000;
 
-	private Map<Class<? extends PathObject>, PathObjectTileMap> map = new HashMap<Class<? extends PathObject>, PathObjectTileMap>();
+	private Map<IndexKey, PathObjectSpatialIndex> map = new HashMap<>();
 	
 	private PathObjectHierarchy hierarchy;
 	private boolean isActive = false;
-	private int tileSize = DEFAULT_TILE_SIZE;
+	
+	// Record how often (and for how long) the cache is fully rebuilt
+	private AtomicLong rebuildCount = new AtomicLong();
+	private AtomicLong rebuildTimeMillis = new AtomicLong();
 	
 	private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
     private final Lock r = rwl.readLock();
     private final Lock w = rwl.writeLock();
 	
 	
-	public PathObjectTileCache(PathObjectHierarchy hierarchy, int tileSize) {
+	/**
+	 * Create a cache for the specified hierarchy.
+	 * <p>
+	 * Note that the cache does not register itself as a listener; rather, the hierarchy is expected to 
+	 * pass on every event directly (even while other listeners are only being notified of batched changes).
+	 * 
+	 * @param hierarchy
+	 */
+	public PathObjectTileCache(PathObjectHierarchy hierarchy) {
 		this.hierarchy = hierarchy;
-		this.tileSize = tileSize;
-		if (hierarchy != null)
-			hierarchy.addPathObjectListener(this);
 	}
-	
-	public PathObjectTileCache(PathObjectHierarchy hierarchy) {
-		this(null, DEFAULT_TILE_SIZE);
+
+	/**
+	 * Create a new (empty) spatial index.
+	 * Subclasses may override this to use an alternative implementation.
+	 * 
+	 * @return
+	 */
+	protected PathObjectSpatialIndex createSpatialIndex() {
+		return new PathObjectRTree();
 	}
 
 	public void resetCache() {
@@ -89,23 +110,62 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		logger.trace("Cache reset!");
 	}
 	
-//	int cacheCounter = 0;
-
 	private void constructCache() {
 		w.lock();
 		try {
-	//		logger.info("Skipping cache reconstruction...");
+			// Another thread may have constructed the cache while we were waiting for the lock
+			if (isActive)
+				return;
 			long startTime = System.currentTimeMillis();
-			isActive = true;
 			map.clear();
-			addToCache(hierarchy.getRootObject(), true);
-			long endTime = System.currentTimeMillis();
-			logger.trace("Cache reconstructed in " + (endTime - startTime)/1000.);
+			// Group objects first, so that each index can be bulk-loaded
+			Map<IndexKey, List<PathObject>> groups = new HashMap<>();
+			collectObjects(hierarchy.getRootObject(), groups);
+			for (Entry<IndexKey, List<PathObject>> entry : groups.entrySet()) {
+				PathObjectSpatialIndex index = createSpatialIndex();
+				index.addAll(entry.getValue());
+				map.put(entry.getKey(), index);
+			}
+			isActive = true;
+			long duration = System.currentTimeMillis() - startTime;
+			rebuildCount.incrementAndGet();
+			rebuildTimeMillis.addAndGet(duration);
+			logger.debug("Cache reconstructed in {} seconds", duration/1000.);
 		} finally {
 			w.unlock();
 		}
-//		cacheCounter += (endTime - startTime);
-//		logger.info("Cache count: " + (cacheCounter)/1000.);
+	}
+	
+	/**
+	 * Number of times the cache has been fully rebuilt from the hierarchy.
+	 * @return
+	 */
+	public long getRebuildCount() {
+		return rebuildCount.get();
+	}
+	
+	/**
+	 * Total time spent fully rebuilding the cache, in milliseconds.
+	 * @return
+	 */
+	public long getRebuildTimeMillis() {
+		return rebuildTimeMillis.get();
+	}
+	
+	private static void collectObjects(PathObject pathObject, Map<IndexKey, List<PathObject>> groups) {
+		if (pathObject.hasROI()) {
+			IndexKey key = new IndexKey(pathObject);
+			List<PathObject> list = groups.get(key);
+			if (list == null) {
+				list = new ArrayList<>();
+				groups.put(key, list);
+			}
+			list.add(pathObject);
+		}
+		if (!(pathObject instanceof TemporaryObject) && pathObject.hasChildren()) {
+			for (PathObject child : pathObject.getChildObjects().toArray(new PathObject[0]))
+				collectObjects(child, groups);
+		}
 	}
 	
 	private void ensureCacheConstructed() {
@@ -131,23 +191,53 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		if (!isActive())
 			return;
 		
+		// Objects inside temporary objects aren't cached until they have been moved to their final parent
+		if (pathObject.getParent() instanceof TemporaryObject)
+			return;
+		
 		if (pathObject.hasROI()) {
-			Class<? extends PathObject> cls = pathObject.getClass();
-			PathObjectTileMap mapObjects = map.get(cls);
-			if (mapObjects == null) {
-				mapObjects = new PathObjectTileMap(tileSize);
-				map.put(cls, mapObjects);
-			}
-			mapObjects.put(pathObject);
+			PathObjectSpatialIndex index = getIndex(pathObject, true);
+			if (!index.contains(pathObject))
+				index.add(pathObject);
 		}
 		// Add the children
 		if (includeChildren && !(pathObject instanceof TemporaryObject) && pathObject.hasChildren()) {
 			for (PathObject child : pathObject.getChildObjects().toArray(new PathObject[0]))
-				addToCache(child, includeChildren);
+				addDescendantsToCache(child);
 		}
 		
 	}
 	
+	/**
+	 * Add a PathObject and its descendants to the cache, skipping any that are already present 
+	 * (e.g. because they have simply been assigned a new parent).
+	 * 
+	 * The lock is not acquired here!
+	 * 
+	 * @param pathObject
+	 */
+	private void addDescendantsToCache(PathObject pathObject) {
+		if (pathObject.hasROI()) {
+			PathObjectSpatialIndex index = getIndex(pathObject, true);
+			if (!index.contains(pathObject))
+				index.add(pathObject);
+		}
+		if (!(pathObject instanceof TemporaryObject) && pathObject.hasChildren()) {
+			for (PathObject child : pathObject.getChildObjects().toArray(new PathObject[0]))
+				addDescendantsToCache(child);
+		}
+	}
+	
+	private PathObjectSpatialIndex getIndex(PathObject pathObject, boolean create) {
+		IndexKey key = new IndexKey(pathObject);
+		PathObjectSpatialIndex index = map.get(key);
+		if (index == null && create) {
+			index = createSpatialIndex();
+			map.put(key, index);
+		}
+		return index;
+	}
+	
 	
 	/**
 	 * This doesn't acquire the lock!
@@ -155,32 +245,42 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	 * @param pathObject
 	 * @param removeChildren
 	 */
-	private void removeFromCache(PathObject pathObject, boolean removeChildren) {
+	private boolean removeFromCache(PathObject pathObject, boolean removeChildren) {
 		// If the cache isn't active, then nothing to remove
 		if (!isActive())
-			return;
+			return false;
 		
-		//JClass<? extends PathObject> cls = pathObject.getClass();
-		PathObjectTileMap mapObjects = map.get(pathObject.getClass()); //J
-		//JPathObjectTileMap mapObjects = map.get(cls);
-		if (mapObjects != null) {
-			mapObjects.remove(pathObject);
+		// Try the index for the current plane first - but if the ROI has changed, the object might be elsewhere
+		boolean removed = false;
+		if (pathObject.hasROI()) {
+			PathObjectSpatialIndex index = map.get(new IndexKey(pathObject));
+			if (index != null)
+				removed = index.remove(pathObject);
+		}
+		if (!removed) {
+			for (Entry<IndexKey, PathObjectSpatialIndex> entry : map.entrySet()) {
+				if (entry.getKey().cls == pathObject.getClass() && entry.getValue().remove(pathObject)) {
+					removed = true;
+					break;
+				}
+			}
 		}
 		// Remove the children
 		if (removeChildren) {
 			for (PathObject child : pathObject.getChildObjects())
 				removeFromCache(child, removeChildren);
 		}
+		return removed;
 	}
 	
 	
-//	/**
-//	 * Add a PathObject to the cache.  Child objects are not added.
-//	 * @param pathObject
-//	 */
-//	private void addToCache(PathObject pathObject) {
-//		addToCache(pathObject, false);
-//	}
+	private static boolean matchesClass(Class<? extends PathObject> cls, Class<? extends PathObject> clsIndex, boolean includeSubclasses) {
+		return cls == null || cls == clsIndex || (includeSubclasses && cls.isAssignableFrom(clsIndex));
+	}
+	
+	private static boolean matchesPlane(ImageRegion region, IndexKey key) {
+		return region == null || (region.getZ() == key.z && region.getT() == key.t);
+	}
 	
 	
 	/**
@@ -189,14 +289,12 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	 * but a quick test is preferred over a more expensive one.
 	 * 
 	 * Note that pathObjects will be added to the collection provided, if there is one.
-	 * The same object will be added to this collection multiple times if it overlaps different tiles -
-	 * again in the interests of speed, no check is made.
-	 * However this can be addressed by using a Set as the collection.
+	 * Each object is added at most once, so there is no need to use a Set to avoid duplicates.
 	 * 
-	 * If a collection is not provided, a HashSet is created & used instead.
+	 * If a collection is not provided, an ArrayList is created & used instead.
 	 * Either way, the collection actually used is returned.
 	 * 
-	 * @param type a PathObject type (PathObject.getType()), or null if all object types should be returned
+	 * @param cls a PathObject class, or null if all object types should be returned
 	 * @param region an image region, or null if all objects with ROIs should be return
 	 * @param pathObjects an (optional) existing collection to which PathObjects should be added
 	 * @param includeSubclasses true if subclasses of the specified class should be included
@@ -207,14 +305,18 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		
 		r.lock();
 		try {
-			// Iterate through all the classes, getting objects of the specified class or subclasses thereof
-			for (Entry<Class<? extends PathObject>, PathObjectTileMap> entry : map.entrySet()) {
-				if (cls == null || (includeSubclasses && cls.isAssignableFrom(entry.getKey())) || cls.isInstance(entry.getKey())) {
-					if (entry.getValue() != null)
-						pathObjects = entry.getValue().getObjectsForRegion(region, pathObjects);
-				}
+			// Iterate through all the indexes, getting objects of the specified class or subclasses thereof
+			for (Entry<IndexKey, PathObjectSpatialIndex> entry : map.entrySet()) {
+				IndexKey key = entry.getKey();
+				if (!matchesClass(cls, key.cls, includeSubclasses) || !matchesPlane(region, key))
+					continue;
+				if (pathObjects == null)
+					pathObjects = new ArrayList<>();
+				if (region == null)
+					entry.getValue().getAllObjects(pathObjects);
+				else
+					entry.getValue().getObjects(region.getX(), region.getY(), region.getWidth(), region.getHeight(), pathObjects);
 			}
-	//		logger.info("Objects for " + region + ": " + (pathObjects == null ? 0 : pathObjects.size()));
 			if (pathObjects == null)
 				return Collections.emptySet();
 			return pathObjects;
@@ -228,14 +330,16 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		
 		r.lock();
 		try {
-			// Iterate through all the classes, getting objects of the specified class or subclasses thereof
-			for (Entry<Class<? extends PathObject>, PathObjectTileMap> entry : map.entrySet()) {
-				if (cls == null || cls.isInstance(entry.getKey()) || (includeSubclasses && cls.isAssignableFrom(entry.getKey()))) {
-					if (entry.getValue() != null) {
-						if (entry.getValue().hasObjectsForRegion(region))
-							return true;
-					}
-				}
+			for (Entry<IndexKey, PathObjectSpatialIndex> entry : map.entrySet()) {
+				IndexKey key = entry.getKey();
+				if (!matchesClass(cls, key.cls, includeSubclasses) || !matchesPlane(region, key))
+					continue;
+				PathObjectSpatialIndex index = entry.getValue();
+				if (region == null) {
+					if (index.size() > 0)
+						return true;
+				} else if (index.hasObjects(region.getX(), region.getY(), region.getWidth(), region.getHeight()))
+					return true;
 			}
 			return false;
 		} finally {
@@ -243,265 +347,119 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		}
 	}
 	
-//	public synchronized Collection<PathObject> getObjectsForRegion(Class<? extends PathObject> cls, Rectangle region, Collection<PathObject> pathObjects) {
-//		ensureCacheConstructed();
-//		
-//		if (pathObjects == null)
-//			pathObjects = new HashSet<>();
-//		
-//		// Iterate through all the classes, getting objects of the specified class or subclasses thereof
-//		if (cls == null) {
-//			for (Class<? extends PathObject> tempClass : map.keySet())
-//				getObjectsForRegion(tempClass, region, pathObjects);
-//			return pathObjects;
-//		}
-//		
-//		// Extract the map for the type
-//		PathObjectTileMap mapObjects = map.get(cls);
-//		if (mapObjects == null)
-//			return pathObjects;
-//		
-//		// Get the objects
-//		return mapObjects.getObjectsForRegion(region, pathObjects);
-//	}
+	/**
+	 * Get the PathObjects with ROI centroids closest to a specified location, sorted by increasing distance.
+	 * 
+	 * @param cls a PathObject class, or null if all object types should be considered
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param t
+	 * @param maxCount the maximum number of objects to return
+	 * @param maxDistance the maximum distance from (x, y) to an object's ROI centroid
+	 * @param includeSubclasses true if subclasses of the specified class should be included
+	 * @return
+	 */
+	public List<PathObject> getNearestObjects(Class<? extends PathObject> cls, double x, double y, int z, int t, int maxCount, double maxDistance, boolean includeSubclasses) {
+		ensureCacheConstructed();
+		
+		r.lock();
+		try {
+			List<PathObject> pathObjects = new ArrayList<>();
+			int nIndexes = 0;
+			for (Entry<IndexKey, PathObjectSpatialIndex> entry : map.entrySet()) {
+				IndexKey key = entry.getKey();
+				if (key.z != z || key.t != t || !matchesClass(cls, key.cls, includeSubclasses))
+					continue;
+				entry.getValue().getNearestObjects(x, y, maxCount, maxDistance, pathObjects);
+				nIndexes++;
+			}
+			// If we've combined results from more than one index, we need to sort & truncate
+			if (nIndexes > 1) {
+				pathObjects.sort((p1, p2) -> Double.compare(centroidDistanceSq(p1.getROI(), x, y), centroidDistanceSq(p2.getROI(), x, y)));
+				if (pathObjects.size() > maxCount)
+					pathObjects = new ArrayList<>(pathObjects.subList(0, maxCount));
+			}
+			return pathObjects;
+		} finally {
+			r.unlock();
+		}
+	}
 	
+	private static double centroidDistanceSq(ROI roi, double x, double y) {
+		double dx = roi.getCentroidX() - x;
+		double dy = roi.getCentroidY() - y;
+		return dx*dx + dy*dy;
+	}
 	
 
-//	@Override
-//	public void pathObjectChanged(PathObjectHierarchy pathObjectHierarchy, PathObject pathObject) {
-//		// Remove, then re-add the object - ignoring children (which shouldn't be changed, as no structural change is associated with this event)
-//		removeFromCache(pathObject, false);
-//		addToCache(pathObject, false);
-//	}
-
-
 	@Override
 	public void hierarchyChanged(final PathObjectHierarchyEvent event) {
-//		logger.info("Type: " + event.getEventType());
 		w.lock();
 		try {
+			if (!isActive())
+				return;
 			if (event.getEventType() == HierarchyEventType.ADDED)
-				addToCache(event.getChangedObjects().get(0), false);
+				addToCache(event.getChangedObjects().get(0), true);
 			else if (event.getEventType() == HierarchyEventType.REMOVED)
 				removeFromCache(event.getChangedObjects().get(0), false);
-			else if (event.getEventType() == HierarchyEventType.OTHER_STRUCTURE_CHANGE || event.getEventType() == HierarchyEventType.CHANGE_OTHER) {
-				if (event.getChangedObjects().size() == 1 && !event.getChangedObjects().get(0).isRootObject()) {
-					removeFromCache(event.getChangedObjects().get(0), false);
-					addToCache(event.getChangedObjects().get(0), false);					
+			else if (event.getEventType() == HierarchyEventType.OTHER_STRUCTURE_CHANGE) {
+				// Apply the changes directly if we know what they are; reassigning parents has no effect on the cache
+				if (event.hasStructureDelta()) {
+					for (PathObject pathObject : event.getRemovedObjects())
+						removeFromCache(pathObject, false);
+					for (PathObject pathObject : event.getAddedObjects())
+						addToCache(pathObject, true);
 				} else
 					resetCache();
+			} else if (event.getEventType() == HierarchyEventType.CHANGE_OTHER) {
+				// ROIs may have changed - so update any objects that are in the cache, unless there are so many it's better to start again
+				List<PathObject> changed = event.getChangedObjects();
+				if (changed.size() > MAX_INCREMENTAL_CHANGES || changed.contains(hierarchy.getRootObject()))
+					resetCache();
+				else {
+					for (PathObject pathObject : changed) {
+						if (removeFromCache(pathObject, false))
+							addToCache(pathObject, false);
+					}
+				}
 			}
 		} finally {
 			w.unlock();
 		}
-//		else if (event.getEventType() == HierarchyEventType.OBJECT_CHANGE)
-//			resetCache(); // TODO: Check if full change is necessary for object change events			
 	}
 	
-}
-
-
-class PathObjectTileMap {
-
-	final private int tileSize;
-	final private Map<String, Set<PathObject>> map = new HashMap<>();
-	
-	
-//	public String toString() {
-//		int sum = 0;
-//		for (String key : map.keySet()) {
-////			logger.info(key + ": " + map.get(key).size());
-//			sum += map.get(key).size();
-//		}
-//		return String.format("Map size: " + sum);
-//	}
-	
-	public PathObjectTileMap(int tileSize) {
-		this.tileSize = tileSize;
-	}
-	
-	private String getKey(int tx, int ty, int z, int t) {
-		return tx + "-" + ty + "-" + z + "-" + t;
-	}
 	
 	/**
-	 * Add a pathObject to the map.
-	 * If it does not have a ROI, it will be ignored.
-	 * Otherwise it is added to the map for as many tiles as its ROI's bounding box intersects.
-	 * 
-	 * @param pathObject
+	 * Key used to identify the spatial index for a specific PathObject class, z-slice and timepoint.
 	 */
-	public void put(PathObject pathObject) {
-		if (!pathObject.hasROI())
-			return;
+	private static class IndexKey {
 		
-//		if (pathObject.isPoint()) {
-//			PathPointsROI points = (PathPointsROI)pathObject.getROI();
-//		}
+		final Class<? extends PathObject> cls;
+		final int z, t;
 		
-		// Compute the tiles & add as required
-		ROI pathROI = pathObject.getROI();
-		int tx1 = (int)(pathROI.getBoundsX() / tileSize);
-		int ty1 = (int)(pathROI.getBoundsY() / tileSize);
-		int tx2 = (int)((pathROI.getBoundsX() + pathROI.getBoundsWidth()) / tileSize);
-		int ty2 = (int)((pathROI.getBoundsY() + pathROI.getBoundsHeight()) / tileSize);
-		int z = pathROI.getZ();
-		int t = pathROI.getT();
-		for (int y = ty1; y <= ty2; y++) {
-			for (int x = tx1; x <= tx2; x++) {
-				putInMap(getKey(x, y, z, t), pathObject);
-			}				
-		}
-	}
-	
-	public void remove(PathObject pathObject) {
-		// In theory, we ought to be able just to query the map according to the object's ROI...
-		// however, if the ROI has been edited this won't work - so, for now, we query every collection
-		// TODO: Consider optimizing this if ROI editing is disabled
-		for (Collection<PathObject> list : map.values())
-			list.remove(pathObject);
-		
-//		// Compute the tiles & add as required
-//		PathROI pathROI = pathObject.getROI();
-//		if (pathROI == null)
-//			return;
-//		Rectangle bounds = pathROI.getBounds();
-//		int tx1 = bounds.x / tileSize;
-//		int ty1 = bounds.y / tileSize;
-//		int tx2 = (bounds.x + bounds.width) / tileSize;
-//		int ty2 = (bounds.y + bounds.height) / tileSize;
-//		int z = pathROI.getZ();
-//		int t = pathROI.getT();
-//
-//		for (int y = ty1; y <= ty2; y++) {
-//			for (int x = tx1; x <= tx2; x++) {
-//				Collection<PathObject> list = map.get(getKey(x, y, z, t));
-//				if (list != null) {
-//					list.remove(pathObject);
-//				}
-//			}				
-//		}
-	}
-	
-	private void putInMap(String key, PathObject pathObject) {
-		Set<PathObject> set = map.get(key);
-		if (set == null) {
-			// TODO: It would be preferable to use a list if avoidance of duplicates is taken care of elsewhere
-//			list = new ArrayList<>();
-			set = new HashSet<>();
-			map.put(key, set);
-		}
-		set.add(pathObject);
-//		} else if (!list.contains(pathObject))
-//			list.add(pathObject);
-	}
-	
-	
-//J	public Collection<PathObject> getListForTile(int tx, int ty, int z, int t) {
-//J		String key = getKey(tx, ty, z, t);
-//J		return map.get(key);
-//J	}
-	
-	/**
-	 * Get all the PathObjects stored in this map with ROIs with bounds overlapping a specified region.
-	 * This does not guarantee that the ROI (which may not be rectangular) overlaps the region...
-	 * but a quick test is preferred over a more expensive one.
-	 * 
-	 * Note that pathObjects will be added to the collection provided, if there is one.
-	 * The same object will be added to this collection multiple times if it overlaps different tiles -
-	 * again in the interests of speed, no check is made.
-	 * However this can be fixed by using a Set as the collection.
-	 * 
-	 * If a collection is not provided, a HashSet is created & used instead.
-	 * Either way, the collection actually used is returned.
-	 * 
-	 * @param region
-	 * @param pathObjects
-	 * @return
-	 */
-	public Collection<PathObject> getObjectsForRegion(ImageRegion region, Collection<PathObject> pathObjects) {
-		// By default, use a set to avoid duplicates
-		if (pathObjects == null)
-			pathObjects = new HashSet<>();
-		
-		// If no region is provided, get everything
-		if (region == null) {
-			for (Collection<PathObject> list : map.values()) {
-				if (list == null)
-					continue;
-				pathObjects.addAll(list);
-			}
-			return pathObjects;
+		IndexKey(PathObject pathObject) {
+			ROI roi = pathObject.getROI();
+			this.cls = pathObject.getClass();
+			this.z = roi.getZ();
+			this.t = roi.getT();
 		}
 
-		// Loop through the required tiles
-		int tx1 = region.getX() / tileSize;
-		int ty1 = region.getY() / tileSize;
-		int tx2 = (region.getX() + region.getWidth()) / tileSize;
-		int ty2 = (region.getY() + region.getHeight()) / tileSize;
-		int z = region.getZ();
-		int t = region.getT();
-		for (int y = ty1; y <= ty2; y++) {
-			for (int x = tx1; x <= tx2; x++) {
-				Set<PathObject> set = map.get(getKey(x, y, z, t));
-				if (set == null)
-					continue;
-				// Add all the objects that really do intersect, testing as necessary
-				if (x > tx1 && x < tx2 && y > ty1 && y < ty2)
-					pathObjects.addAll(set);
-				else {
-					for (PathObject pathObject : set) {
-						ROI pathROI = pathObject.getROI();
-						if (pathObject.isPoint() || region.intersects(pathROI.getBoundsX(), pathROI.getBoundsY(), Math.max(pathROI.getBoundsWidth(), 1), Math.max(pathROI.getBoundsHeight(), 1)))
-							pathObjects.add(pathObject);
-					}
-				}
-			}				
-		}
-		return pathObjects;
-	}
-	
-	
-	
-	public boolean hasObjectsForRegion(ImageRegion region) {
-		if (map.isEmpty())
-			return false;
-		
-		// If no region is provided, get everything
-		if (region == null) {
-			for (Collection<PathObject> list : map.values()) {
-				if (list == null || list.isEmpty())
-					continue;
-				return true;
-			}
-			return false; //J
+		@Override
+		public int hashCode() {
+			return (cls.hashCode() * 31 + z) * 31 + t;
 		}
 
-		// Loop through the required tiles
-		int tx1 = region.getX() / tileSize;
-		int ty1 = region.getY() / tileSize;
-		int tx2 = (region.getX() + region.getWidth()) / tileSize;
-		int ty2 = (region.getY() + region.getHeight()) / tileSize;
-		int z = region.getZ();
-		int t = region.getT();
-		for (int y = ty1; y <= ty2; y++) {
-			for (int x = tx1; x <= tx2; x++) {
-				Collection<PathObject> list = map.get(getKey(x, y, z, t));
-				if (list == null || list.isEmpty())
-					continue;
-				// Add all the objects that really do intersect, testing as necessary
-				if (x > tx1 && x < tx2 && y > ty1 && y < ty2)
-					return true;
-				else {
-					for (PathObject pathObject : list) {
-						ROI pathROI = pathObject.getROI();
-						if (pathObject.isPoint() || region.intersects(pathROI.getBoundsX(), pathROI.getBoundsY(), pathROI.getBoundsWidth(), pathROI.getBoundsHeight()))
-							return true;
-					}
-				}
-			}				
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof IndexKey))
+				return false;
+			IndexKey other = (IndexKey)obj;
+			return cls == other.cls && z == other.z && t == other.t;
 		}
-		return false;
+		
 	}
 	
 }
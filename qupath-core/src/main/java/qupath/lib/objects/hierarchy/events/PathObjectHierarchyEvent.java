@@ -54,6 +54,8 @@ public class PathObjectHierarchyEvent {
 	private PathObject parentObject;
 	private HierarchyEventType type;
 	private List<PathObject> pathObjects;
+	private List<PathObject> addedObjects;
+	private List<PathObject> removedObjects;
 	private boolean isChanging;
 
 	PathObjectHierarchyEvent(final Object source, final PathObjectHierarchy hierarchy, final HierarchyEventType type, final PathObject parentObject, final List<PathObject> pathObjects, final boolean isChanging) {
@@ -65,6 +67,12 @@ public class PathObjectHierarchyEvent {
 		this.isChanging = isChanging;
 	}
 	
+	PathObjectHierarchyEvent(final Object source, final PathObjectHierarchy hierarchy, final PathObject parentObject, final Collection<? extends PathObject> addedObjects, final Collection<? extends PathObject> removedObjects) {
+		this(source, hierarchy, HierarchyEventType.OTHER_STRUCTURE_CHANGE, parentObject, new ArrayList<>(0), false);
+		this.addedObjects = Collections.unmodifiableList(new ArrayList<>(addedObjects));
+		this.removedObjects = Collections.unmodifiableList(new ArrayList<>(removedObjects));
+	}
+	
 	@Override
 	public String toString() {
 		return "Hierarchy change event: Source=" + source + ", Type="+type + ", Parent="+parentObject;
@@ -75,6 +83,21 @@ public class PathObjectHierarchyEvent {
 		return new PathObjectHierarchyEvent(source, hierarchy, HierarchyEventType.OTHER_STRUCTURE_CHANGE, parentObject, new ArrayList<>(0), false);						
 	}
 
+	/**
+	 * Create a structure change event for which the objects added to and removed from the hierarchy are known.
+	 * This allows listeners to update themselves incrementally, rather than needing to examine the entire hierarchy below the parent object.
+	 * 
+	 * @param source
+	 * @param hierarchy
+	 * @param parentObject
+	 * @param addedObjects objects newly added to the hierarchy; their descendants may also be new
+	 * @param removedObjects all objects that are no longer in the hierarchy, including any descendants that were removed with them
+	 * @return
+	 */
+	public static PathObjectHierarchyEvent createStructureChangeEvent(Object source, PathObjectHierarchy hierarchy, PathObject parentObject, Collection<? extends PathObject> addedObjects, Collection<? extends PathObject> removedObjects) {
+		return new PathObjectHierarchyEvent(source, hierarchy, parentObject, addedObjects, removedObjects);
+	}
+
 	public static PathObjectHierarchyEvent createObjectAddedEvent(Object source, PathObjectHierarchy hierarchy, PathObject parentObject, PathObject pathObjectAdded) {
 		return new PathObjectHierarchyEvent(source, hierarchy, HierarchyEventType.ADDED, parentObject, Collections.singletonList(pathObjectAdded), false);				
 	}
@@ -130,6 +153,43 @@ public class PathObjectHierarchyEvent {
 		return isAddedOrRemovedEvent() || type == HierarchyEventType.OTHER_STRUCTURE_CHANGE;
 	}
 	
+	/**
+	 * Returns true if this is a structure change event that records exactly which objects were added and removed.
+	 * If false, listeners should assume anything below getStructureChangeBase() may have changed.
+	 * @return
+	 * 
+	 * @see #getAddedObjects()
+	 * @see #getRemovedObjects()
+	 */
+	public boolean hasStructureDelta() {
+		return addedObjects != null && removedObjects != null;
+	}
+	
+	/**
+	 * For a structure change event with a delta, the objects that were added to the hierarchy.
+	 * Descendants of these objects may also be new.
+	 * <p>
+	 * Returns an empty list for other events.
+	 * @return
+	 * 
+	 * @see #hasStructureDelta()
+	 */
+	public List<PathObject> getAddedObjects() {
+		return addedObjects == null ? Collections.emptyList() : addedObjects;
+	}
+	
+	/**
+	 * For a structure change event with a delta, all the objects that were removed from the hierarchy.
+	 * <p>
+	 * Returns an empty list for other events.
+	 * @return
+	 * 
+	 * @see #hasStructureDelta()
+	 */
+	public List<PathObject> getRemovedObjects() {
+		return removedObjects == null ? Collections.emptyList() : removedObjects;
+	}
+	
 	public boolean isAddedOrRemovedEvent() {
 		return type == HierarchyEventType.ADDED || type == HierarchyEventType.REMOVED;
 	}
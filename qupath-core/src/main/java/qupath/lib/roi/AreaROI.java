@@ -69,6 +69,8 @@ public class AreaROI extends AbstractPathAreaROI implements TranslatableROI, Ser
 	// We potentially spend a lot of time drawing polygons & assessing whether or not to draw them...
 	// By caching the bounds this can be speeded up
 	transient ClosedShapeStatistics stats = null;
+
+	transient PreparedPolygon preparedPolygon = null;
 	
 	AreaROI(List<? extends Vertices> vertices) {
 		this(vertices, -1, 0, 0);
@@ -169,6 +171,10 @@ public class AreaROI extends AbstractPathAreaROI implements TranslatableROI, Ser
 
 	@Override
 	public boolean contains(double x, double y) {
+		PreparedPolygon prepared = getPreparedPolygon();
+		if (prepared != null)
+			return prepared.contains(x, y);
+		
 		// I'm not entirely sure this is right...
 		// But the idea is that the vertices ought to give 'positive' and 'negative' areas - and ought to be non-empty and non-overlapping (if using java.awt.Area)
 		// So if we are inside a 'hole' we can get one positive value and one negative... adding to zero
@@ -186,6 +192,22 @@ public class AreaROI extends AbstractPathAreaROI implements TranslatableROI, Ser
 		return sum != 0;
 	}
 
+	/**
+	 * Get prepared geometry for faster containment tests, if the area has enough vertices to make this worthwhile.
+	 * @return the prepared polygon, or null if there are too few vertices
+	 */
+	PreparedPolygon getPreparedPolygon() {
+		if (preparedPolygon == null) {
+			int n = 0;
+			for (Vertices v : vertices)
+				n += v.size();
+			if (n < PreparedPolygon.MIN_VERTICES)
+				return null;
+			preparedPolygon = new PreparedPolygon(vertices);
+		}
+		return preparedPolygon;
+	}
+
 	@Override
 	public ROI duplicate() {
 		return new AreaROI(vertices, getC(), getZ(), getT());
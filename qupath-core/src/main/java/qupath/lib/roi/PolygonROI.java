@@ -26,6 +26,7 @@ package qupath.lib.roi;
 import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.List;
 
 import qupath.lib.common.GeneralTools;
@@ -56,6 +57,8 @@ public class PolygonROI extends AbstractPathAreaROI implements ROIWithHull, Tran
 	transient protected PathArea convexHull = null;
 
 	transient ClosedShapeStatistics stats = null;
+
+	transient PreparedPolygon preparedPolygon = null;
 	
 
 	PolygonROI() {
@@ -168,6 +171,12 @@ public class PolygonROI extends AbstractPathAreaROI implements ROIWithHull, Tran
 	 */
 	@Override
 	public boolean contains(double x, double y) {
+		// Use prepared geometry for large polygons, since contains is often called repeatedly (e.g. when resolving the hierarchy)
+		if (vertices.size() >= PreparedPolygon.MIN_VERTICES) {
+			if (preparedPolygon == null)
+				preparedPolygon = new PreparedPolygon(Collections.singletonList(vertices));
+			return preparedPolygon.contains(x, y);
+		}
 		return WindingTest.getWindingNumber(vertices, x, y) != 0;
 	}
 	
@@ -0,0 +1,224 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.roi;
+
+import java.util.Collection;
+
+import qupath.lib.roi.experimental.WindingTest;
+import qupath.lib.rois.vertices.Vertices;
+
+/**
+ * Helper class to speed up repeated point-in-polygon tests for polygons with many vertices.
+ * <p>
+ * The bounding box is divided into a grid.  Each edge is assigned to all the rows of the grid that it spans, 
+ * so that computing the winding number for a point only requires checking the edges in the same row.
+ * Additionally, cells that aren't touched by any edge must be entirely inside or outside the polygon - 
+ * this is determined in advance, so that most points can be classified without checking any edges.
+ * <p>
+ * Results are identical to using {@link WindingTest}, since the same edges contribute to the winding number.
+ * Multiple vertices may be provided (e.g. for an {@link AreaROI}), in which case the winding numbers are summed.
+ * <p>
+ * Vertices are copied on construction, and are assumed not to change afterwards.
+ */
+class PreparedPolygon {
+	
+	/**
+	 * Minimum number of vertices for which creating a PreparedPolygon is worthwhile.
+	 */
+	static final int MIN_VERTICES = 256;
+	
+	private static final int MAX_GRID_SIZE = 1024;
+	
+	private static final byte UNKNOWN = 0, BOUNDARY = 1, OUTSIDE = 2, INSIDE = 3;
+	
+	private final double[] x1, y1, x2, y2;
+	
+	private final double minX, minY, maxX, maxY;
+	private final double cellWidth, cellHeight;
+	private final int nCols, nRows;
+	
+	private final byte[] cells;
+	private final int[] rowStarts;
+	private final int[] rowEdges;
+	
+	PreparedPolygon(final Collection<? extends Vertices> verticesList) {
+		// Extract edges, skipping any vertices that can't contribute to the winding number
+		int nEdges = 0;
+		for (Vertices vertices : verticesList) {
+			if (vertices.size() > 2)
+				nEdges += vertices.size();
+		}
+		x1 = new double[nEdges];
+		y1 = new double[nEdges];
+		x2 = new double[nEdges];
+		y2 = new double[nEdges];
+		double xMin = Double.POSITIVE_INFINITY, yMin = Double.POSITIVE_INFINITY;
+		double xMax = Double.NEGATIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+		int e = 0;
+		for (Vertices vertices : verticesList) {
+			int n = vertices.size();
+			if (n <= 2)
+				continue;
+			float[] x = vertices.getX(null);
+			float[] y = vertices.getY(null);
+			for (int i = 0; i < n; i++) {
+				int i2 = (i + 1) % n;
+				x1[e] = x[i];
+				y1[e] = y[i];
+				x2[e] = x[i2];
+				y2[e] = y[i2];
+				xMin = Math.min(xMin, x[i]);
+				xMax = Math.max(xMax, x[i]);
+				yMin = Math.min(yMin, y[i]);
+				yMax = Math.max(yMax, y[i]);
+				e++;
+			}
+		}
+		if (nEdges == 0) {
+			xMin = yMin = xMax = yMax = 0;
+		}
+		minX = xMin;
+		minY = yMin;
+		maxX = xMax;
+		maxY = yMax;
+		
+		int gridSize = Math.max(1, Math.min(MAX_GRID_SIZE, (int)Math.ceil(Math.sqrt(nEdges))));
+		nCols = gridSize;
+		nRows = gridSize;
+		cellWidth = maxX > minX ? (maxX - minX) / nCols : 1;
+		cellHeight = maxY > minY ? (maxY - minY) / nRows : 1;
+		
+		// Assign edges to all the rows they span
+		rowStarts = new int[nRows + 1];
+		for (e = 0; e < nEdges; e++) {
+			int r1 = getRow(Math.min(y1[e], y2[e]));
+			int r2 = getRow(Math.max(y1[e], y2[e]));
+			for (int r = r1; r <= r2; r++)
+				rowStarts[r + 1]++;
+		}
+		for (int r = 0; r < nRows; r++)
+			rowStarts[r + 1] += rowStarts[r];
+		rowEdges = new int[rowStarts[nRows]];
+		int[] counts = new int[nRows];
+		for (e = 0; e < nEdges; e++) {
+			int r1 = getRow(Math.min(y1[e], y2[e]));
+			int r2 = getRow(Math.max(y1[e], y2[e]));
+			for (int r = r1; r <= r2; r++)
+				rowEdges[rowStarts[r] + counts[r]++] = e;
+		}
+		
+		// Mark the cells touched by edges - being conservative by also marking neighbors, 
+		// to avoid any trouble with rounding errors
+		cells = new byte[nRows * nCols];
+		for (e = 0; e < nEdges; e++) {
+			double eyMin = Math.min(y1[e], y2[e]);
+			double eyMax = Math.max(y1[e], y2[e]);
+			int r1 = Math.max(0, getRow(eyMin) - 1);
+			int r2 = Math.min(nRows - 1, getRow(eyMax) + 1);
+			for (int r = r1; r <= r2; r++) {
+				// Find the horizontal extent of the edge within the row
+				double xa = x1[e];
+				double xb = x2[e];
+				if (eyMin < eyMax) {
+					xa = getEdgeX(e, clip(minY + r * cellHeight, eyMin, eyMax));
+					xb = getEdgeX(e, clip(minY + (r + 1) * cellHeight, eyMin, eyMax));
+				}
+				int c1 = Math.max(0, getCol(Math.min(xa, xb)) - 1);
+				int c2 = Math.min(nCols - 1, getCol(Math.max(xa, xb)) + 1);
+				for (int c = c1; c <= c2; c++)
+					cells[r * nCols + c] = BOUNDARY;
+			}
+		}
+		
+		// All other cells are either completely inside or outside, so check their centers
+		for (int r = 0; r < nRows; r++) {
+			double y = minY + (r + 0.5) * cellHeight;
+			int row = getRow(y);
+			for (int c = 0; c < nCols; c++) {
+				int ind = r * nCols + c;
+				if (cells[ind] == UNKNOWN) {
+					double x = minX + (c + 0.5) * cellWidth;
+					cells[ind] = getWindingNumber(x, y, row) == 0 ? OUTSIDE : INSIDE;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Test if a point is inside the polygon, i.e. it has a non-zero winding number.
+	 * 
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	boolean contains(final double x, final double y) {
+		// No edge can cross the horizontal line through the point
+		if (!(y >= minY && y <= maxY))
+			return false;
+		int row = getRow(y);
+		if (x >= minX && x <= maxX) {
+			byte state = cells[row * nCols + getCol(x)];
+			if (state == INSIDE)
+				return true;
+			if (state == OUTSIDE)
+				return false;
+		}
+		return getWindingNumber(x, y, row) != 0;
+	}
+	
+	/**
+	 * Compute the winding number for a point, using only edges in the specified row (which must contain the point).
+	 */
+	private int getWindingNumber(final double x, final double y, final int row) {
+		int wn = 0;
+		for (int i = rowStarts[row]; i < rowStarts[row + 1]; i++) {
+			int e = rowEdges[i];
+			if (y1[e] <= y) {
+				if (y2[e] > y && WindingTest.isLeft(x1[e], y1[e], x2[e], y2[e], x, y) > 0)
+					wn++;
+			} else {
+				if (y2[e] <= y && WindingTest.isLeft(x1[e], y1[e], x2[e], y2[e], x, y) < 0)
+					wn--;
+			}
+		}
+		return wn;
+	}
+	
+	private double getEdgeX(final int e, final double y) {
+		return x1[e] + (x2[e] - x1[e]) * (y - y1[e]) / (y2[e] - y1[e]);
+	}
+	
+	private int getRow(final double y) {
+		return Math.max(0, Math.min(nRows - 1, (int)((y - minY) / cellHeight)));
+	}
+
+	private int getCol(final double x) {
+		return Math.max(0, Math.min(nCols - 1, (int)((x - minX) / cellWidth)));
+	}
+	
+	private static double clip(final double v, final double min, final double max) {
+		return v < min ? min : (v > max ? max : v);
+	}
+
+}
@@ -0,0 +1,85 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.images.stores;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import qupath.lib.regions.RegionRequest;
+
+public class TestRegionCache {
+
+	private static RegionRequest createRequest(String path, int x) {
+		return RegionRequest.createInstance(path, 1, x * 256, 0, 256, 256);
+	}
+
+	@Test
+	public void test_memoryLimit() {
+		RegionCache<byte[]> cache = new RegionCache<>(b -> b.length, 1000, 100 * 1000);
+		for (int i = 0; i < 500; i++)
+			cache.put(createRequest("image", i), new byte[1000]);
+		assertTrue(cache.getMemoryBytes() <= 100 * 1000);
+		assertEquals(cache.getMemoryBytes() / 1000, cache.getTileCount());
+		assertEquals(500 - cache.getTileCount(), cache.getEvictionCount());
+
+		// Placeholders shouldn't count as tiles, and shouldn't count as hits
+		RegionRequest request = createRequest("other", 0);
+		cache.put(request, null);
+		assertTrue(cache.containsKey(request));
+		long misses = cache.getMissCount();
+		assertNull(cache.get(request));
+		assertEquals(misses + 1, cache.getMissCount());
+
+		cache.clearCacheForRequestOverlap(RegionRequest.createInstance("image", 1, 0, 0, 500 * 256, 256));
+		assertEquals(0, cache.getTileCount());
+		assertEquals(0, cache.getMemoryBytes());
+		assertTrue(cache.containsKey(request));
+		cache.clear();
+		assertFalse(cache.containsKey(request));
+	}
+
+	@Test
+	public void test_scanResistance() {
+		RegionCache<byte[]> cache = new RegionCache<>(b -> b.length, 1000, 200 * 1000);
+		// Add tiles & access them repeatedly
+		for (int i = 0; i < 50; i++)
+			cache.put(createRequest("frequent", i), new byte[1000]);
+		for (int i = 0; i < 50; i++)
+			assertNotNull(cache.get(createRequest("frequent", i)));
+		long hits = cache.getHitCount();
+		assertEquals(50, hits);
+
+		// A scan of tiles that are only used once should not cause the frequently-used tiles to be evicted
+		for (int i = 0; i < 2000; i++)
+			cache.put(createRequest("scan", i), new byte[1000]);
+		int nFound = 0;
+		for (int i = 0; i < 50; i++) {
+			if (cache.get(createRequest("frequent", i)) != null)
+				nFound++;
+		}
+		assertEquals(50, nFound);
+	}
+
+}
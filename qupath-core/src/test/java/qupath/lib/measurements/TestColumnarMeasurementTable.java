@@ -0,0 +1,196 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.measurements;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+public class TestColumnarMeasurementTable {
+
+	@Test
+	public void test_measurements() {
+		ColumnarMeasurementTable table = new ColumnarMeasurementTable();
+		MeasurementList list1 = MeasurementListFactory.createMeasurementList(table);
+		MeasurementList list2 = MeasurementListFactory.createMeasurementList(table);
+		assertTrue(list1.isEmpty());
+
+		list1.addMeasurement("A", 1);
+		list1.addMeasurement("B", 2);
+		list2.addMeasurement("B", 3);
+		list2.putMeasurement("B", 4);
+		assertEquals(Arrays.asList("A", "B"), list1.getMeasurementNames());
+		assertEquals(Arrays.asList("B"), list2.getMeasurementNames());
+		assertEquals(1, list1.getMeasurementValue("A"), 0.0);
+		assertEquals(4, list2.getMeasurementValue("B"), 0.0);
+		assertTrue(Double.isNaN(list2.getMeasurementValue("A")));
+		assertFalse(list2.containsNamedMeasurement("A"));
+		assertTrue(list1.containsAllNamedMeasurements(Arrays.asList("B", "A")));
+
+		Measurement previous = list1.putMeasurement(MeasurementFactory.createMeasurement("A", 5));
+		assertEquals(1, previous.getValue(), 0.0);
+		assertEquals(5, list1.getMeasurementValue(0), 0.0);
+
+		list1.removeMeasurements("A");
+		assertEquals(Arrays.asList("B"), list1.getMeasurementNames());
+		assertEquals(2, list1.getMeasurementValue("B"), 0.0);
+		list1.clear();
+		assertEquals(0, list1.size());
+		assertEquals(Arrays.asList("A", "B"), table.getMeasurementNames());
+	}
+
+	@Test
+	public void test_columnValues() {
+		ColumnarMeasurementTable table = new ColumnarMeasurementTable();
+		List<MeasurementList> lists = new ArrayList<>();
+		// Use enough lists to span several chunks
+		for (int i = 0; i < 10000; i++) {
+			MeasurementList list = table.createMeasurementList();
+			list.addMeasurement("Index", i);
+			if (i % 2 == 0)
+				list.addMeasurement("Even", 1);
+			lists.add(list);
+		}
+		// Lists that aren't columnar should also be supported
+		MeasurementList listFloat = MeasurementListFactory.createMeasurementList(1, MeasurementList.TYPE.FLOAT);
+		listFloat.addMeasurement("Index", -1);
+		lists.add(listFloat);
+
+		double[] index = ColumnarMeasurementTable.getMeasurementValues(lists, "Index", null);
+		double[] even = ColumnarMeasurementTable.getMeasurementValues(lists, "Even", null);
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(i, index[i], 0.0);
+			assertEquals(i % 2 == 0, !Double.isNaN(even[i]));
+		}
+		assertEquals(-1, index[10000], 0.0);
+		assertTrue(Double.isNaN(even[10000]));
+	}
+
+	@Test
+	public void test_listValues() {
+		// Lists that aren't columnar, where the same measurement can be stored at different indices
+		List<MeasurementList> lists = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			MeasurementList list = MeasurementListFactory.createMeasurementList(3, MeasurementList.TYPE.FLOAT);
+			if (i % 3 == 0)
+				list.addMeasurement("Other", -i);
+			if (i % 5 != 0)
+				list.addMeasurement("Index", i);
+			list.addMeasurement("Last", 1);
+			list.closeList();
+			lists.add(list);
+		}
+		double[] index = ColumnarMeasurementTable.getMeasurementValues(lists, "Index", null);
+		for (int i = 0; i < 100; i++) {
+			if (i % 5 == 0)
+				assertTrue(Double.isNaN(index[i]));
+			else
+				assertEquals(i, index[i], 0.0);
+		}
+	}
+
+	@Test
+	public void test_serialization() throws Exception {
+		ColumnarMeasurementTable table = new ColumnarMeasurementTable();
+		List<MeasurementList> lists = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			MeasurementList list = table.createMeasurementList();
+			list.addMeasurement("Value", i * 0.5);
+			lists.add(list);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(new ArrayList<>(lists));
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			@SuppressWarnings("unchecked")
+			List<MeasurementList> lists2 = (List<MeasurementList>)in.readObject();
+			assertEquals(lists.size(), lists2.size());
+			for (int i = 0; i < lists.size(); i++)
+				assertEquals(lists.get(i).getMeasurementValue("Value"), lists2.get(i).getMeasurementValue("Value"), 0.0);
+			// Deserialized lists should still be modifiable
+			lists2.get(0).addMeasurement("Other", 2);
+			assertEquals(2, lists2.get(0).getMeasurementValue("Other"), 0.0);
+		}
+	}
+
+	@Test
+	public void test_serializationStandalone() throws Exception {
+		ColumnarMeasurementTable table = new ColumnarMeasurementTable();
+		List<MeasurementList> lists = new ArrayList<>();
+		for (int i = 0; i < 50000; i++) {
+			MeasurementList list = table.createMeasurementList();
+			list.addMeasurement("Value", i);
+			list.addMeasurement("Other " + (i % 10), i);
+			lists.add(list);
+		}
+		// Serializing a single list should not write the rest of the table
+		MeasurementList list = lists.get(123);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(list);
+		}
+		assertTrue(bytes.size() < 4096);
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			MeasurementList list2 = (MeasurementList)in.readObject();
+			assertEquals(list.getMeasurementNames(), list2.getMeasurementNames());
+			for (int i = 0; i < list.size(); i++)
+				assertEquals(list.getMeasurementValue(i), list2.getMeasurementValue(i), 0.0);
+		}
+	}
+
+	@Test
+	public void test_tablePerImage() {
+		PathObjectHierarchy hierarchy1 = new PathObjectHierarchy();
+		PathObjectHierarchy hierarchy2 = new PathObjectHierarchy();
+		ColumnarMeasurementTable table1 = hierarchy1.getMeasurementTable();
+		assertSame(table1, hierarchy1.getMeasurementTable());
+		assertNotSame(table1, hierarchy2.getMeasurementTable());
+		
+		// Measurements of one image shouldn't add columns to the table of another
+		MeasurementList list = MeasurementListFactory.createMeasurementList(table1);
+		list.addMeasurement("Only in 1", 1);
+		assertEquals(Arrays.asList("Only in 1"), table1.getMeasurementNames());
+		assertTrue(hierarchy2.getMeasurementTable().getMeasurementNames().isEmpty());
+		
+		// The table stays with the objects when the contents of a hierarchy are taken over
+		PathObjectHierarchy hierarchy3 = new PathObjectHierarchy();
+		hierarchy3.setHierarchy(hierarchy1);
+		assertSame(table1, hierarchy3.getMeasurementTable());
+		
+		// Without a table, a standalone list is created
+		assertEquals(MeasurementList.TYPE.FLOAT, MeasurementListFactory.getType(MeasurementListFactory.createMeasurementList(4, MeasurementList.TYPE.COLUMNAR)));
+	}
+
+}
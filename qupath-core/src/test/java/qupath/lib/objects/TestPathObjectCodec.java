@@ -0,0 +1,162 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.objects;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import qupath.lib.geom.Point2;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.roi.EllipseROI;
+import qupath.lib.roi.LineROI;
+import qupath.lib.roi.PointsROI;
+import qupath.lib.roi.PolygonROI;
+import qupath.lib.roi.RectangleROI;
+import qupath.lib.roi.interfaces.ROI;
+
+public class TestPathObjectCodec {
+	
+	private static MeasurementList createMeasurements(MeasurementList.TYPE type, int seed) {
+		MeasurementList list = MeasurementListFactory.createMeasurementList(4, type);
+		list.addMeasurement("Area", seed * 1.5);
+		list.addMeasurement("Mean", seed / 3.0);
+		if (seed % 2 == 0)
+			list.addMeasurement("Even", Double.NaN);
+		list.closeList();
+		return list;
+	}
+	
+	private static PathObject createRoot() {
+		PathRootObject root = new PathRootObject();
+		
+		PathClass tumor = PathClassFactory.getPathClass("Tumor");
+		PathClass tumorPositive = PathClassFactory.getPositive(tumor, null);
+		
+		TMACoreObject core = new TMACoreObject(100, 100, 50, true);
+		core.putMetadataValue(TMACoreObject.KEY_UNIQUE_ID, "ID-1");
+		root.addPathObject(core);
+		
+		PathAnnotationObject annotation = new PathAnnotationObject(new PolygonROI(new float[]{0, 100, 50}, new float[]{0, 0, 80.5f}, -1, 1, 0), tumor);
+		annotation.setName("Annotation");
+		annotation.setDescription("A description");
+		annotation.setLocked(true);
+		annotation.setColorRGB(123456);
+		core.addPathObject(annotation);
+		
+		for (int i = 0; i < 20; i++) {
+			ROI roi = new EllipseROI(i, i, 5, 5, -1, 1, 0);
+			PathObject cell = new PathCellObject(roi, new RectangleROI(i, i, 2, 3, -1, 1, 0), i % 3 == 0 ? tumorPositive : null, createMeasurements(MeasurementList.TYPE.FLOAT, i));
+			if (i % 5 == 0)
+				cell.setPathClass(tumor, 0.25);
+			annotation.addPathObject(cell);
+		}
+		annotation.addPathObject(new PathDetectionObject(new LineROI(0, 1, 2.5, 3.3333), null, createMeasurements(MeasurementList.TYPE.DOUBLE, 3)));
+		annotation.addPathObject(new PathTileObject(new RectangleROI(0, 0, 10, 10), createMeasurements(MeasurementList.TYPE.GENERAL, 4)));
+		root.addPathObject(new PathAnnotationObject(new PointsROI(Arrays.asList(new Point2(1.1, 2.2), new Point2(3.3, 4.4)))));
+		return root;
+	}
+	
+	private static void assertObjectsEqual(PathObject expected, PathObject actual) {
+		assertEquals(expected.getClass(), actual.getClass());
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.getColorRGB(), actual.getColorRGB());
+		assertEquals(new HashMap<>(expected.getUnmodifiableMetadataMap()), new HashMap<>(actual.getUnmodifiableMetadataMap()));
+		if (!expected.isRootObject()) {
+			assertSame(expected.getPathClass(), actual.getPathClass());
+			assertEquals(expected.getClassProbability(), actual.getClassProbability(), 0.0);
+			assertEquals(((PathROIObject)expected).isLocked(), ((PathROIObject)actual).isLocked());
+			assertROIsEqual(expected.getROI(), actual.getROI());
+		}
+		if (expected instanceof PathCellObject)
+			assertROIsEqual(((PathCellObject)expected).getNucleusROI(), ((PathCellObject)actual).getNucleusROI());
+		if (expected instanceof TMACoreObject)
+			assertEquals(((TMACoreObject)expected).isMissing(), ((TMACoreObject)actual).isMissing());
+		
+		assertEquals(expected.hasMeasurements(), actual.hasMeasurements());
+		if (expected.hasMeasurements()) {
+			MeasurementList m1 = expected.getMeasurementList();
+			MeasurementList m2 = actual.getMeasurementList();
+			assertEquals(MeasurementListFactory.getType(m1), MeasurementListFactory.getType(m2));
+			assertEquals(m1.getMeasurementNames(), m2.getMeasurementNames());
+			for (int i = 0; i < m1.size(); i++)
+				assertEquals(m1.getMeasurementValue(i), m2.getMeasurementValue(i), 0.0);
+		}
+		
+		List<PathObject> children1 = new ArrayList<>(expected.getChildObjects());
+		List<PathObject> children2 = new ArrayList<>(actual.getChildObjects());
+		assertEquals(children1.size(), children2.size());
+		for (int i = 0; i < children1.size(); i++) {
+			assertSame(actual, children2.get(i).getParent());
+			assertObjectsEqual(children1.get(i), children2.get(i));
+		}
+	}
+	
+	private static void assertROIsEqual(ROI expected, ROI actual) {
+		if (expected == null) {
+			assertNull(actual);
+			return;
+		}
+		assertEquals(expected.getClass(), actual.getClass());
+		assertEquals(expected.getC(), actual.getC());
+		assertEquals(expected.getZ(), actual.getZ());
+		assertEquals(expected.getT(), actual.getT());
+		assertEquals(expected.getPolygonPoints(), actual.getPolygonPoints());
+	}
+	
+	@Test
+	public void test_roundTrip() throws Exception {
+		for (boolean compress : new boolean[]{false, true}) {
+			PathObject root = createRoot();
+			byte[] chunk = PathObjectCodec.encodeChunk(Collections.singletonList(root), compress);
+			List<PathObject> decoded = PathObjectCodec.decodeChunk(chunk);
+			assertEquals(1, decoded.size());
+			assertNull(decoded.get(0).getParent());
+			assertObjectsEqual(root, decoded.get(0));
+		}
+	}
+	
+	@Test
+	public void test_multipleRoots() throws Exception {
+		PathObject root = createRoot();
+		List<PathObject> children = new ArrayList<>(root.getChildObjects());
+		List<PathObject> decoded = PathObjectCodec.decodeChunk(PathObjectCodec.encodeChunk(children, true));
+		assertEquals(children.size(), decoded.size());
+		for (int i = 0; i < children.size(); i++) {
+			assertNull(decoded.get(i).getParent());
+			assertObjectsEqual(children.get(i), decoded.get(i));
+		}
+	}
+
+}
@@ -25,18 +25,27 @@ package qupath.lib.objects.hierarchy;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 
 import qupath.lib.regions.ImageRegion;
 import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathDetectionObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathRootObject;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+import qupath.lib.roi.EllipseROI;
 import qupath.lib.roi.RectangleROI;
 import qupath.lib.roi.interfaces.ROI;
 
@@ -139,6 +148,214 @@ public class TestPathObjectHierarchy {
 
 	}
 	
+	@Test
+	public void test_incrementalSpatialCache() {
+		PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+		List<PathObject> detections = new ArrayList<>();
+		for (int y = 0; y < 50; y++) {
+			for (int x = 0; x < 50; x++)
+				detections.add(new PathDetectionObject(new RectangleROI(x * 10, y * 10, 5, 5)));
+		}
+		hierarchy.addPathObjects(detections, false);
+		ImageRegion region = ImageRegion.createInstance(0, 0, 100, 100, 0, 0);
+		assertEquals(100, hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null).size());
+		long rebuilds = hierarchy.getSpatialCacheRebuildCount();
+		
+		// Adding an annotation reassigns detections, but shouldn't require the cache to be rebuilt
+		PathAnnotationObject annotation = new PathAnnotationObject(new RectangleROI(0, 0, 100, 100));
+		hierarchy.addPathObject(annotation, false);
+		assertEquals(100, annotation.nChildObjects());
+		assertEquals(100, hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null).size());
+		assertEquals(1, hierarchy.getObjectsForRegion(PathAnnotationObject.class, region, null).size());
+		
+		// Removing the annotation along with its children
+		hierarchy.removeObject(annotation, false);
+		assertTrue(hierarchy.getObjectsForRegion(PathObject.class, region, null).isEmpty());
+		assertFalse(hierarchy.hasObjectsForRegion(PathObject.class, region));
+		
+		// Removing several objects at once (20 of these were already removed along with the annotation)
+		hierarchy.removeObjects(new ArrayList<>(detections.subList(100, 200)), true);
+		assertEquals(2500 - 100 - 80, hierarchy.getObjectsForRegion(PathObject.class, null, null).size());
+		assertEquals(rebuilds, hierarchy.getSpatialCacheRebuildCount());
+		
+		// Clearing everything should require a rebuild
+		hierarchy.clearAll();
+		assertFalse(hierarchy.hasObjectsForRegion(PathObject.class, null));
+		assertEquals(rebuilds + 1, hierarchy.getSpatialCacheRebuildCount());
+	}
+	
+	@Test
+	public void test_bulkDetections() {
+		// Adding many detections at once should give the same parents as adding them one at a time
+		PathObjectHierarchy hierarchyBulk = createHierarchyForBulkTest();
+		PathObjectHierarchy hierarchySingle = createHierarchyForBulkTest();
+		List<PathObject> detectionsBulk = createDetectionsForBulkTest();
+		List<PathObject> detectionsSingle = createDetectionsForBulkTest();
+		assertTrue(detectionsBulk.size() >= PathObjectHierarchy.BULK_INSERT_THRESHOLD);
+		
+		List<PathObjectHierarchyEvent> events = new ArrayList<>();
+		hierarchyBulk.addPathObjectListener(e -> events.add(e));
+		hierarchyBulk.addPathObjects(detectionsBulk, false);
+		for (PathObject detection : detectionsSingle)
+			hierarchySingle.addPathObject(detection, false, false);
+		
+		assertEquals(1, events.size());
+		assertEquals(detectionsBulk.size(), events.get(0).getAddedObjects().size());
+		List<PathObject> objectsBulk = hierarchyBulk.getFlattenedObjectList(null);
+		List<PathObject> objectsSingle = hierarchySingle.getFlattenedObjectList(null);
+		assertEquals(objectsSingle.size(), objectsBulk.size());
+		for (int i = 0; i < detectionsBulk.size(); i++) {
+			PathObject parentBulk = detectionsBulk.get(i).getParent();
+			PathObject parentSingle = detectionsSingle.get(i).getParent();
+			assertEquals(objectsSingle.indexOf(parentSingle), objectsBulk.indexOf(parentBulk));
+			assertEquals(detectionsSingle.get(i).nChildObjects(), detectionsBulk.get(i).nChildObjects());
+		}
+		
+		// Adding the same objects again should be avoided
+		assertFalse(hierarchyBulk.addPathObjects(new ArrayList<>(hierarchyBulk.getRootObject().getChildObjects()), true));
+	}
+	
+	private static PathObjectHierarchy createHierarchyForBulkTest() {
+		PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+		PathObject outer = new PathAnnotationObject(new RectangleROI(100, 100, 800, 800));
+		hierarchy.addPathObject(outer, false);
+		hierarchy.addPathObject(new PathAnnotationObject(new RectangleROI(200, 200, 300, 300)), false);
+		hierarchy.addPathObject(new PathAnnotationObject(new EllipseROI(250, 250, 100, 100)), false);
+		hierarchy.addPathObject(new PathAnnotationObject(new RectangleROI(600, 600, 400, 400)), false);
+		// Annotations small enough to become children of a detection
+		hierarchy.addPathObject(new PathAnnotationObject(new RectangleROI(41, 41, 2, 2)), false);
+		hierarchy.addPathObject(new PathAnnotationObject(new RectangleROI(701, 301, 2, 2)), false);
+		// An existing detection
+		hierarchy.addPathObject(new PathDetectionObject(new RectangleROI(401.5, 401.5, 5, 5)), false);
+		return hierarchy;
+	}
+	
+	private static List<PathObject> createDetectionsForBulkTest() {
+		List<PathObject> detections = new ArrayList<>();
+		for (int y = 0; y < 100; y++) {
+			for (int x = 0; x < 100; x++) {
+				ROI roi = new RectangleROI(x * 10 + 0.5, y * 10 + 0.5, 8, 8);
+				if ((x + y) % 3 == 0)
+					detections.add(new PathCellObject(roi, new EllipseROI(x * 10 + 1, y * 10 + 1, 3, 3), null));
+				else
+					detections.add(new PathDetectionObject(roi));
+			}
+		}
+		return detections;
+	}
+	
+	@Test
+	public void test_batchUpdate() {
+		PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+		PathObject annotation = new PathAnnotationObject(new RectangleROI(0, 0, 1000, 1000));
+		hierarchy.addPathObject(annotation, false);
+		List<PathObjectHierarchyEvent> events = new ArrayList<>();
+		hierarchy.addPathObjectListener(e -> events.add(e));
+		
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < 50; i++)
+			detections.add(new PathDetectionObject(new RectangleROI(i * 10, i * 10, 5, 5)));
+		
+		hierarchy.batch(() -> {
+			for (PathObject detection : detections)
+				hierarchy.addPathObject(detection, false);
+			// Adding & then removing an object should cancel out
+			hierarchy.removeObject(detections.get(0), false);
+			hierarchy.removeObject(annotation, true);
+			hierarchy.fireObjectClassificationsChangedEvent(this, detections.subList(1, 3));
+			hierarchy.fireObjectClassificationsChangedEvent(this, detections.subList(2, 4));
+			// The cache should remain up-to-date during the batch, even though listeners haven't been notified
+			assertTrue(events.isEmpty());
+			assertEquals(49, hierarchy.getObjectsForRegion(PathDetectionObject.class, null, null).size());
+		});
+		
+		// Expect one structure event, and one classification event
+		assertEquals(2, events.size());
+		PathObjectHierarchyEvent structureEvent = events.get(0);
+		assertTrue(structureEvent.hasStructureDelta());
+		assertEquals(detections.subList(1, detections.size()), structureEvent.getAddedObjects());
+		assertEquals(Collections.singletonList(annotation), structureEvent.getRemovedObjects());
+		assertEquals(detections.subList(1, 4), events.get(1).getChangedObjects());
+		
+		// Nested updates only notify listeners at the end
+		events.clear();
+		hierarchy.beginUpdate();
+		hierarchy.beginUpdate();
+		hierarchy.addPathObject(detections.get(0), false);
+		hierarchy.endUpdate();
+		assertTrue(events.isEmpty());
+		hierarchy.endUpdate();
+		assertEquals(1, events.size());
+		
+		try {
+			hierarchy.endUpdate();
+			fail("endUpdate() without beginUpdate() should throw an exception");
+		} catch (IllegalStateException e) {}
+	}
+	
+	@Test
+	public void test_batchUpdateThreads() throws Exception {
+		PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+		List<PathObjectHierarchyEvent> events = Collections.synchronizedList(new ArrayList<>());
+		hierarchy.addPathObjectListener(e -> events.add(e));
+		
+		hierarchy.beginUpdate();
+		try {
+			// Events from other threads (e.g. interactive edits) should not be held back
+			Thread thread = new Thread(() -> hierarchy.addPathObject(new PathAnnotationObject(new RectangleROI(0, 0, 100, 100)), false));
+			thread.start();
+			thread.join();
+			assertEquals(1, events.size());
+			
+			// Neither should 'changing' events from the thread that started the update
+			PathObject detection = new PathDetectionObject(new RectangleROI(10, 10, 5, 5));
+			hierarchy.addPathObject(detection, false);
+			hierarchy.fireObjectsChangedEvent(this, Collections.singletonList(detection), true);
+			assertEquals(2, events.size());
+			assertTrue(events.get(1).isChanging());
+			
+			// Another thread can't end an update it didn't start
+			AtomicReference<Throwable> thrown = new AtomicReference<>();
+			Thread thread2 = new Thread(() -> {
+				try {
+					hierarchy.endUpdate();
+				} catch (Throwable e) {
+					thrown.set(e);
+				}
+			});
+			thread2.start();
+			thread2.join();
+			assertTrue("endUpdate() from another thread should throw an exception", thrown.get() instanceof IllegalStateException);
+		} finally {
+			hierarchy.endUpdate();
+		}
+		assertEquals(3, events.size());
+		assertTrue(events.get(2).isStructureChangeEvent());
+	}
+	
+	@Test
+	public void test_setDeserializedHierarchy() throws Exception {
+		PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+		PathObject annotation = new PathAnnotationObject(new RectangleROI(0, 0, 100, 100));
+		hierarchy.addPathObject(annotation, false);
+		hierarchy.addPathObject(new PathDetectionObject(new RectangleROI(10, 10, 5, 5)), false);
+		
+		// Hierarchies read from legacy data files are deserialized, and then used to set the contents of a new hierarchy
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(hierarchy);
+		}
+		PathObjectHierarchy hierarchyRead;
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			hierarchyRead = (PathObjectHierarchy)in.readObject();
+		}
+		PathObjectHierarchy hierarchy2 = new PathObjectHierarchy();
+		hierarchy2.setHierarchy(hierarchyRead);
+		assertEquals(2, hierarchy2.nObjects());
+		assertEquals(1, hierarchy2.getObjects(null, PathDetectionObject.class).size());
+		assertEquals(1, hierarchy2.getObjects(null, PathAnnotationObject.class).get(0).nChildObjects());
+	}
+	
 }
 
 // Helper classes for testing
@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.objects.hierarchy;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.RectangleROI;
+import qupath.lib.roi.interfaces.ROI;
+
+public class TestPathObjectRTree {
+
+	private static List<PathObject> createObjects(int n, long seed) {
+		Random random = new Random(seed);
+		List<PathObject> list = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			double x = random.nextDouble() * 10000;
+			double y = random.nextDouble() * 10000;
+			list.add(new PathDetectionObject(new RectangleROI(x, y, 1 + random.nextDouble() * 20, 1 + random.nextDouble() * 20)));
+		}
+		return list;
+	}
+
+	private static Set<PathObject> bruteForce(List<PathObject> pathObjects, double x, double y, double w, double h) {
+		Set<PathObject> set = new HashSet<>();
+		for (PathObject pathObject : pathObjects) {
+			ROI roi = pathObject.getROI();
+			double x2 = roi.getBoundsX() + Math.max(roi.getBoundsWidth(), 1);
+			double y2 = roi.getBoundsY() + Math.max(roi.getBoundsHeight(), 1);
+			if (x2 > x && y2 > y && roi.getBoundsX() < x + w && roi.getBoundsY() < y + h)
+				set.add(pathObject);
+		}
+		return set;
+	}
+
+	private static void checkQueries(PathObjectRTree tree, List<PathObject> pathObjects, long seed) {
+		Random random = new Random(seed);
+		for (int i = 0; i < 50; i++) {
+			double x = random.nextDouble() * 10000;
+			double y = random.nextDouble() * 10000;
+			double w = random.nextDouble() * 2000;
+			double h = random.nextDouble() * 2000;
+			Set<PathObject> expected = bruteForce(pathObjects, x, y, w, h);
+			List<PathObject> found = new ArrayList<>();
+			tree.getObjects(x, y, w, h, found);
+			assertEquals(expected.size(), found.size());
+			assertEquals(expected, new HashSet<>(found));
+			assertEquals(!expected.isEmpty(), tree.hasObjects(x, y, w, h));
+		}
+	}
+
+	@Test
+	public void test_bulkLoadAndQuery() {
+		List<PathObject> pathObjects = createObjects(5000, 1L);
+		PathObjectRTree tree = new PathObjectRTree();
+		tree.addAll(pathObjects);
+		assertEquals(pathObjects.size(), tree.size());
+		checkQueries(tree, pathObjects, 2L);
+	}
+
+	@Test
+	public void test_incrementalInsertAndRemove() {
+		List<PathObject> pathObjects = createObjects(3000, 3L);
+		PathObjectRTree tree = new PathObjectRTree();
+		tree.addAll(pathObjects.subList(0, 1000));
+		for (PathObject pathObject : pathObjects.subList(1000, pathObjects.size()))
+			tree.add(pathObject);
+		assertEquals(pathObjects.size(), tree.size());
+		checkQueries(tree, pathObjects, 4L);
+
+		List<PathObject> remaining = new ArrayList<>(pathObjects);
+		for (int i = 0; i < 2000; i++) {
+			PathObject pathObject = remaining.remove(remaining.size() - 1 - (i % 7));
+			assertTrue(tree.remove(pathObject));
+		}
+		assertFalse(tree.remove(pathObjects.get(pathObjects.size() - 1)));
+		assertEquals(remaining.size(), tree.size());
+		checkQueries(tree, remaining, 5L);
+	}
+
+	@Test
+	public void test_nearestObjects() {
+		List<PathObject> pathObjects = createObjects(2000, 6L);
+		PathObjectRTree tree = new PathObjectRTree();
+		tree.addAll(pathObjects);
+		double x = 5000, y = 5000;
+		List<PathObject> nearest = tree.getNearestObjects(x, y, 10, Double.POSITIVE_INFINITY, new ArrayList<>());
+
+		List<PathObject> sorted = new ArrayList<>(pathObjects);
+		sorted.sort((p1, p2) -> Double.compare(distance(p1, x, y), distance(p2, x, y)));
+		assertEquals(sorted.subList(0, 10), nearest);
+
+		double maxDistance = (distance(sorted.get(4), x, y) + distance(sorted.get(5), x, y)) / 2.0;
+		assertEquals(5, tree.getNearestObjects(x, y, 10, maxDistance, new ArrayList<>()).size());
+	}
+
+	private static double distance(PathObject pathObject, double x, double y) {
+		double dx = pathObject.getROI().getCentroidX() - x;
+		double dy = pathObject.getROI().getCentroidY() - y;
+		return Math.sqrt(dx*dx + dy*dy);
+	}
+
+}
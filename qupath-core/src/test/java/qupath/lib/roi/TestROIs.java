@@ -7,12 +7,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
 import qupath.lib.geom.Point2;
+import qupath.lib.roi.experimental.WindingTest;
+import qupath.lib.roi.interfaces.PathArea;
 import qupath.lib.roi.interfaces.ROI;
+import qupath.lib.rois.vertices.Vertices;
 
 public class TestROIs {
 	
@@ -55,6 +60,68 @@ public class TestROIs {
 	}
 	
 	
+	@Test
+	public void polygonContains() {
+		Random random = new Random(100L);
+		
+		// Irregular star, with integer coordinates so that many test points fall exactly on vertices & edges
+		int n = 2000;
+		float[] x = new float[n];
+		float[] y = new float[n];
+		for (int i = 0; i < n; i++) {
+			double theta = 2 * Math.PI * i / n;
+			double r = 200 + random.nextInt(100);
+			x[i] = Math.round(500 + r * Math.cos(theta));
+			y[i] = Math.round(500 + r * Math.sin(theta));
+		}
+		testContains(new PolygonROI(x, y, -1, 0, 0), Arrays.asList(VerticesFactory.createVertices(x, y, false)), random);
+		
+		// Staircase, with lots of horizontal & vertical edges
+		float[] x2 = new float[n];
+		float[] y2 = new float[n];
+		for (int i = 0; i < n / 2; i++) {
+			x2[i * 2] = i;
+			y2[i * 2] = i % 7;
+			x2[i * 2 + 1] = i + 1;
+			y2[i * 2 + 1] = i % 7;
+		}
+		x2[n - 1] = 0;
+		y2[n - 1] = -10;
+		testContains(new PolygonROI(x2, y2, -1, 0, 0), Arrays.asList(VerticesFactory.createVertices(x2, y2, false)), random);
+		
+		// Area containing a hole
+		float[] xHole = new float[n];
+		float[] yHole = new float[n];
+		for (int i = 0; i < n; i++) {
+			double theta = -2 * Math.PI * i / n;
+			xHole[i] = (float)(500 + 100 * Math.cos(theta));
+			yHole[i] = (float)(500 + 100 * Math.sin(theta));
+		}
+		List<Vertices> vertices = Arrays.asList(VerticesFactory.createVertices(x, y, false), VerticesFactory.createVertices(xHole, yHole, false));
+		testContains(new AreaROI(vertices), vertices, random);
+	}
+	
+	private static void testContains(ROI roi, List<Vertices> vertices, Random random) {
+		double x = roi.getBoundsX() - 10;
+		double y = roi.getBoundsY() - 10;
+		double w = roi.getBoundsWidth() + 20;
+		double h = roi.getBoundsHeight() + 20;
+		for (int i = 0; i < 20000; i++) {
+			double px = x + random.nextDouble() * w;
+			double py = y + random.nextDouble() * h;
+			// Also test integer locations, which can be on vertices or edges
+			if (i % 2 == 0) {
+				px = Math.round(px);
+				py = Math.round(py);
+			}
+			int wn = 0;
+			for (Vertices v : vertices)
+				wn += WindingTest.getWindingNumber(v, px, py);
+			assertEquals(wn != 0, ((PathArea)roi).contains(px, py));
+		}
+	}
+	
+	
 	private static void testEqualLines(LineROI roi1, LineROI roi2, double tolerance) {
 		assertEquals(roi1.getX1(), roi2.getX1(), tolerance);
 		assertEquals(roi1.getY1(), roi2.getY1(), tolerance);
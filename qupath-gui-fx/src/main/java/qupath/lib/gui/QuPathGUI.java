@@ -237,6 +237,7 @@ import qupath.lib.gui.helpers.ColorToolsFX;
 import qupath.lib.gui.helpers.CommandFinderTools;
 import qupath.lib.gui.helpers.DisplayHelpers;
 import qupath.lib.gui.helpers.DisplayHelpers.DialogButton;
+import qupath.lib.gui.helpers.HierarchyJournalHelpers;
 import qupath.lib.gui.helpers.dialogs.DialogHelper;
 import qupath.lib.gui.helpers.dialogs.DialogHelperFX;
 import qupath.lib.gui.helpers.dialogs.ParameterPanelFX;
@@ -545,6 +546,9 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 					return;
 				}
 			}
+			// Any remaining changes have been intentionally discarded, so shouldn't be recovered later
+			HierarchyJournalHelpers.discardAllJournals();
+			
 			// Stop any painter requests
 			if (imageRegionStore != null)
 				imageRegionStore.close();
@@ -677,6 +681,10 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 		// Listen for cache request changes
 		PathPrefs.useProjectImageCacheProperty().addListener(v -> updateProjectActionStates());
 		
+		// Apply the data file format preference
+		PathIO.setUseBinaryFormat(PathPrefs.useBinaryDataFormat());
+		PathPrefs.useBinaryDataFormatProperty().addListener((v, o, n) -> PathIO.setUseBinaryFormat(n));
+		
 		// Menus should now be complete
 		initializingMenus.set(false);
 		
@@ -2126,7 +2134,7 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 				if (imageData.isChanged()) {
 					DialogButton response = DisplayHelpers.showYesNoCancelDialog("Save changes", "Save changes to " + entryPrevious.getImageName() + "?");
 					if (response == DialogButton.YES)
-						PathIO.writeImageData(filePrevious, imageData);
+						HierarchyJournalHelpers.writeImageData(filePrevious, imageData);
 					else if (response == DialogButton.CANCEL)
 						return;
 				}
@@ -2439,6 +2447,8 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 		if (imageData2 == null)
 			return false;
 		
+		HierarchyJournalHelpers.startJournal(file, imageData2);
+		
 		if (imageData2 != imageData) {
 			viewer.setImageData(imageData2);
 			// If we just have a single viewer, no harm in centering this
@@ -4660,7 +4670,7 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 						if (filePrevious == null)
 							return false;
 					}
-					PathIO.writeImageData(filePrevious, imageData);
+					HierarchyJournalHelpers.writeImageData(filePrevious, imageData);
 				}
 			}
 			viewer.setImageData(null);
@@ -4735,6 +4745,9 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 
 		@Override
 		public void imageDataChanged(QuPathViewer viewer, ImageData<BufferedImage> imageDataOld, ImageData<BufferedImage> imageDataNew) {
+			// Stop journaling changes for images that are no longer open
+			if (imageDataOld != null && viewers.stream().noneMatch(v -> v.getImageData() == imageDataOld))
+				HierarchyJournalHelpers.discardJournal(imageDataOld);
 			if (viewer != null && viewer == getActiveViewer()) {
 				if (viewer.getServer() != null) {
 					// Setting these to NaN prevents unexpected jumping when a new image is opened
@@ -29,10 +29,10 @@ import java.io.File;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.commands.interfaces.PathCommand;
 import qupath.lib.gui.helpers.DisplayHelpers;
+import qupath.lib.gui.helpers.HierarchyJournalHelpers;
 import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
-import qupath.lib.io.PathIO;
 
 /**
  * Command to save the current ImageData.
@@ -79,7 +79,7 @@ public class SerializeImageDataCommand implements PathCommand {
 			if (file == null)
 				return;
 			
-			PathIO.writeImageData(file, imageData);
+			HierarchyJournalHelpers.writeImageData(file, imageData);
 		}
 		
 		
@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.gui.helpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.images.ImageData;
+import qupath.lib.io.HierarchyJournal;
+import qupath.lib.io.PathIO;
+
+/**
+ * Helper methods to keep a {@link HierarchyJournal} for each image opened from a data file, 
+ * if requested in the preferences.
+ * <p>
+ * Data files should be written through {@link #writeImageData(File, ImageData)} so that any journal 
+ * is compacted, rather than left describing changes relative to a file that has since been overwritten.
+ */
+public class HierarchyJournalHelpers {
+	
+	final private static Logger logger = LoggerFactory.getLogger(HierarchyJournalHelpers.class);
+	
+	private static Map<ImageData<?>, HierarchyJournal> journals = new IdentityHashMap<>();
+	
+	/**
+	 * Start recording changes to the objects of an ImageData that has just been read from (or written to) a data file, 
+	 * if journals are turned on in the preferences.
+	 * 
+	 * @param file
+	 * @param imageData
+	 * @return true if a journal is in use for the file, false otherwise
+	 */
+	public static synchronized boolean startJournal(final File file, final ImageData<?> imageData) {
+		if (file == null || imageData == null)
+			return false;
+		HierarchyJournal journal = journals.get(imageData);
+		if (journal != null) {
+			if (journal.getDataFile().getAbsoluteFile().equals(file.getAbsoluteFile()))
+				return true;
+			discardJournal(imageData);
+		}
+		if (!PathPrefs.useHierarchyJournal())
+			return false;
+		try {
+			journal = HierarchyJournal.open(file, imageData);
+			journal.startAutosave(PathPrefs.getHierarchyJournalIntervalSeconds(), TimeUnit.SECONDS);
+			journals.put(imageData, journal);
+			return true;
+		} catch (IOException e) {
+			logger.error("Unable to start journal for " + file, e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Write an ImageData to a data file.
+	 * <p>
+	 * If a journal is in use for the same file, this compacts the journal; otherwise the file is written with {@link PathIO} 
+	 * and a new journal started if turned on in the preferences.
+	 * 
+	 * @param file
+	 * @param imageData
+	 * @return true if the file was written successfully, false otherwise
+	 */
+	public static synchronized boolean writeImageData(final File file, final ImageData<?> imageData) {
+		HierarchyJournal journal = journals.get(imageData);
+		if (journal != null && journal.getDataFile().getAbsoluteFile().equals(file.getAbsoluteFile())) {
+			try {
+				journal.compact();
+				return true;
+			} catch (IOException e) {
+				logger.error("Unable to write " + file, e);
+				return false;
+			}
+		}
+		// Changes recorded relative to any other file are no longer needed
+		discardJournal(imageData);
+		// Opening a journal writes the data file
+		if (PathPrefs.useHierarchyJournal() && startJournal(file, imageData))
+			return true;
+		return PathIO.writeImageData(file, imageData);
+	}
+	
+	/**
+	 * Stop recording changes for an ImageData, and delete its journal - for example because it has been closed.
+	 * <p>
+	 * Any unsaved changes are then lost.
+	 * 
+	 * @param imageData
+	 */
+	public static synchronized void discardJournal(final ImageData<?> imageData) {
+		HierarchyJournal journal = journals.remove(imageData);
+		if (journal != null)
+			journal.discard();
+	}
+	
+	/**
+	 * Stop recording changes for all images, and delete their journals.
+	 */
+	public static synchronized void discardAllJournals() {
+		List<ImageData<?>> list = new ArrayList<>(journals.keySet());
+		for (ImageData<?> imageData : list)
+			discardJournal(imageData);
+	}
+
+}
@@ -59,6 +59,8 @@ import qupath.lib.gui.models.ObservableMeasurementTableData.ROICentroidMeasureme
 import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.measurements.ColumnarMeasurementTable;
+import qupath.lib.measurements.MeasurementList;
 import qupath.lib.objects.MetadataStore;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathDetectionObject;
@@ -324,10 +326,11 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 				values[i] = getNumericValue(filterList.get(i), column);
 			return values;
 		}
-		// Good news! We just need a regular measurement
-		for (int i = 0; i < filterList.size(); i++)
-			values[i] = filterList.get(i).getMeasurementList().getMeasurementValue(column);
-		return values;
+		// Good news! We just need a regular measurement - which can be read by column, if the lists support it
+		List<MeasurementList> measurementLists = new ArrayList<>(filterList.size());
+		for (PathObject pathObject : filterList)
+			measurementLists.add(pathObject.getMeasurementList());
+		return ColumnarMeasurementTable.getMeasurementValues(measurementLists, column, values);
 	}
 	
 	@Override
@@ -155,6 +155,31 @@ public class PreferencePanel {
 			category,
 			"Store image tiles for hosted images of each project in a local cache.\nThis avoids requiring lengthy HTTP requests every time an image is (re)analysed or viewed, at the cost of needing more local storage space.");
 		
+		addPropertyPreference(PathPrefs.useDiskTileCacheProperty(), Boolean.class,
+			"Use disk tile cache",
+			category,
+			"Store tiles read from whole slide images in a persistent cache on the local disk.\nThis can make revisiting images much faster, particularly for images on network storage (requires restart).");
+		
+		addPropertyPreference(PathPrefs.diskTileCacheSizeMBProperty(), Integer.class,
+			"Disk tile cache size (MB)",
+			category,
+			"Maximum size of the disk tile cache, in MB (requires restart)");
+		
+		addPropertyPreference(PathPrefs.useBinaryDataFormatProperty(), Boolean.class,
+			"Save data in binary format",
+			category,
+			"Write .qpdata files in a compact binary format, which is much faster for images with many objects.\nFiles saved in this format cannot be opened with older versions of QuPath.");
+		
+		addPropertyPreference(PathPrefs.useHierarchyJournalProperty(), Boolean.class,
+			"Journal object changes",
+			category,
+			"Regularly record changes to objects in a journal alongside the data file, so that they can be recovered after a crash.\nData files are always saved in the binary format when this is used (applies to images opened afterwards).");
+		
+		addPropertyPreference(PathPrefs.hierarchyJournalIntervalSecondsProperty(), Integer.class,
+			"Journal interval (seconds)",
+			category,
+			"How often changes to objects are written to the journal (applies to images opened afterwards)");
+		
 		addPropertyPreference(PathPrefs.tmaExportDownsampleProperty(), Double.class,
 			"TMA export downsample factor",
 			category,
@@ -174,6 +199,10 @@ public class PreferencePanel {
 				"Gamma value (display only)", category, 
 				"Set the gamma value applied to the image in the viewer for display - recommended to leave at default value of 1");
 		
+		addPropertyPreference(PathPrefs.viewerPrefetchTilesProperty(), Boolean.class,
+				"Prefetch tiles while navigating", category, 
+				"Request image tiles in advance according to the direction of panning & zooming, so that they are available sooner");
+		
 		addPropertyPreference(PathPrefs.scrollSpeedProperty(), Integer.class,
 				"Scroll speed %", category, 
 				"Adjust the scrolling speed - 100% is 'normal', while lower values lead to slower scrolling");
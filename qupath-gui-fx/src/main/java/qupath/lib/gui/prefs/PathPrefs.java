@@ -100,6 +100,107 @@ public class PathPrefs {
 	public static void setUseProjectImageCache(final boolean useCache) {
 		useProjectImageCache.set(useCache);
 	}
+	
+	
+	private static BooleanProperty useDiskTileCache = createPersistentPreference("useDiskTileCache", Boolean.FALSE);
+	private static IntegerProperty diskTileCacheSizeMB = createPersistentPreference("diskTileCacheSizeMB", 4096);
+	
+	/**
+	 * If true, tiles read from whole slide images are stored in a persistent cache on the local disk, 
+	 * so that they don't need to be decoded again whenever the image is revisited.
+	 * <p>
+	 * Changes take effect after QuPath is restarted.
+	 * 
+	 * @return
+	 * 
+	 * @see #getDiskTileCacheDirectory()
+	 */
+	public static BooleanProperty useDiskTileCacheProperty() {
+		return useDiskTileCache;
+	}
+
+	public static boolean useDiskTileCache() {
+		return useDiskTileCache.get();
+	}
+	
+	/**
+	 * Maximum size of the disk tile cache, in MB.
+	 * 
+	 * @return
+	 */
+	public static IntegerProperty diskTileCacheSizeMBProperty() {
+		return diskTileCacheSizeMB;
+	}
+	
+	public static long getDiskTileCacheSizeBytes() {
+		return Math.max(diskTileCacheSizeMB.get(), 1) * 1024L * 1024L;
+	}
+	
+	/**
+	 * Directory used for the disk tile cache.
+	 * 
+	 * @return
+	 */
+	public static File getDiskTileCacheDirectory() {
+		return new File(new File(System.getProperty("user.home"), "QuPath"), "tile-cache");
+	}
+	
+	
+	private static BooleanProperty useBinaryDataFormat = createPersistentPreference("useBinaryDataFormat", Boolean.FALSE);
+	
+	/**
+	 * If true, data files are written using the compact binary format rather than Java serialization.
+	 * <p>
+	 * Files written in the binary format cannot be opened with older versions of QuPath.
+	 * 
+	 * @return
+	 * 
+	 * @see qupath.lib.io.PathIO#setUseBinaryFormat(boolean)
+	 */
+	public static BooleanProperty useBinaryDataFormatProperty() {
+		return useBinaryDataFormat;
+	}
+	
+	public static boolean useBinaryDataFormat() {
+		return useBinaryDataFormat.get();
+	}
+	
+	
+	private static BooleanProperty useHierarchyJournal = createPersistentPreference("useHierarchyJournal", Boolean.FALSE);
+	private static IntegerProperty hierarchyJournalIntervalSeconds = createPersistentPreference("hierarchyJournalIntervalSeconds", 60);
+	
+	/**
+	 * If true, changes to the objects of an image opened from a data file are regularly appended to a journal alongside the file, 
+	 * so that they can be recovered if QuPath is closed unexpectedly.  Saving then rewrites the data file and clears the journal.
+	 * <p>
+	 * Data files are always written in the binary format when this is used.
+	 * 
+	 * @return
+	 * 
+	 * @see qupath.lib.io.HierarchyJournal
+	 */
+	public static BooleanProperty useHierarchyJournalProperty() {
+		return useHierarchyJournal;
+	}
+	
+	public static boolean useHierarchyJournal() {
+		return useHierarchyJournal.get();
+	}
+	
+	/**
+	 * Interval at which changes are appended to the journal, in seconds.
+	 * 
+	 * @return
+	 * 
+	 * @see #useHierarchyJournalProperty()
+	 */
+	public static IntegerProperty hierarchyJournalIntervalSecondsProperty() {
+		return hierarchyJournalIntervalSeconds;
+	}
+	
+	public static int getHierarchyJournalIntervalSeconds() {
+		return Math.max(1, hierarchyJournalIntervalSeconds.get());
+	}
 
 	private static StringProperty scriptsPath = createPersistentPreference("scriptsPath", (String)null); // Base directory containing scripts
 
@@ -849,6 +950,21 @@ public class PathPrefs {
 		return viewerGammaProperty.get();
 	}
 	
+	
+	private static BooleanProperty viewerPrefetchTiles = createPersistentPreference("viewerPrefetchTiles", Boolean.TRUE);
+	
+	/**
+	 * If true, viewers will request tiles in advance based upon the direction of panning & zooming.
+	 * @return
+	 */
+	public static BooleanProperty viewerPrefetchTilesProperty() {
+		return viewerPrefetchTiles;
+	}
+	
+	public static boolean getViewerPrefetchTiles() {
+		return viewerPrefetchTiles.get();
+	}
+	
 
 	
 	/**
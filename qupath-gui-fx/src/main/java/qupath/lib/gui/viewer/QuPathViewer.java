@@ -572,6 +572,9 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		setImageData(imageData);
 
 		regionServer.addTileListener(this);
+		
+		// Request tiles in advance when panning & zooming
+		addViewerListener(new TilePrefetcher());
 
 		//		updateCursor();
 		imageUpdated = true;
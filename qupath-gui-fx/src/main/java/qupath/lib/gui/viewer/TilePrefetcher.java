@@ -0,0 +1,192 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.gui.viewer;
+
+import java.awt.Shape;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.stores.ImageRegionStoreHelpers;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Listener that watches how the visible region of a viewer changes, and requests tiles that are likely to be needed next.
+ * <p>
+ * The velocity of panning and rate of zooming are estimated from successive visible regions (in the same way as they 
+ * would be recorded by a view tracker).  Tiles are then prefetched for the region the viewer is predicted to reach shortly, 
+ * and at the next pyramid level in the direction of zooming.
+ */
+class TilePrefetcher implements QuPathViewerListener {
+	
+	final private static Logger logger = LoggerFactory.getLogger(TilePrefetcher.class);
+	
+	// Changes separated by longer than this are not considered part of a continuous movement
+	private static final long MAX_INTERVAL_MILLIS = 500;
+	// How far ahead to predict the visible region
+	private static final double LOOKAHEAD_MILLIS = 500;
+	// Weight given to the most recent velocity estimate
+	private static final double SMOOTHING = 0.5;
+	// Minimum predicted movement, relative to the visible region size, before tiles are prefetched
+	private static final double MIN_RELATIVE_MOVEMENT = 0.05;
+	
+	private String lastPath;
+	private long lastTime;
+	private double lastX, lastY, lastDownsample;
+	
+	private double vx, vy; // Velocity, in pixels per millisecond
+	private double vZoom; // Rate of change of log downsample, per millisecond
+	
+	
+	@Override
+	public void visibleRegionChanged(final QuPathViewer viewer, final Shape shape) {
+		ImageServer<BufferedImage> server = viewer.getServer();
+		if (shape == null || server == null || !PathPrefs.getViewerPrefetchTiles() || server.getPreferredDownsamples().length <= 1) {
+			lastPath = null;
+			return;
+		}
+		
+		Rectangle2D bounds = shape.getBounds2D();
+		double downsample = viewer.getDownsampleFactor();
+		long time = System.currentTimeMillis();
+		if (!updateVelocity(server.getPath(), time, bounds.getCenterX(), bounds.getCenterY(), downsample))
+			return;
+		
+		List<RegionRequest> requests = getPrefetchRequests(server, bounds, downsample, viewer.getZPosition(), viewer.getTPosition());
+		if (!requests.isEmpty()) {
+			int n = viewer.getImageRegionStore().prefetchTiles(viewer, server, requests);
+			logger.trace("Prefetching {} tiles", n);
+		}
+	}
+	
+	
+	/**
+	 * Update the velocity estimates.
+	 * 
+	 * @return true if the viewer is moving, false otherwise
+	 */
+	boolean updateVelocity(final String path, final long time, final double x, final double y, final double downsample) {
+		long dt = time - lastTime;
+		boolean continuous = path.equals(lastPath) && dt <= MAX_INTERVAL_MILLIS;
+		if (continuous && dt > 0) {
+			vx = SMOOTHING * (x - lastX) / dt + (1 - SMOOTHING) * vx;
+			vy = SMOOTHING * (y - lastY) / dt + (1 - SMOOTHING) * vy;
+			vZoom = SMOOTHING * Math.log(downsample / lastDownsample) / dt + (1 - SMOOTHING) * vZoom;
+		} else if (!continuous) {
+			vx = 0;
+			vy = 0;
+			vZoom = 0;
+		}
+		lastPath = path;
+		lastTime = time;
+		lastX = x;
+		lastY = y;
+		lastDownsample = downsample;
+		return continuous && (vx != 0 || vy != 0 || vZoom != 0);
+	}
+	
+	
+	/**
+	 * Get the tiles that should be prefetched, based on the current velocity estimates.
+	 * Tiles along the predicted path come first, followed by tiles at the next resolution level in the direction of zooming.
+	 * 
+	 * @param server
+	 * @param bounds
+	 * @param downsample
+	 * @param z
+	 * @param t
+	 * @return
+	 */
+	List<RegionRequest> getPrefetchRequests(final ImageServer<BufferedImage> server, final Rectangle2D bounds, final double downsample, final int z, final int t) {
+		List<RegionRequest> requests = new ArrayList<>();
+		double size = Math.min(bounds.getWidth(), bounds.getHeight());
+		double dx = vx * LOOKAHEAD_MILLIS;
+		double dy = vy * LOOKAHEAD_MILLIS;
+		double cx = bounds.getCenterX();
+		double cy = bounds.getCenterY();
+		
+		// Request tiles for where we expect the viewer to be soon
+		if (Math.sqrt(dx*dx + dy*dy) > size * MIN_RELATIVE_MOVEMENT) {
+			cx += dx;
+			cy += dy;
+			Rectangle2D predicted = new Rectangle2D.Double(bounds.getX() + dx, bounds.getY() + dy, bounds.getWidth(), bounds.getHeight());
+			ImageRegionStoreHelpers.getTilesToRequest(server, predicted, downsample, z, t, requests);
+		}
+		
+		// Request tiles at the next resolution level, if we are zooming
+		double zoom = vZoom * LOOKAHEAD_MILLIS;
+		if (Math.abs(zoom) > MIN_RELATIVE_MOVEMENT) {
+			double current = server.getPreferredDownsampleFactor(downsample);
+			double[] downsamples = server.getPreferredDownsamples().clone();
+			Arrays.sort(downsamples);
+			double next = Double.NaN;
+			if (zoom < 0) {
+				// Zooming in - find the next finer level
+				for (double d : downsamples) {
+					if (d < current)
+						next = d;
+				}
+			} else {
+				// Zooming out - find the next coarser level
+				for (int i = downsamples.length-1; i >= 0; i--) {
+					if (downsamples[i] > current)
+						next = downsamples[i];
+				}
+			}
+			if (!Double.isNaN(next)) {
+				// The visible region scales with the downsample
+				double scale = Math.max(next, 1) / downsample;
+				double w = bounds.getWidth() * scale;
+				double h = bounds.getHeight() * scale;
+				Rectangle2D region = new Rectangle2D.Double(cx - w/2, cy - h/2, w, h);
+				ImageRegionStoreHelpers.getTilesToRequest(server, region, next, z, t, requests);
+			}
+		}
+		return requests;
+	}
+	
+
+	@Override
+	public void imageDataChanged(QuPathViewer viewer, ImageData<BufferedImage> imageDataOld, ImageData<BufferedImage> imageDataNew) {
+		lastPath = null;
+	}
+
+	@Override
+	public void selectedObjectChanged(QuPathViewer viewer, PathObject pathObjectSelected) {}
+
+	@Override
+	public void viewerClosed(QuPathViewer viewer) {
+		lastPath = null;
+	}
+
+}
@@ -43,7 +43,9 @@ import org.slf4j.LoggerFactory;
 
 import qupath.lib.awt.common.AwtTools;
 import qupath.lib.display.ImageDisplay;
+import qupath.lib.images.servers.GeneratingImageServer;
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.stores.TileScheduler.Priority;
 import qupath.lib.regions.RegionRequest;
 
 
@@ -58,6 +60,8 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 	static final int DEFAULT_THUMBNAIL_WIDTH = 1000;
 
 	static Logger logger = LoggerFactory.getLogger(DefaultImageRegionStore.class);
+	
+	private volatile DiskTileCache diskCache;
 
 	protected DefaultImageRegionStore(int thumbnailWidth, long tileCacheSize) {
 		super(new BufferedImageSizeEstimator(), thumbnailWidth, tileCacheSize);
@@ -111,9 +115,10 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 
 		// Loop through and create the image
 		List<TileWorker<BufferedImage>> workers = new ArrayList<>();
+		// Requests here are generally for analysis, so shouldn't compete with tiles needed for viewing
 		for (RegionRequest tileRequest : ImageRegionStoreHelpers.getTilesToRequest(server, request, null)) {
 
-			Object result = requestImageTile(server, tileRequest, cache, true);
+			Object result = requestImageTile(server, tileRequest, cache, true, Priority.BACKGROUND);
 
 			// If we have an image, paint it & record coordinates
 			if (result instanceof BufferedImage)
@@ -355,9 +360,48 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 	}
 
 
+	/**
+	 * Set a persistent cache to use for tiles that are not found in memory.
+	 * <p>
+	 * Tiles from tiled (i.e. whole slide) images are read from this cache if possible, and otherwise 
+	 * added to it after they have been read from the server.
+	 * 
+	 * @param diskCache the cache, or null if no disk cache should be used
+	 */
+	public void setDiskTileCache(final DiskTileCache diskCache) {
+		DiskTileCache previous = this.diskCache;
+		this.diskCache = diskCache;
+		if (previous != null && previous != diskCache)
+			previous.close();
+	}
+	
+	/**
+	 * Get the persistent cache used for tiles that are not found in memory, or null if there is none.
+	 * 
+	 * @return
+	 */
+	public DiskTileCache getDiskTileCache() {
+		return diskCache;
+	}
+	
+	@Override
+	protected BufferedImage readTile(final ImageServer<BufferedImage> server, final RegionRequest request) {
+		DiskTileCache diskCache = this.diskCache;
+		if (diskCache == null || server instanceof GeneratingImageServer || !isTiledImageServer(server))
+			return super.readTile(server, request);
+		BufferedImage img = diskCache.get(server, request);
+		if (img == null) {
+			img = super.readTile(server, request);
+			diskCache.put(server, request, img);
+		}
+		return img;
+	}
+
+
 	@Override
 	public void close() {
 		super.close();
+		setDiskTileCache(null);
 	}
 
 
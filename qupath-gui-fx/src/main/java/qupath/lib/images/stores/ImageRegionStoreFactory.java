@@ -23,6 +23,13 @@
 
 package qupath.lib.images.stores;
 
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.gui.prefs.PathPrefs;
+
 /**
  * Factory for creating an ImageRegionStore.
  * 
@@ -31,6 +38,8 @@ package qupath.lib.images.stores;
  */
 public class ImageRegionStoreFactory {
 	
+	private final static Logger logger = LoggerFactory.getLogger(ImageRegionStoreFactory.class);
+	
 	/**
 	 * Create an ImageRegionStore.
 	 * 
@@ -41,7 +50,15 @@ public class ImageRegionStoreFactory {
 	 */
 	public static DefaultImageRegionStore createImageRegionStore(final long tileCacheSize) {
 //		return new PriorityImageRegionStore();
-		return new DefaultImageRegionStore(tileCacheSize);
+		DefaultImageRegionStore store = new DefaultImageRegionStore(tileCacheSize);
+		if (PathPrefs.useDiskTileCache()) {
+			try {
+				store.setDiskTileCache(new DiskTileCache(PathPrefs.getDiskTileCacheDirectory(), PathPrefs.getDiskTileCacheSizeBytes()));
+			} catch (IOException e) {
+				logger.error("Unable to create disk tile cache", e);
+			}
+		}
+		return store;
 	}
 	
 }
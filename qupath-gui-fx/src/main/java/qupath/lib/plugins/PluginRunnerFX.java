@@ -49,6 +49,9 @@ import javafx.stage.Stage;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.helpers.PanelToolsFX;
 import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.stores.TransformedPixelCache;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.plugins.CommandLinePluginRunner;
 import qupath.lib.plugins.AbstractPluginRunner;
 import qupath.lib.plugins.SimpleProgressMonitor;
@@ -90,11 +93,24 @@ public class PluginRunnerFX extends AbstractPluginRunner<BufferedImage> {
 		boolean delayRepaints = qupath != null && qupath.getViewer() != null && repaintDelayMillis > 0;
 		if (delayRepaints)
 			qupath.getViewer().setMinimumRepaintSpacingMillis(repaintDelayMillis);
+		// Share decoded & transformed pixels between tasks (and any other plugins run within the same script)
+		ImageServer<BufferedImage> server = getImageServer();
+		TransformedPixelCache pixelCache = server == null ? null : TransformedPixelCache.open(server);
+		// Tasks are completed on the application thread, so buffer hierarchy events there until all tasks are complete - 
+		// otherwise listeners (e.g. the viewer) could be notified separately for every tile
+		ImageData<BufferedImage> imageData = getImageData();
+		PathObjectHierarchy hierarchy = imageData == null || Platform.isFxApplicationThread() ? null : imageData.getHierarchy();
+		if (hierarchy != null)
+			runOnApplicationThread(() -> hierarchy.beginUpdate());
 		try {
 			super.runTasks(tasks);
 		} catch (Exception e) {
 			throw(e);
 		} finally {
+			if (hierarchy != null)
+				runOnApplicationThread(() -> hierarchy.endUpdate());
+			if (pixelCache != null)
+				pixelCache.close();
 			if (delayRepaints)
 				qupath.getViewer().resetMinimumRepaintSpacingMillis();
 		}
@@ -114,22 +130,29 @@ public class PluginRunnerFX extends AbstractPluginRunner<BufferedImage> {
 			// Failing to do this leads to issues such as intermittent concurrent modification exceptions, or commands needing
 			// to be run twice
 			// This aims to ensure that can't happen
-			FutureTask<Boolean> postProcessTask = new FutureTask<>(() -> {
-				super.postProcess(runnable);
-			}, Boolean.TRUE);
-			Platform.runLater(postProcessTask);
-			try {
-				postProcessTask.get();
-			} catch (InterruptedException e) {
-				logger.error("Interruption during post-processing", e);
-			} catch (ExecutionException e) {
-				logger.error("Exception during post-processing", e);
-			}
+			runOnApplicationThread(() -> super.postProcess(runnable));
 //			Platform.runLater(() -> postProcess(runnable));
 			return;
 		}
 		super.postProcess(runnable);
 	}
+	
+	/**
+	 * Run on the JavaFX application thread, waiting for completion.
+	 * 
+	 * @param runnable
+	 */
+	private static void runOnApplicationThread(final Runnable runnable) {
+		FutureTask<Boolean> task = new FutureTask<>(runnable, Boolean.TRUE);
+		Platform.runLater(task);
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			logger.error("Interrupted while waiting for the application thread", e);
+		} catch (ExecutionException e) {
+			logger.error("Exception on the application thread", e);
+		}
+	}
 
 
 	
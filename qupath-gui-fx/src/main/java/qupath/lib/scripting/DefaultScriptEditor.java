@@ -121,6 +121,7 @@ import qupath.lib.images.servers.ImageServerProvider;
 import qupath.lib.images.servers.RotatedImageServer;
 import qupath.lib.images.stores.ImageRegionStore;
 import qupath.lib.images.stores.ImageRegionStoreFactory;
+import qupath.lib.images.stores.TransformedPixelCache;
 import qupath.lib.io.PathIO;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectImageEntry;
@@ -712,6 +713,9 @@ public class DefaultScriptEditor implements ScriptEditor {
 		// Set the current ImageData if we can
 		QP.setBatchImageData((ImageData<?>)imageData);
 		
+		// Allow plugins run one after the other by the script to share decoded & transformed pixels
+		TransformedPixelCache pixelCache = imageData == null || imageData.getServer() == null ? null : TransformedPixelCache.open(imageData.getServer());
+		
 		// We'll actually use script2... which may or may not be the same
 		String script2 = script;
 		
@@ -804,6 +808,8 @@ public class DefaultScriptEditor implements ScriptEditor {
 //				e1.printStackTrace();
 			}
 		} finally {
+			if (pixelCache != null)
+				pixelCache.close();
 			QP.setBatchImageData(null);
 		}
 		return result;
@@ -35,7 +35,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
-import java.util.Collections;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +47,7 @@ import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
+import qupath.imagej.helpers.PixelBufferPool;
 import qupath.imagej.objects.ROIConverterIJ;
 import qupath.imagej.processing.ROILabeling;
 import qupath.imagej.processing.SimpleThresholding;
@@ -306,18 +306,19 @@ public class SubcellularDetection extends AbstractInteractivePlugin<BufferedImag
 				g2d.setColor(Color.WHITE);
 				g2d.fill(shape);
 				g2d.dispose();
-				cellMask = (byte[])((DataBufferByte)imgMask.getRaster().getDataBuffer()).getData(0);				
+				cellMask = ((DataBufferByte)imgMask.getRaster().getDataBuffer()).getData(0);				
 			}
 
 			// Get a buffer containing the image pixels
 			int w = img.getWidth();
 			int h = img.getHeight();
 
-			ArrayList<Float> cellBytes = new ArrayList<Float>();
+			float[] cellValues = PixelBufferPool.borrowFloats(w*h, false);
+			int nCellValues = 0;
 
 			// Identify (& try to separate) spots
 			// Mask out non-cell areas as we go
-			FloatProcessor fpDetection = new FloatProcessor(w, h);
+			FloatProcessor fpDetection = PixelBufferPool.borrowFloatProcessor(w, h);
 			if (doSmoothing) {
 				for (int i = 0; i < w*h; i++)
 					fpDetection.setf(i, img.getValue(i%w, i/w));
@@ -326,26 +327,27 @@ public class SubcellularDetection extends AbstractInteractivePlugin<BufferedImag
 					if (cellMask[i] == (byte)0)
 						fpDetection.setf(i, 0f);
 					else
-						cellBytes.add(fpDetection.getf(i % w, i / w));
+						cellValues[nCellValues++] = fpDetection.getf(i % w, i / w);
 				}
 			} else {
 				for (int i = 0; i < w*h; i++) {
 					if (cellMask[i] == (byte)0) {
 						fpDetection.setf(i, 0f);
 					} else {
-						cellBytes.add(img.getValue(i % w, i / w));
+						cellValues[nCellValues++] = img.getValue(i % w, i / w);
 						fpDetection.setf(i, img.getValue(i % w, i / w));
 					}
 				}
 			}
 
 			double threshold = detectionThreshold;
-			if (thresholdIsRelative && !cellBytes.isEmpty())
+			if (thresholdIsRelative && nCellValues > 0)
 			{
-				Collections.sort(cellBytes);
-				double medianValue = cellBytes.get(cellBytes.size() / 2);
+				Arrays.sort(cellValues, 0, nCellValues);
+				double medianValue = cellValues[nCellValues / 2];
 				threshold = detectionThreshold * medianValue;
 			}
+			PixelBufferPool.release(cellValues);
 
 			ByteProcessor bpSpots;
 			if (splitByIntensity)
@@ -395,6 +397,8 @@ public class SubcellularDetection extends AbstractInteractivePlugin<BufferedImag
 				}
 			}
 
+			PixelBufferPool.release(fpDetection, bpSpots);
+
 			// Add measurements
 			MeasurementList measurementList = pathObject.getMeasurementList();
 			measurementList.putMeasurement("Subcellular: " + channelName +  ": Num spots estimated", estimatedSpots);
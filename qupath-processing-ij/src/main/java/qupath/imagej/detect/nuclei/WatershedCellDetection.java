@@ -55,11 +55,13 @@ import ij.process.ImageStatistics;
 import ij.process.ShortProcessor;
 import qupath.imagej.color.ColorDeconvolutionIJ;
 import qupath.imagej.helpers.IJTools;
+import qupath.imagej.helpers.PixelBufferPool;
 import qupath.imagej.objects.PathImagePlus;
 import qupath.imagej.objects.ROIConverterIJ;
 import qupath.imagej.objects.measure.ObjectMeasurements;
 import qupath.imagej.processing.MorphologicalReconstruction;
 import qupath.imagej.processing.ROILabeling;
+import qupath.imagej.processing.RankFiltersIJ;
 import qupath.imagej.processing.RegionalExtrema;
 import qupath.imagej.processing.SimpleThresholding;
 import qupath.imagej.processing.Watershed;
@@ -374,6 +376,12 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 					pathROI.getT());// && isBrightfield);
 			
 			pathObjects.addAll(detector2.getPathObjects());
+			
+			// Return the (tile-sized) images to the pool, so they can be reused for the next tile
+			detector2.releaseBuffers();
+			for (FloatProcessor fp : channels.values())
+				PixelBufferPool.release(fp);
+			PixelBufferPool.release(fpDetection);
 					
 			return pathObjects;
 		}
@@ -511,9 +519,8 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 		
 		public static ByteProcessor limitedOpeningByReconstruction(final ImageProcessor ip, final ImageProcessor ipBackground, final double radius, final double maxBackground) {
 			// Apply (initial) morphological opening
-			final RankFilters rf = new RankFilters();
 			ipBackground.setRoi(ip.getRoi());
-			rf.rank(ipBackground, radius, RankFilters.MIN);
+			RankFiltersIJ.rank(ipBackground, radius, RankFilters.MIN);
 			
 			// Mask out any above-threshold background pixels & their surroundings
 			ByteProcessor bpMask = null;
@@ -529,7 +536,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				}
 				// Apply mask if required
 				if (bpMask != null) {
-					rf.rank(bpMask, radius*2, RankFilters.MAX);
+					RankFiltersIJ.rank(bpMask, radius*2, RankFilters.MAX);
 					for (int i = 0; i < w * h; i++) {
 						if (bpMask.getf(i) != 0f) {
 							ipBackground.setf(i, Float.NEGATIVE_INFINITY);
@@ -560,12 +567,12 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				
 				// Use Laplacian of Gaussian filtering followed by watershed transform to determine possible nucleus segments
 				// Result will be a dramatic over-segmentation...
-				FloatProcessor fpLoG = (FloatProcessor)fpDetection.duplicate();
+				FloatProcessor fpLoG = PixelBufferPool.duplicate(fpDetection);
 
 				// Start off with a median filter to reduce texture, if necessary
 				RankFilters rf = new RankFilters();
 				if (medianRadius > 0)
-					rf.rank(fpLoG, medianRadius, RankFilters.MEDIAN);
+					RankFiltersIJ.rank(fpLoG, medianRadius, RankFilters.MEDIAN);
 
 				//--------NEW--------
 				if (excludeDAB && channels.containsKey("Hematoxylin OD") && channels.containsKey("DAB OD")) {
@@ -582,10 +589,11 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				
 				// Subtract background first, if needed
 				if (backgroundRadius > 0) {
-					ImageProcessor ipBackground = fpLoG.duplicate();
+					ImageProcessor ipBackground = PixelBufferPool.duplicate(fpLoG);
 					bpBackgroundMask = limitedOpeningByReconstruction(fpLoG, ipBackground, backgroundRadius, maxBackground);
 					fpLoG.copyBits(ipBackground, 0, 0, Blitter.SUBTRACT);
-					ipToMeasure = fpLoG.duplicate();
+					PixelBufferPool.release(ipBackground);
+					ipToMeasure = PixelBufferPool.duplicate(fpLoG);
 				} else {
 					ipToMeasure = fpDetection;
 				}
@@ -607,13 +615,14 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				ipLabels.setThreshold(0.5, Double.POSITIVE_INFINITY, ImageProcessor.NO_LUT_UPDATE);
 				// TODO: Consider 4/8 connectivity for watershed nucleus ROIs
 				rois = ROILabeling.getFilledPolygonROIs(ipLabels, Wand.FOUR_CONNECTED);			
+				PixelBufferPool.release(fpLoG, ipTemp, ipLabels);
 				
 				if (Thread.currentThread().isInterrupted())
 					return;
 			} 
 			
 			if (bp == null)
-				bp = new ByteProcessor(width, height);	
+				bp = PixelBufferPool.borrowByteProcessor(width, height);	
 			
 //			// TODO: Consider application of an automated threshold
 //			if (threshold < 0) {
@@ -640,6 +649,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				// Fill the ROI to keep it
 				bp.fill(r);
 			}
+			PixelBufferPool.release(bpBackgroundMask);
 			
 			if (Thread.currentThread().isInterrupted())
 				return;
@@ -675,13 +685,14 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			// The idea is that Gaussian smoothing tends to cause the boundaries of 'thin' nuclei to be overestimated;
 			// this uses a smaller filter to correct instances where the boundary has moved by just one pixel
 			if (refineBoundary && sigma > 1.5) {
-				FloatProcessor fpBoundaryCleanup = (FloatProcessor)fpDetection.duplicate();
+				FloatProcessor fpBoundaryCleanup = PixelBufferPool.duplicate(fpDetection);
 				fpBoundaryCleanup.blurGaussian(1);
 				fpBoundaryCleanup.convolve(new float[]{0, -1, 0, -1, 4, -1, 0, -1, 0}, 3, 3);
 				ByteProcessor bp2 = SimpleThresholding.thresholdAbove(fpBoundaryCleanup, 0f);
 				bp2.copyBits(bp, 0, 0, Blitter.MIN); // Remove everything not detected in bp
 				bp.filter(ByteProcessor.MIN);
 				bp.copyBits(bp2, 0, 0, Blitter.MAX);
+				PixelBufferPool.release(fpBoundaryCleanup, bp2);
 				regenerateROIs = true;
 			}
 			
@@ -711,7 +722,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			
 			
 			// Label nuclei
-			ShortProcessor ipLabels = new ShortProcessor(width, height);
+			ShortProcessor ipLabels = PixelBufferPool.borrowShortProcessor(width, height);
 			ROILabeling.labelROIs(ipLabels, roisNuclei);
 			
 			// Measure nuclei for all required channels
@@ -783,9 +794,10 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				double cellExpansionThreshold = -cellExpansion;
 				
 				// Create cell ROIs
-				ImageProcessor ipLabelsCells = ipLabels.duplicate();
+				ShortProcessor ipLabelsCells = PixelBufferPool.duplicate(ipLabels);
 				Watershed.doWatershed(fpEDM, ipLabelsCells, cellExpansionThreshold, false);
 				PolygonRoi[] roisCells = ROILabeling.labelsToFilledROIs(ipLabelsCells, roisNuclei.size());
+				PixelBufferPool.release(fpEDM);
 				
 				// Compute cell DAB stats
 				Map<String, List<RunningStatistics>> statsMapCell = new LinkedHashMap<>();
@@ -813,6 +825,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 						statsMapCytoplasm.put(key, statsList);
 					}
 				}
+				PixelBufferPool.release(ipLabelsCells);
 				
 				
 				// Create cell objects
@@ -889,6 +902,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			} else {
 				pathObjects.addAll(nucleiObjects);
 			}
+			PixelBufferPool.release(bp, ipLabels);
 			
 			// Close the measurement lists
 			for (PathObject pathObject : pathObjects)
@@ -920,6 +934,20 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			return pathObjects;
 		}
 		
+		/**
+		 * Return any images retained between calls to runDetection to the pixel buffer pool.
+		 * <p>
+		 * The detector should not be used again after calling this method.
+		 */
+		public void releaseBuffers() {
+			if (ipToMeasure != fpDetection)
+				PixelBufferPool.release(ipToMeasure);
+			PixelBufferPool.release(bpLoG);
+			ipToMeasure = null;
+			bpLoG = null;
+			rois = null;
+		}
+		
 		
 //		public void runDetection(double backgroundRadius, double maxBackground, double medianRadius, double sigma, double threshold, double minArea, double maxArea, boolean mergeAll, boolean watershedPostProcess, boolean excludeDAB, double cellExpansion, boolean limitExpansionByNucleusSize, boolean smoothBoundaries, boolean includeNuclei, boolean makeMeasurements) {
 		public void runDetection(double backgroundRadius, double maxBackground, double medianRadius, double sigma, double threshold, double minArea, double maxArea, boolean mergeAll, boolean watershedPostProcess, boolean excludeDAB, double cellExpansion, boolean smoothBoundaries, boolean includeNuclei, boolean makeMeasurements, int z, int t) {
@@ -59,6 +59,7 @@ import qupath.imagej.objects.ROIConverterIJ;
 import qupath.imagej.objects.measure.ObjectMeasurements;
 import qupath.imagej.processing.MorphologicalReconstruction;
 import qupath.imagej.processing.ROILabeling;
+import qupath.imagej.processing.RankFiltersIJ;
 import qupath.imagej.processing.RegionalExtrema;
 import qupath.imagej.processing.SimpleThresholding;
 import qupath.imagej.processing.Watershed;
@@ -432,9 +433,8 @@ public class WatershedCellMembraneDetection extends AbstractTileableDetectionPlu
 		
 		public static ByteProcessor limitedOpeningByReconstruction(final ImageProcessor ip, final ImageProcessor ipBackground, final double radius, final double maxBackground) {
 			// Apply (initial) morphological opening
-			final RankFilters rf = new RankFilters();
 			ipBackground.setRoi(ip.getRoi());
-			rf.rank(ipBackground, radius, RankFilters.MIN);
+			RankFiltersIJ.rank(ipBackground, radius, RankFilters.MIN);
 			
 			// Mask out any above-threshold background pixels & their surroundings
 			ByteProcessor bpMask = null;
@@ -450,7 +450,7 @@ public class WatershedCellMembraneDetection extends AbstractTileableDetectionPlu
 				}
 				// Apply mask if required
 				if (bpMask != null) {
-					rf.rank(bpMask, radius*2, RankFilters.MAX);
+					RankFiltersIJ.rank(bpMask, radius*2, RankFilters.MAX);
 					for (int i = 0; i < w * h; i++) {
 						if (bpMask.getf(i) != 0f) {
 							ipBackground.setf(i, Float.NEGATIVE_INFINITY);
@@ -498,7 +498,7 @@ public class WatershedCellMembraneDetection extends AbstractTileableDetectionPlu
 				// Start off with a median filter to reduce texture, if necessary
 				RankFilters rf = new RankFilters();
 				if (medianRadius > 0)
-					rf.rank(fpLoG, medianRadius, RankFilters.MEDIAN);
+					RankFiltersIJ.rank(fpLoG, medianRadius, RankFilters.MEDIAN);
 
 				// Subtract background first, if needed
 				if (backgroundRadius > 0) {
@@ -709,7 +709,7 @@ public class WatershedCellMembraneDetection extends AbstractTileableDetectionPlu
 				
 				// Determine a mask of the furthest anything can expand
 				ByteProcessor bpMaxExpansion = (ByteProcessor)bpMarkers.duplicate();
-				new RankFilters().rank(bpMaxExpansion, cellExpansion, RankFilters.MAX);
+				RankFiltersIJ.rank(bpMaxExpansion, cellExpansion, RankFilters.MAX);
 				
 				// Update the mask to remove completely unstained pixels
 				for (int i = 0; i < width * height; i++) {
@@ -54,6 +54,7 @@ import qupath.imagej.objects.ROIConverterIJ;
 import qupath.imagej.objects.measure.ObjectMeasurements;
 import qupath.imagej.processing.MorphologicalReconstruction;
 import qupath.imagej.processing.ROILabeling;
+import qupath.imagej.processing.RankFiltersIJ;
 import qupath.imagej.processing.RegionalExtrema;
 import qupath.imagej.processing.SimpleThresholding;
 import qupath.imagej.processing.Watershed;
@@ -522,7 +523,7 @@ class WatershedNucleusDetector2 {
 				fpLoG = (FloatProcessor)MorphologicalReconstruction.closingByReconstruction(fpLoG, holesRadius);
 
 			if (medianRadius > 0)
-				rf.rank(fpLoG, medianRadius, RankFilters.MEDIAN);
+				RankFiltersIJ.rank(fpLoG, medianRadius, RankFilters.MEDIAN);
 
 			//			if (holesRadius > 0)
 			//				fpLoG = (FloatProcessor)MorphologicalReconstructionInteger.closingByReconstruction(fpLoG, holesRadius);
@@ -0,0 +1,385 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.imagej.helpers;
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Per-thread pool of primitive arrays, intended to reduce garbage collection when 
+ * detection commands repeatedly create temporary images of the same (tile) size.
+ * <p>
+ * Buffers are borrowed and released on the same thread, so no synchronization is needed.
+ * Arrays are grouped by type and length; once released, an array may be handed out again 
+ * by the next borrow request of the same type and length.
+ * <p>
+ * Callers are responsible for ensuring that a released array is no longer referenced 
+ * anywhere else, e.g. by an object that will be returned from a detection plugin.
+ * Releasing an array that did not come from the pool is permitted, and allows 
+ * images created elsewhere (e.g. by ImageJ filters) to be recycled.
+ * <p>
+ * Each thread's pool is only softly referenced, so that buffers retained by long-lived worker threads 
+ * can be reclaimed by the garbage collector whenever memory is needed elsewhere.
+ */
+public class PixelBufferPool {
+	
+	/**
+	 * Maximum number of arrays retained for any single type and length.
+	 */
+	private static final int MAX_BUFFERS_PER_SIZE = 8;
+	
+	private static long maxBytesPerThread = Math.max(16L * 1024L * 1024L,
+			Runtime.getRuntime().maxMemory() / (4L * Runtime.getRuntime().availableProcessors()));
+	
+	private static final ThreadLocal<SoftReference<PixelBufferPool>> localPool = new ThreadLocal<>();
+	
+	private static final LongAdder bytesAllocated = new LongAdder();
+	private static final LongAdder bytesReused = new LongAdder();
+	
+	private final Map<Class<?>, Map<Integer, ArrayDeque<Object>>> arenas = new HashMap<>();
+	private long bytesPooled = 0;
+	
+	private PixelBufferPool() {}
+	
+	/**
+	 * Get the pool for the calling thread, creating a new one if necessary (including if the previous pool 
+	 * has been garbage collected).
+	 */
+	private static PixelBufferPool getLocalPool() {
+		SoftReference<PixelBufferPool> ref = localPool.get();
+		PixelBufferPool pool = ref == null ? null : ref.get();
+		if (pool == null) {
+			pool = new PixelBufferPool();
+			localPool.set(new SoftReference<>(pool));
+		}
+		return pool;
+	}
+	
+	
+	/**
+	 * Set the maximum number of bytes that may be held in the pool of each thread.
+	 * Released arrays are discarded (and left for the garbage collector) if retaining 
+	 * them would exceed this limit.
+	 * 
+	 * @param maxBytes
+	 */
+	public static void setMaxBytesPerThread(final long maxBytes) {
+		maxBytesPerThread = Math.max(0, maxBytes);
+	}
+	
+	/**
+	 * Get the maximum number of bytes that may be held in the pool of each thread.
+	 * 
+	 * @return
+	 */
+	public static long getMaxBytesPerThread() {
+		return maxBytesPerThread;
+	}
+	
+	/**
+	 * Discard all buffers currently pooled for the calling thread.
+	 */
+	public static void clearThreadPool() {
+		localPool.remove();
+	}
+	
+	/**
+	 * Get the total number of bytes allocated for new arrays because no suitable pooled array was available 
+	 * (summed across all threads).
+	 * 
+	 * @return
+	 */
+	public static long getBytesAllocated() {
+		return bytesAllocated.sum();
+	}
+
+	/**
+	 * Get the total number of bytes served from pooled arrays rather than new allocations 
+	 * (summed across all threads).
+	 * 
+	 * @return
+	 */
+	public static long getBytesReused() {
+		return bytesReused.sum();
+	}
+	
+	/**
+	 * Reset the values returned by {@link #getBytesAllocated()} and {@link #getBytesReused()}.
+	 */
+	public static void resetStatistics() {
+		bytesAllocated.reset();
+		bytesReused.reset();
+	}
+	
+	
+	/**
+	 * Borrow a float array of the specified length.
+	 * 
+	 * @param length
+	 * @param clear if true, all values will be set to zero; otherwise the contents are undefined
+	 * @return
+	 */
+	public static float[] borrowFloats(final int length, final boolean clear) {
+		float[] array = (float[])getLocalPool().borrow(float.class, length);
+		if (array == null)
+			return (float[])allocate(float.class, length);
+		if (clear)
+			Arrays.fill(array, 0f);
+		return array;
+	}
+
+	/**
+	 * Borrow a byte array of the specified length.
+	 * 
+	 * @param length
+	 * @param clear if true, all values will be set to zero; otherwise the contents are undefined
+	 * @return
+	 */
+	public static byte[] borrowBytes(final int length, final boolean clear) {
+		byte[] array = (byte[])getLocalPool().borrow(byte.class, length);
+		if (array == null)
+			return (byte[])allocate(byte.class, length);
+		if (clear)
+			Arrays.fill(array, (byte)0);
+		return array;
+	}
+
+	/**
+	 * Borrow a short array of the specified length.
+	 * 
+	 * @param length
+	 * @param clear if true, all values will be set to zero; otherwise the contents are undefined
+	 * @return
+	 */
+	public static short[] borrowShorts(final int length, final boolean clear) {
+		short[] array = (short[])getLocalPool().borrow(short.class, length);
+		if (array == null)
+			return (short[])allocate(short.class, length);
+		if (clear)
+			Arrays.fill(array, (short)0);
+		return array;
+	}
+
+	/**
+	 * Borrow an int array of the specified length.
+	 * 
+	 * @param length
+	 * @param clear if true, all values will be set to zero; otherwise the contents are undefined
+	 * @return
+	 */
+	public static int[] borrowInts(final int length, final boolean clear) {
+		int[] array = (int[])getLocalPool().borrow(int.class, length);
+		if (array == null)
+			return (int[])allocate(int.class, length);
+		if (clear)
+			Arrays.fill(array, 0);
+		return array;
+	}
+
+	/**
+	 * Borrow a double array of the specified length.
+	 * 
+	 * @param length
+	 * @param clear if true, all values will be set to zero; otherwise the contents are undefined
+	 * @return
+	 */
+	public static double[] borrowDoubles(final int length, final boolean clear) {
+		double[] array = (double[])getLocalPool().borrow(double.class, length);
+		if (array == null)
+			return (double[])allocate(double.class, length);
+		if (clear)
+			Arrays.fill(array, 0.0);
+		return array;
+	}
+	
+	
+	/**
+	 * Borrow a FloatProcessor, with all pixels set to zero.
+	 * <p>
+	 * This is equivalent to {@code new FloatProcessor(width, height)}, except that the pixel array may be reused.
+	 * 
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static FloatProcessor borrowFloatProcessor(final int width, final int height) {
+		return new FloatProcessor(width, height, borrowFloats(width * height, true), null);
+	}
+
+	/**
+	 * Borrow a ByteProcessor, with all pixels set to zero.
+	 * <p>
+	 * This is equivalent to {@code new ByteProcessor(width, height)}, except that the pixel array may be reused.
+	 * 
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static ByteProcessor borrowByteProcessor(final int width, final int height) {
+		return new ByteProcessor(width, height, borrowBytes(width * height, true), null);
+	}
+
+	/**
+	 * Borrow a ShortProcessor, with all pixels set to zero.
+	 * <p>
+	 * This is equivalent to {@code new ShortProcessor(width, height)}, except that the pixel array may be reused.
+	 * 
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static ShortProcessor borrowShortProcessor(final int width, final int height) {
+		return new ShortProcessor(width, height, borrowShorts(width * height, true), null);
+	}
+	
+	/**
+	 * Create a duplicate of a FloatProcessor, using a pooled pixel array where possible.
+	 * <p>
+	 * As with {@link ImageProcessor#duplicate()}, the ROI is not copied.
+	 * 
+	 * @param fp
+	 * @return
+	 */
+	public static FloatProcessor duplicate(final FloatProcessor fp) {
+		int n = fp.getPixelCount();
+		float[] pixels = borrowFloats(n, false);
+		System.arraycopy(fp.getPixels(), 0, pixels, 0, n);
+		FloatProcessor fp2 = new FloatProcessor(fp.getWidth(), fp.getHeight(), pixels, fp.getColorModel());
+		fp2.setMinAndMax(fp.getMin(), fp.getMax());
+		fp2.setInterpolationMethod(fp.getInterpolationMethod());
+		return fp2;
+	}
+
+	/**
+	 * Create a duplicate of a ShortProcessor, using a pooled pixel array where possible.
+	 * <p>
+	 * As with {@link ImageProcessor#duplicate()}, the ROI is not copied.
+	 * 
+	 * @param sp
+	 * @return
+	 */
+	public static ShortProcessor duplicate(final ShortProcessor sp) {
+		int n = sp.getPixelCount();
+		short[] pixels = borrowShorts(n, false);
+		System.arraycopy(sp.getPixels(), 0, pixels, 0, n);
+		ShortProcessor sp2 = new ShortProcessor(sp.getWidth(), sp.getHeight(), pixels, sp.getColorModel());
+		sp2.setInterpolationMethod(sp.getInterpolationMethod());
+		return sp2;
+	}
+	
+	
+	/**
+	 * Return the pixel arrays of one or more images to the pool of the calling thread.
+	 * <p>
+	 * The images must not be used after calling this method.
+	 * Null images are ignored.
+	 * 
+	 * @param ips
+	 */
+	public static void release(final ImageProcessor... ips) {
+		PixelBufferPool pool = getLocalPool();
+		for (ImageProcessor ip : ips) {
+			if (ip != null)
+				pool.recycle(ip.getPixels());
+		}
+	}
+
+	/**
+	 * Return a primitive array to the pool of the calling thread.
+	 * <p>
+	 * The array must not be used after calling this method.
+	 * Null values and non-array objects are ignored.
+	 * 
+	 * @param array
+	 */
+	public static void release(final Object array) {
+		getLocalPool().recycle(array);
+	}
+	
+	
+	
+	private static Object allocate(final Class<?> type, final int length) {
+		bytesAllocated.add((long)length * bytesPerElement(type));
+		return Array.newInstance(type, length);
+	}
+	
+	private Object borrow(final Class<?> type, final int length) {
+		Map<Integer, ArrayDeque<Object>> arena = arenas.get(type);
+		if (arena == null)
+			return null;
+		ArrayDeque<Object> buffers = arena.get(length);
+		if (buffers == null || buffers.isEmpty())
+			return null;
+		long bytes = (long)length * bytesPerElement(type);
+		bytesPooled -= bytes;
+		bytesReused.add(bytes);
+		return buffers.pop();
+	}
+	
+	private void recycle(final Object array) {
+		if (array == null || !array.getClass().isArray())
+			return;
+		Class<?> type = array.getClass().getComponentType();
+		int bytesPerElement = bytesPerElement(type);
+		if (bytesPerElement == 0)
+			return;
+		int length = Array.getLength(array);
+		long bytes = (long)length * bytesPerElement;
+		if (length == 0 || bytesPooled + bytes > maxBytesPerThread)
+			return;
+		ArrayDeque<Object> buffers = arenas.computeIfAbsent(type, t -> new HashMap<>()).computeIfAbsent(length, n -> new ArrayDeque<>());
+		if (buffers.size() >= MAX_BUFFERS_PER_SIZE)
+			return;
+		// Guard against the same array being released twice, since it could then be borrowed twice
+		for (Object existing : buffers) {
+			if (existing == array)
+				return;
+		}
+		buffers.push(array);
+		bytesPooled += bytes;
+	}
+	
+	private static int bytesPerElement(final Class<?> type) {
+		if (type == float.class || type == int.class)
+			return 4;
+		if (type == byte.class)
+			return 1;
+		if (type == short.class)
+			return 2;
+		if (type == double.class)
+			return 8;
+		return 0;
+	}
+
+}
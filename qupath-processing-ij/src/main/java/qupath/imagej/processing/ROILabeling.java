@@ -45,6 +45,7 @@ import ij.process.FloodFiller;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 import ij.process.ShortProcessor;
+import qupath.imagej.helpers.PixelBufferPool;
 
 /**
  * Collection of static methods to help work with ROIs, binary & labelled images in ImageJ - 
@@ -245,15 +246,15 @@ public class ROILabeling {
 		PolygonRoi[] rois = new PolygonRoi[n];
 		int w = ipLabels.getWidth();
 		int h = ipLabels.getHeight();
-		ByteProcessor bpCompleted = new ByteProcessor(w, h);
+		ByteProcessor bpCompleted = PixelBufferPool.borrowByteProcessor(w, h);
 		bpCompleted.setValue(255);
+		Wand wand = new Wand(ipLabels);
 		for (int y = 0; y < h; y++) {
 			for (int x = 0; x < w; x++) {
 				if (bpCompleted.get(x, y) != 0)
 					continue;
 				float val = ipLabels.getf(x, y);
 				if (val > 0 && val <= n) {
-					Wand wand = new Wand(ipLabels);
 					wand.autoOutline(x, y, val, val, Wand.EIGHT_CONNECTED);
 					PolygonRoi roi = wandToRoi(wand);
 					rois[(int)val-1] = roi;
@@ -261,6 +262,7 @@ public class ROILabeling {
 				}
 			}
 		}
+		PixelBufferPool.release(bpCompleted);
 		return rois;
 	}
 	
@@ -281,15 +283,15 @@ public class ROILabeling {
 		List<PolygonRoi> rois = new ArrayList<>();
 		int w = ipLabels.getWidth();
 		int h = ipLabels.getHeight();
-		ByteProcessor bpCompleted = new ByteProcessor(w, h);
+		ByteProcessor bpCompleted = PixelBufferPool.borrowByteProcessor(w, h);
 		bpCompleted.setValue(255);
+		Wand wand = new Wand(ipLabels);
 		for (int y = 0; y < h; y++) {
 			for (int x = 0; x < w; x++) {
 				if (bpCompleted.get(x, y) != 0)
 					continue;
 				float val = ipLabels.getf(x, y);
 				if (val > 0) {
-					Wand wand = new Wand(ipLabels);
 					wand.autoOutline(x, y, val, val, conn8 ? Wand.EIGHT_CONNECTED : Wand.FOUR_CONNECTED);
 					PolygonRoi roi = wandToRoi(wand);
 					rois.add(roi);
@@ -297,6 +299,7 @@ public class ROILabeling {
 				}
 			}
 		}
+		PixelBufferPool.release(bpCompleted);
 		return rois;
 	}
 	
@@ -316,8 +319,9 @@ public class ROILabeling {
 		Roi[] rois = new Roi[n];
 		int w = ipLabels.getWidth();
 		int h = ipLabels.getHeight();
-		ByteProcessor bpCompleted = new ByteProcessor(w, h);
+		ByteProcessor bpCompleted = PixelBufferPool.borrowByteProcessor(w, h);
 		bpCompleted.setValue(255);
+		Wand wand = new Wand(ipLabels);
 		ThresholdToSelection tts = new ThresholdToSelection();
 		for (int y = 0; y < h; y++) {
 			for (int x = 0; x < w; x++) {
@@ -325,7 +329,6 @@ public class ROILabeling {
 					continue;
 				float val = ipLabels.getf(x, y);
 				if (val > 0 && val <= n) {
-					Wand wand = new Wand(ipLabels);
 					ipLabels.resetThreshold();
 					wand.autoOutline(x, y, val, val, Wand.EIGHT_CONNECTED);
 					Roi roi = wandToRoi(wand);
@@ -343,6 +346,7 @@ public class ROILabeling {
 				}
 			}
 		}
+		PixelBufferPool.release(bpCompleted);
 		return rois;
 	}
 	
@@ -358,7 +362,6 @@ public class ROILabeling {
 	 * @return
 	 */
 	public static Map<Float, PolygonRoi> getFilledPolygonROIsFromLabels(ImageProcessor ip, int wandMode) {
-//		Wand wand = new Wand(ip);
 		double threshLower = ip.getMinThreshold();
 		if (threshLower == ImageProcessor.NO_THRESHOLD)
 			threshLower = Double.NEGATIVE_INFINITY;
@@ -368,8 +371,9 @@ public class ROILabeling {
 		int w = ip.getWidth();
 		int h = ip.getHeight();
 //		List<PolygonRoi> rois = new ArrayList<>();
-		ByteProcessor bpCompleted = new ByteProcessor(w, h);
+		ByteProcessor bpCompleted = PixelBufferPool.borrowByteProcessor(w, h);
 		bpCompleted.setValue(255);
+		Wand wand = new Wand(ip);
 		TreeMap<Float, PolygonRoi> map = new TreeMap<>();
 		for (int y = 0; y < h; y++) {
 			for (int x = 0; x < w; x++) {
@@ -377,7 +381,6 @@ public class ROILabeling {
 					continue;
 				float val = ip.getf(x, y);
 				if (val >= threshLower && val <= threshHigher) {
-					Wand wand = new Wand(ip);
 					wand.autoOutline(x, y, threshLower, threshHigher, wandMode);
 					PolygonRoi roi = wandToRoi(wand);
 //					rois.add(roi);
@@ -389,12 +392,12 @@ public class ROILabeling {
 				}
 			}
 		}
+		PixelBufferPool.release(bpCompleted);
 		return map;
 	}
 	
 	
 	public static List<PolygonRoi> getFilledPolygonROIs(ImageProcessor ip, int wandMode) {
-//		Wand wand = new Wand(ip);
 		double threshLower = ip.getMinThreshold();
 		if (threshLower == ImageProcessor.NO_THRESHOLD)
 			threshLower = Double.NEGATIVE_INFINITY;
@@ -404,15 +407,15 @@ public class ROILabeling {
 		int w = ip.getWidth();
 		int h = ip.getHeight();
 		List<PolygonRoi> rois = new ArrayList<>();
-		ByteProcessor bpCompleted = new ByteProcessor(w, h);
+		ByteProcessor bpCompleted = PixelBufferPool.borrowByteProcessor(w, h);
 		bpCompleted.setValue(255);
+		Wand wand = new Wand(ip);
 		for (int y = 0; y < h; y++) {
 			for (int x = 0; x < w; x++) {
 				if (bpCompleted.get(x, y) != 0)
 					continue;
 				float val = ip.getf(x, y);
 				if (val >= threshLower && val <= threshHigher) {
-					Wand wand = new Wand(ip);
 					wand.autoOutline(x, y, threshLower, threshHigher, wandMode);
 					PolygonRoi roi = wandToRoi(wand);
 					rois.add(roi);
@@ -420,6 +423,7 @@ public class ROILabeling {
 				}
 			}
 		}
+		PixelBufferPool.release(bpCompleted);
 		return rois;
 	}
 	
@@ -430,11 +434,9 @@ public class ROILabeling {
 		
 		PolygonRoi roi;
 		
-		// The Wand can have far too many points (1000, when fewer are needed) - so used trimmed arrays where this is the case
-		if (wand.xpoints.length > wand.npoints * 1.25)
-			roi = new PolygonRoi(Arrays.copyOf(wand.xpoints, wand.npoints), Arrays.copyOf(wand.ypoints, wand.npoints), wand.npoints, Roi.TRACED_ROI);
-		else
-			roi = new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, Roi.TRACED_ROI);
+		// Always copy the coordinates - a traced PolygonRoi uses the arrays it is given directly, 
+		// and the Wand's arrays will be overwritten if the Wand is reused (they may also be far too long)
+		roi = new PolygonRoi(Arrays.copyOf(wand.xpoints, wand.npoints), Arrays.copyOf(wand.ypoints, wand.npoints), wand.npoints, Roi.TRACED_ROI);
 		
 		
 		// TODO: Consider simplifying wand perimeters along diagonals
@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.imagej.processing;
+
+import java.awt.Rectangle;
+
+import ij.plugin.filter.RankFilters;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import qupath.imagej.helpers.PixelBufferPool;
+import qupath.lib.analysis.algorithms.SimpleImageFilters;
+
+/**
+ * Drop-in replacement for {@link RankFilters#rank(ImageProcessor, double, int)} that uses the faster 
+ * implementations in {@link SimpleImageFilters} for minimum, maximum and median filters.
+ * <p>
+ * The same circular kernels are used, so results are identical to ImageJ's for finite pixel values.
+ * Whenever the faster filters cannot be applied (e.g. for RGB images, other filter types, 
+ * or if a ROI or mask has been set) this falls back to ImageJ's own implementation.
+ */
+public class RankFiltersIJ {
+	
+	private RankFiltersIJ() {}
+
+	/**
+	 * Apply a rank filter to an image, modifying the pixels in-place.
+	 * 
+	 * @param ip the image to filter
+	 * @param radius the filter radius, as used by ImageJ's {@link RankFilters}
+	 * @param filterType the ImageJ filter type, e.g. {@link RankFilters#MIN}, {@link RankFilters#MAX} or {@link RankFilters#MEDIAN}
+	 */
+	public static void rank(final ImageProcessor ip, final double radius, final int filterType) {
+		if (!canApply(ip, filterType)) {
+			new RankFilters().rank(ip, radius, filterType);
+			return;
+		}
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		if (ip instanceof FloatProcessor) {
+			applyFilter((float[])ip.getPixels(), width, height, radius, filterType);
+			return;
+		}
+		// Integer values are represented exactly as floats, & a rank filter only ever selects existing values
+		int n = width * height;
+		float[] pixels = PixelBufferPool.borrowFloats(n, false);
+		for (int i = 0; i < n; i++)
+			pixels[i] = ip.getf(i);
+		applyFilter(pixels, width, height, radius, filterType);
+		for (int i = 0; i < n; i++)
+			ip.setf(i, pixels[i]);
+		PixelBufferPool.release(pixels);
+	}
+	
+	private static boolean canApply(final ImageProcessor ip, final int filterType) {
+		if (filterType != RankFilters.MIN && filterType != RankFilters.MAX && filterType != RankFilters.MEDIAN)
+			return false;
+		if (!(ip instanceof FloatProcessor || ip instanceof ByteProcessor || ip instanceof ShortProcessor))
+			return false;
+		// ImageJ swaps minimum & maximum for images with an inverted LUT
+		if (ip.getMask() != null || ip.isInvertedLut())
+			return false;
+		Rectangle roi = ip.getRoi();
+		return roi.x == 0 && roi.y == 0 && roi.width == ip.getWidth() && roi.height == ip.getHeight();
+	}
+	
+	private static void applyFilter(final float[] pixels, final int width, final int height, final double radius, final int filterType) {
+		switch (filterType) {
+		case RankFilters.MIN:
+			SimpleImageFilters.minimum(pixels, width, height, radius);
+			break;
+		case RankFilters.MAX:
+			SimpleImageFilters.maximum(pixels, width, height, radius);
+			break;
+		case RankFilters.MEDIAN:
+			SimpleImageFilters.median(pixels, width, height, radius);
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported filter type " + filterType);
+		}
+	}
+
+}
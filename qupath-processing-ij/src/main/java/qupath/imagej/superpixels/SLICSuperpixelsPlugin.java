@@ -42,6 +42,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import qupath.imagej.color.ColorDeconvolutionIJ;
+import qupath.imagej.helpers.PixelBufferPool;
 import qupath.imagej.objects.PathImagePlus;
 import qupath.imagej.objects.ROIConverterIJ;
 import qupath.imagej.processing.ROILabeling;
@@ -186,6 +187,8 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 			ImagePlus imp = pathImage.getImage();
 			
 			ImageProcessor[] ipColor;
+			// Converted images may share pixels with the (cached) original for non-RGB images, so can't always be recycled
+			boolean recycleColor = true;
 			if (imp.getType() == ImagePlus.COLOR_RGB) {
 				ColorProcessor cp = (ColorProcessor)imp.getProcessor();
 				if (doDeconvolve && imageData.isBrightfield() && imageData.getColorDeconvolutionStains() != null) {
@@ -210,6 +213,7 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 				ipColor = new ImageProcessor[stack.getSize()];
 				for (int i = 0; i < stack.getSize(); i++)
 					ipColor[i] = stack.getProcessor(i+1).convertToFloatProcessor();
+				recycleColor = false;
 				// Sensible fluorescence values are a bit harder to guess...
 				double regularizationSuggestion = 0;
 				for (ImageProcessor fp : ipColor)
@@ -231,9 +235,9 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 			// Initialize centres and distances
 			int w = imp.getWidth();
 			int h = imp.getHeight();
-			short[] labels = new short[w*h];
+			short[] labels = PixelBufferPool.borrowShorts(w*h, false);
 			Arrays.fill(labels, (short)-1);
-			double[] distances = new double[w*h];
+			double[] distances = PixelBufferPool.borrowDoubles(w*h, false);
 			Arrays.fill(distances, Double.POSITIVE_INFINITY);
 			
 			int s = PREFERRED_PIXEL_SPACING;
@@ -307,8 +311,8 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 			
 			
 			// Enforce connectivity and merge small objects
-			short[] newLabels = new short[labels.length];
-			int[] xyCurrent = new int[w*h];
+			short[] newLabels = PixelBufferPool.borrowShorts(labels.length, true);
+			int[] xyCurrent = PixelBufferPool.borrowInts(w*h, false);
 			short label = 1;
 			int minSize = s*s/4;
 			for (int y = 0; y < h; y++) {
@@ -383,6 +387,10 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 			}
 			
 			
+			PixelBufferPool.release(labels);
+			PixelBufferPool.release(distances);
+			PixelBufferPool.release(xyCurrent);
+			
 			// Convert to ROIs
 			ShortProcessor ipLabels = new ShortProcessor(w, h, newLabels, null);
 			
@@ -419,6 +427,9 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 			} catch (Exception e) {
 				logger.error("Error created tiled ROIs", e);
 			}
+			PixelBufferPool.release(ipLabels);
+			if (recycleColor)
+				PixelBufferPool.release(ipColor);
 			
 			lastResultSummary = pathObjects.size() + " tiles created";
 			
@@ -36,10 +36,13 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.stream.IntStream;
 
 import qupath.lib.analysis.stats.RunningStatistics;
 import qupath.lib.classifiers.Normalization;
 import qupath.lib.classifiers.PathObjectClassifier;
+import qupath.lib.measurements.ColumnarMeasurementTable;
 import qupath.lib.measurements.MeasurementList;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.classes.PathClass;
@@ -71,6 +74,11 @@ public abstract class OpenCvClassifier<T extends StatModel> implements PathObjec
 
 	final private static Logger logger = LoggerFactory.getLogger(OpenCvClassifier.class);
 	
+	/**
+	 * Maximum number of objects to classify with a single prediction call.
+	 */
+	private static final int BLOCK_SIZE = 4096;
+	
 	private long timestamp = System.currentTimeMillis();
 	private Normalization normalization = Normalization.NONE;
 	List<PathClass> pathClasses;
@@ -139,27 +147,33 @@ public abstract class OpenCvClassifier<T extends StatModel> implements PathObjec
 		arrayTraining = new float[n * nMeasurements];
 		arrayResponses = new int[n];
 
+		// Extract values one measurement at a time, so that columnar measurement lists can be read efficiently
+		List<MeasurementList> measurementLists = new ArrayList<>(n);
 		int row = 0;
-		int nnan = 0;
 		for (PathClass pathClass : pathClasses) {
-			List<PathObject> list = map.get(pathClass);
 			int classIndex = pathClasses.indexOf(pathClass);
-			for (int i = 0; i < list.size(); i++) {
-				MeasurementList measurementList = list.get(i).getMeasurementList();
-				int col = 0;
-				for (String m : measurements) {
-					double value = measurementList.getMeasurementValue(m);
-					if (Double.isNaN(value))
-						nnan++;
-					else
-						statsMap.get(m).addValue(value);
-					arrayTraining[row * nMeasurements + col] = (float)value;
-					col++;
-				}
+			for (PathObject pathObject : map.get(pathClass)) {
+				measurementLists.add(pathObject.getMeasurementList());
 				arrayResponses[row] = classIndex;
 				row++;
 			}
 		}
+		int nnan = 0;
+		double[] values = null;
+		int col = 0;
+		for (String m : measurements) {
+			values = ColumnarMeasurementTable.getMeasurementValues(measurementLists, m, values);
+			RunningStatistics stats = statsMap.get(m);
+			for (int i = 0; i < n; i++) {
+				double value = values[i];
+				if (Double.isNaN(value))
+					nnan++;
+				else
+					stats.addValue(value);
+				arrayTraining[i * nMeasurements + col] = (float)value;
+			}
+			col++;
+		}
 		
 		
 		// Normalise, if required
@@ -286,49 +300,136 @@ public abstract class OpenCvClassifier<T extends StatModel> implements PathObjec
 	@Override
 	public int classifyPathObjects(Collection<PathObject> pathObjects) {
 		
+		if (pathObjects.isEmpty())
+			return 0;
 		
-		int counter = 0;
-		float[] array = new float[measurements.size()];
-		Mat samples = new Mat(1, array.length, CvType.CV_32FC1);
-
-		Mat results = new Mat();
-
-		for (PathObject pathObject : pathObjects) {
-			MeasurementList measurementList = pathObject.getMeasurementList();
-			int idx = 0;
-			for (String m : measurements) {
-				double value = measurementList.getMeasurementValue(m);
-				
+		// Classify blocks of objects in parallel, making a single prediction call for each block
+		List<PathObject> list = pathObjects instanceof List && pathObjects instanceof RandomAccess ? (List<PathObject>)pathObjects : new ArrayList<>(pathObjects);
+		int n = list.size();
+		int nBlocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		IntStream blocks = IntStream.range(0, nBlocks);
+		if (nBlocks > 1)
+			blocks = blocks.parallel();
+		blocks.forEach(b -> classifyBlock(list.subList(b * BLOCK_SIZE, Math.min(n, (b + 1) * BLOCK_SIZE))));
+		
+		return n;
+	}
+	
+	
+	/**
+	 * Classify a block of objects, using a single N x F Mat of samples.
+	 * 
+	 * @param pathObjects
+	 */
+	private void classifyBlock(final List<PathObject> pathObjects) {
+		int n = pathObjects.size();
+		int nMeasurements = measurements.size();
+		
+		// Extract values one measurement at a time, so that measurement lookups are shared across the block
+		List<MeasurementList> measurementLists = new ArrayList<>(n);
+		for (PathObject pathObject : pathObjects)
+			measurementLists.add(pathObject.getMeasurementList());
+		float[] array = new float[n * nMeasurements];
+		double[] values = null;
+		int col = 0;
+		for (String m : measurements) {
+			values = ColumnarMeasurementTable.getMeasurementValues(measurementLists, m, values);
+			for (int i = 0; i < n; i++) {
+				double value = values[i];
 				if (normScale != null && normOffset != null)
-					value = (value + normOffset[idx]) * normScale[idx];
-				
-				array[idx] = (float)value;
-				idx++;
+					value = (value + normOffset[col]) * normScale[col];
+				array[i * nMeasurements + col] = (float)value;
 			}
-			
-			samples.put(0, 0, array);
-			
-			try {
-				setPredictedClass(classifier, pathClasses, samples, results, pathObject);
-//				float prediction = classifier.predict(samples);
-//				
-////				float prediction2 = classifier.predict(samples, results, StatModel.RAW_OUTPUT);
-//				float prediction2 = classifier.predict(samples, results, StatModel.RAW_OUTPUT);
-//				
-//				pathObject.setPathClass(pathClasses.get((int)prediction), prediction2);
-				} catch (Exception e) {
+			col++;
+		}
+		
+		Mat samples = new Mat(n, nMeasurements, CvType.CV_32FC1);
+		samples.put(0, 0, array);
+		Mat results = new Mat();
+		
+		try {
+			setPredictedClasses(classifier, pathClasses, samples, results, pathObjects);
+		} catch (Exception e) {
+			// Fall back to classifying objects individually, so that one problematic sample doesn't affect the others
+			logger.debug("Error classifying block of {} objects - will classify individually ({})", n, e.getLocalizedMessage());
+			for (int i = 0; i < n; i++) {
+				PathObject pathObject = pathObjects.get(i);
+				Mat sample = samples.row(i);
+				try {
+					setPredictedClass(classifier, pathClasses, sample, results, pathObject);
+				} catch (Exception e2) {
 					pathObject.setPathClass(null);
-					logger.trace("Error with samples: " + samples.dump());
-//					e.printStackTrace();
+					logger.trace("Error with samples: " + sample.dump());
 				}
-//			}
-			counter++;
+				sample.release();
+			}
 		}
 		
 		samples.release();
 		results.release();
-				
-		return counter;
+	}
+	
+	
+	/**
+	 * Default prediction method for multiple objects, where each row of the samples matrix corresponds to 
+	 * one entry in the list of objects.
+	 * 
+	 * Subclasses that override {@link #setPredictedClass(StatModel, List, Mat, Mat, PathObject)} should 
+	 * also override this method, since it is used in preference whenever possible.
+	 * 
+	 * @param classifier
+	 * @param pathClasses
+	 * @param samples
+	 * @param results
+	 * @param pathObjects
+	 */
+	protected void setPredictedClasses(final T classifier, final List<PathClass> pathClasses, final Mat samples, final Mat results, final List<PathObject> pathObjects) {
+		classifier.predict(samples, results, 0);
+		int[] predictions = getPredictedIndices(results, pathObjects.size());
+		for (int i = 0; i < predictions.length; i++) {
+			pathObjects.get(i).setPathClass(pathClasses.get(predictions[i]));
+		}
+	}
+	
+	
+	/**
+	 * Get the index of the predicted class for each row of a results matrix.
+	 * 
+	 * Results with a single column are assumed to contain the index directly, 
+	 * otherwise the column with the maximum response is used (e.g. for neural networks).
+	 * 
+	 * @param results
+	 * @param n expected number of rows
+	 * @return
+	 */
+	static int[] getPredictedIndices(final Mat results, final int n) {
+		if (results.rows() != n)
+			throw new IllegalArgumentException("Expected " + n + " results, but found " + results.rows());
+		Mat mat = results;
+		if (results.type() != CvType.CV_32FC1) {
+			mat = new Mat();
+			results.convertTo(mat, CvType.CV_32F);
+		}
+		int nCols = mat.cols();
+		float[] values = new float[n * nCols];
+		mat.get(0, 0, values);
+		if (mat != results)
+			mat.release();
+		
+		int[] indices = new int[n];
+		for (int i = 0; i < n; i++) {
+			if (nCols == 1) {
+				indices[i] = (int)values[i];
+				continue;
+			}
+			int ind = 0;
+			for (int c = 1; c < nCols; c++) {
+				if (values[i * nCols + c] > values[i * nCols + ind])
+					ind = c;
+			}
+			indices[i] = ind;
+		}
+		return indices;
 	}
 	
 	
@@ -336,6 +437,9 @@ public abstract class OpenCvClassifier<T extends StatModel> implements PathObjec
 	 * Default prediction method.  Makes no attempt to populate results matrix or to provide probabilities.
 	 * (Results matrix only given as a parameter in case it is needed)
 	 * 
+	 * This is used to classify individual objects if classifying a block of objects with 
+	 * {@link #setPredictedClasses(StatModel, List, Mat, Mat, List)} fails.
+	 * 
 	 * Subclasses may choose to override this method if they can do a better prediction, e.g. providing probabilities as well.
 	 * 
 	 * Upon returning, it is assumed that the PathClass of the PathObject will be correct, but it is not assumed that the results matrix will
@@ -106,20 +106,48 @@ public class RTreesClassifier extends ParameterizableOpenCvClassifier<RTrees> im
 	
 	@Override
 	protected void setPredictedClass(final RTrees classifier, final List<PathClass> pathClasses, final Mat samples, final Mat results, final PathObject pathObject) {
-		if (pathClasses.size() == 2 && termCriteria != null && ((TermCriteria.EPS & termCriteria.type) == 0) && termCriteria.maxCount > 0) {
-			double prediction = classifier.predict(samples, results, RTrees.PREDICT_SUM)  / termCriteria.maxCount;
-			int index = (int)Math.round(prediction); // Round the prediction
-			// Convert to a probability based on the number of trees
-			double probability = prediction;
-			if (index == 0)
-				probability = 1 - probability;
-			// Set the class & probability
-			PathClass pathClass = pathClasses.get(index);
-			pathObject.setPathClass(pathClass, probability);			
+		if (canComputeProbabilities(pathClasses)) {
+			double sum = classifier.predict(samples, results, RTrees.PREDICT_SUM);
+			setPredictedClass(pathClasses, sum, pathObject);
 		} else
 			super.setPredictedClass(classifier, pathClasses, samples, results, pathObject);
 	}
 	
+	@Override
+	protected void setPredictedClasses(final RTrees classifier, final List<PathClass> pathClasses, final Mat samples, final Mat results, final List<PathObject> pathObjects) {
+		if (canComputeProbabilities(pathClasses)) {
+			classifier.predict(samples, results, RTrees.PREDICT_SUM);
+			int n = pathObjects.size();
+			if (results.rows() != n)
+				throw new IllegalArgumentException("Expected " + n + " results, but found " + results.rows());
+			float[] sums = new float[n];
+			results.get(0, 0, sums);
+			for (int i = 0; i < n; i++)
+				setPredictedClass(pathClasses, sums[i], pathObjects.get(i));
+		} else
+			super.setPredictedClasses(classifier, pathClasses, samples, results, pathObjects);
+	}
+	
+	/**
+	 * Probabilities can be estimated for 2-class problems from the proportion of trees voting for each class, 
+	 * provided the number of trees is known.
+	 */
+	private boolean canComputeProbabilities(final List<PathClass> pathClasses) {
+		return pathClasses.size() == 2 && termCriteria != null && ((TermCriteria.EPS & termCriteria.type) == 0) && termCriteria.maxCount > 0;
+	}
+	
+	private void setPredictedClass(final List<PathClass> pathClasses, final double sum, final PathObject pathObject) {
+		double prediction = sum / termCriteria.maxCount;
+		int index = (int)Math.round(prediction); // Round the prediction
+		// Convert to a probability based on the number of trees
+		double probability = prediction;
+		if (index == 0)
+			probability = 1 - probability;
+		// Set the class & probability
+		PathClass pathClass = pathClasses.get(index);
+		pathObject.setPathClass(pathClass, probability);
+	}
+	
 	
 	
 //	public void updateClassifier(final ImageData<?> imageData, final List<String> measurements, final int maxTrainingInstances) {
@@ -43,7 +43,6 @@ import qupath.lib.objects.PathObjectConnectionGroup;
 import qupath.lib.objects.PathObjectConnections;
 import qupath.lib.objects.PathRootObject;
 import qupath.lib.objects.TMACoreObject;
-import qupath.lib.objects.DefaultPathObjectConnectionGroup.MeasurementNormalizer;
 import qupath.lib.objects.helpers.PathObjectTools;
 import qupath.lib.plugins.AbstractInteractivePlugin;
 import qupath.lib.plugins.PathTask;
@@ -204,13 +203,15 @@ public class DelaunayClusteringPlugin<T> extends AbstractInteractivePlugin<T> {
 				return;
 			}
 			
-			MeasurementNormalizer normalizer = new MeasurementNormalizer(pathObjects);
-			List<String> measurements = new ArrayList<>(normalizer.getAvailableMeasurements());
-			
-			measurements = measurements.stream().filter(p -> {
-				return (p.toLowerCase().contains("haralick") || p.toLowerCase().contains("smooth")) && !p.toLowerCase().contains("cluster") && !p.toLowerCase().startsWith("pca");
-//				return !p.toLowerCase().contains("cluster");
-			}).collect(Collectors.toList());
+			// Normalized measurements are only needed for the (experimental) clustering below - 
+			// computing them requires a pass through every measurement of every object, which is slow for whole slide images
+//			MeasurementNormalizer normalizer = new MeasurementNormalizer(pathObjects);
+//			List<String> measurements = new ArrayList<>(normalizer.getAvailableMeasurements());
+//			
+//			measurements = measurements.stream().filter(p -> {
+//				return (p.toLowerCase().contains("haralick") || p.toLowerCase().contains("smooth")) && !p.toLowerCase().contains("cluster") && !p.toLowerCase().startsWith("pca");
+////				return !p.toLowerCase().contains("cluster");
+//			}).collect(Collectors.toList());
 //			measurements = measurements.stream().filter(p -> {
 //				return p.toLowerCase().contains("haralick") && !p.toLowerCase().contains("cluster");
 //			}).collect(Collectors.toList());
@@ -299,7 +300,6 @@ public class DelaunayClusteringPlugin<T> extends AbstractInteractivePlugin<T> {
 			DelaunayTriangulation dt = new DelaunayTriangulation(pathObjects, pixelWidth, pixelHeight, distanceThresholdPixels, limitByClass);
 			
 			DefaultPathObjectConnectionGroup result = new DefaultPathObjectConnectionGroup(dt);
-			pathObjects = new ArrayList<>(result.getPathObjects());
 
 			
 			